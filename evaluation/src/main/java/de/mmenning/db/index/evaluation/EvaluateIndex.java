@@ -7,8 +7,10 @@ import de.mmenning.db.index.evaluation.NDRandRecGenCreator.BorderType;
 import de.mmenning.db.index.evaluation.xml.index.IndexBase;
 import de.mmenning.db.index.evaluation.xml.setup.EvaluationSetup;
 import de.mmenning.db.index.evaluation.xml.setup.Function;
+import de.mmenning.db.index.evaluation.xml.setup.ReplacementPolicy;
 import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
 import de.mmenning.db.storage.BufferedStorage;
+import de.mmenning.db.storage.ReplacementPolicies;
 import de.mmenning.db.storage.StorageManager;
 import de.mmenning.util.math.RandomInterval;
 
@@ -96,6 +98,27 @@ public class EvaluateIndex {
       }
    }
 
+   public ReplacementPolicies getReplacementPolicy(ReplacementPolicy
+                                                         xmlPolicy) {
+      if (xmlPolicy == null) {
+         return ReplacementPolicies.LRU;
+      }
+      switch (xmlPolicy) {
+         case LRU:
+            return ReplacementPolicies.LRU;
+         case LRU_K:
+            return ReplacementPolicies.LRU_K;
+         case TWO_Q:
+            return ReplacementPolicies.TWO_Q;
+         case CLOCK:
+            return ReplacementPolicies.CLOCK;
+         case ARC:
+            return ReplacementPolicies.ARC;
+         default:
+            throw new UnsupportedOperationException();
+      }
+   }
+
    public Random getRandom(long randomSeed) {
       return new Random(randomSeed);
 
@@ -107,6 +130,10 @@ public class EvaluateIndex {
       EvaluationGoalFunction<?> evalFunc = getEvaluationGoalFuncion(es
             .getEvalFunction());
 
+      final ReplacementPolicies policy = getReplacementPolicy(es
+            .getReplacementPolicy());
+      dest.writeComment("Replacement Policy: " + policy + " \n");
+
       final Random rand = getRandom(es.getRandomSeed());
 
       int maxSize = es.getInitialSize();
@@ -121,7 +148,7 @@ public class EvaluateIndex {
 
                   // long start = System.nanoTime();
                   StorageManager storageManager = BufferedStorage
-                        .getStorageManager(bufferSize, blockSize);
+                        .getStorageManager(bufferSize, blockSize, policy);
                   NowGen now = new NowGen(0.25, (double) 0.5
                         / (maxSize + 1));
 
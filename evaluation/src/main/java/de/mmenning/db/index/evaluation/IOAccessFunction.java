@@ -2,7 +2,13 @@ package de.mmenning.db.index.evaluation;
 
 import de.mmenning.db.index.NDRectangleKeyIndex;
 import de.mmenning.db.storage.BufferedStorage;
+import de.mmenning.db.storage.ConcurrentBufferedStorage;
 import de.mmenning.db.storage.CountingStorage;
+import de.mmenning.db.storage.IOCounter;
+import de.mmenning.db.storage.MappedPageStorage;
+import de.mmenning.db.storage.PageFileStorage;
+import de.mmenning.db.storage.StorageManager;
+import de.mmenning.db.storage.SynchronizedStorage;
 
 public class IOAccessFunction
 		implements EvaluationGoalFunction<Long> {
@@ -22,19 +28,31 @@ public class IOAccessFunction
 
    public Long value(NDRectangleKeyIndex index) {
 
-		CountingStorage c;
+		StorageManager s = index.getStorageManager();
 
-		if (index.getStorageManager().getClass() == BufferedStorage.class) {
-			c = (CountingStorage) ((BufferedStorage) index.getStorageManager())
-					.getStorage();
-		} else if (index.getStorageManager().getClass() == CountingStorage.class) {
-			c = (CountingStorage) index.getStorageManager();
+		if (s.getClass() == BufferedStorage.class) {
+			s = ((BufferedStorage) s).getStorage();
+		} else if (s.getClass() == ConcurrentBufferedStorage.class) {
+			s = ((ConcurrentBufferedStorage) s).getStorage();
+		}
+		if (s.getClass() == SynchronizedStorage.class) {
+			s = ((SynchronizedStorage) s).getStorage();
+		}
+
+		IOCounter c;
+
+		if (s.getClass() == CountingStorage.class) {
+			c = ((CountingStorage) s).getIOCounter();
+		} else if (s.getClass() == PageFileStorage.class) {
+			c = ((PageFileStorage) s).getIOCounter();
+		} else if (s.getClass() == MappedPageStorage.class) {
+			c = ((MappedPageStorage) s).getIOCounter();
 		} else {
 
 			throw new UnsupportedOperationException(
 					"unsupported StorageManager type");
 		}
-		return c.getIOCounter().getReads() + c.getIOCounter().getWrites();
+		return c.getReads() + c.getWrites();
 	}
 
 }
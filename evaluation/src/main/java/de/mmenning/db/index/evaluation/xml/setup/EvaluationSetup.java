@@ -31,6 +31,7 @@ import javax.xml.bind.annotation.XmlType;
  *         &lt;element name="dim" type="{http://www.w3.org/2001/XMLSchema}int" maxOccurs="unbounded"/>
  *         &lt;element name="bufferSize" type="{http://www.w3.org/2001/XMLSchema}int" maxOccurs="unbounded"/>
  *         &lt;element name="blockSize" type="{http://www.w3.org/2001/XMLSchema}int" maxOccurs="unbounded"/>
+ *         &lt;element name="replacementPolicy" type="{http://www.mmenning.de/db/index/evaluation/xml/setup}ReplacementPolicy" minOccurs="0"/>
  *         &lt;element name="initialSize" type="{http://www.w3.org/2001/XMLSchema}int"/>
  *         &lt;element name="incSize" type="{http://www.w3.org/2001/XMLSchema}int" maxOccurs="unbounded"/>
  *         &lt;element name="startPercentage" type="{http://www.w3.org/2001/XMLSchema}double"/>
@@ -60,6 +61,7 @@ import javax.xml.bind.annotation.XmlType;
     "dim",
     "bufferSize",
     "blockSize",
+    "replacementPolicy",
     "initialSize",
     "incSize",
     "startPercentage",
@@ -87,6 +89,8 @@ public class EvaluationSetup {
     protected List<Integer> bufferSize;
     @XmlElement(type = Integer.class)
     protected List<Integer> blockSize;
+    @XmlSchemaType(name = "string")
+    protected ReplacementPolicy replacementPolicy;
     protected int initialSize;
     @XmlElement(type = Integer.class)
     protected List<Integer> incSize;
@@ -218,6 +222,30 @@ public class EvaluationSetup {
         return this.blockSize;
     }
 
+    /**
+     * Ruft den Wert der replacementPolicy-Eigenschaft ab.
+     * 
+     * @return
+     *     possible object is
+     *     {@link ReplacementPolicy }
+     *     
+     */
+    public ReplacementPolicy getReplacementPolicy() {
+        return replacementPolicy;
+    }
+
+    /**
+     * Legt den Wert der replacementPolicy-Eigenschaft fest.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link ReplacementPolicy }
+     *     
+     */
+    public void setReplacementPolicy(ReplacementPolicy value) {
+        this.replacementPolicy = value;
+    }
+
     /**
      * Ruft den Wert der initialSize-Eigenschaft ab.
      * 
@@ -0,0 +1,67 @@
+//
+// Diese Datei wurde mit der JavaTM Architecture for XML Binding(JAXB) Reference Implementation, v2.2.8-b130911.1802 generiert 
+// Siehe <a href="http://java.sun.com/xml/jaxb">http://java.sun.com/xml/jaxb</a> 
+// Änderungen an dieser Datei gehen bei einer Neukompilierung des Quellschemas verloren. 
+// Generiert: 2016.02.10 um 11:10:29 AM CET 
+//
+
+
+package de.mmenning.db.index.evaluation.xml.setup;
+
+import javax.xml.bind.annotation.XmlEnum;
+import javax.xml.bind.annotation.XmlEnumValue;
+import javax.xml.bind.annotation.XmlType;
+
+
+/**
+ * <p>Java-Klasse für ReplacementPolicy.
+ * 
+ * <p>Das folgende Schemafragment gibt den erwarteten Content an, der in dieser Klasse enthalten ist.
+ * <p>
+ * <pre>
+ * &lt;simpleType name="ReplacementPolicy">
+ *   &lt;restriction base="{http://www.w3.org/2001/XMLSchema}string">
+ *     &lt;enumeration value="lru"/>
+ *     &lt;enumeration value="lru-k"/>
+ *     &lt;enumeration value="2q"/>
+ *     &lt;enumeration value="clock"/>
+ *     &lt;enumeration value="arc"/>
+ *   &lt;/restriction>
+ * &lt;/simpleType>
+ * </pre>
+ * 
+ */
+@XmlType(name = "ReplacementPolicy")
+@XmlEnum
+public enum ReplacementPolicy {
+
+    @XmlEnumValue("lru")
+    LRU("lru"),
+    @XmlEnumValue("lru-k")
+    LRU_K("lru-k"),
+    @XmlEnumValue("2q")
+    TWO_Q("2q"),
+    @XmlEnumValue("clock")
+    CLOCK("clock"),
+    @XmlEnumValue("arc")
+    ARC("arc");
+    private final String value;
+
+    ReplacementPolicy(String v) {
+        value = v;
+    }
+
+    public String value() {
+        return value;
+    }
+
+    public static ReplacementPolicy fromValue(String v) {
+        for (ReplacementPolicy c: ReplacementPolicy.values()) {
+            if (c.value.equals(v)) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException(v);
+    }
+
+}
@@ -0,0 +1,12 @@
+package de.mmenning.db.index;
+
+/**
+ * A spatial join of two NDRectangleKeyIndex. {@link #query} will be called for
+ * every pair of intersecting elements and must return <code>true</code> if
+ * the join should be continued.
+ */
+public interface JoinQuery {
+
+	public boolean query(NDRectangleKey left, NDRectangleKey right);
+
+}
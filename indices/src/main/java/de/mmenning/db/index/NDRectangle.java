@@ -110,6 +110,37 @@ public class NDRectangle implements Serializable {
 		return sum;/* Math.sqrt(sum); */
 	}
 
+	/**
+	 * Compute the minimum distance between <TT>p</TT> and any point of
+	 * <TT>this</TT> without sqrt (MINDIST). The end of every interval is
+	 * taken as its begin plus its interval length.
+	 * 
+	 * @param p
+	 *            point to which the distance should be calculated
+	 * @return quadratic minimum distance, <TT>0</TT> if <TT>this</TT>
+	 *         contains <TT>p</TT>
+	 */
+	public double quadraticMinDistance(final NDPoint p) {
+		double sum = 0;
+
+		for (int dim = 0; dim < this.getDim(); dim++) {
+			final double begin = this.begin.getValue(dim);
+			final double x = p.getValue(dim);
+			double tmp = 0;
+
+			if (x < begin) {
+				tmp = begin - x;
+			} else {
+				final double end = begin + this.getIntervalLength(dim);
+				if (x > end) {
+					tmp = x - end;
+				}
+			}
+			sum += tmp * tmp;
+		}
+		return sum;
+	}
+
 	public int compareTo(final int dim, final boolean greater,
 			final NDRectangle another) {
 		return greater ? this.end.compareTo(dim, another.end) : this.begin
@@ -189,8 +220,18 @@ public class NDRectangle implements Serializable {
 	 * @return Overlap as <TT>double</TT>
 	 */
 	public double intersect(final NDRectangle another) {
-		final NDRectangle result = this.intersectToBox(another);
-		return result == null ? 0 : result.volume();
+		double volume = 1.0;
+		for (int dim = 0; dim < this.getDim(); dim++) {
+			final double begin = Math.max(this.begin.getValue(dim),
+					another.begin.getValue(dim));
+			final double end = Math.min(this.end.getValue(dim),
+					another.end.getValue(dim));
+			if (end < begin) {
+				return 0;
+			}
+			volume *= end - begin;
+		}
+		return volume;
 	}
 
 	/**
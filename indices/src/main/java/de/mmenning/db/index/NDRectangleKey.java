@@ -1,5 +1,7 @@
 package de.mmenning.db.index;
 
+import java.io.Serializable;
+
 import de.mmenning.db.storage.ObjectReference;
 
 /**
@@ -7,7 +9,9 @@ import de.mmenning.db.storage.ObjectReference;
  * @author Mathias Menninghaus (mathias.menninghaus@uos.de)
  * 
  */
-public class NDRectangleKey {
+public class NDRectangleKey implements Serializable {
+
+	private static final long serialVersionUID = 4394871267740813412L;
 
 	private final ObjectReference object;
 	private final NDRectangle key;
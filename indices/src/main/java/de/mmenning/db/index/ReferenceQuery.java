@@ -0,0 +1,16 @@
+package de.mmenning.db.index;
+
+import de.mmenning.db.storage.ObjectReference;
+
+/**
+ * Allocation free variant of a RectangleQuery. Instead of a new
+ * NDRectangleKey, {@link #query} gets the reference and the rectangle as they
+ * are stored in the index. The rectangle must not be modified and must be
+ * copied if it is kept after the query returned. {@link #query} must return
+ * <code>true</code> if the query should be continued.
+ */
+public interface ReferenceQuery {
+
+	public boolean query(ObjectReference object, NDRectangle key);
+
+}
@@ -0,0 +1,132 @@
+package de.mmenning.db.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.mmenning.db.index.rtptree.RTPTree;
+import de.mmenning.db.index.rtree.NDRTree;
+
+/**
+ * Spatial join of two NDRectangleKeyIndex. Two R-trees are joined by
+ * descending both trees together, see {@link NDRTree#join(NDRTree, JoinQuery)}.
+ * Other indexes are joined by a plane sweep over the first dimension of their
+ * elements, which are read once from each index.
+ */
+public class SpatialJoin {
+
+	private SpatialJoin() {
+	}
+
+	/**
+	 * Calls <code>q</code> for every pair of intersecting elements of
+	 * <code>left</code> and <code>right</code>.
+	 * 
+	 * @param now
+	 *            replaces open ends (<code>STFunctions.CURRENT</code>) in the
+	 *            plane sweep
+	 */
+	public static void join(NDRectangleKeyIndex left,
+			NDRectangleKeyIndex right, NowGen now, JoinQuery q) {
+		if (left.getDim() != right.getDim()) {
+			throw new IllegalArgumentException("indexes differ in dimensions");
+		}
+		if (left instanceof NDRTree && right instanceof NDRTree) {
+			((NDRTree) left).join((NDRTree) right, q);
+		} else {
+			planeSweep(getAll(left), getAll(right), now, q);
+		}
+	}
+
+	/**
+	 * Plane sweep over the first dimension: both lists are sorted by the
+	 * begin of their elements and the element with the smaller begin is
+	 * tested against all elements of the other list, which begin before it
+	 * ends.
+	 * 
+	 * @param now
+	 *            replaces open ends (<code>STFunctions.CURRENT</code>)
+	 */
+	public static void planeSweep(Collection<NDRectangleKey> left,
+			Collection<NDRectangleKey> right, final NowGen now, JoinQuery q) {
+		final List<NDRectangleKey> l = sortByBegin(left);
+		final List<NDRectangleKey> r = sortByBegin(right);
+
+		int i = 0;
+		int j = 0;
+		while (i < l.size() && j < r.size()) {
+			final NDRectangleKey a = l.get(i);
+			final NDRectangleKey b = r.get(j);
+
+			if (begin(a) <= begin(b)) {
+				final double end = end(a, now);
+				for (int k = j; k < r.size() && begin(r.get(k)) <= end; k++) {
+					if (STFunctions.intersects(a.getNDKey(), r.get(k)
+							.getNDKey(), now)) {
+						if (!q.query(a, r.get(k))) {
+							return;
+						}
+					}
+				}
+				i++;
+			} else {
+				final double end = end(b, now);
+				for (int k = i; k < l.size() && begin(l.get(k)) <= end; k++) {
+					if (STFunctions.intersects(l.get(k).getNDKey(), b
+							.getNDKey(), now)) {
+						if (!q.query(l.get(k), b)) {
+							return;
+						}
+					}
+				}
+				j++;
+			}
+		}
+	}
+
+	private static double begin(NDRectangleKey k) {
+		return k.getNDKey().getBegin().getValue(0);
+	}
+
+	private static double end(NDRectangleKey k, NowGen now) {
+		return STFunctions.getCurrentValue(k.getNDKey().getEnd().getValue(0),
+				now);
+	}
+
+	private static List<NDRectangleKey> sortByBegin(
+			Collection<NDRectangleKey> keys) {
+		final List<NDRectangleKey> sorted = new ArrayList<NDRectangleKey>(keys);
+		Collections.sort(sorted, new Comparator<NDRectangleKey>() {
+			@Override
+			public int compare(NDRectangleKey k1, NDRectangleKey k2) {
+				return Double.compare(begin(k1), begin(k2));
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * Reads all elements of <code>index</code> by a query, which intersects
+	 * everything.
+	 */
+	private static Collection<NDRectangleKey> getAll(NDRectangleKeyIndex index) {
+		if (index instanceof RTPTree) {
+			// the pyramid mapping is undefined for infinite query bounds
+			return ((RTPTree) index).getAll();
+		}
+		final List<NDRectangleKey> all = new ArrayList<NDRectangleKey>(
+				index.size());
+		index.getIntersected(new NDRectangle(new NDPoint(
+				Double.NEGATIVE_INFINITY, index.getDim()), new NDPoint(
+				Double.POSITIVE_INFINITY, index.getDim())), new RectangleQuery() {
+			@Override
+			public boolean query(NDRectangleKey k) {
+				all.add(k);
+				return true;
+			}
+		});
+		return all;
+	}
+}
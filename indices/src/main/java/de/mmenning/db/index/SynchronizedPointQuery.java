@@ -0,0 +1,38 @@
+package de.mmenning.db.index;
+
+/**
+ * Thread safe adapter of a PointQuery, which is called by several threads.
+ * The wrapped query is never called concurrently and never called again after
+ * it has returned <code>false</code>.
+ */
+public class SynchronizedPointQuery implements PointQuery {
+
+	private final PointQuery q;
+
+	private volatile boolean stopped;
+
+	public SynchronizedPointQuery(PointQuery q) {
+		if (q == null) {
+			throw new NullPointerException("query must not be null");
+		}
+		this.q = q;
+	}
+
+	@Override
+	public synchronized boolean query(NDPointKey k) {
+		if (this.stopped) {
+			return false;
+		}
+		if (!this.q.query(k)) {
+			this.stopped = true;
+		}
+		return !this.stopped;
+	}
+
+	/**
+	 * @return whether the wrapped query has returned <code>false</code>
+	 */
+	public boolean isStopped() {
+		return this.stopped;
+	}
+}
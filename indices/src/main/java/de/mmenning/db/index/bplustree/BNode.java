@@ -27,6 +27,16 @@ abstract class BNode<K, V> implements Referable, Serializable {
       this.or = ObjectReference.getReference(this);
    }
 
+   /**
+    * creates an empty node with the given reference, e.g. to decode a stored
+    * node
+    */
+   BNode(Comparator<? super K> comp, int size, ObjectReference or) {
+      this.comp = comp;
+      this.entries = new ArrayList<>(size);
+      this.or = or;
+   }
+
    private int binarySearch(K key) {
       int low = 0;
       int high = this.entries.size() - 1;
@@ -2,108 +2,269 @@ package de.mmenning.db.index.bplustree;
 
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.ConcurrentModificationException;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import de.mmenning.db.storage.DefaultStorage;
 import de.mmenning.db.storage.ObjectReference;
 import de.mmenning.db.storage.Storable;
-import de.mmenning.db.storage.StorableIndex;
 import de.mmenning.db.storage.StorageManager;
 
-public abstract class BPlusTree<K, V> implements StorableIndex,
-		Iterable<KeyValuePair<K, LinkedList<V>>> {
+/**
+ * B+-tree, which may be used by several threads concurrently, if its
+ * StorageManager is thread safe.
+ * <p>
+ * Queries and modifications, which only change the entries of a single leaf,
+ * share the tree lock and latch the leaves they access: a shared latch is
+ * held on the leaf by queries, an exclusive latch by insertions and
+ * removals. Inner nodes and the links between the leaves are not changed
+ * while the tree lock is shared. An insertion or removal, which would split,
+ * merge or redistribute a node or change a separator, releases its latch and
+ * is repeated holding the tree lock exclusively.
+ * <p>
+ * A thread holds at most one latch at a time. Several leaves share a latch,
+ * so range queries do not couple the latches from leaf to right sibling:
+ * two queries could take the same two latches in opposite orders and
+ * deadlock with the writers queued on them. As the tree lock is shared,
+ * the right sibling stays the same after the latch has been released.
+ */
+public abstract class BPlusTree<K, V> implements OrderedIndex<K, V> {
+
+	/**
+	 * Loads the leaves to the right of a range scan in the background, so
+	 * that they are buffered by the StorageManager, when the scan reaches
+	 * them. At most a given number of leaves is loaded ahead of the scan.
+	 * The leaves are loaded without latches and the loaded nodes are
+	 * dropped, the scan reads them again while latching them.
+	 */
+	private class ReadAhead implements Runnable {
+
+		private final Executor executor;
+
+		/**
+		 * last key of the scan
+		 */
+		private final K end;
 
-	private class BPlusTreeRangeIterator implements
-			Iterator<KeyValuePair<K, LinkedList<V>>> {
+		private final int pages;
 
-		private int currentIndex;
-		private LeafNode<K, V> currentLeaf;
-		private final int currentMod;
-		private final K end;
+		/**
+		 * next leaf to load, <code>null</code> if there is none
+		 */
+		private ObjectReference next;
 
-		private BPlusTreeRangeIterator(K begin, K end) {
-			ArrayList<IndexNodePair> path = findLeaf(begin);
-			this.currentLeaf = readLeafNode(path.get(path.size() - 1)
-					.getNodeReference());
-			this.currentMod = mod;
-			this.currentIndex = this.currentLeaf.getIndex(begin);
-			if (this.currentIndex < 0) {
-				this.currentIndex = -(this.currentIndex + 1);
-			}
-			if (this.currentIndex >= currentLeaf.size()) {
-				currentLeaf = null;
-			}
-			this.end = end;
+		/**
+		 * number of leaves, which may be loaded before the scan moves on
+		 */
+		private int allowance;
 
+		private boolean running;
+
+		private boolean cancelled;
+
+		private ReadAhead(Executor executor, int pages, K end,
+				ObjectReference first) {
+			this.executor = executor;
+			this.pages = pages;
+			this.end = end;
+			this.next = first;
+			this.allowance = pages;
+			this.schedule();
 		}
 
-		@Override
-		public boolean hasNext() {
-			if (this.currentLeaf != null) {
-				KeyValuePair<K, LinkedList<V>> next = new KeyValuePair<K, LinkedList<V>>(
-						this.currentLeaf.get(this.currentIndex).getKey(),
-						currentLeaf.getChild(currentIndex));
-				if (compare(next.getKey(), end) > 0) {
-					return false;
-				} else {
-					return true;
-				}
+		/**
+		 * Called when the scan has reached a new leaf.
+		 * 
+		 * @param right
+		 *            the right sibling of the new leaf
+		 */
+		private synchronized void advance(ObjectReference right) {
+			this.allowance++;
+			if (this.allowance > this.pages) {
+				/*
+				 * the scan has overtaken the loaded leaves
+				 */
+				this.next = right;
+				this.allowance = this.pages;
+			}
+			this.schedule();
+		}
 
-			} else {
-				return false;
+		private synchronized void cancel() {
+			this.cancelled = true;
+		}
 
+		private void schedule() {
+			if (!this.running && !this.cancelled && this.next != null
+					&& this.allowance > 0) {
+				this.running = true;
+				this.executor.execute(this);
 			}
 		}
 
 		@Override
-		public KeyValuePair<K, LinkedList<V>> next() {
-			if (!hasNext()) {
-				throw new NoSuchElementException();
-			}
-			if (currentMod != mod) {
-				throw new ConcurrentModificationException();
+		public void run() {
+			while (true) {
+				ObjectReference leafRef;
+				synchronized (this) {
+					if (this.cancelled || this.next == null
+							|| this.allowance == 0) {
+						this.running = false;
+						return;
+					}
+					leafRef = this.next;
+					this.allowance--;
+				}
+				LeafNode<K, V> leaf;
+				try {
+					leaf = readLeafNode(leafRef);
+				} catch (RuntimeException e) {
+					/*
+					 * e.g. a leaf deleted by a merge, the scan reads its
+					 * leaves anyway
+					 */
+					synchronized (this) {
+						this.running = false;
+						return;
+					}
+				}
+				synchronized (this) {
+					if (leaf.size() > 0 && this.end != null
+							&& compare(leaf.getKey(0), this.end) > 0) {
+						this.next = null;
+					} else if (this.next == leafRef) {
+						this.next = leaf.getRightSibling();
+					}
+				}
 			}
+		}
+	}
+
+	/**
+	 * Weakly consistent iterator over the entries between two keys. The
+	 * entries of a leaf are copied while holding its latch. The next leaf is
+	 * reached by the right sibling of the last one, as long as the structure
+	 * of the tree has not changed, else it is searched again from the root by
+	 * the last returned key. Every key is returned at most once and in order,
+	 * concurrent modifications may or may not be visible.
+	 */
+	private class BPlusTreeIterator implements
+			Iterator<KeyValuePair<K, LinkedList<V>>> {
 
-			KeyValuePair<K, LinkedList<V>> next = new KeyValuePair<K, LinkedList<V>>(
-					this.currentLeaf.get(this.currentIndex).getKey(),
-					currentLeaf.getChild(currentIndex));
+		private final LinkedList<KeyValuePair<K, LinkedList<V>>> buffer = new LinkedList<>();
 
-			this.currentIndex++;
+		/**
+		 * first key to return or <code>null</code> for the leftmost one
+		 */
+		private final K begin;
 
-			if (currentIndex == this.currentLeaf.size()) {
-				this.currentLeaf = getRightNode(this.currentLeaf);
-				this.currentIndex = 0;
-			}
+		/**
+		 * last key to return or <code>null</code> for the rightmost one
+		 */
+		private final K end;
 
-			return next;
-		}
+		private K lastKey;
 
-		@Override
-		public void remove() {
-			throw new UnsupportedOperationException();
+		private ObjectReference nextLeaf;
+
+		private long structure = -1;
 
+		private boolean exhausted;
+
+		/**
+		 * read-ahead of the leaves, <code>null</code> if there is none
+		 */
+		private ReadAhead readAhead;
+
+		private boolean started;
+
+		private BPlusTreeIterator(K begin, K end) {
+			this.begin = begin;
+			this.end = end;
+			this.fill();
 		}
-	}
 
-	private class BPlusTreeIterator implements
-			Iterator<KeyValuePair<K, LinkedList<V>>> {
+		/**
+		 * copies the entries of the next leaf, which contains entries to
+		 * return, into the buffer
+		 */
+		private void fill() {
+			lock.readLock().lock();
+			try {
+				if (root == null) {
+					this.exhausted = true;
+					return;
+				}
 
-		private int currentIndex;
-		private LeafNode<K, V> currentLeaf;
-		private final int currentMod;
+				ObjectReference leafRef;
+				if (this.structure == -1) {
+					leafRef = this.begin == null ? getLeftMostLeaf()
+							.getObjectReference() : leafOf(this.begin);
+				} else if (this.structure != structureModifications) {
+					leafRef = leafOf(this.lastKey);
+				} else {
+					leafRef = this.nextLeaf;
+				}
+				this.structure = structureModifications;
+
+				while (this.buffer.isEmpty() && !this.exhausted) {
+					if (leafRef == null) {
+						this.exhausted = true;
+						break;
+					}
+					final ObjectReference current = leafRef;
+					latch(current).readLock().lock();
+					try {
+						LeafNode<K, V> leaf = readLeafNode(current);
+						if (this.readAhead != null) {
+							this.readAhead.advance(leaf.getRightSibling());
+						} else if (!this.started) {
+							this.readAhead = startReadAhead(leaf, this.end);
+						}
+						this.started = true;
+						for (int i = 0; i < leaf.size(); i++) {
+							K key = leaf.getKey(i);
+							if (this.end != null && compare(key, this.end) > 0) {
+								this.exhausted = true;
+								break;
+							}
+							if (this.isAfterLast(key)) {
+								this.buffer.add(new KeyValuePair<K, LinkedList<V>>(
+										key, new LinkedList<V>(leaf.getChild(i))));
+							}
+						}
+						leafRef = leaf.getRightSibling();
+					} finally {
+						latch(current).readLock().unlock();
+					}
+				}
+				this.nextLeaf = leafRef;
+				if (this.exhausted && this.readAhead != null) {
+					this.readAhead.cancel();
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
 
-		private BPlusTreeIterator() {
-			this.currentLeaf = getLeftMostLeaf();
-			this.currentMod = mod;
-			this.currentIndex = 0;
+		private boolean isAfterLast(K key) {
+			if (this.lastKey != null) {
+				return compare(key, this.lastKey) > 0;
+			} else {
+				return this.begin == null || compare(key, this.begin) >= 0;
+			}
 		}
 
 		@Override
 		public boolean hasNext() {
-			return this.currentLeaf != null;
+			if (this.buffer.isEmpty() && !this.exhausted) {
+				this.fill();
+			}
+			return !this.buffer.isEmpty();
 		}
 
 		@Override
@@ -111,21 +272,8 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 			if (!hasNext()) {
 				throw new NoSuchElementException();
 			}
-			if (currentMod != mod) {
-				throw new ConcurrentModificationException();
-			}
-
-			KeyValuePair<K, LinkedList<V>> next = new KeyValuePair<K, LinkedList<V>>(
-					this.currentLeaf.get(this.currentIndex).getKey(),
-					currentLeaf.getChild(currentIndex));
-
-			this.currentIndex++;
-
-			if (currentIndex == this.currentLeaf.size()) {
-				this.currentLeaf = getRightNode(this.currentLeaf);
-				this.currentIndex = 0;
-			}
-
+			KeyValuePair<K, LinkedList<V>> next = this.buffer.removeFirst();
+			this.lastKey = next.getKey();
 			return next;
 		}
 
@@ -172,13 +320,38 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 
 	protected final int leafCapacity;
 
-	private int mod = 0;
+	/**
+	 * shared by queries and leaf modifications, held exclusively by
+	 * modifications of the tree structure
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * number of leaf latches, a power of two
+	 */
+	private static final int LATCHES = 64;
+
+	private final ReentrantReadWriteLock[] latches = createLatches();
+
+	/**
+	 * number of exclusive modifications, tells iterators whether the right
+	 * sibling of their last leaf is still valid
+	 */
+	private long structureModifications;
 
 	protected final int nodeCapacity;
 
 	private ObjectReference root;
 
-	private int size;
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * loads the leaves ahead of range scans, <code>null</code> if there is
+	 * no read-ahead
+	 */
+	private Executor readAheadExecutor;
+
+	private int readAheadPages;
 
 	public BPlusTree(BPlusTree<K, V> original) {
 		this.nodeCapacity = original.nodeCapacity;
@@ -221,43 +394,65 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 
 	}
 
+	@Override
 	public void clear() {
-		ArrayList<IndexNodePair> path = this.createPath();
-
-		while (path.size() != 1) {
-			clear(path);
+		this.lock.writeLock().lock();
+		try {
+			this.structureModifications++;
+			if (this.root != null) {
+				this.clear(this.root, 1);
+			}
+			this.root = null;
+			this.height = 1;
+			this.size.set(0);
+		} finally {
+			this.lock.writeLock().unlock();
 		}
-
-		this.ioacc.delete(this.root);
-		this.root = null;
-
 	}
 
 	public boolean contains(K key) {
-		ArrayList<IndexNodePair> path = this.findLeaf(key);
-
-		LeafNode<K, V> leaf = this.readLeafNode(path.get(path.size() - 1)
-				.getNodeReference());
-
-		return leaf.contains(key);
+		this.lock.readLock().lock();
+		try {
+			if (this.root == null) {
+				return false;
+			}
+			ObjectReference leafRef = this.leafOf(key);
+			this.latch(leafRef).readLock().lock();
+			try {
+				return this.readLeafNode(leafRef).contains(key);
+			} finally {
+				this.latch(leafRef).readLock().unlock();
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
 	}
 
 	public boolean contains(K key, V value) {
-		ArrayList<IndexNodePair> path = this.findLeaf(key);
+		this.lock.readLock().lock();
+		try {
+			if (this.root == null) {
+				return false;
+			}
+			ObjectReference leafRef = this.leafOf(key);
+			this.latch(leafRef).readLock().lock();
+			try {
+				KeyValuePair<K, LinkedList<V>> kv = this.readLeafNode(leafRef)
+						.get(key);
 
-		LeafNode<K, V> leaf = this.readLeafNode(path.get(path.size() - 1)
-				.getNodeReference());
+				if (kv == null) {
+					return false;
+				}
 
-		KeyValuePair<K, LinkedList<V>> kv = leaf.get(key);
+				LinkedList<V> l = kv.getValue();
 
-		if (kv == null) {
-			return false;
+				return l.contains(value);
+			} finally {
+				this.latch(leafRef).readLock().unlock();
+			}
+		} finally {
+			this.lock.readLock().unlock();
 		}
-
-		LinkedList<V> l = kv.getValue();
-
-		return l.contains(value);
-
 	}
 
 	public int getHeight() {
@@ -270,6 +465,64 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 	}
 
 	public boolean insert(K key, V value) {
+		this.lock.readLock().lock();
+		try {
+			Boolean inserted = this.insertIntoLeaf(key, value);
+			if (inserted != null) {
+				return inserted;
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+
+		this.lock.writeLock().lock();
+		try {
+			this.structureModifications++;
+			return this.insertExclusive(key, value);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Inserts while holding the latch of the leaf, if neither a split nor a
+	 * new separator is necessary.
+	 * 
+	 * @return whether the value has been inserted or <code>null</code> if the
+	 *         tree has to be changed exclusively
+	 */
+	private Boolean insertIntoLeaf(K key, V value) {
+		if (this.root == null) {
+			return null;
+		}
+		ObjectReference leafRef = this.leafOf(key);
+		this.latch(leafRef).writeLock().lock();
+		try {
+			LeafNode<K, V> leaf = this.readLeafNode(leafRef);
+
+			KeyValuePair<K, LinkedList<V>> kv = leaf.get(key);
+			if (kv == null) {
+				if (leaf.size() >= this.leafCapacity || leaf.size() == 0
+						|| this.compare(key, leaf.getKey(0)) < 0) {
+					return null;
+				}
+				LinkedList<V> l = new LinkedList<>();
+				l.add(value);
+				leaf.insert(new KeyValuePair<>(key, l));
+			} else if (kv.getValue().contains(value)) {
+				return false;
+			} else {
+				kv.getValue().add(value);
+			}
+			this.storeNode(leaf);
+			this.size.incrementAndGet();
+			return true;
+		} finally {
+			this.latch(leafRef).writeLock().unlock();
+		}
+	}
+
+	private boolean insertExclusive(K key, V value) {
 		if (root == null) {
 			LeafNode<K, V> rootNode = new LeafNode<K, V>(this.comp,
 					this.leafCapacity + 1);
@@ -297,8 +550,7 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 
 			split(path);
 
-			this.mod++;
-			this.size++;
+			this.size.incrementAndGet();
 			return true;
 		} else {
 			LinkedList<V> l = kv.getValue();
@@ -306,8 +558,7 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 				return false;
 			} else {
 				l.add(value);
-				this.mod++;
-				this.size++;
+				this.size.incrementAndGet();
 				this.storeNode(leaf);
 				return true;
 			}
@@ -315,63 +566,204 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 
 	}
 
+	/**
+	 * Enables the read-ahead of range queries and iterators: while a leaf is
+	 * processed, the next <code>pages</code> leaves are loaded by
+	 * <code>executor</code>, so that a buffering StorageManager has read them,
+	 * when the scan reaches them. Read-ahead requires a thread safe
+	 * StorageManager.
+	 * 
+	 * @param executor
+	 *            loads the leaves, <code>null</code> disables read-ahead
+	 * @param pages
+	 *            number of leaves loaded ahead of a scan
+	 */
+	public void setReadAhead(Executor executor, int pages) {
+		if (executor != null && pages < 1) {
+			throw new IllegalArgumentException("pages must be positive");
+		}
+		this.readAheadPages = pages;
+		this.readAheadExecutor = executor;
+	}
+
+	/**
+	 * @return the read-ahead of a scan, which has reached <code>leaf</code>,
+	 *         or <code>null</code> if read-ahead is disabled
+	 */
+	private ReadAhead startReadAhead(LeafNode<K, V> leaf, K end) {
+		Executor executor = this.readAheadExecutor;
+		if (executor == null || leaf.getRightSibling() == null) {
+			return null;
+		}
+		return new ReadAhead(executor, this.readAheadPages, end,
+				leaf.getRightSibling());
+	}
+
 	@Override
 	public Iterator<KeyValuePair<K, LinkedList<V>>> iterator() {
-		return new BPlusTreeIterator();
+		return new BPlusTreeIterator(null, null);
 	}
 
 	public Iterator<KeyValuePair<K, LinkedList<V>>> rangeQuery(K begin, K end) {
-		return new BPlusTreeRangeIterator(begin, end);
+		return new BPlusTreeIterator(begin, end);
 	}
 
+	/**
+	 * Passes all entries between <code>begin</code> and <code>end</code> to
+	 * <code>q</code>. The leaves are latched while being queried, so
+	 * <code>q</code> must not modify this tree.
+	 * 
+	 * @see #setReadAhead(Executor, int)
+	 */
 	public boolean rangeQuery(K begin, K end, Query<K, V> q) {
+		this.lock.readLock().lock();
+		try {
+			if (this.root == null) {
+				return true;
+			}
+			ObjectReference leafRef = this.leafOf(begin);
+			ReadAhead readAhead = null;
+			this.latch(leafRef).readLock().lock();
+			try {
+				LeafNode<K, V> leaf = this.readLeafNode(leafRef);
+				readAhead = this.startReadAhead(leaf, end);
 
-		ArrayList<IndexNodePair> path = this.findLeaf(begin);
-
-		LeafNode<K, V> leaf = this.readLeafNode(path.get(path.size() - 1)
-				.getNodeReference());
+				int index = leaf.getIndex(begin);
 
-		int index = leaf.getIndex(begin);
+				if (index < 0) {
+					index = -(index + 1);
+				}
 
-		if (index < 0) {
-			index = -(index + 1);
+				while (true) {
+
+					for (int i = index; i < leaf.size(); i++) {
+
+						if (compare(end, leaf.get(i).getKey()) < 0) {
+							return true;
+						} else if (!q.query(leaf.getKey(i), leaf.getChild(i))) {
+							return false;
+						}
+					}
+
+					ObjectReference rightRef = leaf.getRightSibling();
+					if (rightRef == null) {
+						return true;
+					}
+					/*
+					 * release the latch before taking the one of the right
+					 * sibling, see the class comment
+					 */
+					this.latch(leafRef).readLock().unlock();
+					leafRef = rightRef;
+					this.latch(leafRef).readLock().lock();
+					leaf = this.readLeafNode(leafRef);
+					if (readAhead != null) {
+						readAhead.advance(leaf.getRightSibling());
+					}
+					index = 0;
+				}
+			} finally {
+				this.latch(leafRef).readLock().unlock();
+				if (readAhead != null) {
+					readAhead.cancel();
+				}
+			}
+		} finally {
+			this.lock.readLock().unlock();
 		}
+	}
 
-		boolean query = true;
-
-		while (query) {
+	public boolean remove(K key) {
+		return this.removeValues(key, null);
+	}
 
-			for (int i = index; i < leaf.size() && query; i++) {
+	public boolean remove(K key, V value) {
+		if (value == null) {
+			throw new NullPointerException("value must not be null");
+		}
+		return this.removeValues(key, value);
+	}
 
-				if (compare(end, leaf.get(i).getKey()) < 0) {
-					return true;
-				} else {
-					query = q.query(leaf.getKey(i), leaf.getChild(i));
-				}
+	/**
+	 * @param value value to remove or <code>null</code> to remove all values
+	 *              of <code>key</code>
+	 */
+	private boolean removeValues(K key, V value) {
+		this.lock.readLock().lock();
+		try {
+			Boolean removed = this.removeFromLeaf(key, value);
+			if (removed != null) {
+				return removed;
 			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
 
-			if (query) {
-				leaf = this.getRightNode(leaf);
-				index = 0;
-
-				if (leaf == null) {
-					return true;
-				}
+		this.lock.writeLock().lock();
+		try {
+			this.structureModifications++;
+			if (value == null) {
+				ArrayList<IndexNodePair> path = this.findLeaf(key);
+				return remove(key, path);
 			} else {
-				return false;
+				return this.removeExclusive(key, value);
 			}
+		} finally {
+			this.lock.writeLock().unlock();
 		}
-
-		throw new IllegalStateException();
 	}
 
-	public boolean remove(K key) {
-		ArrayList<IndexNodePair> path = this.findLeaf(key);
-		return remove(key, path);
+	/**
+	 * Removes while holding the latch of the leaf, if neither a merge or
+	 * redistribution nor a new separator is necessary.
+	 * 
+	 * @return whether the value has been removed or <code>null</code> if the
+	 *         tree has to be changed exclusively
+	 */
+	private Boolean removeFromLeaf(K key, V value) {
+		if (this.root == null) {
+			return false;
+		}
+		ObjectReference leafRef = this.leafOf(key);
+		this.latch(leafRef).writeLock().lock();
+		try {
+			LeafNode<K, V> leaf = this.readLeafNode(leafRef);
+
+			int index = leaf.getIndex(key);
+			if (index < 0) {
+				return false;
+			}
+			LinkedList<V> l = leaf.getChild(index);
 
+			if (value != null) {
+				if (!l.contains(value)) {
+					return false;
+				}
+				if (l.size() > 1) {
+					l.remove(value);
+					this.storeNode(leaf);
+					this.size.decrementAndGet();
+					return true;
+				}
+			}
+
+			/*
+			 * the key is removed from the leaf. Only the root may underflow.
+			 */
+			if (!leafRef.equals(this.root)
+					&& (index == 0 || leaf.size() - 1 < this.leafCapacity / 2)) {
+				return null;
+			}
+			leaf.remove(index);
+			this.storeNode(leaf);
+			this.size.addAndGet(-l.size());
+			return true;
+		} finally {
+			this.latch(leafRef).writeLock().unlock();
+		}
 	}
 
-	public boolean remove(K key, V value) {
+	private boolean removeExclusive(K key, V value) {
 		ArrayList<IndexNodePair> path = this.findLeaf(key);
 
 		LeafNode<K, V> leaf = this.readLeafNode(path.get(path.size() - 1)
@@ -384,8 +776,7 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 		} else {
 			LinkedList<V> l = kv.getValue();
 			if (l.remove(value)) {
-				this.size--;
-				this.mod++;
+				this.size.decrementAndGet();
 				/*
 				 * remove the value from the specific entry
 				 */
@@ -411,7 +802,7 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 	}
 
 	public int size() {
-		return this.size;
+		return this.size.get();
 	}
 
 	private DirNode<K, V> addDirBulkLoad(DirNode<K, V> father, BNode<K, ?> toAdd) {
@@ -472,8 +863,9 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 			Iterator<KeyValuePair<K, LinkedList<V>>> elems) {
 
 		while (elems.hasNext() && leaf.size() < this.leafCapacity) {
-			leaf.addLast(elems.next());
-			this.size++;
+			KeyValuePair<K, LinkedList<V>> kv = elems.next();
+			leaf.addLast(kv);
+			this.size.addAndGet(kv.getValue().size());
 		}
 	}
 
@@ -510,24 +902,17 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 		return path;
 	}
 
-	private void clear(ArrayList<IndexNodePair> path) {
-		if (path.size() == this.getHeight()) {
-			IndexNodePair p = path.get(path.size() - 1);
-			ioacc.delete(p.getNodeReference());
-		} else {
-			ObjectReference nr = path.get(path.size() - 1).getNodeReference();
-			int size = this.readDirNode(nr).size();
-			for (int i = 0; i < size; i++) {
-
-				ObjectReference ref = this.readDirNode(nr).getChild(i);
-				path.add(new IndexNodePair(i, ref));
-				clear(path);
-				path.remove(path.size() - 1);
-				ioacc.delete(ref);
-				;
-
+	/**
+	 * Deletes the node <code>nr</code> on <code>level</code> and its subtree.
+	 */
+	private void clear(ObjectReference nr, int level) {
+		if (level < this.getHeight()) {
+			DirNode<K, V> n = this.readDirNode(nr);
+			for (int i = 0; i < n.size(); i++) {
+				this.clear(n.getChild(i), level + 1);
 			}
 		}
+		this.ioacc.delete(nr);
 	}
 
 	private ArrayList<IndexNodePair> createPath() {
@@ -652,6 +1037,31 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 		}
 	}
 
+	private static ReentrantReadWriteLock[] createLatches() {
+		ReentrantReadWriteLock[] latches = new ReentrantReadWriteLock[LATCHES];
+		for (int i = 0; i < latches.length; i++) {
+			latches[i] = new ReentrantReadWriteLock();
+		}
+		return latches;
+	}
+
+	/**
+	 * @return the latch guarding the leaf. Several leaves share a latch.
+	 */
+	private ReentrantReadWriteLock latch(ObjectReference leafRef) {
+		int h = leafRef.hashCode();
+		h ^= h >>> 16;
+		return this.latches[h & (LATCHES - 1)];
+	}
+
+	/**
+	 * @return the leaf, which contains <code>key</code> if it is in the tree
+	 */
+	private ObjectReference leafOf(K key) {
+		ArrayList<IndexNodePair> path = this.findLeaf(key);
+		return path.get(path.size() - 1).getNodeReference();
+	}
+
 	@SuppressWarnings("unchecked")
 	private ArrayList<IndexNodePair> findLeaf(final K search) {
 
@@ -801,8 +1211,7 @@ public abstract class BPlusTree<K, V> implements StorableIndex,
 			 */
 			storeNode(leaf);
 			merge(path);
-			this.mod++;
-			this.size -= kv.getValue().size();
+			this.size.addAndGet(-kv.getValue().size());
 			return true;
 		}
 
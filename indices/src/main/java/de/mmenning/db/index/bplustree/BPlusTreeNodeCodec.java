@@ -0,0 +1,111 @@
+package de.mmenning.db.index.bplustree;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+import de.mmenning.db.storage.NodeCodec;
+import de.mmenning.db.storage.ObjectReference;
+
+/**
+ * Encodes the nodes of a BPlusTree. A leaf node starts with the id of its
+ * right sibling followed by its sorted entries, each written as the key and
+ * the list of values. A directory node consists of its sorted keys, each
+ * followed by the id of the child. The highest bit of a child id marks a
+ * leaf node.
+ * <p>
+ * The number of entries is not written, a node ends with its encoding.
+ * Subclasses define the encoding of keys and value lists.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public abstract class BPlusTreeNodeCodec<K, V> extends NodeCodec {
+
+   private final Comparator<? super K> comp;
+
+   /**
+    * @param comp comparator of the tree, <code>null</code> for the natural
+    *             order of the keys
+    */
+   protected BPlusTreeNodeCodec(Comparator<? super K> comp) {
+      this.comp = comp;
+   }
+
+   protected abstract int getKeyByteSize();
+
+   protected abstract void encodeKey(K key, ByteBuffer dst);
+
+   protected abstract K decodeKey(ByteBuffer src);
+
+   protected abstract int getValuesByteSize(LinkedList<V> values);
+
+   protected abstract void encodeValues(LinkedList<V> values, ByteBuffer dst);
+
+   protected abstract LinkedList<V> decodeValues(ByteBuffer src);
+
+   @SuppressWarnings("unchecked")
+   @Override
+   public int getEncodedSize(Object o) {
+      BNode<?, ?> n = cast(o, BNode.class);
+      if (n.isLeaf()) {
+         LeafNode<K, V> leaf = (LeafNode<K, V>) n;
+         int byteSize = REFERENCE_SIZE;
+         for (int i = 0; i < leaf.size(); i++) {
+            byteSize += this.getKeyByteSize()
+                  + this.getValuesByteSize(leaf.get(i).getValue());
+         }
+         return byteSize;
+      } else {
+         return n.size() * (this.getKeyByteSize() + REFERENCE_SIZE);
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   @Override
+   public void encode(Object o, ByteBuffer dst) {
+      BNode<?, ?> n = cast(o, BNode.class);
+      if (n.isLeaf()) {
+         LeafNode<K, V> leaf = (LeafNode<K, V>) n;
+         putReference(leaf.getRightSibling(), dst);
+         for (int i = 0; i < leaf.size(); i++) {
+            KeyValuePair<K, LinkedList<V>> kv = leaf.get(i);
+            this.encodeKey(kv.getKey(), dst);
+            this.encodeValues(kv.getValue(), dst);
+         }
+      } else {
+         DirNode<K, V> dir = (DirNode<K, V>) n;
+         for (int i = 0; i < dir.size(); i++) {
+            KeyValuePair<K, ObjectReference> kv = dir.get(i);
+            this.encodeKey(kv.getKey(), dst);
+            putReference(kv.getValue(),
+                  kv.getValue().getMeta() == LeafNode.class, dst);
+         }
+      }
+   }
+
+   @Override
+   public Object decode(ObjectReference or, ByteBuffer src) {
+      if (or.getMeta() == LeafNode.class) {
+         LeafNode<K, V> leaf = new LeafNode<>(this.comp, 0, or);
+         leaf.setRightSibling(toReference(src.getLong(), LeafNode.class));
+         while (src.hasRemaining()) {
+            leaf.addLast(new KeyValuePair<>(this.decodeKey(src), this
+                  .decodeValues(src)));
+         }
+         return leaf;
+      } else if (or.getMeta() == DirNode.class) {
+         DirNode<K, V> dir = new DirNode<>(this.comp, 0, or);
+         while (src.hasRemaining()) {
+            K key = this.decodeKey(src);
+            long id = src.getLong();
+            dir.addLast(new KeyValuePair<>(key, toReference(id,
+                  isFlagged(id) ? LeafNode.class : DirNode.class)));
+         }
+         return dir;
+      } else {
+         throw new IllegalArgumentException(or.getMeta()
+               + " isn`t a node reference");
+      }
+   }
+}
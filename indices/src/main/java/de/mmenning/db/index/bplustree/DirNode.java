@@ -10,6 +10,10 @@ public class DirNode<K, V> extends BNode<K, ObjectReference> {
       super(comp, size);
    }
 
+   DirNode(Comparator<? super K> comp, int size, ObjectReference or) {
+      super(comp, size, or);
+   }
+
    @Override
    boolean isLeaf() {
       return false;
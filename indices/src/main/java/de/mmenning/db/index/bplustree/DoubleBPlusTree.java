@@ -0,0 +1,932 @@
+package de.mmenning.db.index.bplustree;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.mmenning.db.storage.IOUtils;
+import de.mmenning.db.storage.ObjectReference;
+import de.mmenning.db.storage.SimpleStorable;
+import de.mmenning.db.storage.StorageManager;
+
+/**
+ * B+-tree over keys, which are mapped to doubles. Its nodes keep the keys in
+ * a sorted <code>double[]</code> and the children in a <code>long[]</code> of
+ * node ids, so that searching a node is a binary search over a primitive
+ * array, which neither unboxes nor compares keys by a Comparator. Keys are
+ * only converted when they are passed in or returned.
+ * <p>
+ * As in {@link BPlusTree} the key of a directory entry is the smallest key
+ * in the subtree of the entry and the leaves are chained from left to right.
+ * Queries share the tree lock, modifications hold it exclusively. The tree
+ * may be used by several threads, if its StorageManager is thread safe.
+ * <p>
+ * The values of a key are kept in its leaf entry, unless there are more than
+ * {@link #getChunkCapacity()}. Then they are moved into a chain of overflow
+ * chunks, which are stored apart from the leaf, and the leaf keeps a
+ * reference to the {@link Duplicates} directory of the chunks. A new value is
+ * appended to the last chunk and a removed value is replaced by the last one,
+ * so that only the changed chunks are written. The directory keeps a bit set
+ * of the hash codes of the values of every chunk, so that searching a value
+ * only loads the chunks, which may contain it. A range query passes the
+ * values of such a key chunk by chunk.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public abstract class DoubleBPlusTree<K, V> implements OrderedIndex<K, V> {
+
+   /**
+    * Weakly consistent iterator over the entries between two keys. The
+    * entries of a leaf are copied while holding the tree lock. If the tree
+    * has been modified since, the next leaf is searched again from the root
+    * by the last returned key.
+    */
+   private class DoubleBPlusTreeIterator implements
+         Iterator<KeyValuePair<K, LinkedList<V>>> {
+
+      private final LinkedList<KeyValuePair<K, LinkedList<V>>> buffer = new LinkedList<>();
+
+      private final double begin;
+
+      private final double end;
+
+      private boolean started;
+
+      private double lastKey;
+
+      private long nextLeaf;
+
+      private long modification = -1;
+
+      private boolean exhausted;
+
+      private DoubleBPlusTreeIterator(double begin, double end) {
+         this.begin = begin;
+         this.end = end;
+         this.fill();
+      }
+
+      private void fill() {
+         lock.readLock().lock();
+         try {
+            if (root == DoubleNode.NONE) {
+               this.exhausted = true;
+               return;
+            }
+
+            long leafId;
+            if (this.modification == -1) {
+               leafId = leafOf(this.begin).getID();
+            } else if (this.modification != modifications) {
+               leafId = leafOf(this.lastKey).getID();
+            } else {
+               leafId = this.nextLeaf;
+            }
+            this.modification = modifications;
+
+            while (this.buffer.isEmpty() && !this.exhausted) {
+               if (leafId == DoubleNode.NONE) {
+                  this.exhausted = true;
+                  break;
+               }
+               DoubleNode leaf = readNode(leafId);
+               for (int i = 0; i < leaf.size(); i++) {
+                  double key = leaf.getKey(i);
+                  if (key > this.end) {
+                     this.exhausted = true;
+                     break;
+                  }
+                  if (this.started ? key > this.lastKey : key >= this.begin) {
+                     this.buffer.add(new KeyValuePair<K, LinkedList<V>>(
+                           toKey(key), allValues(leaf.getValues(i))));
+                  }
+               }
+               leafId = leaf.getRightSibling();
+            }
+            this.nextLeaf = leafId;
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      @Override
+      public boolean hasNext() {
+         if (this.buffer.isEmpty() && !this.exhausted) {
+            this.fill();
+         }
+         return !this.buffer.isEmpty();
+      }
+
+      @Override
+      public KeyValuePair<K, LinkedList<V>> next() {
+         if (!hasNext()) {
+            throw new NoSuchElementException();
+         }
+         KeyValuePair<K, LinkedList<V>> next = this.buffer.removeFirst();
+         this.lastKey = toDouble(next.getKey());
+         this.started = true;
+         return next;
+      }
+
+      @Override
+      public void remove() {
+         throw new UnsupportedOperationException();
+      }
+   }
+
+   protected final int nodeCapacity;
+
+   protected final int leafCapacity;
+
+   private final StorageManager ioacc;
+
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+   private long root = DoubleNode.NONE;
+
+   private int height = 1;
+
+   private volatile int size;
+
+   /**
+    * number of modifications, tells iterators whether the right sibling of
+    * their last leaf is still valid
+    */
+   private long modifications;
+
+   public DoubleBPlusTree(final int dirNode_D, final int leafNode_D,
+                          StorageManager s) {
+      this.nodeCapacity = 2 * dirNode_D;
+      this.leafCapacity = 2 * leafNode_D;
+      this.ioacc = s;
+   }
+
+   /**
+    * @return the double, which represents <code>key</code>. The order of the
+    * doubles must be the order of the keys.
+    */
+   protected abstract double toDouble(K key);
+
+   /**
+    * @return the key represented by <code>value</code>
+    */
+   protected abstract K toKey(double value);
+
+   /**
+    * @return bytes of the <code>values</code> of a leaf entry without its key
+    */
+   protected abstract int getValuesByteSize(LinkedList<V> values);
+
+   /**
+    * @return the maximum number of values of a key, which are kept in its
+    * leaf entry and the number of values of an overflow chunk.
+    * <code>Integer.MAX_VALUE</code> keeps all values in the leaf entries.
+    */
+   protected int getChunkCapacity() {
+      return Integer.MAX_VALUE;
+   }
+
+   /**
+    * @return bytes of an overflow chunk with the given <code>values</code>
+    */
+   protected int getChunkByteSize(LinkedList<V> values) {
+      return this.getValuesByteSize(values);
+   }
+
+   @Override
+   public boolean contains(K key) {
+      double k = this.toDouble(key);
+      this.lock.readLock().lock();
+      try {
+         return this.root != DoubleNode.NONE && this.leafOf(k).search(k) >= 0;
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   @Override
+   public boolean contains(K key, V value) {
+      double k = this.toDouble(key);
+      this.lock.readLock().lock();
+      try {
+         if (this.root == DoubleNode.NONE) {
+            return false;
+         }
+         DoubleNode leaf = this.leafOf(k);
+         int index = leaf.search(k);
+         if (index < 0) {
+            return false;
+         }
+         Object entry = leaf.getValues(index);
+         if (entry instanceof ObjectReference) {
+            return this.findChunk(this.readDuplicates(entry), value) != null;
+         }
+         return ((LinkedList<?>) entry).contains(value);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   @Override
+   public boolean insert(K key, V value) {
+      double k = this.toDouble(key);
+      this.lock.writeLock().lock();
+      try {
+         if (this.root == DoubleNode.NONE) {
+            DoubleNode leaf = new DoubleNode(true, this.leafCapacity);
+            this.storeNode(leaf);
+            this.root = leaf.getID();
+            this.height = 1;
+         }
+
+         DoubleNode[] path = new DoubleNode[this.height];
+         int[] index = new int[this.height];
+         DoubleNode leaf = this.findLeaf(k, path, index);
+
+         int i = leaf.search(k);
+         if (i >= 0) {
+            if (!this.addValue(leaf, i, value)) {
+               return false;
+            }
+         } else {
+            LinkedList<V> values = new LinkedList<>();
+            values.add(value);
+            leaf.insert(-(i + 1), k, values);
+            this.modifications++;
+            this.split(path, index);
+         }
+         this.size++;
+         return true;
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   @Override
+   public boolean remove(K key, V value) {
+      if (value == null) {
+         throw new NullPointerException("value must not be null");
+      }
+      double k = this.toDouble(key);
+      this.lock.writeLock().lock();
+      try {
+         if (this.root == DoubleNode.NONE) {
+            return false;
+         }
+
+         DoubleNode[] path = new DoubleNode[this.height];
+         int[] index = new int[this.height];
+         DoubleNode leaf = this.findLeaf(k, path, index);
+
+         int i = leaf.search(k);
+         if (i < 0) {
+            return false;
+         }
+         if (!this.removeValue(leaf, i, value)) {
+            return false;
+         }
+         this.size--;
+         Object entry = leaf.getValues(i);
+         if (entry instanceof LinkedList && ((LinkedList<?>) entry).isEmpty()) {
+            leaf.remove(i);
+            this.modifications++;
+            this.merge(path, index);
+         } else {
+            this.storeNode(leaf);
+         }
+         return true;
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   @Override
+   public boolean rangeQuery(K begin, K end, Query<K, V> q) {
+      double b = this.toDouble(begin);
+      double e = this.toDouble(end);
+      this.lock.readLock().lock();
+      try {
+         if (this.root == DoubleNode.NONE) {
+            return true;
+         }
+         DoubleNode leaf = this.leafOf(b);
+         int index = leaf.search(b);
+         if (index < 0) {
+            index = -(index + 1);
+         }
+         while (true) {
+            for (int i = index; i < leaf.size(); i++) {
+               double key = leaf.getKey(i);
+               if (key > e) {
+                  return true;
+               } else if (!this.query(key, leaf.getValues(i), q)) {
+                  return false;
+               }
+            }
+            if (leaf.getRightSibling() == DoubleNode.NONE) {
+               return true;
+            }
+            leaf = this.readNode(leaf.getRightSibling());
+            index = 0;
+         }
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   @Override
+   public Iterator<KeyValuePair<K, LinkedList<V>>> rangeQuery(K begin, K end) {
+      return new DoubleBPlusTreeIterator(this.toDouble(begin),
+            this.toDouble(end));
+   }
+
+   @Override
+   public Iterator<KeyValuePair<K, LinkedList<V>>> iterator() {
+      return new DoubleBPlusTreeIterator(Double.NEGATIVE_INFINITY,
+            Double.POSITIVE_INFINITY);
+   }
+
+   @Override
+   public int size() {
+      return this.size;
+   }
+
+   @Override
+   public int getHeight() {
+      return this.height;
+   }
+
+   @Override
+   public StorageManager getStorageManager() {
+      return this.ioacc;
+   }
+
+   /**
+    * Loads the entries of <code>elems</code>, which must be sorted by their
+    * keys without duplicates, into this empty tree. The entries are streamed
+    * into full leaves, only the last two leaves are balanced. The directory
+    * nodes of every level are filled evenly up to their capacity.
+    */
+   protected void bulkLoad(Iterator<KeyValuePair<K, LinkedList<V>>> elems) {
+      this.lock.writeLock().lock();
+      try {
+         if (this.root != DoubleNode.NONE) {
+            throw new IllegalStateException("tree is not empty");
+         }
+
+         /*
+          * first keys and ids of the leaves
+          */
+         double[] keys = new double[16];
+         long[] ids = new long[16];
+         int count = 0;
+
+         DoubleNode previous = null;
+         DoubleNode leaf = new DoubleNode(true, this.leafCapacity);
+         double last = Double.NEGATIVE_INFINITY;
+         while (elems.hasNext()) {
+            KeyValuePair<K, LinkedList<V>> kv = elems.next();
+            double key = this.toDouble(kv.getKey());
+            if (kv.getValue().isEmpty()) {
+               throw new IllegalArgumentException("no values for "
+                     + kv.getKey());
+            }
+            if (count > 0 && key <= last) {
+               throw new IllegalArgumentException(
+                     "keys are not strictly increasing at " + kv.getKey());
+            }
+            if (leaf.size() == this.leafCapacity) {
+               if (previous != null) {
+                  this.storeNode(previous);
+               }
+               previous = leaf;
+               leaf = new DoubleNode(true, this.leafCapacity);
+               previous.setRightSibling(leaf.getID());
+            }
+            if (leaf.size() == 0) {
+               if (count == ids.length) {
+                  keys = Arrays.copyOf(keys, 2 * count);
+                  ids = Arrays.copyOf(ids, 2 * count);
+               }
+               keys[count] = key;
+               ids[count] = leaf.getID();
+               count++;
+            }
+            leaf.insert(leaf.size(), key, this.spill(new LinkedList<V>(kv
+                  .getValue())));
+            this.size += kv.getValue().size();
+            last = key;
+         }
+         if (count == 0) {
+            return;
+         }
+         if (previous != null) {
+            if (leaf.size() < this.leafCapacity / 2) {
+               previous.moveLastTo((previous.size() - leaf.size()) / 2, leaf);
+               keys[count - 1] = leaf.getKey(0);
+            }
+            this.storeNode(previous);
+         }
+         this.storeNode(leaf);
+         keys = Arrays.copyOf(keys, count);
+         ids = Arrays.copyOf(ids, count);
+
+         int height = 1;
+         while (ids.length > 1) {
+            count = ids.length;
+            int nodes = (count + this.nodeCapacity - 1) / this.nodeCapacity;
+            double[] parentKeys = new double[nodes];
+            long[] parentIds = new long[nodes];
+            int from = 0;
+            for (int n = 0; n < nodes; n++) {
+               int to = (int) ((long) count * (n + 1) / nodes);
+               DoubleNode dir = new DoubleNode(false, this.nodeCapacity);
+               for (int i = from; i < to; i++) {
+                  dir.insert(dir.size(), keys[i], ids[i]);
+               }
+               this.storeNode(dir);
+               parentKeys[n] = dir.getKey(0);
+               parentIds[n] = dir.getID();
+               from = to;
+            }
+            keys = parentKeys;
+            ids = parentIds;
+            height++;
+         }
+         this.root = ids[0];
+         this.height = height;
+         this.modifications++;
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Splits the overflowing nodes of <code>path</code> from the leaf on and
+    * adjusts the keys of their parents.
+    */
+   private void split(DoubleNode[] path, int[] index) {
+      int level = path.length - 1;
+      DoubleNode n = path[level];
+
+      while (true) {
+         DoubleNode right = null;
+         int capacity = n.isLeaf() ? this.leafCapacity : this.nodeCapacity;
+
+         if (n.size() > capacity) {
+            right = new DoubleNode(n.isLeaf(), capacity);
+            n.moveTail(n.size() - capacity / 2, right);
+            if (n.isLeaf()) {
+               right.setRightSibling(n.getRightSibling());
+               n.setRightSibling(right.getID());
+            }
+            this.storeNode(right);
+         }
+         this.storeNode(n);
+
+         if (level == 0) {
+            if (right != null) {
+               /*
+                * splitting the root
+                */
+               DoubleNode newRoot = new DoubleNode(false, this.nodeCapacity);
+               newRoot.insert(0, n.getKey(0), n.getID());
+               newRoot.insert(1, right.getKey(0), right.getID());
+               this.storeNode(newRoot);
+               this.root = newRoot.getID();
+               this.height++;
+            }
+            return;
+         }
+
+         DoubleNode parent = path[level - 1];
+         int i = index[level];
+         boolean changed = parent.getKey(i) != n.getKey(0);
+         parent.setKey(i, n.getKey(0));
+         if (right != null) {
+            parent.insert(i + 1, right.getKey(0), right.getID());
+            changed = true;
+         }
+         if (!changed) {
+            return;
+         }
+         n = parent;
+         level--;
+      }
+   }
+
+   /**
+    * Merges or redistributes the underflowing nodes of <code>path</code>
+    * from the leaf on and adjusts the keys of their parents.
+    */
+   private void merge(DoubleNode[] path, int[] index) {
+      int level = path.length - 1;
+      DoubleNode n = path[level];
+
+      while (level > 0) {
+         DoubleNode parent = path[level - 1];
+         int i = index[level];
+         int d = (n.isLeaf() ? this.leafCapacity : this.nodeCapacity) / 2;
+
+         if (n.size() >= d) {
+            this.storeNode(n);
+            if (parent.getKey(i) == n.getKey(0)) {
+               return;
+            }
+            parent.setKey(i, n.getKey(0));
+         } else {
+            DoubleNode left;
+            DoubleNode right;
+            int leftIndex;
+
+            /*
+             * choose the sibling with most entries
+             */
+            if (i == 0) {
+               left = n;
+               right = this.readNode(parent.getChild(1));
+               leftIndex = 0;
+            } else if (i == parent.size() - 1) {
+               left = this.readNode(parent.getChild(i - 1));
+               right = n;
+               leftIndex = i - 1;
+            } else {
+               DoubleNode leftSibling = this.readNode(parent.getChild(i - 1));
+               DoubleNode rightSibling = this.readNode(parent.getChild(i + 1));
+               if (rightSibling.size() > leftSibling.size()) {
+                  left = n;
+                  right = rightSibling;
+                  leftIndex = i;
+               } else {
+                  left = leftSibling;
+                  right = n;
+                  leftIndex = i - 1;
+               }
+            }
+            DoubleNode sibling = (left == n) ? right : left;
+
+            if (sibling.size() > d) {
+               int move = (sibling.size() - n.size()) / 2;
+               if (left == n) {
+                  left.moveFirstFrom(move, right);
+               } else {
+                  left.moveLastTo(move, right);
+               }
+               this.storeNode(left);
+               this.storeNode(right);
+               parent.setKey(leftIndex + 1, right.getKey(0));
+            } else {
+               left.moveFirstFrom(right.size(), right);
+               if (left.isLeaf()) {
+                  left.setRightSibling(right.getRightSibling());
+               }
+               this.storeNode(left);
+               this.deleteNode(right);
+               parent.remove(leftIndex + 1);
+            }
+            parent.setKey(leftIndex, left.getKey(0));
+         }
+         n = parent;
+         level--;
+      }
+
+      if (!n.isLeaf() && n.size() == 1) {
+         this.deleteNode(n);
+         this.root = n.getChild(0);
+         this.height--;
+      } else if (n.size() == 0) {
+         this.deleteNode(n);
+         this.root = DoubleNode.NONE;
+         this.height = 1;
+      } else {
+         this.storeNode(n);
+      }
+   }
+
+   /**
+    * @return the given <code>values</code> or, if there are too many, the
+    * reference to the directory of the overflow chunks they have been moved
+    * to
+    */
+   private Object spill(LinkedList<V> values) {
+      int capacity = this.getChunkCapacity();
+      if (values.size() <= capacity) {
+         return values;
+      }
+      Duplicates d = new Duplicates(Duplicates.getFilterWords(capacity));
+      DuplicateChunk chunk = null;
+      for (V value : values) {
+         if (chunk == null || chunk.getValues().size() == capacity) {
+            if (chunk != null) {
+               this.storeChunk(chunk);
+            }
+            chunk = new DuplicateChunk();
+            d.addChunk(chunk.getID());
+         }
+         chunk.getValues().add(value);
+         d.addToFilter(d.chunks() - 1, value);
+      }
+      this.storeChunk(chunk);
+      d.setCount(values.size());
+      this.storeDuplicates(d);
+      return d.getObjectReference();
+   }
+
+   /**
+    * Adds <code>value</code> to the values of the entry <code>index</code> of
+    * <code>leaf</code> and stores the changed leaf or chunks.
+    *
+    * @return <code>false</code> if <code>value</code> is already stored
+    */
+   private boolean addValue(DoubleNode leaf, int index, V value) {
+      Object entry = leaf.getValues(index);
+      if (entry instanceof ObjectReference) {
+         Duplicates d = this.readDuplicates(entry);
+         if (this.findChunk(d, value) != null) {
+            return false;
+         }
+         int capacity = this.getChunkCapacity();
+         DuplicateChunk chunk;
+         if (d.getCount() == d.chunks() * capacity) {
+            chunk = new DuplicateChunk();
+            d.addChunk(chunk.getID());
+         } else {
+            chunk = this.readChunk(d.getChunk(d.chunks() - 1));
+         }
+         chunk.getValues().add(value);
+         d.addToFilter(d.chunks() - 1, value);
+         d.setCount(d.getCount() + 1);
+         this.storeChunk(chunk);
+         this.storeDuplicates(d);
+         return true;
+      }
+
+      LinkedList<V> values = values(leaf, index);
+      if (values.contains(value)) {
+         return false;
+      }
+      values.add(value);
+      leaf.setValues(index, this.spill(values));
+      this.storeNode(leaf);
+      return true;
+   }
+
+   /**
+    * Removes <code>value</code> from the values of the entry
+    * <code>index</code> of <code>leaf</code>. Changed chunks are stored, the
+    * leaf is not. If the values fit into the leaf again, the chunks are
+    * removed.
+    *
+    * @return <code>false</code> if <code>value</code> is not stored
+    */
+   private boolean removeValue(DoubleNode leaf, int index, V value) {
+      Object entry = leaf.getValues(index);
+      if (!(entry instanceof ObjectReference)) {
+         return values(leaf, index).remove(value);
+      }
+
+      Duplicates d = this.readDuplicates(entry);
+      int[] position = new int[1];
+      DuplicateChunk chunk = this.findChunk(d, value, position);
+      if (chunk == null) {
+         return false;
+      }
+      chunk.getValues().remove(value);
+      d.setCount(d.getCount() - 1);
+
+      /*
+       * fill the gap with the last value, so that every chunk but the last
+       * one stays full
+       */
+      int last = d.chunks() - 1;
+      DuplicateChunk lastChunk = chunk;
+      if (position[0] != last) {
+         lastChunk = this.readChunk(d.getChunk(last));
+         chunk.getValues().add(lastChunk.getValues().removeLast());
+         d.setFilter(position[0], chunk.getValues());
+         this.storeChunk(chunk);
+      }
+      if (lastChunk.getValues().isEmpty()) {
+         this.deleteChunk(lastChunk);
+         d.removeLastChunk();
+      } else {
+         d.setFilter(last, lastChunk.getValues());
+         this.storeChunk(lastChunk);
+      }
+
+      if (d.getCount() <= this.getChunkCapacity() / 2) {
+         LinkedList<V> values = new LinkedList<>();
+         for (int i = 0; i < d.chunks(); i++) {
+            DuplicateChunk c = this.readChunk(d.getChunk(i));
+            values.addAll(this.<V>cast(c.getValues()));
+            this.deleteChunk(c);
+         }
+         this.ioacc.delete(d.getObjectReference());
+         leaf.setValues(index, values);
+      } else {
+         this.storeDuplicates(d);
+      }
+      return true;
+   }
+
+   /**
+    * Removes all values and deletes the nodes and overflow chunks from the
+    * StorageManager.
+    */
+   @Override
+   public void clear() {
+      this.lock.writeLock().lock();
+      try {
+         if (this.root != DoubleNode.NONE) {
+            this.clear(this.readNode(this.root));
+         }
+         this.root = DoubleNode.NONE;
+         this.height = 1;
+         this.size = 0;
+         this.modifications++;
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   private void clear(DoubleNode n) {
+      for (int i = 0; i < n.size(); i++) {
+         if (!n.isLeaf()) {
+            this.clear(this.readNode(n.getChild(i)));
+         } else if (n.getValues(i) instanceof ObjectReference) {
+            Duplicates d = this.readDuplicates(n.getValues(i));
+            for (int c = 0; c < d.chunks(); c++) {
+               this.deleteChunk(this.readChunk(d.getChunk(c)));
+            }
+            this.ioacc.delete(d.getObjectReference());
+         }
+      }
+      this.deleteNode(n);
+   }
+
+   private DuplicateChunk findChunk(Duplicates d, Object value) {
+      return this.findChunk(d, value, new int[1]);
+   }
+
+   /**
+    * Searches <code>value</code> in the chunks, whose bit set may contain
+    * it.
+    *
+    * @param position set to the index of the returned chunk
+    * @return the chunk containing <code>value</code> or <code>null</code>
+    */
+   private DuplicateChunk findChunk(Duplicates d, Object value, int[] position) {
+      for (int i = 0; i < d.chunks(); i++) {
+         if (d.mayContain(i, value)) {
+            DuplicateChunk chunk = this.readChunk(d.getChunk(i));
+            if (chunk.getValues().contains(value)) {
+               position[0] = i;
+               return chunk;
+            }
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Passes the values of <code>entry</code> to <code>q</code>, the ones of
+    * overflow chunks chunk by chunk.
+    */
+   private boolean query(double key, Object entry, Query<K, V> q) {
+      if (!(entry instanceof ObjectReference)) {
+         return q.query(this.toKey(key), this.<V>cast(entry));
+      }
+      Duplicates d = this.readDuplicates(entry);
+      K k = this.toKey(key);
+      for (int i = 0; i < d.chunks(); i++) {
+         if (!q.query(k, this.<V>cast(this.readChunk(d.getChunk(i))
+               .getValues()))) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * @return a copy of all values of <code>entry</code>
+    */
+   private LinkedList<V> allValues(Object entry) {
+      if (!(entry instanceof ObjectReference)) {
+         return new LinkedList<V>(this.<V>cast(entry));
+      }
+      Duplicates d = this.readDuplicates(entry);
+      LinkedList<V> values = new LinkedList<>();
+      for (int i = 0; i < d.chunks(); i++) {
+         values.addAll(this.<V>cast(this.readChunk(d.getChunk(i))
+               .getValues()));
+      }
+      return values;
+   }
+
+   /**
+    * Fills <code>path</code> with the nodes from the root to the leaf, whose
+    * subtree contains <code>key</code>, and <code>index</code> with their
+    * indices in their parents.
+    *
+    * @return the leaf
+    */
+   private DoubleNode findLeaf(double key, DoubleNode[] path, int[] index) {
+      DoubleNode n = this.readNode(this.root);
+      index[0] = -1;
+      for (int level = 0; level < path.length - 1; level++) {
+         path[level] = n;
+         int i = n.childIndex(key);
+         index[level + 1] = i;
+         n = this.readNode(n.getChild(i));
+      }
+      path[path.length - 1] = n;
+      return n;
+   }
+
+   /**
+    * @return the leaf, which contains <code>key</code> if it is in the tree
+    */
+   private DoubleNode leafOf(double key) {
+      DoubleNode n = this.readNode(this.root);
+      while (!n.isLeaf()) {
+         n = this.readNode(n.getChild(n.childIndex(key)));
+      }
+      return n;
+   }
+
+   private LinkedList<V> values(DoubleNode leaf, int index) {
+      return this.<V>cast(leaf.getValues(index));
+   }
+
+   @SuppressWarnings("unchecked")
+   private <T> LinkedList<T> cast(Object values) {
+      return (LinkedList<T>) values;
+   }
+
+   private Duplicates readDuplicates(Object reference) {
+      return (Duplicates) this.ioacc.load((ObjectReference) reference)
+            .getObject();
+   }
+
+   private void storeDuplicates(Duplicates d) {
+      /*
+       * the reference to and the bit set of every chunk and the count
+       */
+      this.ioacc.store(new SimpleStorable(d.getObjectReference(), d, 4
+            + d.chunks()
+            * (IOUtils.referenceByteSize() + d.getFilterWords() * 8)));
+   }
+
+   private DuplicateChunk readChunk(long id) {
+      return (DuplicateChunk) this.ioacc.load(
+            ObjectReference.getReference(id, DuplicateChunk.class))
+            .getObject();
+   }
+
+   private void storeChunk(DuplicateChunk chunk) {
+      this.ioacc.store(new SimpleStorable(chunk.getObjectReference(), chunk,
+            this.getChunkByteSize(this.<V>cast(chunk.getValues()))));
+   }
+
+   private void deleteChunk(DuplicateChunk chunk) {
+      this.ioacc.delete(chunk.getObjectReference());
+   }
+
+   private DoubleNode readNode(long id) {
+      return (DoubleNode) this.ioacc.load(
+            ObjectReference.getReference(id, DoubleNode.class)).getObject();
+   }
+
+   private void deleteNode(DoubleNode n) {
+      this.ioacc.delete(n.getObjectReference());
+   }
+
+   private void storeNode(DoubleNode n) {
+      this.ioacc.store(new SimpleStorable(n.getObjectReference(), n, this
+            .getNodeByteSize(n)));
+   }
+
+   /**
+    * A directory entry consists of its key and the reference to its child, a
+    * leaf of the reference to its right sibling and its keys and values or
+    * references to the directories of their overflow chunks.
+    */
+   private int getNodeByteSize(DoubleNode n) {
+      if (!n.isLeaf()) {
+         return n.size() * (IOUtils.referenceByteSize() + 8);
+      }
+      int byteSize = IOUtils.referenceByteSize();
+      for (int i = 0; i < n.size(); i++) {
+         Object entry = n.getValues(i);
+         if (entry instanceof ObjectReference) {
+            byteSize += 8 + IOUtils.referenceByteSize();
+         } else {
+            byteSize += 8 + this.getValuesByteSize(values(n, i));
+         }
+      }
+      return byteSize;
+   }
+}
@@ -0,0 +1,244 @@
+package de.mmenning.db.index.bplustree;
+
+import java.io.Serializable;
+
+import de.mmenning.db.storage.ObjectReference;
+import de.mmenning.db.storage.Referable;
+
+/**
+ * Node of a {@link DoubleBPlusTree}. The keys are kept sorted in a
+ * <code>double[]</code>, a directory node keeps the ids of its children in a
+ * <code>long[]</code>, a leaf the value lists of its keys or the references
+ * to the {@link Duplicates} of keys with too many values. Every array has
+ * room for one entry more than the capacity of the node, so that a node may
+ * overflow before it is split.
+ */
+final class DoubleNode implements Referable, Serializable {
+
+   private static final long serialVersionUID = 1L;
+
+   /**
+    * id of no node, e.g. the right sibling of the rightmost leaf
+    */
+   static final long NONE = -1;
+
+   private final ObjectReference or;
+
+   private final boolean leaf;
+
+   private int size;
+
+   private final double[] keys;
+
+   private final long[] children;
+
+   private final Object[] values;
+
+   private long rightSibling = NONE;
+
+   DoubleNode(boolean leaf, int capacity) {
+      this.or = ObjectReference.getReference(this);
+      this.leaf = leaf;
+      this.keys = new double[capacity + 1];
+      if (leaf) {
+         this.children = null;
+         this.values = new Object[capacity + 1];
+      } else {
+         this.children = new long[capacity + 1];
+         this.values = null;
+      }
+   }
+
+   @Override
+   public ObjectReference getObjectReference() {
+      return this.or;
+   }
+
+   long getID() {
+      return this.or.getID();
+   }
+
+   boolean isLeaf() {
+      return this.leaf;
+   }
+
+   int size() {
+      return this.size;
+   }
+
+   double getKey(int index) {
+      return this.keys[index];
+   }
+
+   void setKey(int index, double key) {
+      this.keys[index] = key;
+   }
+
+   long getChild(int index) {
+      return this.children[index];
+   }
+
+   Object getValues(int index) {
+      return this.values[index];
+   }
+
+   void setValues(int index, Object values) {
+      this.values[index] = values;
+   }
+
+   long getRightSibling() {
+      return this.rightSibling;
+   }
+
+   void setRightSibling(long rightSibling) {
+      this.rightSibling = rightSibling;
+   }
+
+   /**
+    * @return the index of <code>key</code> or -(index where it should be
+    * inserted + 1)
+    */
+   int search(double key) {
+      int low = 0;
+      int high = this.size - 1;
+
+      while (low <= high) {
+         int mid = (low + high) >>> 1;
+         double k = this.keys[mid];
+
+         if (k < key)
+            low = mid + 1;
+         else if (k > key)
+            high = mid - 1;
+         else
+            return mid;
+      }
+      return -(low + 1);
+   }
+
+   /**
+    * @return the index of the child of this directory node, whose subtree
+    * contains <code>key</code>: the last one whose key is not greater than
+    * <code>key</code> or the first one
+    */
+   int childIndex(double key) {
+      int index = this.search(key);
+      if (index >= 0) {
+         return index;
+      }
+      return Math.max(0, -index - 2);
+   }
+
+   void insert(int index, double key, long child) {
+      this.shift(index);
+      this.keys[index] = key;
+      this.children[index] = child;
+   }
+
+   void insert(int index, double key, Object values) {
+      this.shift(index);
+      this.keys[index] = key;
+      this.values[index] = values;
+   }
+
+   private void shift(int index) {
+      int move = this.size - index;
+      System.arraycopy(this.keys, index, this.keys, index + 1, move);
+      if (this.leaf) {
+         System.arraycopy(this.values, index, this.values, index + 1, move);
+      } else {
+         System.arraycopy(this.children, index, this.children, index + 1,
+               move);
+      }
+      this.size++;
+   }
+
+   void remove(int index) {
+      int move = this.size - index - 1;
+      System.arraycopy(this.keys, index + 1, this.keys, index, move);
+      if (this.leaf) {
+         System.arraycopy(this.values, index + 1, this.values, index, move);
+         this.values[this.size - 1] = null;
+      } else {
+         System.arraycopy(this.children, index + 1, this.children, index,
+               move);
+      }
+      this.size--;
+   }
+
+   /**
+    * Appends the entries from <code>from</code> on to <code>right</code> and
+    * removes them from this node.
+    */
+   void moveTail(int from, DoubleNode right) {
+      int move = this.size - from;
+      int to = right.size;
+      System.arraycopy(this.keys, from, right.keys, to, move);
+      if (this.leaf) {
+         System.arraycopy(this.values, from, right.values, to, move);
+         for (int i = from; i < this.size; i++) {
+            this.values[i] = null;
+         }
+      } else {
+         System.arraycopy(this.children, from, right.children, to, move);
+      }
+      right.size += move;
+      this.size = from;
+   }
+
+   /**
+    * Moves the last <code>count</code> entries of this node in front of the
+    * entries of <code>right</code>.
+    */
+   void moveLastTo(int count, DoubleNode right) {
+      int from = this.size - count;
+      System.arraycopy(right.keys, 0, right.keys, count, right.size);
+      System.arraycopy(this.keys, from, right.keys, 0, count);
+      if (this.leaf) {
+         System.arraycopy(right.values, 0, right.values, count, right.size);
+         System.arraycopy(this.values, from, right.values, 0, count);
+         for (int i = from; i < this.size; i++) {
+            this.values[i] = null;
+         }
+      } else {
+         System.arraycopy(right.children, 0, right.children, count,
+               right.size);
+         System.arraycopy(this.children, from, right.children, 0, count);
+      }
+      right.size += count;
+      this.size = from;
+   }
+
+   /**
+    * Appends the first <code>count</code> entries of <code>right</code> to
+    * this node.
+    */
+   void moveFirstFrom(int count, DoubleNode right) {
+      System.arraycopy(right.keys, 0, this.keys, this.size, count);
+      System.arraycopy(right.keys, count, right.keys, 0, right.size - count);
+      if (this.leaf) {
+         System.arraycopy(right.values, 0, this.values, this.size, count);
+         System.arraycopy(right.values, count, right.values, 0, right.size
+               - count);
+         for (int i = right.size - count; i < right.size; i++) {
+            right.values[i] = null;
+         }
+      } else {
+         System.arraycopy(right.children, 0, this.children, this.size, count);
+         System.arraycopy(right.children, count, right.children, 0,
+               right.size - count);
+      }
+      this.size += count;
+      right.size -= count;
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder buf = new StringBuilder();
+      for (int i = 0; i < this.size; i++) {
+         buf.append(this.keys[i]);
+         buf.append(",");
+      }
+      return buf.toString();
+   }
+}
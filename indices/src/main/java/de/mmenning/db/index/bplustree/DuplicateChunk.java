@@ -0,0 +1,37 @@
+package de.mmenning.db.index.bplustree;
+
+import java.io.Serializable;
+import java.util.LinkedList;
+
+import de.mmenning.db.storage.ObjectReference;
+import de.mmenning.db.storage.Referable;
+
+/**
+ * Overflow page of a {@link DoubleBPlusTree}, which holds a part of the
+ * values of a key with more values than fit into its leaf entry.
+ */
+final class DuplicateChunk implements Referable, Serializable {
+
+   private static final long serialVersionUID = 1L;
+
+   private final ObjectReference or;
+
+   private final LinkedList<Object> values = new LinkedList<>();
+
+   DuplicateChunk() {
+      this.or = ObjectReference.getReference(this);
+   }
+
+   @Override
+   public ObjectReference getObjectReference() {
+      return this.or;
+   }
+
+   long getID() {
+      return this.or.getID();
+   }
+
+   LinkedList<Object> getValues() {
+      return this.values;
+   }
+}
@@ -0,0 +1,120 @@
+package de.mmenning.db.index.bplustree;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+import de.mmenning.db.storage.ObjectReference;
+import de.mmenning.db.storage.Referable;
+
+/**
+ * Directory of the {@link DuplicateChunk}s of a key in a
+ * {@link DoubleBPlusTree}. Every chunk but the last one is full. For every
+ * chunk the directory keeps a bit set of the hash codes of its values, so
+ * that a value is only searched in the chunks, whose bit of the value is set.
+ */
+final class Duplicates implements Referable, Serializable {
+
+   private static final long serialVersionUID = 1L;
+
+   private final ObjectReference or;
+
+   /**
+    * number of longs of the bit set of a chunk
+    */
+   private final int words;
+
+   private int count;
+
+   private int chunkCount;
+
+   private long[] chunks = new long[4];
+
+   private long[] filters;
+
+   Duplicates(int words) {
+      this.or = ObjectReference.getReference(this);
+      this.words = words;
+      this.filters = new long[this.chunks.length * words];
+   }
+
+   @Override
+   public ObjectReference getObjectReference() {
+      return this.or;
+   }
+
+   /**
+    * @return number of longs of the bit set of a chunk, which holds
+    * <code>capacity</code> values
+    */
+   static int getFilterWords(int capacity) {
+      return (capacity * 8 + 63) / 64;
+   }
+
+   int getFilterWords() {
+      return this.words;
+   }
+
+   /**
+    * @return number of values in all chunks
+    */
+   int getCount() {
+      return this.count;
+   }
+
+   void setCount(int count) {
+      this.count = count;
+   }
+
+   int chunks() {
+      return this.chunkCount;
+   }
+
+   long getChunk(int index) {
+      return this.chunks[index];
+   }
+
+   void addChunk(long id) {
+      if (this.chunkCount == this.chunks.length) {
+         this.chunks = Arrays.copyOf(this.chunks, this.chunkCount * 2);
+         this.filters = Arrays.copyOf(this.filters, this.chunks.length
+               * this.words);
+      }
+      this.chunks[this.chunkCount++] = id;
+   }
+
+   void removeLastChunk() {
+      this.chunkCount--;
+      Arrays.fill(this.filters, this.chunkCount * this.words,
+            (this.chunkCount + 1) * this.words, 0);
+   }
+
+   private int bit(Object value) {
+      int h = value.hashCode() * 0x9E3779B9;
+      return ((h ^ (h >>> 16)) & 0x7fffffff) % (this.words * 64);
+   }
+
+   /**
+    * @return <code>false</code> if <code>value</code> is not in the chunk
+    */
+   boolean mayContain(int chunk, Object value) {
+      int bit = this.bit(value);
+      return (this.filters[chunk * this.words + (bit >>> 6)] & (1L << bit)) != 0;
+   }
+
+   void addToFilter(int chunk, Object value) {
+      int bit = this.bit(value);
+      this.filters[chunk * this.words + (bit >>> 6)] |= 1L << bit;
+   }
+
+   /**
+    * recomputes the bit set of the chunk from its values
+    */
+   void setFilter(int chunk, List<?> values) {
+      Arrays.fill(this.filters, chunk * this.words, (chunk + 1) * this.words,
+            0);
+      for (Object value : values) {
+         this.addToFilter(chunk, value);
+      }
+   }
+}
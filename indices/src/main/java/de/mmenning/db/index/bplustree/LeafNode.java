@@ -21,6 +21,10 @@ public class LeafNode<K, V> extends BNode<K, LinkedList<V>> {
 		super(comp, size);
 	}
 
+	LeafNode(Comparator<? super K> comp, int size, ObjectReference or) {
+		super(comp, size, or);
+	}
+
 	@Override
 	boolean isLeaf() {
 		return true;
@@ -0,0 +1,55 @@
+package de.mmenning.db.index.bplustree;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import de.mmenning.db.storage.StorableIndex;
+
+/**
+ * Index of values by ordered keys, where every key holds a list of values.
+ * Implemented by {@link BPlusTree} and {@link DoubleBPlusTree}, so that
+ * indices built upon a B+-tree may use either of them.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public interface OrderedIndex<K, V> extends StorableIndex,
+      Iterable<KeyValuePair<K, LinkedList<V>>> {
+
+   public boolean contains(K key);
+
+   public boolean contains(K key, V value);
+
+   /**
+    * @return <code>false</code> if <code>value</code> is already stored with
+    * <code>key</code>
+    */
+   public boolean insert(K key, V value);
+
+   public boolean remove(K key, V value);
+
+   /**
+    * Passes all entries between <code>begin</code> and <code>end</code> to
+    * <code>q</code> until it returns <code>false</code>. <code>q</code> must
+    * not modify this index. The values of a key may be passed in several
+    * parts, each with the key.
+    *
+    * @return <code>false</code> if <code>q</code> has stopped the query
+    */
+   public boolean rangeQuery(K begin, K end, Query<K, V> q);
+
+   public Iterator<KeyValuePair<K, LinkedList<V>>> rangeQuery(K begin, K end);
+
+   /**
+    * @return the number of values
+    */
+   public int size();
+
+   public int getHeight();
+
+   /**
+    * Removes all values and deletes the nodes of this index from its
+    * StorageManager.
+    */
+   public void clear();
+}
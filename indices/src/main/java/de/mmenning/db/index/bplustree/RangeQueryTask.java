@@ -0,0 +1,52 @@
+package de.mmenning.db.index.bplustree;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs {@link OrderedIndex#rangeQuery(Object, Object, Query)} as a task, so
+ * that independent range queries on one tree, e.g. the scans of several
+ * pyramids, may run in parallel. The <code>Query</code> is called by several threads if
+ * it is shared by the tasks and the tree must use a thread safe
+ * StorageManager.
+ */
+public class RangeQueryTask<K, V> extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final OrderedIndex<K, V> tree;
+	private final K begin;
+	private final K end;
+	private final Query<K, V> q;
+
+	public RangeQueryTask(OrderedIndex<K, V> tree, K begin, K end,
+			Query<K, V> q) {
+		this.tree = tree;
+		this.begin = begin;
+		this.end = end;
+		this.q = q;
+	}
+
+	@Override
+	protected void compute() {
+		this.tree.rangeQuery(this.begin, this.end, this.q);
+	}
+
+	/**
+	 * Runs all tasks in <code>pool</code> and waits until they are finished.
+	 */
+	public static void invokeAll(ForkJoinPool pool,
+			final Collection<? extends RangeQueryTask<?, ?>> tasks) {
+		pool.invoke(new RecursiveAction() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				ForkJoinTask.invokeAll(tasks);
+			}
+		});
+	}
+}
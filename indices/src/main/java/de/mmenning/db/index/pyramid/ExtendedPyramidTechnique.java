@@ -1,19 +1,77 @@
 package de.mmenning.db.index.pyramid;
 
+import de.mmenning.db.index.NDPoint;
 import de.mmenning.db.index.NDPointKey;
 import de.mmenning.db.index.NDRectangle;
 import de.mmenning.db.index.PointQuery;
+import de.mmenning.db.index.bplustree.KeyValuePair;
+import de.mmenning.db.index.bplustree.OrderedIndex;
 import de.mmenning.db.storage.DefaultStorage;
 import de.mmenning.db.storage.StorageManager;
+import de.mmenning.util.math.P2Quantile;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /*
- * Median will not dynamically update
+ * The median of the inserted points is estimated on the fly. If adaptive
+ * medians are enabled, the index is rebuilt with the estimated median in the
+ * background, as soon as it differs too much from the actual one.
  */
 public class ExtendedPyramidTechnique extends PyramidTechnique {
 
-	private final double[] median;
+	/**
+	 * number of inserted points, before the estimated median is used
+	 */
+	public static final int MIN_OBSERVATIONS = 1000;
+
+	/**
+	 * an insert or a delete during a rebuild
+	 */
+	private static final class Modification {
+
+		private final boolean insert;
+		private final NDPointKey key;
+
+		private Modification(boolean insert, NDPointKey key) {
+			this.insert = insert;
+			this.key = key;
+		}
+	}
+
+	private double[] median;
+
+	private final int blockSize;
+
+	/**
+	 * estimated median of every dimension of the inserted points
+	 */
+	private final P2Quantile[] estimates;
+
+	/**
+	 * guards the tree and the median, which are replaced by a rebuild
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * executes the rebuilds, <code>null</code> if the median is not adapted
+	 */
+	private Executor rebuilder;
+
+	private double threshold;
+
+	private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+	/**
+	 * inserted and deleted keys during a rebuild, <code>null</code> if there
+	 * is no rebuild
+	 */
+	private ArrayList<Modification> journal;
 
 	public ExtendedPyramidTechnique(final int dim, final int blockSize) {
 		this(dim, blockSize, DefaultStorage.getInstance());
@@ -21,29 +79,231 @@ public class ExtendedPyramidTechnique extends PyramidTechnique {
 
 	public ExtendedPyramidTechnique(final int dim, final int blockSize,
 			StorageManager s) {
-		super(dim, blockSize, s);
+		this(dim, blockSize, s, false);
+	}
+
+	/**
+	 * @see PyramidTechnique#PyramidTechnique(int, int, StorageManager,
+	 *      boolean)
+	 */
+	public ExtendedPyramidTechnique(final int dim, final int blockSize,
+			StorageManager s, boolean primitiveKeys) {
+		super(dim, blockSize, s, primitiveKeys);
 		/*
 		 * variable size dependent on block size
 		 */
+		this.blockSize = blockSize;
 		this.median = new double[this.dim];
 		Arrays.fill(this.median, 0.5);
+		this.estimates = new P2Quantile[this.dim];
+		for (int i = 0; i < this.dim; i++) {
+			this.estimates[i] = new P2Quantile();
+		}
 	}
 
 	public double getMedian(int dim) {
-		return this.median[dim];
+		this.lock.readLock().lock();
+		try {
+			return this.median[dim];
+		} finally {
+			this.lock.readLock().unlock();
+		}
 	}
 
 	public void setMedian(double[] median) {
-		if (this.size() == 0) {
-			if (median.length != this.dim) {
-				throw new IllegalArgumentException(
-						"median must have the same dimension " + this.dim);
+		this.lock.writeLock().lock();
+		try {
+			if (this.size() == 0) {
+				if (median.length != this.dim) {
+					throw new IllegalArgumentException(
+							"median must have the same dimension " + this.dim);
+				}
+				System.arraycopy(median, 0, this.median, 0, median.length);
+			} else {
+				throw new IllegalStateException();
 			}
-			System.arraycopy(median, 0, this.median, 0, median.length);
-		} else {
-			throw new IllegalStateException();
+		} finally {
+			this.lock.writeLock().unlock();
 		}
+	}
 
+	/**
+	 * @return the estimated median of the inserted points or a copy of the
+	 *         actual median, if less than {@link #MIN_OBSERVATIONS} points
+	 *         have been inserted
+	 */
+	public double[] getEstimatedMedian() {
+		double[] estimated = new double[this.dim];
+		synchronized (this.estimates) {
+			if (this.estimates[0].getCount() >= MIN_OBSERVATIONS) {
+				for (int i = 0; i < this.dim; i++) {
+					estimated[i] = this.estimates[i].getValue();
+				}
+				return estimated;
+			}
+		}
+		this.lock.readLock().lock();
+		try {
+			System.arraycopy(this.median, 0, estimated, 0, this.dim);
+			return estimated;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Enables adaptive medians. After an insert, the index is rebuilt with
+	 * the estimated median in the background, if it differs from the actual
+	 * median by more than <code>threshold</code> in any dimension. Until the
+	 * new tree replaces the old one, all operations use the old one and the
+	 * modifications are replayed on the new tree. Adaptive medians require a
+	 * thread safe StorageManager.
+	 *
+	 * @param executor
+	 *            executes the rebuilds, <code>null</code> disables adaptive
+	 *            medians
+	 * @param threshold
+	 *            maximum difference between the estimated and the actual
+	 *            median
+	 */
+	public void setAdaptiveMedian(Executor executor, double threshold) {
+		if (executor != null && !(threshold > 0)) {
+			throw new IllegalArgumentException("threshold must be positive");
+		}
+		this.threshold = threshold;
+		this.rebuilder = executor;
+	}
+
+	/**
+	 * Rebuilds the index with the estimated median. Generalizes
+	 * {@link de.mmenning.db.index.rtptree.RTPTree#optimize()}, as the new
+	 * tree is bulk loaded, too.
+	 *
+	 * @throws IllegalStateException
+	 *             if a rebuild is running
+	 */
+	public void rebuild() {
+		if (!this.rebuilding.compareAndSet(false, true)) {
+			throw new IllegalStateException("rebuild in progress");
+		}
+		try {
+			this.rebuild(this.getEstimatedMedian());
+		} finally {
+			this.rebuilding.set(false);
+		}
+	}
+
+	/**
+	 * Bulk loads the keys of this index into a new tree with the given
+	 * median. Only the copy of the keys and the replacement of the tree block
+	 * the other operations. The nodes of the replaced tree are deleted
+	 * afterwards.
+	 */
+	private void rebuild(double[] median) {
+		ArrayList<NDPointKey> keys;
+		StorageManager s;
+		boolean primitiveKeys;
+		this.lock.writeLock().lock();
+		try {
+			keys = new ArrayList<>(this.btree.size());
+			for (KeyValuePair<PyramidValue, LinkedList<NDPointKey>> kv : this.btree) {
+				keys.addAll(kv.getValue());
+			}
+			s = this.btree.getStorageManager();
+			primitiveKeys = this.btree instanceof PyramidDoubleBPlusTree;
+			this.journal = new ArrayList<>();
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+
+		try {
+			ExtendedPyramidTechnique rebuilt = new ExtendedPyramidTechnique(
+					this.dim, this.blockSize, s, primitiveKeys);
+			rebuilt.setMedian(median);
+			rebuilt.bulkLoad(keys.iterator());
+			keys = null;
+
+			OrderedIndex<PyramidValue, NDPointKey> replaced;
+			this.lock.writeLock().lock();
+			try {
+				for (Modification modification : this.journal) {
+					NDPointKey key = modification.key;
+					if (modification.insert) {
+						rebuilt.btree.insert(rebuilt.convert(key.getNDKey()),
+								key);
+					} else {
+						rebuilt.btree.remove(rebuilt.convert(key.getNDKey()),
+								key);
+					}
+				}
+				replaced = this.btree;
+				this.btree = rebuilt.btree;
+				this.median = rebuilt.median;
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+			/*
+			 * every operation on the replaced tree held the read lock
+			 */
+			replaced.clear();
+		} finally {
+			this.lock.writeLock().lock();
+			this.journal = null;
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds <code>point</code> to the estimated median and starts a rebuild,
+	 * if adaptive medians are enabled and the estimated median differs too
+	 * much from the actual one.
+	 */
+	private void observe(double[] point) {
+		synchronized (this.estimates) {
+			for (int i = 0; i < this.dim; i++) {
+				this.estimates[i].add(point[i]);
+			}
+		}
+
+		Executor executor = this.rebuilder;
+		if (executor == null || this.rebuilding.get()) {
+			return;
+		}
+		final double[] estimated = this.getEstimatedMedian();
+		boolean skewed = false;
+		this.lock.readLock().lock();
+		try {
+			for (int i = 0; i < this.dim && !skewed; i++) {
+				skewed = Math.abs(estimated[i] - this.median[i]) > this.threshold;
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
+		if (skewed && this.rebuilding.compareAndSet(false, true)) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						rebuild(estimated);
+					} finally {
+						rebuilding.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Records a modification for the replay on a rebuilt tree. Must be
+	 * called with the read lock held.
+	 */
+	private void record(boolean insert, NDPointKey key) {
+		ArrayList<Modification> journal = this.journal;
+		if (journal != null) {
+			synchronized (journal) {
+				journal.add(new Modification(insert, key));
+			}
+		}
 	}
 
 	protected double[] scaleTi(double[] point) {
@@ -54,6 +314,11 @@ public class ExtendedPyramidTechnique extends PyramidTechnique {
 		return ExtendedPyramidFunctions.calcTi(x, median[i]);
 	}
 
+	@Override
+	protected PyramidValue convert(NDPoint point) {
+		return convert(point.toArray());
+	}
+
 	protected PyramidValue convert(double[] point) {
 		point = ExtendedPyramidFunctions.scaleTi(point, this.median);
 
@@ -66,50 +331,112 @@ public class ExtendedPyramidTechnique extends PyramidTechnique {
 	@Override
 	public boolean insert(NDPointKey toInsert) {
 		double[] point = toInsert.getNDKey().toArray();
-		/*
-	    * TODO
-		 * at this point the original point should be inserted into a histogram,
-		 * form which the median may be calculated.
-		 *
-		 * if median differs from actual median with a threshold of more than
-		 * th. the median changes and the whole structure needs to be
-		 * re-builded.
-		 */
 
-		/*
-		 * convert point according to the actual median
-		 */
-		PyramidValue key = convert(point);
+		boolean insert;
+		this.lock.readLock().lock();
+		try {
+			/*
+			 * convert point according to the actual median
+			 */
+			PyramidValue key = convert(point);
 
-		boolean insert = this.btree.insert(key, toInsert);
+			insert = this.btree.insert(key, toInsert);
+			if (insert) {
+				this.record(true, toInsert);
+			}
+		} finally {
+			this.lock.readLock().unlock();
+		}
 
+		if (insert) {
+			this.observe(point);
+		}
 		return insert;
 	}
 
+	/**
+	 * Deleted points remain in the estimated median.
+	 */
 	@Override
 	public boolean delete(NDPointKey key) {
-
-		boolean deleted = this.btree.remove(convert(key.getNDKey().toArray()),
-				key);
-
-		/*
-		 * TODO
-		 * if deletion is successful update the histogram
-		 */
-		return deleted;
+		this.lock.readLock().lock();
+		try {
+			boolean deleted = this.btree.remove(
+					convert(key.getNDKey().toArray()), key);
+			if (deleted) {
+				this.record(false, key);
+			}
+			return deleted;
+		} finally {
+			this.lock.readLock().unlock();
+		}
 	}
 
 	@Override
 	public boolean contains(NDPointKey key) {
-		return this.btree.contains(convert(key.getNDKey().toArray()), key);
+		this.lock.readLock().lock();
+		try {
+			return this.btree.contains(convert(key.getNDKey().toArray()), key);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The bulk loaded points are added to the estimated median.
+	 */
+	@Override
+	public void bulkLoad(final Iterator<NDPointKey> keys, int runSize) {
+		this.lock.writeLock().lock();
+		try {
+			super.bulkLoad(new Iterator<NDPointKey>() {
+				@Override
+				public boolean hasNext() {
+					return keys.hasNext();
+				}
+
+				@Override
+				public NDPointKey next() {
+					NDPointKey next = keys.next();
+					double[] point = next.getNDKey().toArray();
+					synchronized (estimates) {
+						for (int i = 0; i < dim; i++) {
+							estimates[i].add(point[i]);
+						}
+					}
+					return next;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			}, runSize);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
 	}
 
 	@Override
 	public void regionQuery(NDRectangle region, PointQuery q) {
+		this.lock.readLock().lock();
+		try {
+			double[] qmin = scaleTi(region.getBegin().toArray());
+			double[] qmax = scaleTi(region.getEnd().toArray());
 
-		double[] qmin = scaleTi(region.getBegin().toArray());
-		double[] qmax = scaleTi(region.getEnd().toArray());
+			doQuery(qmin, qmax, region, q);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
 
-		doQuery(qmin, qmax, region, q);
+	@Override
+	public int size() {
+		this.lock.readLock().lock();
+		try {
+			return super.size();
+		} finally {
+			this.lock.readLock().unlock();
+		}
 	}
 }
@@ -35,6 +35,14 @@ public class PyramidBPlusTree<E> extends BPlusTree<PyramidValue, E> {
       this.blockSize = toBulkLoad.blockSize;
    }
 
+   public PyramidBPlusTree(
+         Iterator<KeyValuePair<PyramidValue, LinkedList<E>>> iter,
+         int dirNode_D, int leafNode_D, int blockSize, int dim,
+         StorageManager s, int elementByteSize) {
+      this(dirNode_D, leafNode_D, blockSize, dim, s, elementByteSize);
+      super.bulkLoad(iter);
+   }
+
    public PyramidBPlusTree(int dirNode_D, int leafNode_D, int blockSize,
                            int dim, StorageManager s, int elementByteSize) {
 
@@ -55,13 +63,13 @@ public class PyramidBPlusTree<E> extends BPlusTree<PyramidValue, E> {
       this.blockSize = blockSize;
    }
 
-   private static int calcDirNodeSize(int blockSize) {
+   static int calcDirNodeSize(int blockSize) {
 
       return blockSize / (IOUtils.referenceByteSize() + 8);
    }
 
-   private static int calcLeafNodeSize(int blockSize, int dim,
-                                       int elementByteSize) {
+   static int calcLeafNodeSize(int blockSize, int dim,
+                               int elementByteSize) {
       /*
 		 * size of a leaf node: entries * (pyramidvalue(8byte) + (element in
 		 * every dimension(elementybteSize)) + reference on object (8byte) +
@@ -72,6 +80,15 @@ public class PyramidBPlusTree<E> extends BPlusTree<PyramidValue, E> {
             / ((IOUtils.referenceByteSize() * 2) + elementByteSize + 8);
    }
 
+   /**
+    * Makes bulk loading available to the indices of this package.
+    */
+   @Override
+   protected void bulkLoad(
+         Iterator<KeyValuePair<PyramidValue, LinkedList<E>>> elems) {
+      super.bulkLoad(elems);
+   }
+
    @Override
    protected Storable leafNodeToStorable(LeafNode<PyramidValue, E> n) {
 
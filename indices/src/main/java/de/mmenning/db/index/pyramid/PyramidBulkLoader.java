@@ -0,0 +1,370 @@
+package de.mmenning.db.index.pyramid;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDPointKey;
+import de.mmenning.db.index.bplustree.KeyValuePair;
+import de.mmenning.db.storage.ObjectReference;
+
+/**
+ * Sorts unsorted NDPointKeys by their PyramidValues for bulk loading a
+ * {@link PyramidTechnique}. The keys are read in runs of at most
+ * <code>runSize</code> keys, whose PyramidValues are computed and which are
+ * sorted in parallel. If all keys fit into one run, it is passed on directly.
+ * Else every run is written to a temporary file and the runs are merged, so
+ * that at most one run is held in memory.
+ * <p>
+ * A run file stores a key as its PyramidValue, the id of its object and its
+ * coordinates. As in {@link PyramidNodeCodec} the object references of
+ * merged keys are recreated with <code>Object</code> as their meta class.
+ */
+final class PyramidBulkLoader {
+
+   /**
+    * number of keys, whose PyramidValues are computed by one task
+    */
+   private static final int THRESHOLD = 4096;
+
+   /**
+    * initial number of keys of the run buffer
+    */
+   private static final int INITIAL_BUFFER_SIZE = 1024;
+
+   private static final Comparator<Record> ORDER = new Comparator<Record>() {
+      @Override
+      public int compare(Record o1, Record o2) {
+         return Double.compare(o1.value, o2.value);
+      }
+   };
+
+   private static final class Record {
+
+      private final double value;
+      private final NDPointKey key;
+
+      private Record(double value, NDPointKey key) {
+         this.value = value;
+         this.key = key;
+      }
+   }
+
+   /**
+    * computes the PyramidValues of a part of a run
+    */
+   private final class Convert extends RecursiveAction {
+
+      private static final long serialVersionUID = 1L;
+
+      private final NDPointKey[] keys;
+      private final Record[] records;
+      private final int begin;
+      private final int end;
+
+      private Convert(NDPointKey[] keys, Record[] records, int begin, int end) {
+         this.keys = keys;
+         this.records = records;
+         this.begin = begin;
+         this.end = end;
+      }
+
+      @Override
+      protected void compute() {
+         if (this.end - this.begin <= THRESHOLD) {
+            for (int i = this.begin; i < this.end; i++) {
+               this.records[i] = new Record(index.convert(
+                     this.keys[i].getNDKey()).doubleValue(), this.keys[i]);
+            }
+         } else {
+            int mid = (this.begin + this.end) >>> 1;
+            invokeAll(new Convert(this.keys, this.records, this.begin, mid),
+                  new Convert(this.keys, this.records, mid, this.end));
+         }
+      }
+   }
+
+   /**
+    * reads the records of a run file in order
+    */
+   private final class Run {
+
+      private final DataInputStream in;
+      private final int number;
+      private int left;
+      private Record head;
+
+      private Run(File file, int count, int number) throws IOException {
+         this.in = new DataInputStream(new BufferedInputStream(
+               new FileInputStream(file)));
+         this.left = count;
+         this.number = number;
+      }
+
+      private boolean advance() throws IOException {
+         if (this.left == 0) {
+            this.in.close();
+            this.head = null;
+            return false;
+         }
+         this.left--;
+         double value = this.in.readDouble();
+         ObjectReference object = ObjectReference.getReference(
+               this.in.readLong(), Object.class);
+         double[] point = new double[dim];
+         for (int i = 0; i < dim; i++) {
+            point[i] = this.in.readDouble();
+         }
+         this.head = new Record(value, new NDPointKey(object,
+               new NDPoint(point)));
+         return true;
+      }
+   }
+
+   private final PyramidTechnique index;
+
+   private final int dim;
+
+   private final int runSize;
+
+   private final ForkJoinPool pool;
+
+   /**
+    * keys of the run being read, grows up to <code>runSize</code>
+    */
+   private NDPointKey[] buffer;
+
+   private final ArrayList<File> files = new ArrayList<>();
+
+   private final ArrayList<Run> runs = new ArrayList<>();
+
+   /**
+    * number of keys, which have been sorted
+    */
+   private long count;
+
+   /**
+    * @param index   index, which computes the PyramidValues
+    * @param runSize maximum number of keys sorted in memory
+    * @param pool    pool computing the PyramidValues
+    */
+   PyramidBulkLoader(PyramidTechnique index, int runSize, ForkJoinPool pool) {
+      if (runSize < 1) {
+         throw new IllegalArgumentException("run size must be positive");
+      }
+      this.index = index;
+      this.dim = index.getDim();
+      this.runSize = runSize;
+      this.pool = pool;
+      this.buffer = new NDPointKey[Math.min(runSize, INITIAL_BUFFER_SIZE)];
+   }
+
+   /**
+    * @return number of keys, which have been sorted
+    */
+   long getCount() {
+      return this.count;
+   }
+
+   /**
+    * Sorts <code>keys</code> and groups the keys with equal PyramidValues.
+    * Keys, which are equal to a key with the same PyramidValue, are dropped.
+    */
+   Iterator<KeyValuePair<PyramidValue, LinkedList<NDPointKey>>> sort(
+         Iterator<NDPointKey> keys) {
+
+      Record[] run = this.nextRun(keys);
+      if (!keys.hasNext()) {
+         return group(Arrays.asList(run).iterator());
+      }
+
+      try {
+         do {
+            this.writeRun(run);
+            // release the written run before reading the next one
+            run = null;
+            run = this.nextRun(keys);
+         } while (run.length > 0);
+
+         PriorityQueue<Run> heads = new PriorityQueue<Run>(this.runs.size(),
+               new Comparator<Run>() {
+                  @Override
+                  public int compare(Run o1, Run o2) {
+                     int cmp = ORDER.compare(o1.head, o2.head);
+                     return cmp != 0 ? cmp : o1.number - o2.number;
+                  }
+               });
+         for (int i = 0; i < this.files.size(); i++) {
+            Run r = this.runs.get(i);
+            if (r.advance()) {
+               heads.add(r);
+            }
+         }
+         return group(merge(heads));
+      } catch (IOException e) {
+         this.close();
+         throw new IllegalStateException("could not sort the runs", e);
+      }
+   }
+
+   /**
+    * deletes the run files
+    */
+   void close() {
+      for (Run r : this.runs) {
+         try {
+            r.in.close();
+         } catch (IOException e) {
+            // the file is deleted anyway
+         }
+      }
+      for (File f : this.files) {
+         f.delete();
+      }
+      this.runs.clear();
+      this.files.clear();
+   }
+
+   /**
+    * @return the next at most <code>runSize</code> keys, sorted by their
+    * PyramidValues
+    */
+   private Record[] nextRun(Iterator<NDPointKey> keys) {
+      NDPointKey[] run = this.buffer;
+      int size = 0;
+      while (size < this.runSize && keys.hasNext()) {
+         if (size == run.length) {
+            run = Arrays.copyOf(run, (int) Math.min(this.runSize,
+                  run.length * 2L));
+            this.buffer = run;
+         }
+         run[size++] = keys.next();
+      }
+      this.count += size;
+
+      Record[] records = new Record[size];
+      if (size > 0) {
+         this.pool.invoke(new Convert(run, records, 0, size));
+         // the records hold the keys from now on
+         Arrays.fill(run, 0, size, null);
+      }
+      Arrays.parallelSort(records, ORDER);
+      return records;
+   }
+
+   private void writeRun(Record[] run) throws IOException {
+      File file = File.createTempFile("pyramid", ".run");
+      file.deleteOnExit();
+      this.files.add(file);
+
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(file)));
+      try {
+         for (Record r : run) {
+            out.writeDouble(r.value);
+            out.writeLong(r.key.getObject().getID());
+            for (int i = 0; i < this.dim; i++) {
+               out.writeDouble(r.key.getNDKey().getValue(i));
+            }
+         }
+      } finally {
+         out.close();
+      }
+      this.runs.add(new Run(file, run.length, this.runs.size()));
+   }
+
+   private static Iterator<Record> merge(final PriorityQueue<Run> heads) {
+      return new Iterator<Record>() {
+         @Override
+         public boolean hasNext() {
+            return !heads.isEmpty();
+         }
+
+         @Override
+         public Record next() {
+            if (heads.isEmpty()) {
+               throw new NoSuchElementException();
+            }
+            Run r = heads.poll();
+            Record next = r.head;
+            try {
+               if (r.advance()) {
+                  heads.add(r);
+               }
+            } catch (IOException e) {
+               throw new IllegalStateException("could not read a run", e);
+            }
+            return next;
+         }
+
+         @Override
+         public void remove() {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+
+   /**
+    * @return the keys of <code>sorted</code> grouped by their PyramidValues
+    */
+   private static Iterator<KeyValuePair<PyramidValue, LinkedList<NDPointKey>>> group(
+         final Iterator<Record> sorted) {
+      return new Iterator<KeyValuePair<PyramidValue, LinkedList<NDPointKey>>>() {
+
+         private Record next = sorted.hasNext() ? sorted.next() : null;
+
+         @Override
+         public boolean hasNext() {
+            return this.next != null;
+         }
+
+         @Override
+         public KeyValuePair<PyramidValue, LinkedList<NDPointKey>> next() {
+            if (this.next == null) {
+               throw new NoSuchElementException();
+            }
+            double value = this.next.value;
+            LinkedList<NDPointKey> keys = new LinkedList<>();
+            keys.add(this.next.key);
+            this.next = null;
+            // created for groups of several keys only
+            HashSet<NDPointKey> distinct = null;
+            while (sorted.hasNext()) {
+               Record r = sorted.next();
+               if (r.value != value) {
+                  this.next = r;
+                  break;
+               }
+               if (distinct == null) {
+                  distinct = new HashSet<>(keys);
+               }
+               if (distinct.add(r.key)) {
+                  keys.add(r.key);
+               }
+            }
+            return new KeyValuePair<>(PyramidValue.valueOf(value), keys);
+         }
+
+         @Override
+         public void remove() {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+}
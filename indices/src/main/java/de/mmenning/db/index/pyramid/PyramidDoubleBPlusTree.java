@@ -0,0 +1,122 @@
+package de.mmenning.db.index.pyramid;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import de.mmenning.db.index.bplustree.DoubleBPlusTree;
+import de.mmenning.db.index.bplustree.KeyValuePair;
+import de.mmenning.db.storage.IOUtils;
+import de.mmenning.db.storage.StorageManager;
+
+/**
+ * B+-tree over PyramidValues, which keeps the keys of its nodes as the
+ * doubles of the PyramidValues. Its nodes have the same capacities and byte
+ * sizes as the ones of a {@link PyramidBPlusTree}. The elements of a
+ * PyramidValue, which do not fit into a block, are stored in overflow chunks
+ * of a block each.
+ *
+ * @param <E> the type of the indexed elements
+ */
+public class PyramidDoubleBPlusTree<E> extends DoubleBPlusTree<PyramidValue, E> {
+
+   protected final int dim;
+   protected final int blockSize;
+
+   protected final int elementByteSize;
+
+   /**
+    * Bulk loads the entries of <code>toBulkLoad</code> into a new tree with
+    * the same capacities.
+    */
+   public PyramidDoubleBPlusTree(PyramidDoubleBPlusTree<E> toBulkLoad) {
+      this(toBulkLoad.iterator(), toBulkLoad.nodeCapacity / 2,
+            toBulkLoad.leafCapacity / 2, toBulkLoad.blockSize,
+            toBulkLoad.dim, toBulkLoad.getStorageManager(),
+            toBulkLoad.elementByteSize);
+   }
+
+   public PyramidDoubleBPlusTree(
+         Iterator<KeyValuePair<PyramidValue, LinkedList<E>>> iter,
+         int dirNode_D, int leafNode_D, int blockSize, int dim,
+         StorageManager s, int elementByteSize) {
+      this(dirNode_D, leafNode_D, blockSize, dim, s, elementByteSize);
+      this.bulkLoad(iter);
+   }
+
+   public PyramidDoubleBPlusTree(
+         Iterator<KeyValuePair<PyramidValue, LinkedList<E>>> iter,
+         int blockSize, int dim, StorageManager s, int elementByteSize) {
+      this(blockSize, dim, s, elementByteSize);
+      this.bulkLoad(iter);
+   }
+
+   public PyramidDoubleBPlusTree(int dirNode_D, int leafNode_D,
+                                 int blockSize, int dim, StorageManager s,
+                                 int elementByteSize) {
+      super(dirNode_D, leafNode_D, s);
+      this.elementByteSize = elementByteSize;
+      this.dim = dim;
+      this.blockSize = blockSize;
+   }
+
+   public PyramidDoubleBPlusTree(int blockSize, int dim, StorageManager s,
+                                 int elementByteSize) {
+      this(PyramidBPlusTree.calcDirNodeSize(blockSize) / 2, PyramidBPlusTree
+                  .calcLeafNodeSize(blockSize, dim, elementByteSize) / 2,
+            blockSize, dim, s, elementByteSize);
+   }
+
+   /**
+    * Makes bulk loading available to the indices of this package.
+    */
+   @Override
+   protected void bulkLoad(
+         Iterator<KeyValuePair<PyramidValue, LinkedList<E>>> elems) {
+      super.bulkLoad(elems);
+   }
+
+   /**
+    * A chunk fills a block with the references to the objects and their key
+    * elements.
+    */
+   @Override
+   protected int getChunkCapacity() {
+      return Math.max(1, (this.blockSize - IOUtils.referenceByteSize())
+            / (this.elementByteSize + IOUtils.referenceByteSize()));
+   }
+
+   @Override
+   protected int getChunkByteSize(LinkedList<E> values) {
+      return this.blockSize;
+   }
+
+   @Override
+   protected double toDouble(PyramidValue key) {
+      return key.doubleValue();
+   }
+
+   @Override
+   protected PyramidValue toKey(double value) {
+      return PyramidValue.valueOf(value);
+   }
+
+   @Override
+   protected int getValuesByteSize(LinkedList<E> values) {
+      if (values.isEmpty()) {
+         throw new IllegalStateException("entry size is 0.");
+      }
+      /*
+       * a reference to the stored object and its key element or to the
+       * blocks of a list of elements with the same key
+       */
+      if (values.size() == 1) {
+         return IOUtils.referenceByteSize() + this.elementByteSize;
+      }
+      int listBlockSpace = this.blockSize - IOUtils.referenceByteSize();
+      int spaceNeeded = values.size()
+            * (this.elementByteSize + IOUtils.referenceByteSize());
+      return IOUtils.referenceByteSize()
+            + ((spaceNeeded + listBlockSpace - 1) / listBlockSpace)
+            * this.blockSize;
+   }
+}
@@ -0,0 +1,186 @@
+package de.mmenning.db.index.pyramid;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDPointKey;
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.bplustree.BPlusTreeNodeCodec;
+import de.mmenning.db.storage.ObjectReference;
+
+/**
+ * Encodes the nodes of a PyramidBPlusTree with exactly the sizes
+ * PyramidBPlusTree assumes. Keys are written as the double of the
+ * PyramidValue. A single element of a leaf entry is written as the id of its
+ * object followed by its key element. Several elements with the same
+ * PyramidValue are written as their negative count followed by blocks, which
+ * hold the ids and key elements of all elements.
+ *
+ * @param <E> the type of the indexed elements
+ */
+public abstract class PyramidNodeCodec<E> extends
+      BPlusTreeNodeCodec<PyramidValue, E> {
+
+   /**
+    * @param blockSize block size of the tree
+    * @param dim       dimension of the indexed points
+    * @return codec for a PyramidBPlusTree of NDPointKeys
+    */
+   public static PyramidNodeCodec<NDPointKey> forPointKeys(int blockSize,
+                                                           final int dim) {
+      return new PyramidNodeCodec<NDPointKey>(blockSize, dim * 8) {
+         @Override
+         protected ObjectReference getObject(NDPointKey e) {
+            return e.getObject();
+         }
+
+         @Override
+         protected void encodeElement(NDPointKey e, ByteBuffer dst) {
+            for (int i = 0; i < dim; i++) {
+               dst.putDouble(e.getNDKey().getValue(i));
+            }
+         }
+
+         @Override
+         protected NDPointKey decodeElement(ObjectReference object,
+                                            ByteBuffer src) {
+            return new NDPointKey(object, new NDPoint(getDoubles(dim, src)));
+         }
+      };
+   }
+
+   /**
+    * @param blockSize block size of the tree
+    * @param dim       dimension of the indexed rectangles
+    * @return codec for a PyramidBPlusTree of NDRectangleKeys
+    */
+   public static PyramidNodeCodec<NDRectangleKey> forRectangleKeys(
+         int blockSize, final int dim) {
+      return new PyramidNodeCodec<NDRectangleKey>(blockSize, dim * 16) {
+         @Override
+         protected ObjectReference getObject(NDRectangleKey e) {
+            return e.getObject();
+         }
+
+         @Override
+         protected void encodeElement(NDRectangleKey e, ByteBuffer dst) {
+            for (int i = 0; i < dim; i++) {
+               dst.putDouble(e.getNDKey().getBegin().getValue(i));
+            }
+            for (int i = 0; i < dim; i++) {
+               dst.putDouble(e.getNDKey().getEnd().getValue(i));
+            }
+         }
+
+         @Override
+         protected NDRectangleKey decodeElement(ObjectReference object,
+                                                ByteBuffer src) {
+            NDPoint begin = new NDPoint(getDoubles(dim, src));
+            NDPoint end = new NDPoint(getDoubles(dim, src));
+            return new NDRectangleKey(object, new NDRectangle(begin, end));
+         }
+      };
+   }
+
+   private final int blockSize;
+
+   private final int elementByteSize;
+
+   /**
+    * @param blockSize       block size of the tree
+    * @param elementByteSize bytes of an encoded key element
+    */
+   protected PyramidNodeCodec(int blockSize, int elementByteSize) {
+      super(null);
+      this.blockSize = blockSize;
+      this.elementByteSize = elementByteSize;
+   }
+
+   /**
+    * @return reference on the object of <code>e</code>
+    */
+   protected abstract ObjectReference getObject(E e);
+
+   /**
+    * writes the key element of <code>e</code> in elementByteSize bytes
+    */
+   protected abstract void encodeElement(E e, ByteBuffer dst);
+
+   protected abstract E decodeElement(ObjectReference object, ByteBuffer src);
+
+   @Override
+   protected int getKeyByteSize() {
+      return 8;
+   }
+
+   @Override
+   protected void encodeKey(PyramidValue key, ByteBuffer dst) {
+      dst.putDouble(key.doubleValue());
+   }
+
+   @Override
+   protected PyramidValue decodeKey(ByteBuffer src) {
+      double value = src.getDouble();
+      int pyramid = (int) value;
+      return new PyramidValue(pyramid, value - pyramid);
+   }
+
+   /**
+    * @return bytes of the blocks holding <code>count</code> elements
+    */
+   private int getBlocksByteSize(int count) {
+      int listBlockSpace = this.blockSize - REFERENCE_SIZE;
+      int spaceNeeded = count * (this.elementByteSize + REFERENCE_SIZE);
+      return ((spaceNeeded + listBlockSpace - 1) / listBlockSpace)
+            * this.blockSize;
+   }
+
+   @Override
+   protected int getValuesByteSize(LinkedList<E> values) {
+      if (values.size() == 1) {
+         return REFERENCE_SIZE + this.elementByteSize;
+      } else {
+         return REFERENCE_SIZE + this.getBlocksByteSize(values.size());
+      }
+   }
+
+   @Override
+   protected void encodeValues(LinkedList<E> values, ByteBuffer dst) {
+      if (values.isEmpty()) {
+         throw new IllegalStateException("entry size is 0.");
+      }
+      if (values.size() == 1) {
+         E e = values.getFirst();
+         putReference(this.getObject(e), dst);
+         this.encodeElement(e, dst);
+      } else {
+         dst.putLong(-values.size());
+         int end = dst.position() + this.getBlocksByteSize(values.size());
+         for (E e : values) {
+            putReference(this.getObject(e), dst);
+            this.encodeElement(e, dst);
+         }
+         dst.position(end);
+      }
+   }
+
+   @Override
+   protected LinkedList<E> decodeValues(ByteBuffer src) {
+      LinkedList<E> values = new LinkedList<>();
+      long id = src.getLong();
+      if (id >= 0) {
+         values.add(this.decodeElement(toReference(id, Object.class), src));
+      } else {
+         int count = (int) -id;
+         int end = src.position() + this.getBlocksByteSize(count);
+         for (int i = 0; i < count; i++) {
+            values.add(this.decodeElement(toReference(src.getLong(),
+                  Object.class), src));
+         }
+         src.position(end);
+      }
+      return values;
+   }
+}
@@ -1,30 +1,64 @@
 package de.mmenning.db.index.pyramid;
 
 import de.mmenning.db.index.*;
-import de.mmenning.db.index.bplustree.BPlusTree;
+import de.mmenning.db.index.bplustree.KeyValuePair;
+import de.mmenning.db.index.bplustree.OrderedIndex;
 import de.mmenning.db.index.bplustree.Query;
+import de.mmenning.db.index.bplustree.RangeQueryTask;
 import de.mmenning.db.storage.DefaultStorage;
 import de.mmenning.db.storage.StorageManager;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
 
 public class PyramidTechnique implements NDPointKeyIndex {
 
-   protected final BPlusTree<PyramidValue, NDPointKey> btree;
+   /**
+    * default number of keys, which are sorted in memory by a bulk load
+    */
+   public static final int DEFAULT_RUN_SIZE = 1 << 20;
+
+   /**
+    * not final, so that subclasses may replace it by a rebuilt tree
+    */
+   protected OrderedIndex<PyramidValue, NDPointKey> btree;
 
    protected final int dim;
 
+   /**
+    * executes the scans of the pyramids in parallel, <code>null</code> if
+    * they are scanned sequentially
+    */
+   private ForkJoinPool queryPool;
+
    public PyramidTechnique(final int dim, final int blockSize) {
       this(dim, blockSize, DefaultStorage.getInstance());
    }
 
    public PyramidTechnique(final int dim, final int blockSize, StorageManager s) {
+      this(dim, blockSize, s, false);
+   }
+
+   /**
+    * @param primitiveKeys whether the PyramidValues are kept as doubles in
+    *                      the nodes of a {@link PyramidDoubleBPlusTree}
+    *                      instead of a {@link PyramidBPlusTree}
+    */
+   public PyramidTechnique(final int dim, final int blockSize,
+                           StorageManager s, boolean primitiveKeys) {
       this.dim = dim;
       /*
 		 * variable size dependent on block size
 		 */
-      this.btree = new PyramidBPlusTree<NDPointKey>(blockSize, dim, s,
-            dim * 8);
+      if (primitiveKeys) {
+         this.btree = new PyramidDoubleBPlusTree<NDPointKey>(blockSize, dim,
+               s, dim * 8);
+      } else {
+         this.btree = new PyramidBPlusTree<NDPointKey>(blockSize, dim, s,
+               dim * 8);
+      }
    }
 
    protected PyramidValue convert(NDPoint point) {
@@ -55,18 +89,24 @@ public class PyramidTechnique implements NDPointKeyIndex {
       return insert;
    }
 
+   /**
+    * Scans the intersected pyramids in parallel if a pool is set.
+    */
    protected final void doQuery(final double[] qmin, final double[] qmax,
-                                final NDRectangle region, final PointQuery q) {
+                                final NDRectangle region, PointQuery q) {
 
       double[] qmincaret = PyramidFunctions.convertToQCaret(qmin);
       double[] qmaxcaret = PyramidFunctions.convertToQCaret(qmax);
 
+      final ForkJoinPool pool = this.queryPool;
+      final PointQuery pq = pool == null ? q : new SynchronizedPointQuery(q);
+
       final Query<PyramidValue, NDPointKey> subQuery = new Query<PyramidValue, NDPointKey>() {
          @Override
          public boolean query(PyramidValue key, LinkedList<NDPointKey> values) {
             for (NDPointKey value : values) {
                if (region.contains(value.getNDKey())) {
-                  if (!q.query(value)) {
+                  if (!pq.query(value)) {
                      return false;
                   }
                }
@@ -75,15 +115,41 @@ public class PyramidTechnique implements NDPointKeyIndex {
          }
       };
 
+      ArrayList<RangeQueryTask<PyramidValue, NDPointKey>> scans = new ArrayList<>();
+
       for (int i = 0; i < 2 * this.dim; i++) {
          if (PyramidFunctions.intersectsPyramid(i, qmincaret, qmaxcaret)) {
             double[] hrange = PyramidFunctions.getHQueryInterval(i, qmin,
                   qmax);
-            this.btree.rangeQuery(new PyramidValue(i,
-                  hrange[PyramidFunctions.HLOW]), new PyramidValue(i,
-                  hrange[PyramidFunctions.HHIGH]), subQuery);
+            PyramidValue begin = new PyramidValue(i,
+                  hrange[PyramidFunctions.HLOW]);
+            PyramidValue end = new PyramidValue(i,
+                  hrange[PyramidFunctions.HHIGH]);
+
+            if (pool != null) {
+               scans.add(new RangeQueryTask<>(this.btree, begin, end,
+                     subQuery));
+            } else if (!this.btree.rangeQuery(begin, end, subQuery)) {
+               return;
+            }
          }
       }
+      if (!scans.isEmpty()) {
+         RangeQueryTask.invokeAll(pool, scans);
+      }
+   }
+
+   /**
+    * Enables parallel queries, which scan every intersected pyramid in a
+    * separate task. The <code>PointQuery</code> is synchronized, so it is
+    * called by one thread at a time, but not in a deterministic order.
+    * Parallel queries require a thread safe StorageManager.
+    *
+    * @param pool pool executing the scans, <code>null</code> disables
+    *             parallel queries
+    */
+   public void setParallelQueries(ForkJoinPool pool) {
+      this.queryPool = pool;
    }
 
    @Override
@@ -96,6 +162,43 @@ public class PyramidTechnique implements NDPointKeyIndex {
 
    }
 
+   /**
+    * @see #bulkLoad(Iterator, int)
+    */
+   public void bulkLoad(Iterator<NDPointKey> keys) {
+      this.bulkLoad(keys, DEFAULT_RUN_SIZE);
+   }
+
+   /**
+    * Bulk loads the unsorted <code>keys</code> into this empty index. Their
+    * PyramidValues are computed in the pool set for parallel queries or else
+    * in the common pool. At most <code>runSize</code> keys are sorted in
+    * memory, more keys are sorted in runs, which are stored in temporary
+    * files and merged. Duplicate keys are loaded once.
+    *
+    * @param runSize maximum number of keys sorted in memory
+    */
+   @SuppressWarnings("unchecked")
+   public void bulkLoad(Iterator<NDPointKey> keys, int runSize) {
+      if (this.size() != 0) {
+         throw new IllegalStateException("index is not empty");
+      }
+      ForkJoinPool pool = this.queryPool != null ? this.queryPool
+            : ForkJoinPool.commonPool();
+      PyramidBulkLoader loader = new PyramidBulkLoader(this, runSize, pool);
+      try {
+         Iterator<KeyValuePair<PyramidValue, LinkedList<NDPointKey>>> sorted = loader
+               .sort(keys);
+         if (this.btree instanceof PyramidDoubleBPlusTree) {
+            ((PyramidDoubleBPlusTree<NDPointKey>) this.btree).bulkLoad(sorted);
+         } else {
+            ((PyramidBPlusTree<NDPointKey>) this.btree).bulkLoad(sorted);
+         }
+      } finally {
+         loader.close();
+      }
+   }
+
    @Override
    public int size() {
       return this.btree.size();
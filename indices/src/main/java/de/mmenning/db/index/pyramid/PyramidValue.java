@@ -19,6 +19,14 @@ public class PyramidValue extends Number implements Comparable<PyramidValue>,
 		this.value = pyramid + height;
 	}
 
+	/**
+	 * @return the PyramidValue, whose double value is <code>value</code>
+	 */
+	static PyramidValue valueOf(double value) {
+		int pyramid = (int) value;
+		return new PyramidValue(pyramid, value - pyramid);
+	}
+
 	public int getPyramid() {
 		return (int) this.value;
 	}
@@ -36,7 +36,7 @@ public class RSTTree extends NDRStar {
 
 		this(blockSize
 				/ (1 + 16 * (spatialDimensions + 2) + IOUtils
-						.referenceByteSize()),0.5, spatialDimensions,
+						.referenceByteSize()), 0.5, spatialDimensions,
 				BasicConstants.getInstance(), s);
 	}
 
@@ -87,12 +87,22 @@ public class RSTTree extends NDRStar {
 
 	@Override
 	public boolean contains(NDRectangleKey b) {
-		return super.contains(formatKey(b));
+		this.lock.readLock().lock();
+		try {
+			return super.contains(formatKey(b));
+		} finally {
+			this.lock.readLock().unlock();
+		}
 	}
 
 	@Override
 	public boolean delete(NDRectangleKey b) {
-		return super.delete(formatKey(b));
+		this.lock.writeLock().lock();
+		try {
+			return super.delete(formatKey(b));
+		} finally {
+			this.lock.writeLock().unlock();
+		}
 
 	}
 
@@ -128,12 +138,63 @@ public class RSTTree extends NDRStar {
 	}
 
 	@Override
-	public synchronized boolean insert(NDRectangleKey b) {
-		return super.insert(this.formatKey(b));
+	public boolean insert(NDRectangleKey b) {
+		// the constants used by formatKey must not change during the insertion
+		this.lock.writeLock().lock();
+		try {
+			return super.insert(this.formatKey(b));
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Updates <code>oldOne</code> to <code>newOne</code> in place, if the new
+	 * key still fits into the bounding box of the leaf of <code>oldOne</code>,
+	 * e.g. when a version is closed by replacing NOW/UC with its end time. The
+	 * entry is then replaced within its leaf and only the bounding boxes on the
+	 * path to the root are adjusted. Otherwise <code>oldOne</code> is deleted
+	 * and <code>newOne</code> is inserted.
+	 */
+	@Override
+	public boolean update(NDRectangleKey oldOne, NDRectangleKey newOne) {
+		this.lock.writeLock().lock();
+		try {
+			NDRectangleKey ok = this.formatKey(oldOne);
+			NDRectangleKey nk = this.formatKey(newOne);
+
+			ArrayList<NodeEntryPair> path = this.createNewPath();
+			int pos = this.findLeaf(path, ok);
+			if (pos == -1) {
+				return false;
+			}
+
+			int last = path.size() - 1;
+			int e = path.get(last).indexInParent();
+			if (e != -1
+					&& !path.get(last - 1).getNode().get(e).getMBBox()
+							.contains(nk.getNDKey())) {
+				return super.delete(ok) && super.insert(nk);
+			}
+
+			Node leaf = path.get(last).getNode();
+			leaf.removeEntry(pos);
+			leaf.addEntry(this.createEntry(nk));
+			this.storeNode(leaf);
+			this.adjustNode(path);
+			return true;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
 	}
 
 	public void setSTConstants(STConstants stConstants) {
-		this.constants = stConstants;
+		this.lock.writeLock().lock();
+		try {
+			this.constants = stConstants;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
 	}
 
 	protected int findLeaf(final ArrayList<NodeEntryPair> path,
@@ -396,6 +457,7 @@ public class RSTTree extends NDRStar {
 	 *            <code>NDRectangleKey</code> which should be formated
 	 * @return formated <code>NDRectangleKey</code>
 	 */
+	@Override
 	protected NDRectangleKey formatKey(NDRectangleKey key) {
 		return new NDRectangleKey(key.getObject(), this.formatRectangle(key
 				.getNDKey()));
@@ -410,6 +472,7 @@ public class RSTTree extends NDRStar {
 	 *            <code>NDRectangle</code> to be converted
 	 * @return the converted Rectangle
 	 */
+	@Override
 	protected NDRectangle formatRectangle(NDRectangle r) {
 		if (r instanceof STRectangle) {
 			return r;
@@ -528,16 +591,51 @@ public class RSTTree extends NDRStar {
 		return left.union(right).volume();
 	}
 
+	/**
+	 * Not supported, since the time dimensions of <code>STRectangle</code>
+	 * elements are not plain coordinates.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             always
+	 */
+	@Override
+	public void setQuantization(int bits) {
+		throw new UnsupportedOperationException(
+				"RSTTree cannot quantize the time dimensions of STRectangles");
+	}
+
+	/**
+	 * Not supported, since a <code>PackedNode</code> keeps plain coordinates
+	 * only and would lose the <code>STRectangle</code> elements.
+	 *
+	 * @throws UnsupportedOperationException
+	 *             always
+	 */
+	@Override
+	public void setPacked(boolean packed) {
+		throw new UnsupportedOperationException(
+				"RSTTree cannot pack the time dimensions of STRectangles");
+	}
+
 	@Override
 	protected int getNodeByteSize(Node n) {
-		int nodeByteSize = (this.getDim() * 16 + IOUtils.referenceByteSize() + 1)
-				* n.getMaxCapacity();
+		int nodeByteSize = (this.getDim() * 16 + IOUtils.referenceByteSize()
+				+ 1 + this.getAggregateByteSize(n.isLeaf())) * n.getMaxCapacity();
 		return nodeByteSize;
 	}
 
 	@Override
 	protected Node readNode(ObjectReference or) {
-		return super.readNode(or);
+		Node n = super.readNode(or);
+		// reattach the constants to nodes decoded by the storage
+		for (int i = 0; i < n.size(); i++) {
+			NDRectangle r = n.get(i).getMBBox();
+			if (r instanceof STRectangle
+					&& ((STRectangle) r).getConstants() == null) {
+				((STRectangle) r).setConstants(this.constants);
+			}
+		}
+		return n;
 	}
 
 }
@@ -0,0 +1,78 @@
+package de.mmenning.db.index.rsttree;
+
+import java.nio.ByteBuffer;
+
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.rtree.AggregateCodec;
+import de.mmenning.db.index.rtree.RTreeNodeCodec;
+
+/**
+ * Encodes the Nodes of a RSTTree. Every slot additionally holds a flag byte,
+ * which marks a valid time ending at NOW. The end value of the valid time is
+ * NaN in that case, so the slot stores the delta of the STRectangle instead.
+ * The delta of other rectangles is not used and decoded as 0.0.
+ * <p>
+ * Decoded STRectangles have no STConstants, the RSTTree sets them when
+ * reading a Node.
+ */
+public class RSTTreeNodeCodec extends RTreeNodeCodec {
+
+	private static final byte STATIC_VT = 0;
+
+	private static final byte NOW_VT = 1;
+
+	public RSTTreeNodeCodec(final int maxCapacity, final int spatialDimensions) {
+		this(maxCapacity, spatialDimensions, null);
+	}
+
+	/**
+	 * @see RTreeNodeCodec#RTreeNodeCodec(int, int, AggregateCodec)
+	 */
+	public RSTTreeNodeCodec(final int maxCapacity,
+			final int spatialDimensions, final AggregateCodec<?> aggregates) {
+		super(maxCapacity, spatialDimensions + 2, aggregates);
+	}
+
+	@Override
+	protected int getRectangleByteSize() {
+		return super.getRectangleByteSize() + 1;
+	}
+
+	@Override
+	protected void encodeRectangle(final NDRectangle r, final ByteBuffer dst) {
+		final STRectangle st = (STRectangle) r;
+		for (int i = 0; i < this.dim; i++) {
+			dst.putDouble(st.getBegin().getValue(i));
+		}
+		for (int i = 0; i < this.dim - 1; i++) {
+			dst.putDouble(st.getEnd().getValue(i));
+		}
+		if (st.isNow()) {
+			dst.putDouble(st.getDelta());
+			dst.put(NOW_VT);
+		} else {
+			dst.putDouble(st.getEnd().getValue(this.dim - 1));
+			dst.put(STATIC_VT);
+		}
+	}
+
+	@Override
+	protected NDRectangle decodeRectangle(final ByteBuffer src) {
+		final double[] begin = new double[this.dim];
+		final double[] end = new double[this.dim];
+		for (int i = 0; i < this.dim; i++) {
+			begin[i] = src.getDouble();
+		}
+		for (int i = 0; i < this.dim; i++) {
+			end[i] = src.getDouble();
+		}
+		double delta = 0.0;
+		if (src.get() == NOW_VT) {
+			delta = end[this.dim - 1];
+			end[this.dim - 1] = STRectangle.NOW;
+		}
+		return new STRectangle(new NDRectangle(new NDPoint(begin), new NDPoint(
+				end)), delta, null);
+	}
+}
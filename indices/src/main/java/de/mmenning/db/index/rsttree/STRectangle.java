@@ -10,7 +10,11 @@ public class STRectangle extends NDRectangle {
 
 	private final double delta;
 
-	private STConstants constants;
+	/**
+	 * not written with the rectangle, the owning RSTTree sets its constants
+	 * again when reading a node
+	 */
+	private transient STConstants constants;
 
 	public static final int STATIC = 0;
 
@@ -0,0 +1,33 @@
+package de.mmenning.db.index.rtptree;
+
+import de.mmenning.db.index.pyramid.PyramidValue;
+
+/**
+ * Range of PyramidValues, which has to be scanned for one query of a batch.
+ */
+class QueryRange {
+   private final int query;
+   private final PyramidValue begin;
+   private final PyramidValue end;
+
+   QueryRange(int query, PyramidValue begin, PyramidValue end) {
+      this.query = query;
+      this.begin = begin;
+      this.end = end;
+   }
+
+   /**
+    * @return the index of the query in its batch
+    */
+   int getQuery() {
+      return this.query;
+   }
+
+   PyramidValue getBegin() {
+      return this.begin;
+   }
+
+   PyramidValue getEnd() {
+      return this.end;
+   }
+}
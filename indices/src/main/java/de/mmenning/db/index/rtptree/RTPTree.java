@@ -2,56 +2,141 @@ package de.mmenning.db.index.rtptree;
 
 import de.mmenning.db.index.*;
 import de.mmenning.db.index.bplustree.KeyValuePair;
+import de.mmenning.db.index.bplustree.OrderedIndex;
 import de.mmenning.db.index.bplustree.Query;
+import de.mmenning.db.index.bplustree.RangeQueryTask;
 import de.mmenning.db.index.pyramid.ExtendedPyramidFunctions;
+import de.mmenning.db.index.pyramid.ExtendedPyramidTechnique;
 import de.mmenning.db.index.pyramid.PyramidBPlusTree;
+import de.mmenning.db.index.pyramid.PyramidDoubleBPlusTree;
 import de.mmenning.db.index.pyramid.PyramidFunctions;
 import de.mmenning.db.index.pyramid.PyramidValue;
 import de.mmenning.db.storage.StorageManager;
+import de.mmenning.util.math.P2Quantile;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /*
- * TODO Median will not dynamically update
+ * The median is estimated on insert, but only adapted by adaptMedian() or, if
+ * adaptive medians are enabled, as soon as it differs too much from the
+ * actual one
  */
 public class RTPTree implements NDRectangleKeyIndex {
 
    private double[] median;
 
+   /**
+    * estimated median of the begin and end points of the inserted
+    * rectangles, the ends of current rectangles are not observed
+    */
+   private final P2Quantile[] estimates;
+
+   /**
+    * maximum difference between the estimated and the actual median, 0 if
+    * the median is not adapted on insert
+    */
+   private double threshold;
+
+   /**
+    * capacity of the nodes, -1 if they fill a block
+    */
+   private final int nodeSize_D;
+
+   private final boolean primitiveKeys;
+
    protected final int dim;
 
    protected final int blockSize;
 
-   protected PyramidBPlusTree<NDRectangleKey> btree;
+   protected OrderedIndex<PyramidValue, NDRectangleKey> btree;
 
    protected final NowGen now;
 
    private int mod;
 
+   /**
+    * executes the scans of the pyramids in parallel, <code>null</code> if
+    * they are scanned sequentially
+    */
+   private ForkJoinPool queryPool;
+
    public RTPTree(final int dim, final int nodeSize_D, final int blockSize,
                   final StorageManager s, NowGen now) {
-      this.dim = dim;
-      this.blockSize = blockSize;
-      this.btree = new PyramidBPlusTree<NDRectangleKey>(nodeSize_D,
-            nodeSize_D, blockSize, this.dim * 2, s, this.dim * 16);
-      this.median = new double[this.dim * 2];
-      Arrays.fill(this.median, 0.5);
-      this.now = now;
-      this.mod = 0;
+      this(dim, nodeSize_D, blockSize, s, now, false);
    }
 
    public RTPTree(final int dim, final int blockSize, final StorageManager s,
                   NowGen now) {
+      this(dim, blockSize, s, now, false);
+   }
+
+   /**
+    * @param primitiveKeys whether the PyramidValues are kept as doubles in
+    *                      the nodes of a {@link PyramidDoubleBPlusTree}
+    *                      instead of a {@link PyramidBPlusTree}
+    */
+   public RTPTree(final int dim, final int blockSize, final StorageManager s,
+                  NowGen now, boolean primitiveKeys) {
+      this(dim, -1, blockSize, s, now, primitiveKeys);
+   }
+
+   private RTPTree(final int dim, final int nodeSize_D, final int blockSize,
+                   final StorageManager s, NowGen now, boolean primitiveKeys) {
       this.dim = dim;
       this.blockSize = blockSize;
-      this.btree = new PyramidBPlusTree<NDRectangleKey>(blockSize,
-            this.dim * 2, s, this.dim * 16);
+      this.nodeSize_D = nodeSize_D;
+      this.primitiveKeys = primitiveKeys;
+      this.btree = this.createBTree(s);
       this.median = new double[this.dim * 2];
       Arrays.fill(this.median, 0.5);
+      this.estimates = new P2Quantile[this.dim * 2];
+      for (int i = 0; i < this.estimates.length; i++) {
+         this.estimates[i] = new P2Quantile();
+      }
       this.now = now;
       this.mod = 0;
    }
 
+   private OrderedIndex<PyramidValue, NDRectangleKey> createBTree(
+         StorageManager s) {
+      return this.createBTree(s, null);
+   }
+
+   /**
+    * @param sorted elements sorted and grouped by their PyramidValues, which
+    *               are bulk loaded into the new B+-tree, <code>null</code>
+    *               for an empty one
+    */
+   private OrderedIndex<PyramidValue, NDRectangleKey> createBTree(
+         StorageManager s,
+         Iterator<KeyValuePair<PyramidValue, LinkedList<NDRectangleKey>>> sorted) {
+      if (sorted != null) {
+         if (this.nodeSize_D != -1) {
+            return new PyramidBPlusTree<NDRectangleKey>(sorted,
+                  this.nodeSize_D, this.nodeSize_D, this.blockSize,
+                  this.dim * 2, s, this.dim * 16);
+         } else if (this.primitiveKeys) {
+            return new PyramidDoubleBPlusTree<NDRectangleKey>(sorted,
+                  this.blockSize, this.dim * 2, s, this.dim * 16);
+         } else {
+            return new PyramidBPlusTree<NDRectangleKey>(sorted,
+                  this.blockSize, this.dim * 2, s, this.dim * 16);
+         }
+      }
+      if (this.nodeSize_D != -1) {
+         return new PyramidBPlusTree<NDRectangleKey>(this.nodeSize_D,
+               this.nodeSize_D, this.blockSize, this.dim * 2, s,
+               this.dim * 16);
+      } else if (this.primitiveKeys) {
+         return new PyramidDoubleBPlusTree<NDRectangleKey>(this.blockSize,
+               this.dim * 2, s, this.dim * 16);
+      } else {
+         return new PyramidBPlusTree<NDRectangleKey>(this.blockSize,
+               this.dim * 2, s, this.dim * 16);
+      }
+   }
+
    protected double[] convert(NDRectangle rectangle) {
       double[] point = new double[this.dim * 2];
       for (int dim = 0; dim < rectangle.getDim(); dim++) {
@@ -95,7 +180,7 @@ public class RTPTree implements NDRectangleKeyIndex {
    }
 
    @Override
-   public void getContained(final NDRectangle region, final RectangleQuery q) {
+   public void getContained(final NDRectangle region, RectangleQuery q) {
 
       double[] minBegin = new double[this.dim];
       double[] minEnd = new double[this.dim];
@@ -134,6 +219,9 @@ public class RTPTree implements NDRectangleKeyIndex {
       final NDRectangle maxRegion = new NDRectangle(new NDPoint(maxBegin),
             new NDPoint(maxEnd));
 
+      final RectangleQuery rq = this.queryPool == null ? q
+            : new SynchronizedRectangleQuery(q);
+
       doDoubleQuery(minRegion, maxRegion,
             new Query<PyramidValue, NDRectangleKey>() {
                @Override
@@ -142,7 +230,7 @@ public class RTPTree implements NDRectangleKeyIndex {
                   for (NDRectangleKey value : values) {
                      if (STFunctions.contains(region, value.getNDKey(),
                            now)) {
-                        if (!q.query(value)) {
+                        if (!rq.query(value)) {
                            return false;
                         }
                      }
@@ -153,7 +241,117 @@ public class RTPTree implements NDRectangleKeyIndex {
    }
 
    @Override
-   public void getIntersected(final NDRectangle region, final RectangleQuery q) {
+   public void getIntersected(final NDRectangle region, RectangleQuery q) {
+
+      final NDRectangle[] regions = this.getIntersectedRegions(region);
+
+      final RectangleQuery rq = this.queryPool == null ? q
+            : new SynchronizedRectangleQuery(q);
+
+      doDoubleQuery(regions[0], regions[1],
+            new Query<PyramidValue, NDRectangleKey>() {
+               @Override
+               public boolean query(PyramidValue key,
+                                    LinkedList<NDRectangleKey> values) {
+                  for (NDRectangleKey value : values) {
+                     if (STFunctions.intersects(region,
+                           value.getNDKey(), now)) {
+                        if (!rq.query(value)) {
+                           return false;
+                        }
+                     }
+                  }
+                  return true;
+               }
+            });
+   }
+
+   /**
+    * Answers several intersection queries by one scan of the B+-tree. The
+    * key ranges of all queries are sorted and overlapping ranges are
+    * merged, so every leaf is read at most once. Every element is passed to
+    * the queries, whose ranges contain its key and whose regions it
+    * intersects. A query, which returned <code>false</code>, is not called
+    * again.
+    *
+    * @param regions query regions
+    * @param queries <code>queries.get(i)</code> receives the elements
+    *                intersecting <code>regions.get(i)</code>
+    */
+   public void getIntersected(List<? extends NDRectangle> regions,
+                              List<? extends RectangleQuery> queries) {
+      if (regions.size() != queries.size()) {
+         throw new IllegalArgumentException(
+               "number of regions and queries differ");
+      }
+      final NDRectangle[] r = regions.toArray(new NDRectangle[regions.size()]);
+      final RectangleQuery[] q = queries.toArray(new RectangleQuery[queries
+            .size()]);
+      final boolean[] stopped = new boolean[r.length];
+
+      final ArrayList<QueryRange> ranges = new ArrayList<>();
+      for (int i = 0; i < r.length; i++) {
+         final NDRectangle[] minMax = this.getIntersectedRegions(r[i]);
+         final double[][] pq = this.toPyramidQuery(minMax[0], minMax[1]);
+         for (PyramidValue[] range : this.getPyramidRanges(pq[0], pq[1])) {
+            ranges.add(new QueryRange(i, range[0], range[1]));
+         }
+      }
+      Collections.sort(ranges, new Comparator<QueryRange>() {
+         @Override
+         public int compare(QueryRange r1, QueryRange r2) {
+            return r1.getBegin().compareTo(r2.getBegin());
+         }
+      });
+
+      int from = 0;
+      while (from < ranges.size()) {
+         PyramidValue end = ranges.get(from).getEnd();
+         int to = from + 1;
+         while (to < ranges.size()
+               && ranges.get(to).getBegin().compareTo(end) <= 0) {
+            if (ranges.get(to).getEnd().compareTo(end) > 0) {
+               end = ranges.get(to).getEnd();
+            }
+            to++;
+         }
+         final List<QueryRange> group = ranges.subList(from, to);
+
+         this.btree.rangeQuery(group.get(0).getBegin(), end,
+               new Query<PyramidValue, NDRectangleKey>() {
+                  @Override
+                  public boolean query(PyramidValue key,
+                                       LinkedList<NDRectangleKey> values) {
+                     boolean running = false;
+                     for (QueryRange range : group) {
+                        final int i = range.getQuery();
+                        if (stopped[i] || key.compareTo(range.getEnd()) > 0) {
+                           continue;
+                        }
+                        if (key.compareTo(range.getBegin()) >= 0) {
+                           for (NDRectangleKey value : values) {
+                              if (STFunctions.intersects(r[i],
+                                    value.getNDKey(), now)
+                                    && !q[i].query(value)) {
+                                 stopped[i] = true;
+                                 break;
+                              }
+                           }
+                        }
+                        running |= !stopped[i];
+                     }
+                     return running;
+                  }
+               });
+         from = to;
+      }
+   }
+
+   /**
+    * @return the regions of the begin and of the end points of the
+    * rectangles, which may intersect <code>region</code>
+    */
+   private NDRectangle[] getIntersectedRegions(final NDRectangle region) {
 
       double[] minBegin = new double[this.dim];
       double[] minEnd = new double[this.dim];
@@ -196,28 +394,25 @@ public class RTPTree implements NDRectangleKeyIndex {
       final NDRectangle maxRegion = new NDRectangle(new NDPoint(maxBegin),
             new NDPoint(maxEnd));
 
-      doDoubleQuery(minRegion, maxRegion,
-            new Query<PyramidValue, NDRectangleKey>() {
-               @Override
-               public boolean query(PyramidValue key,
-                                    LinkedList<NDRectangleKey> values) {
-                  for (NDRectangleKey value : values) {
-                     if (STFunctions.intersects(region,
-                           value.getNDKey(), now)) {
-                        if (!q.query(value)) {
-                           return false;
-                        }
-                     }
-                  }
-                  return true;
-               }
-            });
+      return new NDRectangle[]{minRegion, maxRegion};
    }
 
    private void doDoubleQuery(final NDRectangle minQuery,
                               final NDRectangle maxQuery,
                               final Query<PyramidValue, NDRectangleKey> q) {
 
+      final double[][] pq = this.toPyramidQuery(minQuery, maxQuery);
+
+      performDoubleQuery(pq[0], pq[1], q);
+   }
+
+   /**
+    * @return the scaled lower and upper bounds of the query in the space of
+    * the begin and end points
+    */
+   private double[][] toPyramidQuery(final NDRectangle minQuery,
+                                     final NDRectangle maxQuery) {
+
       double[] qmin = new double[this.dim * 2];
       double[] qmax = new double[this.dim * 2];
 
@@ -231,33 +426,86 @@ public class RTPTree implements NDRectangleKeyIndex {
       qmin = ExtendedPyramidFunctions.scaleTi(qmin, this.median);
       qmax = ExtendedPyramidFunctions.scaleTi(qmax, this.median);
 
-      performDoubleQuery(qmin, qmax, q);
+      return new double[][]{qmin, qmax};
    }
 
+   /**
+    * Scans the intersected pyramids in parallel if a pool is set.
+    */
    private void performDoubleQuery(final double[] qmin, final double[] qmax,
                                    final Query<PyramidValue, NDRectangleKey> q) {
 
+      final ForkJoinPool pool = this.queryPool;
+      ArrayList<RangeQueryTask<PyramidValue, NDRectangleKey>> scans = new ArrayList<>();
+
+      for (PyramidValue[] range : this.getPyramidRanges(qmin, qmax)) {
+         if (pool != null) {
+            scans.add(new RangeQueryTask<>(this.btree, range[0], range[1], q));
+         } else if (!this.btree.rangeQuery(range[0], range[1], q)) {
+            return;
+         }
+      }
+      if (!scans.isEmpty()) {
+         RangeQueryTask.invokeAll(pool, scans);
+      }
+   }
+
+   /**
+    * @return begin and end of the key range of every pyramid intersected by
+    * the query
+    */
+   private ArrayList<PyramidValue[]> getPyramidRanges(final double[] qmin,
+                                                     final double[] qmax) {
+
       double[] qmincaret = PyramidFunctions.convertToQCaret(qmin);
       double[] qmaxcaret = PyramidFunctions.convertToQCaret(qmax);
 
+      ArrayList<PyramidValue[]> ranges = new ArrayList<>();
+
       for (int i = 0; i < 2 * this.dim * 2; i++) {
          if (PyramidFunctions.intersectsPyramid(i, qmincaret, qmaxcaret)) {
 
             double[] hrange = PyramidFunctions.getHQueryInterval(i, qmin,
                   qmax);
-            this.btree.rangeQuery(new PyramidValue(i,
-                  hrange[PyramidFunctions.HLOW]), new PyramidValue(i,
-                  hrange[PyramidFunctions.HHIGH]), q);
+            ranges.add(new PyramidValue[]{
+                  new PyramidValue(i, hrange[PyramidFunctions.HLOW]),
+                  new PyramidValue(i, hrange[PyramidFunctions.HHIGH])});
          }
       }
+      return ranges;
+   }
+
+   /**
+    * Enables parallel queries, which scan every intersected pyramid in a
+    * separate task. The <code>RectangleQuery</code> is synchronized, so it is
+    * called by one thread at a time, but not in a deterministic order.
+    * Parallel queries require a thread safe StorageManager.
+    *
+    * @param pool pool executing the scans, <code>null</code> disables
+    *             parallel queries
+    */
+   public void setParallelQueries(ForkJoinPool pool) {
+      this.queryPool = pool;
    }
 
    @Override
    public boolean insert(NDRectangleKey key) {
       double[] point = convert(key.getNDKey());
-      point = ExtendedPyramidFunctions.scaleTi(point, this.median);
-      PyramidValue p = PyramidFunctions.convertToPyramidValue(point);
+      double[] scaled = ExtendedPyramidFunctions.scaleTi(point, this.median);
+      PyramidValue p = PyramidFunctions.convertToPyramidValue(scaled);
       boolean insert = this.btree.insert(p, key);
+      if (insert) {
+         for (int dim = 0; dim < point.length; dim++) {
+            if (dim < this.dim
+                  || !STFunctions.isCurrent(key.getNDKey().getEnd()
+                  .getValue(dim - this.dim))) {
+               this.estimates[dim].add(point[dim]);
+            }
+         }
+         if (this.threshold > 0 && this.isSkewed()) {
+            this.adaptMedian();
+         }
+      }
       return insert;
    }
 
@@ -283,6 +531,50 @@ public class RTPTree implements NDRectangleKeyIndex {
       this.median = median;
    }
 
+   /**
+    * Enables adaptive medians. After an insert, the median is adapted by
+    * {@link #adaptMedian()}, if the estimated median differs from the actual
+    * median by more than <code>threshold</code> in any dimension.
+    *
+    * @param threshold maximum difference between the estimated and the
+    *                  actual median, 0 disables adaptive medians
+    */
+   public void setAdaptiveMedian(double threshold) {
+      if (!(threshold >= 0)) {
+         throw new IllegalArgumentException("threshold must not be negative");
+      }
+      this.threshold = threshold;
+   }
+
+   private boolean isSkewed() {
+      double[] estimated = this.getEstimatedMedian();
+      for (int dim = 0; dim < estimated.length; dim++) {
+         if (Math.abs(estimated[dim] - this.median[dim]) > this.threshold) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   public double getMedian(int dim) {
+      return this.median[dim];
+   }
+
+   /**
+    * @return the estimated median of the begin and of the end points of the
+    * inserted rectangles, the actual median in dimensions with less than
+    * {@link ExtendedPyramidTechnique#MIN_OBSERVATIONS} observations
+    */
+   public double[] getEstimatedMedian() {
+      double[] estimated = this.median.clone();
+      for (int dim = 0; dim < estimated.length; dim++) {
+         if (this.estimates[dim].getCount() >= ExtendedPyramidTechnique.MIN_OBSERVATIONS) {
+            estimated[dim] = this.estimates[dim].getValue();
+         }
+      }
+      return estimated;
+   }
+
    public Set<NDRectangleKey> getAll() {
       Set<NDRectangleKey> all = new HashSet<NDRectangleKey>();
 
@@ -300,9 +592,58 @@ public class RTPTree implements NDRectangleKeyIndex {
     */
    public void optimize() {
 
-      this.btree = new PyramidBPlusTree<NDRectangleKey>(
-            (PyramidBPlusTree<NDRectangleKey>) this.btree);
+      if (this.btree instanceof PyramidDoubleBPlusTree) {
+         this.btree = new PyramidDoubleBPlusTree<NDRectangleKey>(
+               (PyramidDoubleBPlusTree<NDRectangleKey>) this.btree);
+      } else {
+         this.btree = new PyramidBPlusTree<NDRectangleKey>(
+               (PyramidBPlusTree<NDRectangleKey>) this.btree);
+      }
+
+   }
+
+   /**
+    * Replaces the median by the estimated one. The rectangles are sorted by
+    * their PyramidValues with the new median and bulk loaded into a new
+    * B+-tree. The nodes of the old B+-tree are deleted.
+    */
+   public void adaptMedian() {
+      this.median = this.getEstimatedMedian();
+      ArrayList<KeyValuePair<PyramidValue, NDRectangleKey>> converted = new ArrayList<>(
+            this.btree.size());
+      for (KeyValuePair<PyramidValue, LinkedList<NDRectangleKey>> kv : this.btree) {
+         for (NDRectangleKey key : kv.getValue()) {
+            double[] point = ExtendedPyramidFunctions.scaleTi(
+                  convert(key.getNDKey()), this.median);
+            converted.add(new KeyValuePair<>(
+                  PyramidFunctions.convertToPyramidValue(point), key));
+         }
+      }
+      Collections.sort(converted,
+            new Comparator<KeyValuePair<PyramidValue, NDRectangleKey>>() {
+               @Override
+               public int compare(KeyValuePair<PyramidValue, NDRectangleKey> o1,
+                                  KeyValuePair<PyramidValue, NDRectangleKey> o2) {
+                  return o1.getKey().compareTo(o2.getKey());
+               }
+            });
+
+      ArrayList<KeyValuePair<PyramidValue, LinkedList<NDRectangleKey>>> sorted = new ArrayList<>();
+      for (KeyValuePair<PyramidValue, NDRectangleKey> kv : converted) {
+         if (sorted.isEmpty()
+               || sorted.get(sorted.size() - 1).getKey()
+               .compareTo(kv.getKey()) != 0) {
+            sorted.add(new KeyValuePair<PyramidValue, LinkedList<NDRectangleKey>>(
+                  kv.getKey(), new LinkedList<NDRectangleKey>()));
+         }
+         sorted.get(sorted.size() - 1).getValue().add(kv.getValue());
+      }
+      converted = null;
 
+      OrderedIndex<PyramidValue, NDRectangleKey> old = this.btree;
+      this.btree = this.createBTree(old.getStorageManager(),
+            sorted.iterator());
+      old.clear();
    }
 
    @Override
@@ -0,0 +1,30 @@
+package de.mmenning.db.index.rtree;
+
+import de.mmenning.db.index.NDRectangleKey;
+
+/**
+ * User defined aggregate, which a NDRTree maintains for every directory
+ * Entry next to the number of elements below it. The value of a directory
+ * Entry is the combination of the values of the entries in its child Node,
+ * so <code>combine</code> must be associative and commutative, e.g. a sum,
+ * minimum or maximum.
+ * 
+ * @param <A>
+ *            type of the aggregated values
+ * @see NDRTree#setAggregate(Aggregate)
+ */
+public interface Aggregate<A> {
+
+	/**
+	 * @param k
+	 *            element of the tree
+	 * @return the value of a single element
+	 */
+	A value(NDRectangleKey k);
+
+	/**
+	 * @return the value of the union of two sets of elements with the values
+	 *         <code>a1</code> and <code>a2</code>
+	 */
+	A combine(A a1, A a2);
+}
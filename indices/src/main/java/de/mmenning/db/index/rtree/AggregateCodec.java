@@ -0,0 +1,26 @@
+package de.mmenning.db.index.rtree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the values of an {@link Aggregate} in a fixed number of bytes, so
+ * that a {@link RTreeNodeCodec} can store them next to the entries.
+ * 
+ * @param <A>
+ *            type of the aggregated values
+ * @see NDRTree#setAggregate(Aggregate, AggregateCodec)
+ */
+public interface AggregateCodec<A> {
+
+	/**
+	 * @return bytes of an encoded value
+	 */
+	int getByteSize();
+
+	/**
+	 * Writes exactly {@link #getByteSize()} bytes.
+	 */
+	void encode(A value, ByteBuffer dst);
+
+	A decode(ByteBuffer src);
+}
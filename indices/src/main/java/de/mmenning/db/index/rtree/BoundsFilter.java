@@ -0,0 +1,134 @@
+package de.mmenning.db.index.rtree;
+
+/**
+ * Filters the entries of a Node against a query rectangle, reading their
+ * coordinates from {@link Node#getBounds()}. The implementation is chosen
+ * once at startup by the system property
+ * <code>de.mmenning.db.index.rtree.BoundsFilter</code>:
+ * <ul>
+ * <li><code>scalar</code> (default) tests entry by entry and stops at the
+ * first dimension, which separates an entry from the query.</li>
+ * <li><code>blocked</code> evaluates all dimensions of an entry without
+ * branches, four at a time. The JIT compiles this to straight-line code and
+ * may use SIMD instructions, which pays off for many dimensions and
+ * selective queries.</li>
+ * </ul>
+ * Both compare like {@link de.mmenning.db.index.NDRectangle#intersects} and
+ * {@link de.mmenning.db.index.NDRectangle#contains}, including NaN values.
+ */
+abstract class BoundsFilter {
+
+	static final String PROPERTY = BoundsFilter.class.getName();
+
+	static final BoundsFilter INSTANCE = create(System.getProperty(PROPERTY,
+			"scalar"));
+
+	static BoundsFilter create(String name) {
+		if ("scalar".equals(name)) {
+			return new Scalar();
+		} else if ("blocked".equals(name)) {
+			return new Blocked();
+		} else {
+			throw new IllegalArgumentException("unknown " + PROPERTY + ": "
+					+ name);
+		}
+	}
+
+	/**
+	 * Writes the indices of all qualifying entries in ascending order to
+	 * <code>result</code>.
+	 * 
+	 * @param low
+	 *            begin of the query rectangle
+	 * @param high
+	 *            end of the query rectangle
+	 * @param bounds
+	 *            coordinates of the entries as in {@link Node#getBounds()}
+	 * @param count
+	 *            number of entries in <code>bounds</code>
+	 * @param contained
+	 *            whether the entries must be contained in the query rectangle
+	 *            or only intersect it
+	 * @param result
+	 *            receives the indices, must hold <code>count</code> values
+	 * @return number of qualifying entries
+	 */
+	abstract int filter(double[] low, double[] high, double[] bounds,
+			int count, boolean contained, int[] result);
+
+	static final class Scalar extends BoundsFilter {
+
+		@Override
+		int filter(double[] low, double[] high, double[] bounds, int count,
+				boolean contained, int[] result) {
+			final int dim = low.length;
+			int hits = 0;
+			for (int i = 0, offset = 0; i < count; i++, offset += 2 * dim) {
+				boolean match = true;
+				for (int d = 0; d < dim && match; d++) {
+					final double begin = bounds[offset + d];
+					final double end = bounds[offset + dim + d];
+					match = contained ? low[d] <= begin && high[d] >= end
+							: !(low[d] > end) && !(high[d] < begin);
+				}
+				if (match) {
+					result[hits++] = i;
+				}
+			}
+			return hits;
+		}
+	}
+
+	static final class Blocked extends BoundsFilter {
+
+		@Override
+		int filter(double[] low, double[] high, double[] bounds, int count,
+				boolean contained, int[] result) {
+			final int dim = low.length;
+			final int blocked = dim & ~3;
+			int hits = 0;
+			for (int i = 0, offset = 0; i < count; i++, offset += 2 * dim) {
+				final int end = offset + dim;
+				boolean match = true;
+				int d = 0;
+				if (contained) {
+					for (; d < blocked; d += 4) {
+						match &= (low[d] <= bounds[offset + d])
+								& (low[d + 1] <= bounds[offset + d + 1])
+								& (low[d + 2] <= bounds[offset + d + 2])
+								& (low[d + 3] <= bounds[offset + d + 3])
+								& (high[d] >= bounds[end + d])
+								& (high[d + 1] >= bounds[end + d + 1])
+								& (high[d + 2] >= bounds[end + d + 2])
+								& (high[d + 3] >= bounds[end + d + 3]);
+					}
+					for (; d < dim; d++) {
+						match &= (low[d] <= bounds[offset + d])
+								& (high[d] >= bounds[end + d]);
+					}
+				} else {
+					for (; d < blocked; d += 4) {
+						match &= !(low[d] > bounds[end + d])
+								& !(low[d + 1] > bounds[end + d + 1])
+								& !(low[d + 2] > bounds[end + d + 2])
+								& !(low[d + 3] > bounds[end + d + 3])
+								& !(high[d] < bounds[offset + d])
+								& !(high[d + 1] < bounds[offset + d + 1])
+								& !(high[d + 2] < bounds[offset + d + 2])
+								& !(high[d + 3] < bounds[offset + d + 3]);
+					}
+					for (; d < dim; d++) {
+						match &= !(low[d] > bounds[end + d])
+								& !(high[d] < bounds[offset + d]);
+					}
+				}
+				/*
+				 * no branch on match
+				 */
+				result[hits] = i;
+				hits += match ? 1 : 0;
+			}
+			return hits;
+		}
+	}
+}
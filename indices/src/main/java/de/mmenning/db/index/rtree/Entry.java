@@ -16,6 +16,12 @@ import de.mmenning.db.storage.ObjectReference;
 public final class Entry implements Serializable {
 
 	private static final long serialVersionUID = -2780616838906529323L;
+
+	/**
+	 * bytes of the count of a stored directory Entry
+	 */
+	public static final int COUNT_BYTE_SIZE = 4;
+
 	private final ObjectReference child;
 
 	public boolean isNodeEntry() {
@@ -25,6 +31,16 @@ public final class Entry implements Serializable {
 
 	private NDRectangle mbbox;
 
+	/**
+	 * number of elements in the subtree below this Entry, 1 for an element
+	 */
+	private int count = 1;
+
+	/**
+	 * value of the Aggregate of the NDRTree for the subtree below this Entry
+	 */
+	private Object aggregate;
+
 	public Entry(final NDRectangle mbbox, final Node n) {
 		this.setMBBox(mbbox);
 		this.child = n.getObjectReference();
@@ -55,6 +71,33 @@ public final class Entry implements Serializable {
 		return this.mbbox;
 	}
 
+	/**
+	 * Return the number of elements in the subtree below this Entry.
+	 * 
+	 * @return number of elements enclosed by this Entry
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	public void setCount(final int count) {
+		this.count = count;
+	}
+
+	/**
+	 * Return the aggregated value of the elements enclosed by this Entry or
+	 * <code>null</code>, if the NDRTree has no Aggregate.
+	 * 
+	 * @return aggregated value of this Entry
+	 */
+	public Object getAggregate() {
+		return this.aggregate;
+	}
+
+	public void setAggregate(final Object aggregate) {
+		this.aggregate = aggregate;
+	}
+
 	public ObjectReference getChild() {
 		return this.child;
 	}
@@ -1,5 +1,6 @@
 package de.mmenning.db.index.rtree;
 
+import de.mmenning.db.index.NDPoint;
 import de.mmenning.db.index.NDRectangle;
 import de.mmenning.db.index.NDRectangleKey;
 import de.mmenning.db.storage.DefaultStorage;
@@ -75,15 +76,19 @@ public class NDRStar extends NDRTree {
     * table first ({@link #createOverflowTreatmentTable()})
     */
    @Override
-   public synchronized boolean insert(final NDRectangleKey b) {
-
-		/*
-       * NDRStar additional code line: createOverflowTreatmentTable for every
-		 * single insertion also has to be done for condenseTree
-		 */
-      this.createOverflowTreatmentTable();
+   public boolean insert(final NDRectangleKey b) {
+      this.lock.writeLock().lock();
+      try {
+         /*
+          * NDRStar additional code line: createOverflowTreatmentTable for
+          * every single insertion also has to be done for condenseTree
+          */
+         this.createOverflowTreatmentTable();
 
-      return super.insert(b);
+         return super.insert(b);
+      } finally {
+         this.lock.writeLock().unlock();
+      }
    }
 
    /**
@@ -110,15 +115,22 @@ public class NDRStar extends NDRTree {
          while (isGreater < 2) {
             this.sortByValue(n, i, isGreater == 0);
 
+            final int dim = this.getDim();
+            final double[][] groups = groupBounds(n, dim);
+
             for (int k = 1; k <= n.getMaxCapacity() - 2 * minCapacity + 2; k++) {
 
                firstIndices = minCapacity - 1 + k;
 
-               S[i] += this.unionEntries(n, 0, firstIndices)
-                     .simpleMargin()
-                     + this.unionEntries(n, firstIndices,
-                     n.size() - firstIndices).simpleMargin();
-
+               if (groups != null) {
+                  S[i] += margin(groups[0], firstIndices, dim)
+                        + margin(groups[1], firstIndices, dim);
+               } else {
+                  S[i] += this.unionEntries(n, 0, firstIndices)
+                        .simpleMargin()
+                        + this.unionEntries(n, firstIndices,
+                        n.size() - firstIndices).simpleMargin();
+               }
             }
             isGreater++;
          }
@@ -145,7 +157,7 @@ public class NDRStar extends NDRTree {
 		 * Test son for leaf
 		 */
       if (!n.isEmpty()) {
-         if (this.readNodeChild(n.get(0)).isLeaf()) {
+         if (this.readNode(n.getChild(0)).isLeaf()) {
 
 				/*
 				 * If sons reference to leafs: Choose the entry in n whose
@@ -185,7 +197,7 @@ public class NDRStar extends NDRTree {
                }
             }
 
-            return new NodeEntryPair(bestEntry, n.get(bestEntry).getChild());
+            return new NodeEntryPair(bestEntry, n.getChild(bestEntry));
 
          } else {
 
@@ -197,7 +209,7 @@ public class NDRStar extends NDRTree {
 				 */
 
             int bestEntry = 0;
-            double bestArea = n.get(bestEntry).getMBBox().volume();
+            double bestArea = this.volume(n, bestEntry);
             double area;
             double bestAreaEnlargement = this.computeAreaEnlargement(n,
                   bestEntry, mbbox);
@@ -210,10 +222,10 @@ public class NDRStar extends NDRTree {
 
                   bestEntry = i;
                   bestAreaEnlargement = areaEnlargement;
-                  bestArea = n.get(i).getMBBox().volume();
+                  bestArea = this.volume(n, i);
 
                } else if (areaEnlargement == bestAreaEnlargement) {
-                  area = n.get(i).getMBBox().volume();
+                  area = this.volume(n, i);
 
                   if (area < bestArea) {
                      bestEntry = i;
@@ -223,7 +235,7 @@ public class NDRStar extends NDRTree {
                }
             }
 
-            return new NodeEntryPair(bestEntry, n.get(bestEntry).getChild());
+            return new NodeEntryPair(bestEntry, n.getChild(bestEntry));
 
          }
       }
@@ -247,6 +259,28 @@ public class NDRStar extends NDRTree {
                                               final NDRectangle mbbox) {
       double overlapEnlarge = 0.0;
 
+      final double[] c = n.getCoordinates();
+      if (c != null && mbbox.getClass() == NDRectangle.class) {
+         /*
+          * same arithmetic as below on the coordinates of a packed node
+          */
+         final int dim = this.getDim();
+         final int offset = 2 * dim * index;
+         final double[] union = new double[2 * dim];
+         for (int d = 0; d < dim; d++) {
+            union[d] = Math.min(c[offset + d], mbbox.getBegin().getValue(d));
+            union[dim + d] = Math.max(c[offset + dim + d], mbbox.getEnd()
+                  .getValue(d));
+         }
+         for (int i = 0; i < n.size(); i++) {
+            if (i != index) {
+               overlapEnlarge += intersect(c, 2 * dim * i, union, 0, dim)
+                     - intersect(c, 2 * dim * i, c, offset, dim);
+            }
+         }
+         return overlapEnlarge;
+      }
+
       final NDRectangle union = n.get(index).getMBBox().union(mbbox);
 
       for (int i = 0; i < n.size(); i++) {
@@ -260,6 +294,25 @@ public class NDRStar extends NDRTree {
       return overlapEnlarge;
    }
 
+   /**
+    * @return {@link NDRectangle#intersect(NDRectangle)} of the bounding
+    * boxes beginning at position <code>a</code> in <code>first</code> and at
+    * position <code>b</code> in <code>second</code>
+    */
+   private static double intersect(final double[] first, final int a,
+                                   final double[] second, final int b, final int dim) {
+      double volume = 1.0;
+      for (int d = 0; d < dim; d++) {
+         final double begin = Math.max(first[a + d], second[b + d]);
+         final double end = Math.min(first[a + dim + d], second[b + dim + d]);
+         if (end < begin) {
+            return 0;
+         }
+         volume *= end - begin;
+      }
+      return volume;
+   }
+
    /**
     * After an element has been deleted, condenseTree is called to adjust the
     * corresponding leaf node which is denoted by <code>path</code>.
@@ -310,12 +363,13 @@ public class NDRStar extends NDRTree {
 				/*
 				 * parentEntry of n, only one step of adjustTree
 				 */
-            p.get(path.get(currentLevel).indexInParent()).setMBBox(
+            p.setMBBox(path.get(currentLevel).indexInParent(),
                   this.unionEntries(leaf, 0, leaf.size()));
+            this.aggregate(p, path.get(currentLevel).indexInParent(), leaf);
 				/*
 				 * Update the parent node
 				 */
-            this.storeNode(leaf);
+            this.storeNode(p);
          }
          currentLevel--;
          leaf = p;
@@ -430,6 +484,9 @@ public class NDRStar extends NDRTree {
 
          this.sortByValue(n, splitAxis, sortGreaterValue == 0);
 
+         final int dim = this.getDim();
+         final double[][] groups = groupBounds(n, dim);
+
 			/*
 			 * go through all possible distributions
 			 */
@@ -439,6 +496,28 @@ public class NDRStar extends NDRTree {
 
             firstIndices = minCapacity - 1 + k;
 
+            if (groups != null) {
+               /*
+                * same decisions as below, but on the packed coordinates
+                */
+               overlap = overlap(groups[0], groups[1], firstIndices, dim);
+               area = volume(groups[0], firstIndices, dim)
+                     + volume(groups[1], firstIndices, dim);
+
+               if (overlap < minOverlap
+                     || (overlap == minOverlap && area < minArea)) {
+                  minOverlap = overlap;
+                  minArea = area;
+                  bestFirstIndices = firstIndices;
+
+                  c.coveringFirst = rectangle(groups[0], firstIndices, dim);
+                  c.coveringSecond = rectangle(groups[1], firstIndices, dim);
+
+                  this.groupEntries(n, bestFirstIndices, c);
+               }
+               continue;
+            }
+
 				/*
 				 * compare the distributions by their overlap
 				 */
@@ -493,6 +572,124 @@ public class NDRStar extends NDRTree {
       return c;
    }
 
+   /**
+    * Computes the bounding boxes of all groups of a split of <code>n</code>
+    * in one pass over its entries. The first array holds at position
+    * <code>k</code> the union of the first <code>k</code> entries, the
+    * second one the union of the other entries. Every position takes
+    * <code>2 * dim</code> values, the begin values followed by the end
+    * values.
+    *
+    * @return the coordinates of the first and the second groups or
+    * <code>null</code>, if <code>n</code> holds bounding boxes of a subclass
+    * of NDRectangle
+    */
+   private static double[][] groupBounds(final Node n, final int dim) {
+      final int size = n.size();
+      final int width = 2 * dim;
+      final double[] first = new double[width * (size + 1)];
+      final double[] second = new double[width * (size + 1)];
+
+      final double[] c = n.getCoordinates();
+      if (c != null) {
+         /*
+          * a packed node has the same layout already
+          */
+         System.arraycopy(c, 0, first, width, width * size);
+         System.arraycopy(c, 0, second, 0, width * size);
+      } else {
+         for (int i = 0; i < size; i++) {
+            final NDRectangle r = n.get(i).getMBBox();
+            if (r.getClass() != NDRectangle.class) {
+               return null;
+            }
+            for (int d = 0; d < dim; d++) {
+               first[(i + 1) * width + d] = second[i * width + d] = r
+                     .getBegin().getValue(d);
+               first[(i + 1) * width + dim + d] = second[i * width + dim
+                     + d] = r.getEnd().getValue(d);
+            }
+         }
+      }
+      for (int k = 2; k <= size; k++) {
+         for (int d = 0; d < dim; d++) {
+            first[k * width + d] = Math.min(first[(k - 1) * width + d],
+                  first[k * width + d]);
+            first[k * width + dim + d] = Math.max(first[(k - 1) * width
+                  + dim + d], first[k * width + dim + d]);
+         }
+      }
+      for (int k = size - 2; k >= 0; k--) {
+         for (int d = 0; d < dim; d++) {
+            second[k * width + d] = Math.min(second[(k + 1) * width + d],
+                  second[k * width + d]);
+            second[k * width + dim + d] = Math.max(second[(k + 1) * width
+                  + dim + d], second[k * width + dim + d]);
+         }
+      }
+      return new double[][]{first, second};
+   }
+
+   /**
+    * @return {@link NDRectangle#simpleMargin()} of the group at position
+    * <code>k</code> of a result of {@link #groupBounds(Node, int)}
+    */
+   private static double margin(final double[] group, final int k,
+                                final int dim) {
+      final int offset = 2 * dim * k;
+      double margin = 0;
+      for (int d = 0; d < dim; d++) {
+         margin += Math.abs(group[offset + dim + d] - group[offset + d]);
+      }
+      return margin;
+   }
+
+   /**
+    * @return {@link NDRectangle#volume()} of the group at position
+    * <code>k</code> of a result of {@link #groupBounds(Node, int)}
+    */
+   private static double volume(final double[] group, final int k,
+                                final int dim) {
+      final int offset = 2 * dim * k;
+      double volume = 1.0;
+      for (int d = 0; d < dim; d++) {
+         volume *= Math.abs(group[offset + dim + d] - group[offset + d]);
+      }
+      return volume;
+   }
+
+   /**
+    * @return {@link NDRectangle#intersect(NDRectangle)} of the groups at
+    * position <code>k</code> of a result of {@link #groupBounds(Node, int)}
+    */
+   private static double overlap(final double[] first,
+                                 final double[] second, final int k, final int dim) {
+      final int offset = 2 * dim * k;
+      double volume = 1.0;
+      for (int d = 0; d < dim; d++) {
+         final double begin = Math.max(first[offset + d], second[offset + d]);
+         final double end = Math.min(first[offset + dim + d], second[offset
+               + dim + d]);
+         if (end < begin) {
+            return 0;
+         }
+         volume *= end - begin;
+      }
+      return volume;
+   }
+
+   /**
+    * @return the group at position <code>k</code> of a result of
+    * {@link #groupBounds(Node, int)} as <code>NDRectangle</code>
+    */
+   private static NDRectangle rectangle(final double[] group, final int k,
+                                        final int dim) {
+      final int offset = 2 * dim * k;
+      return new NDRectangle(new NDPoint(Arrays.copyOfRange(group, offset,
+            offset + dim)), new NDPoint(Arrays.copyOfRange(group, offset + dim,
+            offset + 2 * dim)));
+   }
+
    /**
     * If a split of the root Node occurred, and the insertion is not already
     * finished, increase the Size of the overflow treatment-table by one. Set
@@ -523,7 +720,7 @@ public class NDRStar extends NDRTree {
          n.addEntry(toAdd);
          this.storeNode(n);
 
-         this.adjustNode(path, toAdd.getMBBox());
+         this.adjustNode(path, toAdd);
 
          boolean split = true;
 
@@ -665,7 +862,7 @@ public class NDRStar extends NDRTree {
    protected void sortByValue(final Node n, final int dim,
                               final boolean greater) {
 
-      n.sort(new EntryComparator(dim, greater));
+      n.sort(dim, greater);
 
    }
 }
\ No newline at end of file
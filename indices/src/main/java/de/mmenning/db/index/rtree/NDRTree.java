@@ -1,18 +1,38 @@
 package de.mmenning.db.index.rtree;
 
+import de.mmenning.db.index.JoinQuery;
+import de.mmenning.db.index.NDPoint;
 import de.mmenning.db.index.NDRectangle;
 import de.mmenning.db.index.NDRectangleKey;
 import de.mmenning.db.index.NDRectangleKeyIndex;
 import de.mmenning.db.index.RectangleQuery;
+import de.mmenning.db.index.ReferenceQuery;
+import de.mmenning.db.index.SynchronizedRectangleQuery;
 import de.mmenning.db.storage.*;
 import de.mmenning.util.FixedArrayList;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * NDRTree. Basic implementation of an R-Tree. Uses Quadratic Split by
  * default. Splitting algorithm may be changed to Linear Split by
  * <code>setQuadraticSplit</code>.
+ * <p>
+ * Queries may run in parallel, while insertions, deletions and updates get
+ * exclusive access. Parallel queries require a thread safe StorageManager,
+ * e.g. a <code>ConcurrentBufferedStorage</code>.
+ * <p>
+ * Once {@link #setAggregate(Aggregate)} has been called, every directory
+ * <code>Entry</code> keeps the number of elements below it and, if an
+ * {@link Aggregate} has been set, their aggregated value, so counting and
+ * aggregating queries stop at subtrees covered by the query. Without it,
+ * these queries read every leaf intersecting the query.
+ * <p>
+ * {@link #setPacked(boolean)} keeps the entries of the nodes in plain arrays
+ * instead of <code>Entry</code> objects, see {@link PackedNode}.
  *
  * @author Mathias Menninghaus (mathias.menninghaus@uos.de)
  * @article R-Trees: A Dynamic Index Structure for Spatial Searching (Guttman,
@@ -25,6 +45,10 @@ public class NDRTree implements NDRectangleKeyIndex {
     * Minimum Number of maximum entries
     */
    public static final int MIN_MAX_ENTRIES = 4;
+   /**
+    * Orders the joins of trees with equal identity hash codes.
+    */
+   private static final Object JOIN_TIE_LOCK = new Object();
    /**
     * Number of dimensions in this NDRTree
     */
@@ -58,6 +82,60 @@ public class NDRTree implements NDRectangleKeyIndex {
     * determines, if the quadratic odr linear splitting algorithm is used.
     */
    private boolean quadraticSplit = true;
+   /**
+    * Guards the tree: queries share the read lock, modifications hold the
+    * write lock. Query callbacks must not modify this tree.
+    */
+   protected final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+   /**
+    * executes parallel queries, <code>null</code> if queries are sequential
+    */
+   private ForkJoinPool queryPool;
+   /**
+    * highest level, which is searched sequentially by parallel queries
+    */
+   private int parallelLevel;
+
+   /**
+    * whether the directory entries keep the counts and aggregated values of
+    * their subtrees
+    *
+    * @see #setAggregate(Aggregate)
+    */
+   private boolean aggregated;
+
+   /**
+    * user defined aggregate of the directory entries, may be <code>null</code>
+    */
+   private Aggregate<Object> aggregate;
+
+   /**
+    * bytes of an aggregated value stored in an entry
+    *
+    * @see #setAggregate(Aggregate, AggregateCodec)
+    */
+   private int aggregateByteSize;
+
+   /**
+    * bits per coordinate of the bounding boxes in directory nodes, 0 if they
+    * are stored exactly
+    *
+    * @see #setQuantization(int)
+    */
+   private int quantizationBits;
+
+   /**
+    * maximum capacity of directory nodes, differs from
+    * {@link #maxCapacity} only for quantized bounding boxes
+    */
+   private int directoryCapacity;
+
+   /**
+    * whether new nodes are {@link PackedNode} elements
+    *
+    * @see #setPacked(boolean)
+    */
+   private boolean packed;
 
    public NDRTree(final int blockSize, final int dimensions, StorageManager s) {
       this(blockSize / (16 * dimensions + IOUtils.referenceByteSize()), 0.5,
@@ -105,9 +183,10 @@ public class NDRTree implements NDRectangleKeyIndex {
 
       this.dimensions = dimensions;
       this.maxCapacity = maxCapacity;
+      this.directoryCapacity = maxCapacity;
       this.minFanout = minFanout;
 
-      Node rootNode = new Node(this.maxCapacity);
+      Node rootNode = this.createNode(this.maxCapacity);
 
       this.ioacc = s;
 
@@ -124,8 +203,13 @@ public class NDRTree implements NDRectangleKeyIndex {
     */
    @Override
    public boolean contains(final NDRectangleKey b) {
-      ArrayList<NodeEntryPair> path = this.createNewPath();
-      return this.findLeaf(path, b) != -1;
+      this.lock.readLock().lock();
+      try {
+         ArrayList<NodeEntryPair> path = this.createNewPath();
+         return this.findLeaf(path, b) != -1;
+      } finally {
+         this.lock.readLock().unlock();
+      }
    }
 
    /**
@@ -136,41 +220,45 @@ public class NDRTree implements NDRectangleKeyIndex {
     */
    @Override
    public boolean delete(final NDRectangleKey b) {
+      this.lock.writeLock().lock();
+      try {
+         ArrayList<NodeEntryPair> pathToLeaf = this.createNewPath();
 
-      ArrayList<NodeEntryPair> pathToLeaf = this.createNewPath();
+         int posToDelete = this.findLeaf(pathToLeaf, b);
 
-      int posToDelete = this.findLeaf(pathToLeaf, b);
-
-      if (posToDelete == -1) {
-         return false;
-      } else {
+         if (posToDelete == -1) {
+            return false;
+         } else {
 
-         Node leaf = pathToLeaf.get(pathToLeaf.size() - 1).getNode();
+            Node leaf = pathToLeaf.get(pathToLeaf.size() - 1).getNode();
 
-         if (!leaf.isLeaf()) {
-            throw new RuntimeException("Should be a leaf!");
-         }
+            if (!leaf.isLeaf()) {
+               throw new RuntimeException("Should be a leaf!");
+            }
 
-         if (null == leaf.removeEntry(posToDelete)) {
-            throw new RuntimeException("Entry not deleted");
-         }
+            if (null == leaf.removeEntry(posToDelete)) {
+               throw new RuntimeException("Entry not deleted");
+            }
 
-         this.storeNode(leaf);
+            this.storeNode(leaf);
 
-         this.condenseTree(pathToLeaf);
+            this.condenseTree(pathToLeaf);
 
-         Node rootNode = getRoot();
+            Node rootNode = getRoot();
 
-         if (rootNode.size() == 1) {
-            if (!rootNode.isLeaf()) {
-               this.deleteNode(rootNode);
-               this.root = rootNode.get(0).getChild();
-               this.treeHeight--;
+            if (rootNode.size() == 1) {
+               if (!rootNode.isLeaf()) {
+                  this.deleteNode(rootNode);
+                  this.root = rootNode.get(0).getChild();
+                  this.treeHeight--;
+               }
             }
-         }
-         this.size--;
+            this.size--;
 
-         return true;
+            return true;
+         }
+      } finally {
+         this.lock.writeLock().unlock();
       }
    }
 
@@ -180,13 +268,24 @@ public class NDRTree implements NDRectangleKeyIndex {
     * @return a set of all key elements
     */
    public Set<NDRectangleKey> getAll() {
-      final HashSet<NDRectangleKey> s = new HashSet<NDRectangleKey>(this.size);
-      this.traverseKeys(this.getRoot(), s);
-      return s;
+      this.lock.readLock().lock();
+      try {
+         final HashSet<NDRectangleKey> s = new HashSet<NDRectangleKey>(
+               this.size);
+         this.traverseKeys(this.getRoot(), s);
+         return s;
+      } finally {
+         this.lock.readLock().unlock();
+      }
    }
 
    public void getAll(final Collection<ObjectReference> result) {
-      this.traverse(this.getRoot(), result);
+      this.lock.readLock().lock();
+      try {
+         this.traverse(this.getRoot(), result);
+      } finally {
+         this.lock.readLock().unlock();
+      }
    }
 
    /**
@@ -195,92 +294,766 @@ public class NDRTree implements NDRectangleKeyIndex {
     * @return all Node elements in this tree
     */
    public Set<Node> getAllNodes() {
-      final HashSet<Node> s = new HashSet<Node>();
-      this.traverseNodes(this.getRoot(), s);
-      return s;
+      this.lock.readLock().lock();
+      try {
+         final HashSet<Node> s = new HashSet<Node>();
+         this.traverseNodes(this.getRoot(), s);
+         return s;
+      } finally {
+         this.lock.readLock().unlock();
+      }
    }
 
    @Override
    public void getContained(NDRectangle region, RectangleQuery q) {
-      final ArrayList<NodeEntryPair> path = this.createNewPath();
-      int current = path.size() - 1;
+      this.query(region, true, q);
+   }
 
-      while (path.size() != 0) {
-         Node n = this.readNode(path.remove(current--).getNodeReference());
+   @Override
+   public int getDim() {
+      return this.dimensions;
+   }
 
-         if (n.isLeaf()) {
-            /*
-             * if leaf
-				 */
-            for (int i = 0; i < n.size(); i++) {
+   /**
+    * Returns the height of this tree.
+    *
+    * @return the height of this tree
+    */
+   public int getHeight() {
+      return this.treeHeight;
+   }
+
+   @Override
+   public void getIntersected(NDRectangle region, RectangleQuery q) {
+      this.query(region, false, q);
+   }
 
-               if (region.contains(n.get(i).getMBBox())) {
+   /**
+    * Allocation free variant of {@link #getIntersected(NDRectangle,
+    * RectangleQuery)}. <code>q</code> gets the bounding boxes stored in the
+    * leaves and no <code>NDRectangleKey</code> is created. Always runs
+    * sequentially.
+    *
+    * @param region query region
+    * @param q      called for every element intersecting <code>region</code>
+    */
+   public void getIntersected(NDRectangle region, ReferenceQuery q) {
+      this.lock.readLock().lock();
+      try {
+         this.search(this.root, region, false, q);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Allocation free variant of {@link #getContained(NDRectangle,
+    * RectangleQuery)}. <code>q</code> gets the bounding boxes stored in the
+    * leaves and no <code>NDRectangleKey</code> is created. Always runs
+    * sequentially.
+    *
+    * @param region query region
+    * @param q      called for every element contained in <code>region</code>
+    */
+   public void getContained(NDRectangle region, ReferenceQuery q) {
+      this.lock.readLock().lock();
+      try {
+         this.search(this.root, region, true, q);
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Answers several intersection queries by a single traversal of the tree.
+    * Every node is read at most once: a subtree is visited with the queries,
+    * whose regions intersect its bounding box, and every element is passed
+    * to the queries, whose regions it intersects. A query, which returned
+    * <code>false</code>, is not called again.
+    *
+    * @param regions query regions
+    * @param queries <code>queries.get(i)</code> receives the elements
+    *                intersecting <code>regions.get(i)</code>
+    */
+   public void getIntersected(List<? extends NDRectangle> regions,
+                              List<? extends RectangleQuery> queries) {
+      if (regions.size() != queries.size()) {
+         throw new IllegalArgumentException(
+               "number of regions and queries differ");
+      }
+      final NDRectangle[] r = regions.toArray(new NDRectangle[regions.size()]);
+      final RectangleQuery[] q = queries.toArray(new RectangleQuery[queries
+            .size()]);
+      final boolean[] stopped = new boolean[r.length];
+      int running = r.length;
+
+      final int[] all = new int[r.length];
+      for (int i = 0; i < all.length; i++) {
+         all[i] = i;
+      }
+
+      this.lock.readLock().lock();
+      try {
+         final ArrayList<ObjectReference> path = new ArrayList<ObjectReference>();
+         final ArrayList<int[]> active = new ArrayList<int[]>();
+         path.add(this.root);
+         active.add(all);
+
+         while (path.size() != 0 && running > 0) {
+            final Node n = this.readNode(path.remove(path.size() - 1));
+            final int[] candidates = active.remove(active.size() - 1);
+            final int[] hits = new int[candidates.length];
+
+            for (int e = 0; e < n.size(); e++) {
+               final NDRectangle mbb = n.get(e).getMBBox();
+
+               int count = 0;
+               for (int i : candidates) {
+                  if (!stopped[i] && r[i].intersects(mbb)) {
+                     hits[count++] = i;
+                  }
+               }
+               if (count == 0) {
+                  continue;
+               }
 
-                  if (!q.query(new NDRectangleKey(n.get(i).getChild(), n
-                        .get(i).getMBBox()))) {
-                     return;
+               if (n.isLeaf()) {
+                  final NDRectangleKey key = new NDRectangleKey(n.get(e)
+                        .getChild(), mbb);
+                  for (int j = 0; j < count; j++) {
+                     final int i = hits[j];
+                     if (!stopped[i] && !q[i].query(key)) {
+                        stopped[i] = true;
+                        running--;
+                     }
                   }
+               } else {
+                  path.add(n.get(e).getChild());
+                  active.add(Arrays.copyOf(hits, count));
+               }
+            }
+         }
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * @param contained whether the elements must be contained in
+    *                  <code>region</code> or only intersect it
+    */
+   private void query(NDRectangle region, boolean contained, RectangleQuery q) {
+      this.lock.readLock().lock();
+      try {
+         final ForkJoinPool pool = this.queryPool;
+         final int rootLevel = this.treeHeight - 1;
+
+         if (pool != null && rootLevel > this.parallelLevel) {
+            /*
+             * the workers do not hold the read lock, but writers are
+             * blocked until the calling thread releases it
+             */
+            pool.invoke(new QueryTask(this.root, rootLevel, region,
+                  contained, new SynchronizedRectangleQuery(q)));
+         } else {
+            this.search(this.root, region, contained, q);
+         }
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Depth first search in the subtree below <code>start</code>.
+    *
+    * @param contained whether the elements must be contained in
+    *                  <code>region</code> or only intersect it
+    * @return <code>false</code> if <code>q</code> stopped the search
+    */
+   private boolean search(ObjectReference start, NDRectangle region,
+                          boolean contained, final RectangleQuery q) {
+      return this.search(start, region, contained, new ReferenceQuery() {
+         @Override
+         public boolean query(ObjectReference object, NDRectangle key) {
+            return q.query(new NDRectangleKey(object, key));
+         }
+      });
+   }
+
+   /**
+    * Depth first search in the subtree below <code>start</code>. The
+    * references of the nodes to visit are kept in a plain array, which holds
+    * at most <code>maxCapacity</code> entries per level. The region is
+    * tested against {@link Node#getBounds()} by the {@link BoundsFilter} if
+    * the node provides it, otherwise against the bounding boxes of the
+    * entries.
+    *
+    * @param contained whether the elements must be contained in
+    *                  <code>region</code> or only intersect it
+    * @return <code>false</code> if <code>q</code> stopped the search
+    */
+   private boolean search(ObjectReference start, NDRectangle region,
+                          boolean contained, ReferenceQuery q) {
+      final int capacity = Math.max(this.maxCapacity, this.directoryCapacity);
+      ObjectReference[] stack = new ObjectReference[this.treeHeight
+            * (capacity + 1)];
+      stack[0] = start;
+      int top = 0;
+
+      /*
+       * coordinates of a plain region, compared to node bounds
+       */
+      final double[] low;
+      final double[] high;
+      final int[] hits = new int[capacity + 1];
+      if (region.getClass() == NDRectangle.class) {
+         low = region.getBegin().toArray();
+         high = region.getEnd().toArray();
+      } else {
+         low = null;
+         high = null;
+      }
+
+      while (top >= 0) {
+         final Node n = this.readNode(stack[top]);
+         stack[top--] = null;
+
+         final double[] bounds = low == null ? null : n.getBounds();
+
+         if (bounds != null) {
+            final boolean leaf = n.isLeaf();
+            final int count = BoundsFilter.INSTANCE.filter(low, high,
+                  bounds, n.size(), leaf && contained, hits);
+            if (!leaf && top + count >= stack.length) {
+               stack = Arrays.copyOf(stack, 2 * stack.length + count);
+            }
+            for (int i = 0; i < count; i++) {
+               if (!leaf) {
+                  stack[++top] = n.getChild(hits[i]);
+               } else if (!q.query(n.getChild(hits[i]), n.getMBBox(hits[i]))) {
+                  return false;
                }
             }
+         } else if (n.isLeaf()) {
+            for (int i = 0; i < n.size(); i++) {
+               final Entry e = n.get(i);
+               final NDRectangle mbb = e.getMBBox();
 
+               if (contained ? region.contains(mbb) : region.intersects(mbb)) {
+                  if (!q.query(e.getChild(), mbb)) {
+                     return false;
+                  }
+               }
+            }
          } else {
+            if (top + n.size() >= stack.length) {
+               stack = Arrays.copyOf(stack, 2 * stack.length + n.size());
+            }
             for (int i = 0; i < n.size(); i++) {
                if (region.intersects(n.get(i).getMBBox())) {
-
-                  path.add(new NodeEntryPair(i, n.get(i).getChild()));
-                  current++;
+                  stack[++top] = n.get(i).getChild();
                }
             }
          }
       }
+      return true;
    }
 
-   @Override
-   public int getDim() {
-      return this.dimensions;
+   /**
+    * Enables parallel queries. {@link #getIntersected(NDRectangle,
+    * RectangleQuery)} and {@link #getContained(NDRectangle, RectangleQuery)}
+    * fork a task for every qualifying entry of a directory node above
+    * <code>level</code>, subtrees at or below <code>level</code> are searched
+    * sequentially by one task. Leaves are on level 0. The
+    * <code>RectangleQuery</code> is synchronized, so it is called by one
+    * thread at a time, but not in a deterministic order. Parallel queries
+    * require a thread safe StorageManager.
+    *
+    * @param pool  pool executing the tasks, <code>null</code> disables
+    *              parallel queries
+    * @param level highest level, which is searched sequentially
+    */
+   public void setParallelQueries(ForkJoinPool pool, int level) {
+      if (level < 0) {
+         throw new IllegalArgumentException("level must not be negative");
+      }
+      this.lock.writeLock().lock();
+      try {
+         this.queryPool = pool;
+         this.parallelLevel = level;
+      } finally {
+         this.lock.writeLock().unlock();
+      }
    }
 
    /**
-    * Returns the height of this tree.
+    * Makes this tree an aggregate tree. Every directory <code>Entry</code>
+    * keeps the number of elements below it, which is stored in the
+    * directory nodes, and the value of the user defined aggregate, which is
+    * answered by {@link #aggregateIntersected(NDRectangle)} and
+    * {@link #aggregateContained(NDRectangle)}.
     *
-    * @return the height of this tree
+    * The aggregated values are not accounted in the node sizes and cannot
+    * be stored by a {@link RTreeNodeCodec}, use
+    * {@link #setAggregate(Aggregate, AggregateCodec)} for that.
+    *
+    * @param aggregate the aggregate, <code>null</code> only maintains the
+    *                  counts
+    * @throws IllegalStateException if this tree is not empty
     */
-   public int getHeight() {
-      return this.treeHeight;
+   public void setAggregate(Aggregate<?> aggregate) {
+      this.setAggregate(aggregate, 0);
    }
 
-   @Override
-   public void getIntersected(NDRectangle region, RectangleQuery q) {
-      final ArrayList<NodeEntryPair> path = this.createNewPath();
-      int current = path.size() - 1;
+   /**
+    * Sets the user defined aggregate like {@link #setAggregate(Aggregate)},
+    * whose values are stored in every entry in the bytes of
+    * <code>codec</code>. A {@link RTreeNodeCodec} writing the nodes of this
+    * tree must use the same <code>codec</code>.
+    *
+    * @param aggregate the aggregate
+    * @param codec     encoding of the aggregated values
+    * @throws IllegalStateException if this tree is not empty
+    */
+   public <A> void setAggregate(Aggregate<A> aggregate, AggregateCodec<A> codec) {
+      if (aggregate == null || codec == null) {
+         throw new IllegalArgumentException("aggregate and codec required");
+      }
+      this.setAggregate(aggregate, codec.getByteSize());
+   }
 
-      while (path.size() != 0) {
-         Node n = this.readNode(path.remove(current--).getNodeReference());
+   @SuppressWarnings("unchecked")
+   private void setAggregate(Aggregate<?> aggregate, int byteSize) {
+      this.lock.writeLock().lock();
+      try {
+         if (this.size != 0) {
+            throw new IllegalStateException("tree is not empty");
+         }
+         this.aggregated = true;
+         this.aggregate = (Aggregate<Object>) aggregate;
+         this.aggregateByteSize = byteSize;
+         this.directoryCapacity = this.computeDirectoryCapacity();
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
 
-         if (n.isLeaf()) {
-            /*
-             * if leaf
-				 */
-            for (int i = 0; i < n.size(); i++) {
+   /**
+    * @return whether this is an aggregate tree, whose directory entries keep
+    * the counts and aggregated values of their subtrees
+    * @see #setAggregate(Aggregate)
+    */
+   public boolean isAggregated() {
+      return this.aggregated;
+   }
 
-               if (region.intersects(n.get(i).getMBBox())) {
+   /**
+    * Counts the elements intersecting <code>region</code>. In an aggregate
+    * tree, subtrees, whose bounding boxes are contained in
+    * <code>region</code>, are counted by their directory entries without
+    * being read.
+    *
+    * @param region query region
+    * @return number of elements intersecting <code>region</code>
+    */
+   public int countIntersected(NDRectangle region) {
+      return this.aggregate(region, false).count;
+   }
+
+   /**
+    * Counts the elements contained in <code>region</code>. In an aggregate
+    * tree, subtrees, whose bounding boxes are contained in
+    * <code>region</code>, are counted by their directory entries without
+    * being read.
+    *
+    * @param region query region
+    * @return number of elements contained in <code>region</code>
+    */
+   public int countContained(NDRectangle region) {
+      return this.aggregate(region, true).count;
+   }
+
+   /**
+    * @param region query region
+    * @return the combined value of the aggregate of all elements
+    * intersecting <code>region</code> or <code>null</code>, if there are no
+    * such elements or no aggregate has been set
+    * @see #setAggregate(Aggregate)
+    */
+   public Object aggregateIntersected(NDRectangle region) {
+      return this.aggregate(region, false).value;
+   }
+
+   /**
+    * @param region query region
+    * @return the combined value of the aggregate of all elements contained
+    * in <code>region</code> or <code>null</code>, if there are no such
+    * elements or no aggregate has been set
+    * @see #setAggregate(Aggregate)
+    */
+   public Object aggregateContained(NDRectangle region) {
+      return this.aggregate(region, true).value;
+   }
+
+   /**
+    * Aggregates the entries qualifying for <code>region</code>. In an
+    * aggregate tree, descends only into directory entries which intersect
+    * but are not contained in <code>region</code>.
+    *
+    * @param contained whether the elements must be contained in
+    *                  <code>region</code> or only intersect it
+    */
+   private Accumulator aggregate(NDRectangle region, boolean contained) {
+      this.lock.readLock().lock();
+      try {
+         final Accumulator acc = new Accumulator(this.aggregate);
+         final ArrayList<ObjectReference> stack = new ArrayList<ObjectReference>();
+         stack.add(this.root);
+
+         while (!stack.isEmpty()) {
+            final Node n = this.readNode(stack.remove(stack.size() - 1));
+            final boolean leaf = n.isLeaf();
 
-                  if (!q.query(new NDRectangleKey(n.get(i).getChild(), n
-                        .get(i).getMBBox()))) {
-                     return;
+            for (int i = 0; i < n.size(); i++) {
+               final NDRectangle mbb = n.get(i).getMBBox();
+
+               if (region.contains(mbb) && (leaf || this.aggregated)) {
+                  acc.add(n.get(i));
+               } else if (region.intersects(mbb)) {
+                  if (!leaf) {
+                     stack.add(n.get(i).getChild());
+                  } else if (!contained) {
+                     acc.add(n.get(i));
                   }
                }
             }
+         }
+         return acc;
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
 
-         } else {
-            for (int i = 0; i < n.size(); i++) {
-               if (region.intersects(n.get(i).getMBBox())) {
+   /**
+    * Sums up the counts and combines the aggregates of entries.
+    */
+   private static class Accumulator {
+
+      private final Aggregate<Object> aggregate;
+      private int count;
+      private Object value;
+
+      Accumulator(Aggregate<Object> aggregate) {
+         this.aggregate = aggregate;
+      }
+
+      void add(Entry e) {
+         if (this.aggregate != null) {
+            this.value = this.count == 0 ? e.getAggregate() : this.aggregate
+                  .combine(this.value, e.getAggregate());
+         }
+         this.count += e.getCount();
+      }
+   }
+
+   /**
+    * Task searching the subtree below <code>node</code>, which lies on
+    * <code>level</code>.
+    */
+   private class QueryTask extends RecursiveAction {
+
+      private static final long serialVersionUID = 1L;
+
+      private final ObjectReference node;
+      private final int level;
+      private final NDRectangle region;
+      private final boolean contained;
+      private final SynchronizedRectangleQuery q;
+
+      QueryTask(ObjectReference node, int level, NDRectangle region,
+                boolean contained, SynchronizedRectangleQuery q) {
+         this.node = node;
+         this.level = level;
+         this.region = region;
+         this.contained = contained;
+         this.q = q;
+      }
 
-                  path.add(new NodeEntryPair(i, n.get(i).getChild()));
-                  current++;
+      @Override
+      protected void compute() {
+         if (this.q.isStopped()) {
+            return;
+         }
+         if (this.level <= parallelLevel) {
+            search(this.node, this.region, this.contained, this.q);
+            return;
+         }
+         Node n = readNode(this.node);
+
+         ArrayList<QueryTask> subtasks = new ArrayList<QueryTask>(n.size());
+         for (int i = 0; i < n.size(); i++) {
+            if (this.region.intersects(n.get(i).getMBBox())) {
+               subtasks.add(new QueryTask(n.get(i).getChild(),
+                     this.level - 1, this.region, this.contained, this.q));
+            }
+         }
+         invokeAll(subtasks);
+      }
+   }
+
+   /**
+    * Joins this tree with <code>other</code> by descending both trees
+    * together. Only pairs of subtrees, whose bounding boxes intersect, are
+    * visited. If the trees differ in height, the higher one is descended
+    * alone until the levels match. Both trees must store the same kind of
+    * rectangles, e.g. both are RSTTrees.
+    *
+    * @param other tree to join with
+    * @param q     called for every pair of intersecting elements, the element
+    *              of this tree first
+    * @article Efficient Processing of Spatial Joins Using R-trees
+    * (Brinkhoff, Kriegel & Seeger, 1993)
+    */
+   public void join(NDRTree other, JoinQuery q) {
+      if (other.dimensions != this.dimensions) {
+         throw new IllegalArgumentException("trees differ in dimensions");
+      }
+      /*
+       * take the read locks in a global order, else two joins of the same
+       * trees in opposite directions could deadlock with queued writers
+       */
+      int h = System.identityHashCode(this);
+      int hOther = System.identityHashCode(other);
+      if (h < hOther) {
+         this.lockedJoin(this.lock, other.lock, other, q);
+      } else if (h > hOther) {
+         this.lockedJoin(other.lock, this.lock, other, q);
+      } else {
+         synchronized (JOIN_TIE_LOCK) {
+            this.lockedJoin(this.lock, other.lock, other, q);
+         }
+      }
+   }
+
+   private void lockedJoin(ReentrantReadWriteLock first,
+         ReentrantReadWriteLock second, NDRTree other, JoinQuery q) {
+      first.readLock().lock();
+      try {
+         second.readLock().lock();
+         try {
+            this.join(this.root, this.treeHeight - 1, null, other,
+                  other.root, other.treeHeight - 1, null, q);
+         } finally {
+            second.readLock().unlock();
+         }
+      } finally {
+         first.readLock().unlock();
+      }
+   }
+
+   /**
+    * @param mbbA bounding box of node <code>a</code> of this tree or
+    *             <code>null</code> for the root
+    * @param mbbB bounding box of node <code>b</code> of <code>other</code>
+    *             or <code>null</code> for the root
+    * @return <code>false</code> if <code>q</code> stopped the join
+    */
+   private boolean join(ObjectReference a, int levelA, NDRectangle mbbA,
+                        NDRTree other, ObjectReference b, int levelB,
+                        NDRectangle mbbB, JoinQuery q) {
+      if (levelA > levelB) {
+         final Node na = this.readNode(a);
+         for (int i = 0; i < na.size(); i++) {
+            final Entry ea = na.get(i);
+            if (mbbB == null || ea.getMBBox().intersects(mbbB)) {
+               if (!this.join(ea.getChild(), levelA - 1, ea.getMBBox(),
+                     other, b, levelB, mbbB, q)) {
+                  return false;
                }
             }
          }
+         return true;
+      }
+      if (levelB > levelA) {
+         final Node nb = other.readNode(b);
+         for (int j = 0; j < nb.size(); j++) {
+            final Entry eb = nb.get(j);
+            if (mbbA == null || eb.getMBBox().intersects(mbbA)) {
+               if (!this.join(a, levelA, mbbA, other, eb.getChild(),
+                     levelB - 1, eb.getMBBox(), q)) {
+                  return false;
+               }
+            }
+         }
+         return true;
+      }
+
+      final Node na = this.readNode(a);
+      final Node nb = other.readNode(b);
+      for (int i = 0; i < na.size(); i++) {
+         final Entry ea = na.get(i);
+         /*
+          * restrict the search space to the bounding box of the other node
+          */
+         if (mbbB != null && !ea.getMBBox().intersects(mbbB)) {
+            continue;
+         }
+         for (int j = 0; j < nb.size(); j++) {
+            final Entry eb = nb.get(j);
+            if (!ea.getMBBox().intersects(eb.getMBBox())) {
+               continue;
+            }
+            if (levelA == 0) {
+               if (!q.query(new NDRectangleKey(ea.getChild(), ea.getMBBox()),
+                     new NDRectangleKey(eb.getChild(), eb.getMBBox()))) {
+                  return false;
+               }
+            } else if (!this.join(ea.getChild(), levelA - 1, ea.getMBBox(),
+                  other, eb.getChild(), levelB - 1, eb.getMBBox(), q)) {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Returns the <code>k</code> elements nearest to <code>p</code>.
+    *
+    * @see #nearest(NDPoint, NDRectangle)
+    */
+   public List<NDRectangleKey> nearest(NDPoint p, int k, NDRectangle filter) {
+      if (k < 0) {
+         throw new IllegalArgumentException("k must not be negative");
+      }
+      this.lock.readLock().lock();
+      try {
+         final List<NDRectangleKey> result = new ArrayList<NDRectangleKey>(k);
+         final Iterator<NDRectangleKey> iter = this.nearest(p, filter);
+         while (result.size() < k && iter.hasNext()) {
+            result.add(iter.next());
+         }
+         return result;
+      } finally {
+         this.lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Browses the elements of this tree by increasing distance of their
+    * bounding boxes to <code>p</code>. Nodes and elements are kept in a
+    * priority queue ordered by their minimum distance, so a node is only
+    * read when it is closer to <code>p</code> than the next element to
+    * return. The tree must not be modified while browsing.
+    *
+    * @param p      point to which the distances are calculated
+    * @param filter only elements and subtrees, which intersect
+    *               <code>filter</code>, are browsed, e.g. those valid now.
+    *               <code>null</code> browses all elements
+    * @article Distance Browsing in Spatial Databases (Hjaltason & Samet,
+    * 1999)
+    */
+   public Iterator<NDRectangleKey> nearest(NDPoint p, NDRectangle filter) {
+      if (p.getDim() != this.dimensions) {
+         throw new IllegalArgumentException("point must have "
+               + this.dimensions + " dimensions");
+      }
+      return new NearestIterator(p, filter == null ? null : this
+            .formatRectangle(filter));
+   }
+
+   /**
+    * Node or element in the priority queue of a {@link NearestIterator}.
+    */
+   private static class NearestCandidate implements
+         Comparable<NearestCandidate> {
+
+      private final double distance;
+      private final ObjectReference node;
+      private final NDRectangleKey element;
+
+      NearestCandidate(double distance, ObjectReference node,
+                       NDRectangleKey element) {
+         this.distance = distance;
+         this.node = node;
+         this.element = element;
+      }
+
+      @Override
+      public int compareTo(NearestCandidate o) {
+         int c = Double.compare(this.distance, o.distance);
+         if (c == 0) {
+            // return elements before reading nodes of the same distance
+            c = Boolean.compare(this.element == null, o.element == null);
+         }
+         return c;
+      }
+   }
+
+   private class NearestIterator implements Iterator<NDRectangleKey> {
+
+      private final PriorityQueue<NearestCandidate> queue = new PriorityQueue<NearestCandidate>();
+      private final NDPoint p;
+      private final NDRectangle filter;
+      private NDRectangleKey next;
+
+      NearestIterator(NDPoint p, NDRectangle filter) {
+         this.p = p;
+         this.filter = filter;
+         this.queue.add(new NearestCandidate(0, root, null));
+      }
+
+      private NDRectangleKey advance() {
+         lock.readLock().lock();
+         try {
+            while (!this.queue.isEmpty()) {
+               final NearestCandidate c = this.queue.poll();
+               if (c.element != null) {
+                  return c.element;
+               }
+               final Node n = readNode(c.node);
+               for (int i = 0; i < n.size(); i++) {
+                  final NDRectangle mbb = n.get(i).getMBBox();
+                  if (this.filter != null && !this.filter.intersects(mbb)) {
+                     continue;
+                  }
+                  final double distance = mbb.quadraticMinDistance(this.p);
+                  if (n.isLeaf()) {
+                     this.queue.add(new NearestCandidate(distance, null,
+                           new NDRectangleKey(n.get(i).getChild(), mbb)));
+                  } else {
+                     this.queue.add(new NearestCandidate(distance, n.get(i)
+                           .getChild(), null));
+                  }
+               }
+            }
+            return null;
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      @Override
+      public boolean hasNext() {
+         if (this.next == null) {
+            this.next = this.advance();
+         }
+         return this.next != null;
+      }
+
+      @Override
+      public NDRectangleKey next() {
+         if (!this.hasNext()) {
+            throw new NoSuchElementException();
+         }
+         final NDRectangleKey result = this.next;
+         this.next = null;
+         return result;
+      }
+
+      @Override
+      public void remove() {
+         throw new UnsupportedOperationException();
       }
    }
 
@@ -293,6 +1066,142 @@ public class NDRTree implements NDRectangleKeyIndex {
       return this.maxCapacity;
    }
 
+   /**
+    * Returns the maximum capacity of directory nodes. It is larger than
+    * {@link #getMaxCapacity()} if the bounding boxes in directory nodes are
+    * quantized.
+    *
+    * @return the maximum capacity of directory nodes
+    */
+   public int getDirectoryCapacity() {
+      return this.directoryCapacity;
+   }
+
+   /**
+    * Stores the bounding boxes in directory nodes quantized to
+    * <code>bits</code> per coordinate relative to the bounding box of the
+    * node. They are rounded outward, so a directory entry may cover more
+    * than its subtree, but never less. Leaves keep exact bounding boxes.
+    * Directory nodes take as many entries as fit into the bytes of a leaf,
+    * which gives a higher fan-out and a lower tree. A {@link RTreeNodeCodec}
+    * storing the nodes must be created with the same <code>bits</code>, so
+    * that it writes the quantized bounding boxes.
+    * <p>
+    * Subclasses, whose bounding boxes are no plain coordinates, may refuse
+    * quantization.
+    *
+    * @param bits 8 or 16, or 0 to store exact bounding boxes
+    * @throws IllegalStateException         if this tree is not empty
+    * @throws UnsupportedOperationException if this tree does not support
+    *                                       quantized bounding boxes
+    */
+   public void setQuantization(int bits) {
+      if (bits != 0 && bits != 8 && bits != 16) {
+         throw new IllegalArgumentException(
+               "quantization must use 0, 8 or 16 bits");
+      }
+      this.lock.writeLock().lock();
+      try {
+         if (this.size != 0) {
+            throw new IllegalStateException("tree is not empty");
+         }
+         this.quantizationBits = bits;
+         this.directoryCapacity = this.computeDirectoryCapacity();
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Keeps the entries of new nodes in plain arrays, see {@link PackedNode}.
+    * Packed nodes take much less heap and let insertions and queries scan
+    * the coordinates of a node in one array. Nodes decoded by a
+    * {@link RTreeNodeCodec} are no packed nodes, so the layout only pays off
+    * for nodes kept on the heap, e.g. in the <code>DefaultStorage</code> or
+    * a buffer.
+    * <p>
+    * Subclasses, whose bounding boxes are no plain coordinates, may refuse
+    * packed nodes.
+    *
+    * @param packed whether new nodes should be packed
+    * @throws IllegalStateException         if this tree is not empty
+    * @throws UnsupportedOperationException if this tree does not support
+    *                                       packed nodes
+    */
+   public void setPacked(boolean packed) {
+      this.lock.writeLock().lock();
+      try {
+         if (this.size != 0) {
+            throw new IllegalStateException("tree is not empty");
+         }
+         this.packed = packed;
+         /*
+          * replace the empty root
+          */
+         this.deleteNode(this.root);
+         final Node rootNode = this.createNode(this.maxCapacity);
+         this.root = rootNode.getObjectReference();
+         this.treeHeight = 1;
+         this.storeNode(rootNode);
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * @return whether new nodes are {@link PackedNode} elements
+    * @see #setPacked(boolean)
+    */
+   public boolean isPacked() {
+      return this.packed;
+   }
+
+   /**
+    * Creates an empty node, a {@link PackedNode} if this tree uses packed
+    * nodes.
+    *
+    * @param capacity maximum capacity of the node
+    * @return the new node
+    */
+   protected Node createNode(int capacity) {
+      return this.packed ? new PackedNode(capacity, this.getDim()) : new Node(
+            capacity);
+   }
+
+   /**
+    * @return the number of quantized directory entries fitting into the
+    * bytes of an exact directory node
+    */
+   private int computeDirectoryCapacity() {
+      return getDirectoryCapacity(this.maxCapacity, this.getDim(),
+            this.quantizationBits, this.getAggregateByteSize(false));
+   }
+
+   /**
+    * Shared with {@link RTreeNodeCodec}, which has to decode directory
+    * nodes with the capacity of the tree.
+    *
+    * @param aggregateByteSize bytes of the count and the aggregated value in
+    *                          a directory entry
+    * @return the number of directory entries quantized to <code>bits</code>
+    * fitting into the bytes of an exact directory node with
+    * <code>maxCapacity</code> entries
+    */
+   static int getDirectoryCapacity(int maxCapacity, int dim, int bits,
+                                   int aggregateByteSize) {
+      if (bits == 0) {
+         return maxCapacity;
+      }
+      final int bytes = maxCapacity
+            * (IOUtils.referenceByteSize() + dim * 8 * 2 + aggregateByteSize);
+      int capacity = maxCapacity;
+      while (getQuantizedNodeByteSize(capacity + 1, dim, bits,
+            aggregateByteSize) <= bytes) {
+         capacity++;
+      }
+      return capacity;
+   }
+
    /**
     * Minimum Capacity of this tree
     *
@@ -320,13 +1229,17 @@ public class NDRTree implements NDRectangleKeyIndex {
     */
    @Override
    public boolean insert(final NDRectangleKey b) {
-
-      ArrayList<NodeEntryPair> path = this.createNewPath();
-      if (this.insert(path, new Entry(b), this.getLeafLevel())) {
-         this.size++;
-         return true;
-      } else {
-         return false;
+      this.lock.writeLock().lock();
+      try {
+         ArrayList<NodeEntryPair> path = this.createNewPath();
+         if (this.insert(path, this.createEntry(b), this.getLeafLevel())) {
+            this.size++;
+            return true;
+         } else {
+            return false;
+         }
+      } finally {
+         this.lock.writeLock().unlock();
       }
    }
 
@@ -340,6 +1253,155 @@ public class NDRTree implements NDRectangleKeyIndex {
       return this.size;
    }
 
+   /**
+    * Builds this tree bottom-up from <code>keys</code> instead of inserting
+    * them one by one. The entries of every level are ordered by
+    * Sort-Tile-Recursive and packed into nodes of
+    * <code>fillFactor * maxCapacity</code> entries, only the last node of a
+    * level may differ to meet the minimum capacity.
+    *
+    * @param keys       elements of the tree
+    * @param fillFactor fraction of the maximum capacity used by packed nodes
+    * @throws IllegalStateException if this tree is not empty
+    * @article STR: A Simple and Efficient Algorithm for R-Tree Packing
+    * (Leutenegger, Lopez & Edgington, 1997)
+    */
+   public void bulkLoad(Iterator<NDRectangleKey> keys, double fillFactor) {
+      if (fillFactor <= 0 || fillFactor > 1) {
+         throw new IllegalArgumentException(
+               "fill factor must be between 0 and 1");
+      }
+      this.lock.writeLock().lock();
+      try {
+         if (this.size != 0) {
+            throw new IllegalStateException("tree is not empty");
+         }
+         ArrayList<Entry> level = new ArrayList<Entry>();
+         while (keys.hasNext()) {
+            level.add(this.createEntry(this.formatKey(keys.next())));
+         }
+         if (level.isEmpty()) {
+            return;
+         }
+         final int size = level.size();
+
+         this.deleteNode(this.root);
+         int height = 1;
+         while (true) {
+            final int maxCapacity = height == 1 ? this.maxCapacity
+                  : this.directoryCapacity;
+            final int capacity = Math.max(2, Math.max(
+                  (int) (maxCapacity * this.minFanout),
+                  (int) Math.round(maxCapacity * fillFactor)));
+
+            this.sortTileRecursive(level, 0, capacity);
+
+            final ArrayList<Entry> upper = new ArrayList<Entry>();
+            int from = 0;
+            for (int to : this.packNodes(level.size(), capacity, maxCapacity)) {
+               final Node n = this.createNode(maxCapacity);
+               for (int i = from; i < to; i++) {
+                  n.addEntry(level.get(i));
+               }
+               this.storeNode(n);
+               final Entry e = new Entry(this.unionEntries(n, 0, n.size()), n);
+               this.aggregate(e, n);
+               upper.add(e);
+               from = to;
+            }
+            if (upper.size() == 1) {
+               this.root = upper.get(0).getChild();
+               break;
+            }
+            level = upper;
+            height++;
+         }
+         this.treeHeight = height;
+         this.size = size;
+      } finally {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Sorts <code>entries</code> by the centers of their bounding boxes in
+    * <code>dim</code>, cuts them into slabs and sorts the slabs by the next
+    * dimensions.
+    */
+   private void sortTileRecursive(List<Entry> entries, final int dim,
+                                  int capacity) {
+      Collections.sort(entries, new Comparator<Entry>() {
+         @Override
+         public int compare(Entry e1, Entry e2) {
+            return Double.compare(center(e1.getMBBox(), dim),
+                  center(e2.getMBBox(), dim));
+         }
+      });
+      if (dim == this.dimensions - 1 || entries.size() <= capacity) {
+         return;
+      }
+      final int pages = (entries.size() + capacity - 1) / capacity;
+      final int slabs = (int) Math.ceil(Math.pow(pages,
+            1.0 / (this.dimensions - dim)));
+      final int slabSize = capacity * ((pages + slabs - 1) / slabs);
+
+      for (int from = 0; from < entries.size(); from += slabSize) {
+         this.sortTileRecursive(entries.subList(from,
+               Math.min(entries.size(), from + slabSize)), dim + 1, capacity);
+      }
+   }
+
+   private static double center(NDRectangle r, int dim) {
+      return r.getBegin().getValue(dim) + r.getIntervalLength(dim) / 2;
+   }
+
+   /**
+    * Cuts <code>count</code> entries into nodes of <code>capacity</code>
+    * entries. A remainder below the minimum capacity is added to the last
+    * full node or shared with it.
+    *
+    * @param maxCapacity maximum capacity of the nodes
+    * @return the end index of every node
+    */
+   private int[] packNodes(int count, int capacity, int maxCapacity) {
+      final int full = count / capacity;
+      final int rest = count % capacity;
+      final int minCapacity = (int) (maxCapacity * this.minFanout);
+
+      if (rest == 0 || full == 0 || rest >= minCapacity) {
+         final int[] ends = new int[full + (rest == 0 ? 0 : 1)];
+         for (int i = 0; i < full; i++) {
+            ends[i] = (i + 1) * capacity;
+         }
+         ends[ends.length - 1] = count;
+         return ends;
+      }
+      final int[] ends = new int[capacity + rest <= maxCapacity ? full
+            : full + 1];
+      for (int i = 0; i < full - 1; i++) {
+         ends[i] = (i + 1) * capacity;
+      }
+      if (ends.length > full) {
+         ends[full - 1] = (full - 1) * capacity + (capacity + rest) / 2;
+      }
+      ends[ends.length - 1] = count;
+      return ends;
+   }
+
+   /**
+    * Converts a key into the form stored in this tree.
+    */
+   protected NDRectangleKey formatKey(NDRectangleKey key) {
+      return key;
+   }
+
+   /**
+    * Converts a rectangle into the form stored in this tree.
+    */
+   protected NDRectangle formatRectangle(NDRectangle r) {
+      return r;
+   }
+
    /**
     * Adjusts the bounding boxes of every <code>parentEntry</code> in the given
     * <code>ArrayList</code> of <code>NodeEntryPair</code>.
@@ -359,7 +1421,8 @@ public class NDRTree implements NDRectangleKeyIndex {
          Node p = path.get(i - 1).getNode();
 
          if (e != -1) {
-            p.get(e).setMBBox(this.unionEntries(n, 0, n.size()));
+            p.setMBBox(e, this.unionEntries(n, 0, n.size()));
+            this.aggregate(p, e, n);
          }
 
          this.storeNode(p);
@@ -371,21 +1434,23 @@ public class NDRTree implements NDRectangleKeyIndex {
    /**
     * Adjust the bounding boxes of every <code>parentEntry</code> in the given
     * <code>ArrayList</code> of <code>NodeEntryPair</code> elements by unioning
-    * it with the given <code>mbbox</code>.
+    * it with the bounding box of <code>added</code> and adds its count and
+    * aggregate.
     *
     * @param path  List of <code>NodeEntryPairs</code> which should be adjusted
-    * @param mbbox Bounding Box by which every <code>Entry</code> in
-    *              <code>path</code> should be enhanced with.
+    * @param added <code>Entry</code> which has been added below every
+    *              <code>Entry</code> in <code>path</code>
     */
    protected void adjustNode(final ArrayList<NodeEntryPair> path,
-                             final NDRectangle mbbox) {
+                             final Entry added) {
 
       for (int i = (path.size() - 1); i > 0; i--) {
          int e = path.get(i).indexInParent();
          Node p = path.get(i - 1).getNode();
 
          if (e != -1) {
-            p.get(e).setMBBox(p.get(e).getMBBox().union(mbbox));
+            p.setMBBox(e, p.getMBBox(e).union(added.getMBBox()));
+            this.aggregate(p, e, added);
          }
 			/*
 			 * Update _parent_ node on disk
@@ -416,10 +1481,10 @@ public class NDRTree implements NDRectangleKeyIndex {
          enlargement = this.computeAreaEnlargement(n, index, mbbox);
          if (enlargement < bestEnlargement) {
             bestEnlargement = enlargement;
-            bestArea = n.get(index).getMBBox().volume();
+            bestArea = this.volume(n, index);
             bestIndex = index;
          } else if (enlargement == bestEnlargement) {
-            area = n.get(index).getMBBox().volume();
+            area = this.volume(n, index);
             if (area <= bestArea) {
                bestEnlargement = enlargement;
                bestArea = area;
@@ -435,7 +1500,7 @@ public class NDRTree implements NDRectangleKeyIndex {
          bestIndex = (int) (Math.random() * n.size());
       }
 
-      return new NodeEntryPair(bestIndex, n.get(bestIndex).getChild());
+      return new NodeEntryPair(bestIndex, n.getChild(bestIndex));
 
    }
 
@@ -452,8 +1517,64 @@ public class NDRTree implements NDRectangleKeyIndex {
     */
    protected double computeAreaEnlargement(final Node n, final int index,
                                            final NDRectangle mbbox) {
-      return (n.get(index).getMBBox().union(mbbox)).volume()
-            - n.get(index).getMBBox().volume();
+      final double[] c = n.getCoordinates();
+      if (c != null && mbbox.getClass() == NDRectangle.class) {
+         /*
+          * same arithmetic as below on the coordinates of a packed node
+          */
+         final int dim = mbbox.getDim();
+         final int offset = 2 * dim * index;
+         double union = 1.0;
+         double volume = 1.0;
+         for (int d = 0; d < dim; d++) {
+            final double begin = c[offset + d];
+            final double end = c[offset + dim + d];
+            union *= Math.abs(Math.max(end, mbbox.getEnd().getValue(d))
+                  - Math.min(begin, mbbox.getBegin().getValue(d)));
+            volume *= Math.abs(end - begin);
+         }
+         return union - volume;
+      }
+      final NDRectangle r = n.get(index).getMBBox();
+      if (mbbox.getClass() == NDRectangle.class
+            && r.getClass() == NDRectangle.class) {
+         /*
+          * same arithmetic as below without creating the union
+          */
+         final int dim = mbbox.getDim();
+         double union = 1.0;
+         double volume = 1.0;
+         for (int d = 0; d < dim; d++) {
+            final double begin = r.getBegin().getValue(d);
+            final double end = r.getEnd().getValue(d);
+            union *= Math.abs(Math.max(end, mbbox.getEnd().getValue(d))
+                  - Math.min(begin, mbbox.getBegin().getValue(d)));
+            volume *= Math.abs(end - begin);
+         }
+         return union - volume;
+      }
+      return r.union(mbbox).volume() - r.volume();
+   }
+
+   /**
+    * Computes the volume of the bounding box of the <code>Entry</code> at
+    * position <code>index</code> in <code>n</code>, without creating it for
+    * a packed node.
+    *
+    * @return {@link NDRectangle#volume()} of the bounding box
+    */
+   protected double volume(final Node n, final int index) {
+      final double[] c = n.getCoordinates();
+      if (c == null) {
+         return n.getMBBox(index).volume();
+      }
+      final int dim = this.getDim();
+      final int offset = 2 * dim * index;
+      double volume = 1.0;
+      for (int d = 0; d < dim; d++) {
+         volume *= Math.abs(c[offset + dim + d] - c[offset + d]);
+      }
+      return volume;
    }
 
    /**
@@ -507,8 +1628,9 @@ public class NDRTree implements NDRectangleKeyIndex {
 				/*
 				 * parentEntry of n, only one step of adjustTree
 				 */
-            p.get(path.get(currentLevel).indexInParent()).setMBBox(
+            p.setMBBox(path.get(currentLevel).indexInParent(),
                   this.unionEntries(n, 0, n.size()));
+            this.aggregate(p, path.get(currentLevel).indexInParent(), n);
 				/*
 				 * Update the parent node
 				 */
@@ -784,7 +1906,7 @@ public class NDRTree implements NDRectangleKeyIndex {
     * @param level level at which the <code>Entry</code> should be added.
     * @return <code>true</code> if the <code>Entry</code> has been inserted
     * succesfully.
-    * @see {@link #adjustNode(ArrayList<NodeEntryPair>, NDRectangle)}
+    * @see {@link #adjustNode(ArrayList<NodeEntryPair>, Entry)}
     * @see {@link #split(ArrayList<NodeEntryPair>)}
     */
    protected boolean insert(ArrayList<NodeEntryPair> path, final Entry toAdd,
@@ -797,7 +1919,7 @@ public class NDRTree implements NDRectangleKeyIndex {
          n.addEntry(toAdd);
          this.storeNode(n);
 
-         this.adjustNode(path, toAdd.getMBBox());
+         this.adjustNode(path, toAdd);
 
          while (path.size() > 0 && n.isFull()) {
             this.split(path);
@@ -1268,7 +2390,7 @@ public class NDRTree implements NDRectangleKeyIndex {
       Node father;
 
       if (path.get(nodeLevel).indexInParent() == -1) {
-         final Node newRoot = new Node(this.getMaxCapacity());
+         final Node newRoot = this.createNode(this.directoryCapacity);
          this.deleteNode(this.root);
          this.root = newRoot.getObjectReference();
          father = newRoot;
@@ -1288,7 +2410,7 @@ public class NDRTree implements NDRectangleKeyIndex {
       while (n.size() > 0) {
          n.removeLast();
       }
-      final Node secondNode = new Node(this.getMaxCapacity());
+      final Node secondNode = this.createNode(n.getMaxCapacity());
 
       for (final Entry e : c.firstNode) {
          firstNode.addEntry(e);
@@ -1300,8 +2422,13 @@ public class NDRTree implements NDRectangleKeyIndex {
       this.storeNode(firstNode);
       this.storeNode(secondNode);
 
-      father.addEntry(new Entry(c.coveringFirst, firstNode));
-      father.addEntry(new Entry(c.coveringSecond, secondNode));
+      final Entry first = new Entry(c.coveringFirst, firstNode);
+      this.aggregate(first, firstNode);
+      final Entry second = new Entry(c.coveringSecond, secondNode);
+      this.aggregate(second, secondNode);
+
+      father.addEntry(first);
+      father.addEntry(second);
 
       this.storeNode(father);
 
@@ -1377,6 +2504,169 @@ public class NDRTree implements NDRectangleKeyIndex {
       }
    }
 
+   /**
+    * Rounds the bounding boxes of the entries of the directory node
+    * <code>n</code> outward to a grid of <code>2^bits - 1</code> steps per
+    * dimension across the bounding box of <code>n</code>, as they would be
+    * stored. Coordinates on the grid are kept, so the bounding box of
+    * <code>n</code> does not change.
+    *
+    * @param n directory node
+    */
+   private void quantize(final Node n) {
+      final NDRectangle frame = this.unionEntries(n, 0, n.size());
+      final int steps = (1 << this.quantizationBits) - 1;
+
+      for (int i = 0; i < n.size(); i++) {
+         final NDRectangle r = n.get(i).getMBBox();
+         final double[] begin = r.getBegin().toArray();
+         final double[] end = r.getEnd().toArray();
+         boolean changed = false;
+
+         for (int d = 0; d < begin.length; d++) {
+            final double low = frame.getBegin().getValue(d);
+            final double high = frame.getEnd().getValue(d);
+            final double span = high - low;
+            if (!(span > 0) || Double.isInfinite(span)
+                  || Double.isNaN(begin[d]) || Double.isNaN(end[d])) {
+               continue;
+            }
+            int q = (int) Math.max(0,
+                  Math.min(steps, Math.floor((begin[d] - low) / span * steps)));
+            while (q > 0 && grid(low, high, q, steps) > begin[d]) {
+               q--;
+            }
+            if (q < steps && grid(low, high, q + 1, steps) <= begin[d]) {
+               q++;
+            }
+            final double b = grid(low, high, q, steps);
+
+            q = (int) Math.max(0,
+                  Math.min(steps, Math.ceil((end[d] - low) / span * steps)));
+            while (q < steps && grid(low, high, q, steps) < end[d]) {
+               q++;
+            }
+            if (q > 0 && grid(low, high, q - 1, steps) >= end[d]) {
+               q--;
+            }
+            final double e = grid(low, high, q, steps);
+
+            if (b != begin[d] || e != end[d]) {
+               begin[d] = b;
+               end[d] = e;
+               changed = true;
+            }
+         }
+         if (changed) {
+            n.setMBBox(i, new NDRectangle(new NDPoint(begin), new NDPoint(
+                  end)));
+         }
+      }
+   }
+
+   /**
+    * @return the <code>q</code>-th of <code>steps + 1</code> grid points
+    * from <code>low</code> to <code>high</code>
+    */
+   static double grid(double low, double high, int q, int steps) {
+      return q == steps ? high : low + q * (high - low) / steps;
+   }
+
+   /**
+    * Creates the leaf <code>Entry</code> of <code>k</code>.
+    *
+    * @param k element to be stored in a leaf
+    * @return <code>Entry</code> of <code>k</code> with its aggregated value
+    */
+   protected Entry createEntry(final NDRectangleKey k) {
+      final Entry e = new Entry(k);
+      if (this.aggregate != null) {
+         e.setAggregate(this.aggregate.value(k));
+      }
+      return e;
+   }
+
+   /**
+    * Sets the count and the aggregate of <code>parent</code> to the ones of
+    * all entries in <code>n</code>.
+    *
+    * @param parent <code>Entry</code> of <code>n</code>
+    * @param n      child <code>Node</code> of <code>parent</code>
+    */
+   protected void aggregate(final Entry parent, final Node n) {
+      if (!this.aggregated) {
+         return;
+      }
+      int count = 0;
+      Object value = null;
+      for (int i = 0; i < n.size(); i++) {
+         count += n.get(i).getCount();
+         if (this.aggregate != null) {
+            value = i == 0 ? n.get(i).getAggregate() : this.aggregate.combine(
+                  value, n.get(i).getAggregate());
+         }
+      }
+      parent.setCount(count);
+      parent.setAggregate(value);
+   }
+
+   /**
+    * Sets the count and the aggregate of the <code>Entry</code> at
+    * <code>index</code> in <code>p</code> to the ones of all entries in its
+    * child <code>n</code>.
+    *
+    * @param p     parent <code>Node</code> of <code>n</code>
+    * @param index position of the <code>Entry</code> of <code>n</code> in
+    *              <code>p</code>
+    * @param n     child <code>Node</code>
+    */
+   protected void aggregate(final Node p, final int index, final Node n) {
+      if (!this.aggregated) {
+         return;
+      }
+      final Entry parent = p.get(index);
+      this.aggregate(parent, n);
+      p.setAggregate(index, parent.getCount(), parent.getAggregate());
+   }
+
+   /**
+    * Adds the count and the aggregate of <code>added</code> to the
+    * <code>Entry</code> at <code>index</code> in <code>p</code>.
+    *
+    * @param p     <code>Node</code> of the <code>Entry</code> enclosing
+    *              <code>added</code>
+    * @param index position of the enclosing <code>Entry</code> in
+    *              <code>p</code>
+    * @param added <code>Entry</code> which has been added below
+    */
+   protected void aggregate(final Node p, final int index, final Entry added) {
+      if (!this.aggregated) {
+         return;
+      }
+      final Entry parent = p.get(index);
+      this.aggregate(parent, added);
+      p.setAggregate(index, parent.getCount(), parent.getAggregate());
+   }
+
+   /**
+    * Adds the count and the aggregate of <code>added</code> to
+    * <code>parent</code>.
+    *
+    * @param parent <code>Entry</code> enclosing <code>added</code>
+    * @param added  <code>Entry</code> which has been added below
+    *               <code>parent</code>
+    */
+   protected void aggregate(final Entry parent, final Entry added) {
+      if (!this.aggregated) {
+         return;
+      }
+      parent.setCount(parent.getCount() + added.getCount());
+      if (this.aggregate != null) {
+         parent.setAggregate(this.aggregate.combine(parent.getAggregate(),
+               added.getAggregate()));
+      }
+   }
+
    /**
     * Unions <code>length</code> <code>Entry</code> elements in
     * <code>ArrayList</code> <code>s</code>, beginning with the
@@ -1409,6 +2699,25 @@ public class NDRTree implements NDRectangleKeyIndex {
    protected NDRectangle unionEntries(final Node n, final int begin,
                                       final int length) {
 
+      final double[] c = n.getCoordinates();
+      if (c != null) {
+         /*
+          * one pass over the coordinates of a packed node
+          */
+         final int dim = this.getDim();
+         final double[] low = Arrays.copyOfRange(c, 2 * dim * begin, 2 * dim
+               * begin + dim);
+         final double[] high = Arrays.copyOfRange(c, 2 * dim * begin + dim,
+               2 * dim * (begin + 1));
+         for (int i = begin + 1; i < begin + length; i++) {
+            for (int d = 0; d < dim; d++) {
+               low[d] = Math.min(low[d], c[2 * dim * i + d]);
+               high[d] = Math.max(high[d], c[2 * dim * i + dim + d]);
+            }
+         }
+         return new NDRectangle(new NDPoint(low), new NDPoint(high));
+      }
+
       // System.out.println("union entries from "+begin+" to "+(+begin+length));
       NDRectangle result = n.get(begin).getMBBox();
 
@@ -1423,11 +2732,15 @@ public class NDRTree implements NDRectangleKeyIndex {
 
    @Override
    public boolean update(NDRectangleKey oldOne, NDRectangleKey newOne) {
-
-      if (!this.delete(oldOne)) {
-         return false;
-      } else {
-         return this.insert(newOne);
+      this.lock.writeLock().lock();
+      try {
+         if (!this.delete(oldOne)) {
+            return false;
+         } else {
+            return this.insert(newOne);
+         }
+      } finally {
+         this.lock.writeLock().unlock();
       }
    }
 
@@ -1450,6 +2763,9 @@ public class NDRTree implements NDRectangleKeyIndex {
    }
 
    protected void storeNode(Node n) {
+      if (this.quantizationBits != 0 && !n.isLeaf()) {
+         this.quantize(n);
+      }
       ioacc.store(new SimpleStorable(n.getObjectReference(), n, this
             .getNodeByteSize(n)));
    }
@@ -1457,8 +2773,39 @@ public class NDRTree implements NDRectangleKeyIndex {
    private StorageManager ioacc = DefaultStorage.getInstance();
 
    protected int getNodeByteSize(Node n) {
+      if (this.quantizationBits != 0 && !n.isLeaf()) {
+         return this.getQuantizedNodeByteSize(n.getMaxCapacity());
+      }
       return n.getMaxCapacity()
-            * (IOUtils.referenceByteSize() + (this.getDim() * 8 * 2));
+            * (IOUtils.referenceByteSize() + (this.getDim() * 8 * 2) + this
+            .getAggregateByteSize(n.isLeaf()));
+   }
+
+   /**
+    * @param leaf whether the entries are stored in a leaf
+    * @return bytes of the count and the aggregated value stored in an entry
+    * next to its child and bounding box. Only directory entries of an
+    * aggregate tree store a count, the count of an element is always 1.
+    */
+   protected int getAggregateByteSize(boolean leaf) {
+      return (leaf || !this.aggregated ? 0 : Entry.COUNT_BYTE_SIZE)
+            + this.aggregateByteSize;
+   }
+
+   /**
+    * A directory node with quantized bounding boxes stores its own bounding
+    * box exactly and the ones of its entries relative to it.
+    */
+   private int getQuantizedNodeByteSize(int capacity) {
+      return getQuantizedNodeByteSize(capacity, this.getDim(),
+            this.quantizationBits, this.getAggregateByteSize(false));
+   }
+
+   private static int getQuantizedNodeByteSize(int capacity, int dim,
+                                               int bits, int aggregateByteSize) {
+      return dim * 8 * 2 + capacity
+            * (IOUtils.referenceByteSize() + dim * 2 * bits / 8
+            + aggregateByteSize);
    }
 
    @Override
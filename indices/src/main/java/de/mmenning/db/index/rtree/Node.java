@@ -4,6 +4,7 @@ import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Comparator;
 
+import de.mmenning.db.index.NDRectangle;
 import de.mmenning.db.storage.ObjectReference;
 import de.mmenning.db.storage.Referable;
 import de.mmenning.util.FixedArrayList;
@@ -36,6 +37,16 @@ public class Node implements Referable, Serializable {
 	 */
 	private int lastEntry;
 
+	/**
+	 * Coordinates of the bounding boxes of all entries in one array: for
+	 * every Entry the begin values of all dimensions followed by the end
+	 * values. Built on demand by queries and dropped whenever the entries
+	 * change, so only Nodes, which are read repeatedly without being
+	 * modified, keep it. It is a copy in addition to the entries, a
+	 * {@link PackedNode} keeps only the coordinates instead.
+	 */
+	private transient volatile double[] bounds;
+
 	public int getMaxCapacity() {
 		return this.entries.length - 1;
 	}
@@ -56,6 +67,15 @@ public class Node implements Referable, Serializable {
 		this.or = ObjectReference.getReference(this);
 	}
 
+	/**
+	 * Construct a Node without an array of Entry elements for a subclass,
+	 * which keeps its entries itself and overrides all methods accessing
+	 * them.
+	 */
+	Node() {
+		this(null, -1);
+	}
+
 	/**
 	 * Construct a empty Node with father as the father element
 	 * 
@@ -66,6 +86,21 @@ public class Node implements Referable, Serializable {
 		// this((Entry[]) Array.newInstance(Entry.class, capacity + 1), -1);
 	}
 
+	/**
+	 * Construct a empty Node with a given reference, e.g. to decode a stored
+	 * Node.
+	 * 
+	 * @param capacity
+	 *            maximum capacity of the Node
+	 * @param or
+	 *            reference of the Node
+	 */
+	Node(final int capacity, final ObjectReference or) {
+		this.entries = new Entry[capacity + 1];
+		this.lastEntry = -1;
+		this.or = or;
+	}
+
 	/**
 	 * Get Entry at position index
 	 * 
@@ -81,6 +116,28 @@ public class Node implements Referable, Serializable {
 		return this.entries[index];
 	}
 
+	/**
+	 * Get the reference to the child of the Entry at position index.
+	 * 
+	 * @param index
+	 *            index of the entry
+	 * @return child of the Entry at position index
+	 */
+	ObjectReference getChild(final int index) {
+		return this.get(index).getChild();
+	}
+
+	/**
+	 * Get the bounding box of the Entry at position index.
+	 * 
+	 * @param index
+	 *            index of the entry
+	 * @return bounding box of the Entry at position index
+	 */
+	NDRectangle getMBBox(final int index) {
+		return this.get(index).getMBBox();
+	}
+
 	/**
 	 * Returns all Entries in this Node a List.
 	 * 
@@ -124,6 +181,7 @@ public class Node implements Referable, Serializable {
 	}
 
 	public Entry removeLast() {
+		this.bounds = null;
 		final Entry ret = this.entries[this.lastEntry];
 		this.entries[this.lastEntry--] = null;
 		return ret;
@@ -145,6 +203,7 @@ public class Node implements Referable, Serializable {
 	 *            Comparator over Entry elements which defines the sort Method
 	 */
 	public void sort(final Comparator<Entry> comparator) {
+		this.bounds = null;
 		Arrays.sort(this.entries, comparator);
 	}
 
@@ -156,9 +215,24 @@ public class Node implements Referable, Serializable {
 	 * @param values
 	 */
 	public void sort(final double[] values) {
+		this.bounds = null;
 		Sort.sort(this.entries, values);
 	}
 
+	/**
+	 * Sort the Entry elements in this Node ascending by the begin or the end
+	 * value of their bounding boxes in one dimension.
+	 * 
+	 * @param dim
+	 *            dimension to sort by
+	 * @param greater
+	 *            whether to sort by the end values instead of the begin
+	 *            values
+	 */
+	void sort(final int dim, final boolean greater) {
+		this.sort(new EntryComparator(dim, greater));
+	}
+
 	@Override
 	public String toString() {
 		return this.getObjectReference() + " " + (this.size()) + "/"
@@ -183,6 +257,7 @@ public class Node implements Referable, Serializable {
 		}
 
 		if (!this.isFull()) {
+			this.bounds = null;
 			this.entries[++this.lastEntry] = toAdd;
 		} else {
 			throw new RuntimeException("Node " + this + " is full!");
@@ -226,6 +301,7 @@ public class Node implements Referable, Serializable {
 	 */
 	public Entry removeEntry(final int entryIndex) {
 		if (entryIndex != -1) {
+			this.bounds = null;
 			Entry removed = this.entries[entryIndex];
 			if (entryIndex != this.lastEntry) {
 				this.entries[entryIndex] = this.entries[this.lastEntry];
@@ -238,6 +314,85 @@ public class Node implements Referable, Serializable {
 		}
 	}
 
+	/**
+	 * Set the bounding box of the Entry at position index. Bounding boxes of
+	 * entries in a Node must be changed by this method, so that
+	 * {@link #getBounds()} stays consistent.
+	 * 
+	 * @param index
+	 *            position of the Entry
+	 * @param r
+	 *            new bounding box of the Entry
+	 */
+	public void setMBBox(final int index, final NDRectangle r) {
+		this.get(index).setMBBox(r);
+		this.bounds = null;
+	}
+
+	/**
+	 * Set the count and the aggregated value of the Entry at position index.
+	 * Like bounding boxes, they must be changed by this method, since the
+	 * entries of a {@link PackedNode} are no objects, which could be changed.
+	 * 
+	 * @param index
+	 *            position of the Entry
+	 * @param count
+	 *            number of elements below the Entry
+	 * @param aggregate
+	 *            aggregated value of the Entry
+	 */
+	void setAggregate(final int index, final int count,
+			final Object aggregate) {
+		final Entry e = this.get(index);
+		e.setCount(count);
+		e.setAggregate(aggregate);
+	}
+
+	/**
+	 * Returns the coordinates of the bounding boxes of all entries in one
+	 * array. The Entry at index i begins at position <code>2 * dim * i</code>
+	 * with its begin values, followed by its end values. The array must not
+	 * be changed and may be longer than needed for the entries.
+	 * <p>
+	 * The array is kept until the entries change. Only queries should call
+	 * this method, the array of a Node, which is about to be modified, would
+	 * be dropped right after being built.
+	 * 
+	 * @return the coordinates of the entries or <code>null</code>, if the
+	 *         Node is empty or holds bounding boxes of a subclass of
+	 *         NDRectangle, which may interpret them differently
+	 */
+	double[] getBounds() {
+		double[] b = this.bounds;
+		if (b == null && !this.isEmpty()) {
+			final int dim = this.entries[0].getMBBox().getDim();
+			b = new double[2 * dim * this.size()];
+			for (int i = 0; i <= this.lastEntry; i++) {
+				final NDRectangle r = this.entries[i].getMBBox();
+				if (r.getClass() != NDRectangle.class) {
+					return null;
+				}
+				for (int d = 0; d < dim; d++) {
+					b[2 * dim * i + d] = r.getBegin().getValue(d);
+					b[2 * dim * i + dim + d] = r.getEnd().getValue(d);
+				}
+			}
+			this.bounds = b;
+		}
+		return b;
+	}
+
+	/**
+	 * Returns the coordinates of the entries like {@link #getBounds()}, but
+	 * only if the Node keeps them anyway, so that methods modifying the Node
+	 * may use them.
+	 * 
+	 * @return the coordinates of a {@link PackedNode} or <code>null</code>
+	 */
+	double[] getCoordinates() {
+		return null;
+	}
+
 	private final ObjectReference or;
 
 	@Override
@@ -0,0 +1,340 @@
+package de.mmenning.db.index.rtree;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.storage.ObjectReference;
+import de.mmenning.util.FixedArrayList;
+import de.mmenning.util.Sort;
+
+/**
+ * Node, which keeps its entries in plain arrays instead of Entry objects: the
+ * coordinates of all bounding boxes in one array laid out like
+ * {@link Node#getBounds()}, the ids of the children in another one, and the
+ * counts and aggregated values in two more. A Node of an NDRTree with
+ * <code>M</code> entries of <code>d</code> dimensions thus consists of a
+ * handful of arrays instead of <code>M</code> Entry, NDRectangle, NDPoint,
+ * <code>double[]</code> and ObjectReference objects each.
+ * <p>
+ * {@link #get(int)} and {@link #getAll()} create new Entry objects, so an
+ * Entry must be changed by {@link #setMBBox(int, NDRectangle)} and
+ * {@link #setAggregate(int, int, Object)}. Like the entries decoded by
+ * {@link RTreeNodeCodec}, the references to the elements of a leaf are
+ * recreated with Object as their class. Only bounding boxes of the plain
+ * class NDRectangle can be stored.
+ *
+ * @see NDRTree#setPacked(boolean)
+ */
+public class PackedNode extends Node {
+
+	private static final long serialVersionUID = 2311947390552316425L;
+
+	private final int dim;
+
+	/**
+	 * begin values followed by the end values of the bounding box of every
+	 * entry, <code>2 * dim</code> values per entry
+	 */
+	private final double[] coords;
+
+	/**
+	 * ids of the references to the children
+	 */
+	private final long[] ids;
+
+	/**
+	 * number of elements below every entry
+	 */
+	private final int[] counts;
+
+	/**
+	 * aggregated values of the entries, <code>null</code> until the first
+	 * one is set
+	 */
+	private Object[] aggregates;
+
+	/**
+	 * whether the children are Nodes, determined by the first added Entry
+	 */
+	private boolean directory;
+
+	private int size;
+
+	/**
+	 * Construct an empty Node.
+	 *
+	 * @param capacity
+	 *            maximum capacity of the Node
+	 * @param dim
+	 *            number of dimensions of the bounding boxes
+	 */
+	public PackedNode(final int capacity, final int dim) {
+		super();
+		this.dim = dim;
+		this.coords = new double[2 * dim * (capacity + 1)];
+		this.ids = new long[capacity + 1];
+		this.counts = new int[capacity + 1];
+	}
+
+	@Override
+	public int getMaxCapacity() {
+		return this.ids.length - 1;
+	}
+
+	private void checkIndex(final int index) {
+		if (index >= this.size || index < 0) {
+			throw new IllegalArgumentException("index " + index + " size "
+					+ this.size);
+		}
+	}
+
+	@Override
+	public Entry get(final int index) {
+		this.checkIndex(index);
+		final Entry e = new Entry(new NDRectangleKey(this.getChild(index),
+				this.getMBBox(index)));
+		e.setCount(this.counts[index]);
+		if (this.aggregates != null) {
+			e.setAggregate(this.aggregates[index]);
+		}
+		return e;
+	}
+
+	@Override
+	ObjectReference getChild(final int index) {
+		this.checkIndex(index);
+		return ObjectReference.getReference(this.ids[index],
+				this.directory ? Node.class : Object.class);
+	}
+
+	@Override
+	NDRectangle getMBBox(final int index) {
+		this.checkIndex(index);
+		final int offset = 2 * this.dim * index;
+		return new NDRectangle(new NDPoint(Arrays.copyOfRange(this.coords,
+				offset, offset + this.dim)), new NDPoint(Arrays.copyOfRange(
+				this.coords, offset + this.dim, offset + 2 * this.dim)));
+	}
+
+	@Override
+	public FixedArrayList<Entry> getAll() {
+		final Entry[] all = new Entry[this.ids.length];
+		for (int i = 0; i < this.size; i++) {
+			all[i] = this.get(i);
+		}
+		return new FixedArrayList<Entry>(all, this.size - 1);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	@Override
+	public boolean isFull() {
+		return this.size == this.ids.length;
+	}
+
+	@Override
+	public boolean isLeaf() {
+		return this.isEmpty() || !this.directory;
+	}
+
+	@Override
+	public Entry removeLast() {
+		final Entry ret = this.get(this.size - 1);
+		this.size--;
+		if (this.aggregates != null) {
+			this.aggregates[this.size] = null;
+		}
+		return ret;
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public void sort(final Comparator<Entry> comparator) {
+		final Entry[] all = this.removeAll();
+		Arrays.sort(all, comparator);
+		this.addAll(all);
+	}
+
+	@Override
+	public void sort(final double[] values) {
+		final Entry[] all = this.removeAll();
+		Sort.sort(all, values);
+		this.addAll(all);
+	}
+
+	/**
+	 * Sorts the coordinates directly, without creating Entry objects. The
+	 * sort is stable, like the one of Node.
+	 */
+	@Override
+	void sort(final int dim, final boolean greater) {
+		final int width = 2 * this.dim;
+		final int offset = greater ? this.dim + dim : dim;
+		final Integer[] order = new Integer[this.size];
+		for (int i = 0; i < this.size; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(coords[o1 * width + offset], coords[o2
+						* width + offset]);
+			}
+		});
+
+		final double[] c = Arrays.copyOf(this.coords, width * this.size);
+		final long[] id = Arrays.copyOf(this.ids, this.size);
+		final int[] count = Arrays.copyOf(this.counts, this.size);
+		final Object[] aggregate = this.aggregates == null ? null : Arrays
+				.copyOf(this.aggregates, this.size);
+		for (int i = 0; i < this.size; i++) {
+			final int from = order[i];
+			System.arraycopy(c, from * width, this.coords, i * width, width);
+			this.ids[i] = id[from];
+			this.counts[i] = count[from];
+			if (aggregate != null) {
+				this.aggregates[i] = aggregate[from];
+			}
+		}
+	}
+
+	private Entry[] removeAll() {
+		final Entry[] all = new Entry[this.size];
+		for (int i = 0; i < all.length; i++) {
+			all[i] = this.get(i);
+		}
+		this.size = 0;
+		return all;
+	}
+
+	private void addAll(final Entry[] all) {
+		for (final Entry e : all) {
+			this.addEntry(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return this.getObjectReference() + " " + (this.size()) + "/"
+				+ this.ids.length;
+	}
+
+	/**
+	 * Add the given Entry to this Node.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the bounding box of toAdd is a subclass of NDRectangle
+	 */
+	@Override
+	public void addEntry(final Entry toAdd) {
+		if (!this.isEmpty() && toAdd.isNodeEntry() != this.directory) {
+			throw new RuntimeException(this.directory
+					? "Cannot add non-Node in non-leaf-Node"
+					: "Cannot add Node in leaf-Node");
+		}
+		if (this.isFull()) {
+			throw new RuntimeException("Node " + this + " is full!");
+		}
+		checkRectangle(toAdd.getMBBox());
+		this.directory = toAdd.isNodeEntry();
+		this.size++;
+		this.setMBBox(this.size - 1, toAdd.getMBBox());
+		this.ids[this.size - 1] = toAdd.getChild().getID();
+		this.setAggregate(this.size - 1, toAdd.getCount(),
+				toAdd.getAggregate());
+	}
+
+	@Override
+	public int findEntryIndex(final Entry e) {
+		final long id = e.getChild().getID();
+		for (int i = 0; i < this.size; i++) {
+			if (this.ids[i] == id) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public Entry removeEntry(final int entryIndex) {
+		if (entryIndex == -1) {
+			return null;
+		}
+		final Entry removed = this.get(entryIndex);
+		final int last = this.size - 1;
+		if (entryIndex != last) {
+			final int width = 2 * this.dim;
+			System.arraycopy(this.coords, last * width, this.coords,
+					entryIndex * width, width);
+			this.ids[entryIndex] = this.ids[last];
+			this.counts[entryIndex] = this.counts[last];
+			if (this.aggregates != null) {
+				this.aggregates[entryIndex] = this.aggregates[last];
+			}
+		}
+		if (this.aggregates != null) {
+			this.aggregates[last] = null;
+		}
+		this.size--;
+		return removed;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if r is a subclass of NDRectangle
+	 */
+	@Override
+	public void setMBBox(final int index, final NDRectangle r) {
+		this.checkIndex(index);
+		checkRectangle(r);
+		final int offset = 2 * this.dim * index;
+		for (int d = 0; d < this.dim; d++) {
+			this.coords[offset + d] = r.getBegin().getValue(d);
+			this.coords[offset + this.dim + d] = r.getEnd().getValue(d);
+		}
+	}
+
+	private static void checkRectangle(final NDRectangle r) {
+		if (r.getClass() != NDRectangle.class) {
+			throw new IllegalArgumentException("PackedNode cannot store a "
+					+ r.getClass().getName());
+		}
+	}
+
+	@Override
+	void setAggregate(final int index, final int count,
+			final Object aggregate) {
+		this.checkIndex(index);
+		this.counts[index] = count;
+		if (aggregate != null && this.aggregates == null) {
+			this.aggregates = new Object[this.ids.length];
+		}
+		if (this.aggregates != null) {
+			this.aggregates[index] = aggregate;
+		}
+	}
+
+	/**
+	 * @return the array of the coordinates itself, which holds more values
+	 *         than needed for the entries of the Node
+	 */
+	@Override
+	double[] getBounds() {
+		return this.coords;
+	}
+
+	@Override
+	double[] getCoordinates() {
+		return this.coords;
+	}
+}
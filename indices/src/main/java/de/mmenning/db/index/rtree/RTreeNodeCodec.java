@@ -0,0 +1,347 @@
+package de.mmenning.db.index.rtree;
+
+import java.nio.ByteBuffer;
+
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.storage.NodeCodec;
+import de.mmenning.db.storage.ObjectReference;
+
+/**
+ * Encodes the Nodes of a NDRTree as a flat array of maxCapacity slots. Every
+ * slot holds the id of the child followed by the begin and end values of the
+ * minimum bounding box. For an aggregate tree, a slot of a directory Node
+ * holds the count of the Entry next, and if the codec has an
+ * {@link AggregateCodec}, every slot ends with the aggregated value of the
+ * Entry. The highest bit of the id marks a
+ * child Node. The first unused slot starts with the id -1, the remaining
+ * slots are left unwritten.
+ * <p>
+ * With quantization, as set by {@link NDRTree#setQuantization(int)}, a
+ * directory Node has the larger directory capacity of the tree. Its slots
+ * hold the grid positions of the quantized bounding boxes, and the exact
+ * bounding box of the Node follows the last slot.
+ * <p>
+ * An encoded Node has exactly the size of NDRTree.getNodeByteSize(Node).
+ * Only an overflowing Node with one more entry than its capacity, as written
+ * during a split, is one slot larger.
+ */
+public class RTreeNodeCodec extends NodeCodec {
+
+	protected final int maxCapacity;
+
+	protected final int dim;
+
+	/**
+	 * whether directory slots hold the counts of the entries
+	 */
+	private final boolean counts;
+
+	@SuppressWarnings("rawtypes")
+	private final AggregateCodec aggregates;
+
+	/**
+	 * bits per quantized coordinate in directory Nodes, 0 if they are exact
+	 */
+	private final int quantizationBits;
+
+	private final int directoryCapacity;
+
+	/**
+	 * Creates a codec for NDRTrees, which are no aggregate trees.
+	 */
+	public RTreeNodeCodec(final int maxCapacity, final int dim) {
+		this(maxCapacity, dim, null);
+	}
+
+	/**
+	 * @param aggregates
+	 *            encoding of the aggregated values, the one passed to
+	 *            {@link NDRTree#setAggregate(Aggregate, AggregateCodec)}, or
+	 *            <code>null</code> for a tree, which is no aggregate tree
+	 */
+	public RTreeNodeCodec(final int maxCapacity, final int dim,
+			final AggregateCodec<?> aggregates) {
+		this(maxCapacity, dim, aggregates, 0);
+	}
+
+	/**
+	 * @param aggregates
+	 *            encoding of the aggregated values or <code>null</code> for
+	 *            a tree, which is no aggregate tree
+	 * @param quantizationBits
+	 *            the bits passed to {@link NDRTree#setQuantization(int)}
+	 */
+	public RTreeNodeCodec(final int maxCapacity, final int dim,
+			final AggregateCodec<?> aggregates, final int quantizationBits) {
+		this(maxCapacity, dim, aggregates != null, aggregates,
+				quantizationBits);
+	}
+
+	/**
+	 * @param counts
+	 *            whether the tree is an aggregate tree, also without an
+	 *            AggregateCodec as after
+	 *            {@link NDRTree#setAggregate(Aggregate)} with
+	 *            <code>null</code>
+	 * @param aggregates
+	 *            encoding of the aggregated values or <code>null</code>
+	 * @param quantizationBits
+	 *            the bits passed to {@link NDRTree#setQuantization(int)}
+	 */
+	public RTreeNodeCodec(final int maxCapacity, final int dim,
+			final boolean counts, final AggregateCodec<?> aggregates,
+			final int quantizationBits) {
+		if (aggregates != null && !counts) {
+			throw new IllegalArgumentException(
+					"aggregated values require counts");
+		}
+		if (quantizationBits != 0 && quantizationBits != 8
+				&& quantizationBits != 16) {
+			throw new IllegalArgumentException(
+					"quantization must use 0, 8 or 16 bits");
+		}
+		this.maxCapacity = maxCapacity;
+		this.dim = dim;
+		this.counts = counts;
+		this.aggregates = aggregates;
+		this.quantizationBits = quantizationBits;
+		this.directoryCapacity = NDRTree.getDirectoryCapacity(maxCapacity,
+				dim, quantizationBits, this.getAggregateByteSize(false));
+	}
+
+	/**
+	 * @return bytes of an encoded minimum bounding box
+	 */
+	protected int getRectangleByteSize() {
+		return this.dim * 8 * 2;
+	}
+
+	protected void encodeRectangle(final NDRectangle r, final ByteBuffer dst) {
+		for (int i = 0; i < this.dim; i++) {
+			dst.putDouble(r.getBegin().getValue(i));
+		}
+		for (int i = 0; i < this.dim; i++) {
+			dst.putDouble(r.getEnd().getValue(i));
+		}
+	}
+
+	protected NDRectangle decodeRectangle(final ByteBuffer src) {
+		final double[] begin = new double[this.dim];
+		final double[] end = new double[this.dim];
+		for (int i = 0; i < this.dim; i++) {
+			begin[i] = src.getDouble();
+		}
+		for (int i = 0; i < this.dim; i++) {
+			end[i] = src.getDouble();
+		}
+		return new NDRectangle(new NDPoint(begin), new NDPoint(end));
+	}
+
+	/**
+	 * @return bytes of the count and the aggregated value in a slot
+	 */
+	private int getAggregateByteSize(final boolean leaf) {
+		return (leaf || !this.counts ? 0 : Entry.COUNT_BYTE_SIZE)
+				+ (this.aggregates == null ? 0 : this.aggregates.getByteSize());
+	}
+
+	private boolean isQuantized(final boolean leaf) {
+		return !leaf && this.quantizationBits != 0;
+	}
+
+	private int getCapacity(final boolean leaf) {
+		return leaf ? this.maxCapacity : this.directoryCapacity;
+	}
+
+	private int getSlotByteSize(final boolean leaf) {
+		final int rectangle = this.isQuantized(leaf) ? this.dim * 2
+				* this.quantizationBits / 8 : this.getRectangleByteSize();
+		return REFERENCE_SIZE + rectangle + this.getAggregateByteSize(leaf);
+	}
+
+	/**
+	 * @return bytes of the exact bounding box of a quantized directory Node
+	 */
+	private int getFrameByteSize(final boolean leaf) {
+		return this.isQuantized(leaf) ? this.dim * 8 * 2 : 0;
+	}
+
+	@Override
+	public int getEncodedSize(final Object o) {
+		final Node n = cast(o, Node.class);
+		final boolean leaf = n.isLeaf();
+		return Math.max(this.getCapacity(leaf), n.size())
+				* this.getSlotByteSize(leaf) + this.getFrameByteSize(leaf);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the capacity of <code>o</code> differs from the one of
+	 *             this codec, if its entries have aggregated values, but this
+	 *             codec has no AggregateCodec, or if the bounding boxes of a
+	 *             quantized directory Node are not on its grid
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public void encode(final Object o, final ByteBuffer dst) {
+		final Node n = cast(o, Node.class);
+		final boolean leaf = n.isLeaf();
+		if (!n.isEmpty() && n.getMaxCapacity() != this.getCapacity(leaf)) {
+			throw new IllegalArgumentException("capacity of " + n
+					+ " differs from " + this.getCapacity(leaf));
+		}
+		if (this.aggregates == null && !n.isEmpty()
+				&& n.get(0).getAggregate() != null) {
+			throw new IllegalArgumentException(
+					"cannot encode aggregated values without an AggregateCodec");
+		}
+		final int start = dst.position();
+		final boolean quantized = this.isQuantized(leaf);
+		final double[] low = new double[this.dim];
+		final double[] high = new double[this.dim];
+		if (quantized) {
+			frame(n, low, high);
+		}
+
+		for (int i = 0; i < n.size(); i++) {
+			final Entry e = n.get(i);
+			putReference(e.getChild(), e.isNodeEntry(), dst);
+			if (quantized) {
+				this.encodeQuantized(e.getMBBox(), low, high, dst);
+			} else {
+				this.encodeRectangle(e.getMBBox(), dst);
+			}
+			if (!leaf && this.counts) {
+				dst.putInt(e.getCount());
+			}
+			if (this.aggregates != null) {
+				this.aggregates.encode(e.getAggregate(), dst);
+			}
+		}
+		if (n.size() < this.getCapacity(leaf)) {
+			dst.putLong(NULL_ID);
+		}
+		final int end = start + this.getEncodedSize(n);
+		if (quantized) {
+			dst.position(end - this.getFrameByteSize(leaf));
+			for (int d = 0; d < this.dim; d++) {
+				dst.putDouble(low[d]);
+			}
+			for (int d = 0; d < this.dim; d++) {
+				dst.putDouble(high[d]);
+			}
+		}
+		dst.position(end);
+	}
+
+	/**
+	 * Sets <code>low</code> and <code>high</code> to the union of the
+	 * bounding boxes of the entries of <code>n</code>.
+	 */
+	private static void frame(final Node n, final double[] low,
+			final double[] high) {
+		for (int i = 0; i < n.size(); i++) {
+			final NDRectangle r = n.get(i).getMBBox();
+			for (int d = 0; d < low.length; d++) {
+				final double b = r.getBegin().getValue(d);
+				final double e = r.getEnd().getValue(d);
+				low[d] = i == 0 ? b : Math.min(low[d], b);
+				high[d] = i == 0 ? e : Math.max(high[d], e);
+			}
+		}
+	}
+
+	private void encodeQuantized(final NDRectangle r, final double[] low,
+			final double[] high, final ByteBuffer dst) {
+		for (int d = 0; d < this.dim; d++) {
+			this.putGridPosition(r.getBegin().getValue(d), low[d], high[d], dst);
+		}
+		for (int d = 0; d < this.dim; d++) {
+			this.putGridPosition(r.getEnd().getValue(d), low[d], high[d], dst);
+		}
+	}
+
+	private void putGridPosition(final double value, final double low,
+			final double high, final ByteBuffer dst) {
+		final int steps = (1 << this.quantizationBits) - 1;
+		final double span = high - low;
+		final int guess = span > 0 && !Double.isInfinite(span) ? (int) Math
+				.round((value - low) / span * steps) : 0;
+		for (int q = Math.max(0, guess - 1); q <= Math.min(steps, guess + 1); q++) {
+			if (NDRTree.grid(low, high, q, steps) == value) {
+				if (this.quantizationBits == 8) {
+					dst.put((byte) q);
+				} else {
+					dst.putShort((short) q);
+				}
+				return;
+			}
+		}
+		throw new IllegalArgumentException(value
+				+ " is not on the quantization grid from " + low + " to " + high);
+	}
+
+	private double getGridPosition(final double low, final double high,
+			final ByteBuffer src) {
+		final int steps = (1 << this.quantizationBits) - 1;
+		final int q = this.quantizationBits == 8 ? src.get() & 0xFF : src
+				.getShort() & 0xFFFF;
+		return NDRTree.grid(low, high, q, steps);
+	}
+
+	@Override
+	public Object decode(final ObjectReference or, final ByteBuffer src) {
+		final boolean leaf = src.remaining() < REFERENCE_SIZE
+				|| !isFlagged(src.getLong(src.position()));
+		final Node n = new Node(this.getCapacity(leaf), or);
+
+		final boolean quantized = this.isQuantized(leaf);
+		final double[] low = new double[this.dim];
+		final double[] high = new double[this.dim];
+		if (quantized) {
+			int frame = src.limit() - this.getFrameByteSize(leaf);
+			for (int d = 0; d < this.dim; d++, frame += 8) {
+				low[d] = src.getDouble(frame);
+			}
+			for (int d = 0; d < this.dim; d++, frame += 8) {
+				high[d] = src.getDouble(frame);
+			}
+			src.limit(src.limit() - this.getFrameByteSize(leaf));
+		}
+
+		while (src.remaining() >= REFERENCE_SIZE) {
+			final long id = src.getLong();
+			if (id == NULL_ID) {
+				break;
+			}
+			final boolean nodeEntry = isFlagged(id);
+			final ObjectReference child = toReference(id,
+					nodeEntry ? Node.class : Object.class);
+			NDRectangle r;
+			if (quantized) {
+				final double[] begin = new double[this.dim];
+				final double[] end = new double[this.dim];
+				for (int d = 0; d < this.dim; d++) {
+					begin[d] = this.getGridPosition(low[d], high[d], src);
+				}
+				for (int d = 0; d < this.dim; d++) {
+					end[d] = this.getGridPosition(low[d], high[d], src);
+				}
+				r = new NDRectangle(new NDPoint(begin), new NDPoint(end));
+			} else {
+				r = this.decodeRectangle(src);
+			}
+			final Entry e = new Entry(new NDRectangleKey(child, r));
+			if (nodeEntry && this.counts) {
+				e.setCount(src.getInt());
+			}
+			if (this.aggregates != null) {
+				e.setAggregate(this.aggregates.decode(src));
+			}
+			n.addEntry(e);
+		}
+		return n;
+	}
+}
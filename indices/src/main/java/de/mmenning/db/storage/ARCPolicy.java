@@ -0,0 +1,111 @@
+package de.mmenning.db.storage;
+
+/**
+ * Adaptive Replacement Cache. Resident elements are split into <i>T1</i>,
+ * which holds elements referenced once, and <i>T2</i>, which holds elements
+ * referenced at least twice. The ghost lists <i>B1</i> and <i>B2</i> remember
+ * recently evicted elements of <i>T1</i> and <i>T2</i>. A request of a ghost
+ * shifts the target size <code>p</code> of <i>T1</i> towards the list, which
+ * would have kept the element.
+ */
+public class ARCPolicy implements ReplacementPolicy {
+
+   private final int capacity;
+
+   /**
+    * target size of T1
+    */
+   private int p;
+
+   private final ReferenceList t1 = new ReferenceList();
+   private final ReferenceList t2 = new ReferenceList();
+   private final ReferenceList b1 = new ReferenceList();
+   private final ReferenceList b2 = new ReferenceList();
+
+   /**
+    * @param capacity maximum number of resident elements, also bounds the size
+    *                 of the ghost lists
+    */
+   public ARCPolicy(int capacity) {
+      if (capacity < 1) {
+         throw new IllegalArgumentException("capacity must be positive");
+      }
+      this.capacity = capacity;
+      this.p = 0;
+   }
+
+   @Override
+   public void hit(ObjectReference or) {
+      if (this.t1.remove(or)) {
+         this.t2.addFirst(or);
+      } else {
+         this.t2.moveToFront(or);
+      }
+   }
+
+   @Override
+   public void admit(ObjectReference or) {
+      if (this.b1.contains(or)) {
+         int delta = Math.max(1, this.b2.size() / this.b1.size());
+         this.p = Math.min(this.capacity, this.p + delta);
+         this.b1.remove(or);
+         this.t2.addFirst(or);
+      } else if (this.b2.contains(or)) {
+         int delta = Math.max(1, this.b1.size() / this.b2.size());
+         this.p = Math.max(0, this.p - delta);
+         this.b2.remove(or);
+         this.t2.addFirst(or);
+      } else {
+         this.t1.addFirst(or);
+         trimGhosts();
+      }
+   }
+
+   @Override
+   public ObjectReference evict(ObjectReference incoming) {
+      ObjectReference victim;
+      if (!this.t1.isEmpty()
+            && (this.t1.size() > this.p || this.t2.isEmpty() || (this.b2
+            .contains(incoming) && this.t1.size() == this.p))) {
+         victim = this.t1.removeLast();
+         this.b1.addFirst(victim);
+      } else {
+         victim = this.t2.removeLast();
+         if (victim != null) {
+            this.b2.addFirst(victim);
+         }
+      }
+      trimGhosts();
+      return victim;
+   }
+
+   /**
+    * Keeps |T1| + |B1| and |T2| + |B2| below the capacity.
+    */
+   private void trimGhosts() {
+      while (!this.b1.isEmpty()
+            && this.t1.size() + this.b1.size() > this.capacity) {
+         this.b1.removeLast();
+      }
+      while (!this.b2.isEmpty()
+            && this.t2.size() + this.b2.size() > this.capacity) {
+         this.b2.removeLast();
+      }
+   }
+
+   @Override
+   public void remove(ObjectReference or) {
+      if (!this.t1.remove(or)) {
+         this.t2.remove(or);
+      }
+   }
+
+   @Override
+   public void clear() {
+      this.t1.clear();
+      this.t2.clear();
+      this.b1.clear();
+      this.b2.clear();
+      this.p = 0;
+   }
+}
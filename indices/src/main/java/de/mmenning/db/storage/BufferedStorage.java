@@ -2,18 +2,24 @@ package de.mmenning.db.storage;
 
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.NoSuchElementException;
 
 public class BufferedStorage implements IterableStorageManager {
 
    public static StorageManager getStorageManager(int bufferCapacity,
                                                   int blockSize) {
+      return getStorageManager(bufferCapacity, blockSize,
+            ReplacementPolicies.LRU);
+   }
+
+   public static StorageManager getStorageManager(int bufferCapacity,
+                                                  int blockSize,
+                                                  ReplacementPolicies policy) {
 
       if (bufferCapacity == 0) {
          return new CountingStorage(blockSize);
       } else {
-         return new BufferedStorage(bufferCapacity, blockSize);
+         return new BufferedStorage(bufferCapacity, blockSize,
+               policy.create(bufferCapacity));
       }
    }
 
@@ -35,41 +41,20 @@ public class BufferedStorage implements IterableStorageManager {
       };
    }
 
-   private class MemoryEntry {
+   /**
+    * Buffer frame of a single <code>Storable</code>.
+    */
+   private static class MemoryEntry {
 
-      final boolean dirty;
-      final Storable st;
+      boolean dirty;
+      Storable st;
+      int blocks;
 
-      MemoryEntry(Storable st, boolean dirty) {
+      MemoryEntry(Storable st, int blocks, boolean dirty) {
          this.st = st;
+         this.blocks = blocks;
          this.dirty = dirty;
       }
-
-      @Override
-      public boolean equals(Object obj) {
-         if (this == obj)
-            return true;
-         if (obj == null)
-            return false;
-         if (getClass() != obj.getClass())
-            return false;
-         MemoryEntry other = (MemoryEntry) obj;
-         if (st == null) {
-            if (other.st != null)
-               return false;
-         } else if (!st.equals(other.st))
-            return false;
-         return true;
-      }
-
-      @Override
-      public int hashCode() {
-         return st.hashCode();
-      }
-
-      private BufferedStorage getOuterType() {
-         return BufferedStorage.this;
-      }
    }
 
    private final int blockSize;
@@ -80,14 +65,39 @@ public class BufferedStorage implements IterableStorageManager {
 
    private final StorageManager hd;
 
-   private HashMap<ObjectReference, MemoryEntry> memory;
-   private LinkedList<Storable> priority;
+   private final HashMap<ObjectReference, MemoryEntry> memory;
+
+   private final ReplacementPolicy policy;
 
    /**
+    * Creates a buffer with LRU replacement.
+    *
     * @param bufferCapacity capacity of this Buffer in blocks
     * @param blockSize      size of one block in bytes
     */
    public BufferedStorage(int bufferCapacity, int blockSize) {
+      this(bufferCapacity, blockSize, new LRUPolicy());
+   }
+
+   /**
+    * @param bufferCapacity capacity of this Buffer in blocks
+    * @param blockSize      size of one block in bytes
+    * @param policy         decides which elements are evicted
+    */
+   public BufferedStorage(int bufferCapacity, int blockSize,
+                          ReplacementPolicy policy) {
+      this(bufferCapacity, blockSize, policy, new CountingStorage(blockSize));
+   }
+
+   /**
+    * @param bufferCapacity capacity of this Buffer in blocks
+    * @param blockSize      size of one block in bytes
+    * @param policy         decides which elements are evicted
+    * @param storage        storage, which the buffered elements are read from
+    *                       and written to
+    */
+   public BufferedStorage(int bufferCapacity, int blockSize,
+                          ReplacementPolicy policy, StorageManager storage) {
       if (bufferCapacity < 1) {
          throw new IllegalArgumentException(
                "Buffer at least must contain one block");
@@ -97,9 +107,15 @@ public class BufferedStorage implements IterableStorageManager {
       }
 
       this.memory = new HashMap<>();
-      this.priority = new LinkedList<>();
+      if (policy == null) {
+         throw new IllegalArgumentException("policy must not be null");
+      }
+      this.policy = policy;
       this.blockSize = blockSize;
-      this.hd = new CountingStorage(this.blockSize);
+      if (storage == null) {
+         throw new IllegalArgumentException("storage must not be null");
+      }
+      this.hd = storage;
       this.bufferCapacity = bufferCapacity;
       this.setBufferSize(0);
    }
@@ -111,14 +127,11 @@ public class BufferedStorage implements IterableStorageManager {
    @Override
    public void delete(final ObjectReference or) {
 
-      if (this.memory.containsKey(or)) {
-         Storable st = this.memory.remove(or).st;
-         if (!this.priority.remove(st)) {
-            throw new IllegalStateException("Element isn`t contained");
-         }
+      MemoryEntry m = this.memory.remove(or);
 
-         this.setBufferSize(this.getBufferSize()
-               - IOUtils.bytesToBlocks(st.getBytes(), this.blockSize));
+      if (m != null) {
+         this.policy.remove(or);
+         this.setBufferSize(this.getBufferSize() - m.blocks);
       }
 
       this.hd.delete(or);
@@ -130,102 +143,73 @@ public class BufferedStorage implements IterableStorageManager {
 
       MemoryEntry m = this.memory.get(or);
 
-      Storable st = null;
-
       if (m == null) {
-         st = this.hd.load(or);
+         Storable st = this.hd.load(or);
 
          int blocksToMove = IOUtils.bytesToBlocks(st.getBytes(),
                this.blockSize);
 
-         try {
-            trimToSize(blocksToMove);
-         } catch (NoSuchElementException ex) {
-            throw ex;
-         }
+         trimToSize(or, blocksToMove);
 
-         this.priority.add(st);
-         if (this.memory.put(or, new MemoryEntry(st, false)) != null) {
+         m = new MemoryEntry(st, blocksToMove, false);
+         if (this.memory.put(or, m) != null) {
             throw new IllegalStateException("element already contained");
          }
+         this.policy.admit(or);
          this.setBufferSize(this.getBufferSize() + blocksToMove);
       } else {
          /*
           * When loading a Storable, only change its priority. The Storable
-			 * itself must be changed by a call of store().
-			 */
-         int oldIndex = this.priority.indexOf(m.st);
-         Storable old = this.priority.get(oldIndex);
-
-         this.priority.remove(oldIndex);
-         this.priority.addFirst(old);
-         st = old;
+          * itself must be changed by a call of store().
+          */
+         this.policy.hit(or);
       }
 
-      return st;
+      return m.st;
    }
 
    @Override
    public void store(final Storable st) {
 
-      if (this.memory.containsKey(st.getObjectReference())) {
-         /*
-          * when storing an already inserted element anew, mark it as dirty
-			 */
-         if (this.memory.put(st.getObjectReference(), new MemoryEntry(st,
-               true)) == null) {
-            throw new IllegalStateException("not contained");
-         }
+      int blocksToMove = IOUtils.bytesToBlocks(st.getBytes(), this.blockSize);
 
-			/*
-          * correct the size of the element
-			 */
-         int indexOld = this.priority.indexOf(st);
+      MemoryEntry m = this.memory.get(st.getObjectReference());
 
-         long oldSize = this.priority.get(indexOld).getBytes();
-
-         this.setBufferSize(this.getBufferSize()
-               - IOUtils.bytesToBlocks(oldSize, this.blockSize));
-
-         this.setBufferSize(this.getBufferSize()
-               + IOUtils.bytesToBlocks(st.getBytes(), this.blockSize));
+      if (m != null) {
          /*
-			 * reinsert element in priority list
-			 */
-         if (this.priority.remove(indexOld) == null) {
-            throw new IllegalStateException("not contained");
-         }
-         this.priority.addFirst(st);
+          * when storing an already inserted element anew, mark it as dirty
+          * and correct the size of the element
+          */
+         this.setBufferSize(this.getBufferSize() - m.blocks + blocksToMove);
+
+         m.st = st;
+         m.blocks = blocksToMove;
+         m.dirty = true;
+         this.policy.hit(st.getObjectReference());
       } else {
-			/*
-			 * when storing an non-existend node, put a new node into buffer and
-			 * priority list and mark it as dirty.
-			 */
-         int blocksToMove = IOUtils.bytesToBlocks(st.getBytes(),
-               this.blockSize);
+         /*
+          * when storing an non-existend node, put a new node into buffer and
+          * priority list and mark it as dirty.
+          */
+         this.trimToSize(st.getObjectReference(), blocksToMove);
 
-         this.trimToSize(blocksToMove);
-         this.priority.addFirst(st);
-         if (this.memory.put(st.getObjectReference(), new MemoryEntry(st,
-               true)) != null) {
+         m = new MemoryEntry(st, blocksToMove, true);
+         if (this.memory.put(st.getObjectReference(), m) != null) {
             throw new IllegalStateException(
                   "does already contain element, which is inserted as new one");
          }
+         this.policy.admit(st.getObjectReference());
          this.setBufferSize(this.getBufferSize() + blocksToMove);
       }
    }
 
    private void checkBuffer() {
 
-      if (this.priority.size() != this.memory.size()) {
-         throw new IllegalStateException(
-               "priority size does not equal memory size");
-      }
-
       int bufferSize = 0;
-      for (Storable st : this.priority) {
-         bufferSize += IOUtils.bytesToBlocks(st.getBytes(), this.blockSize);
+      for (MemoryEntry m : this.memory.values()) {
+         bufferSize += IOUtils.bytesToBlocks(m.st.getBytes(), this.blockSize);
       }
+
       if (this.bufferSize != 0 && bufferSize != this.bufferSize) {
          throw new IllegalStateException("buffer size illegal");
       }
@@ -241,37 +225,39 @@ public class BufferedStorage implements IterableStorageManager {
 
       this.bufferSize = bufferSize;
 
-      if (priority.isEmpty() && this.bufferSize != 0) {
+      if (this.memory.isEmpty() && this.bufferSize != 0) {
          throw new IllegalStateException(
                "no elements, but buffer is not empty");
       }
 
    }
 
-   private void trimToSize(int requestedBlocks) {
+   private void trimToSize(ObjectReference incoming, int requestedBlocks) {
 
       while (this.getBufferSize() > this.bufferCapacity - requestedBlocks) {
 
          // allow unlimited size for one and only one element.
-         if (this.priority.size() == 0) {
+         if (this.memory.isEmpty()) {
             break;
          }
 
-         Storable toRemove = null;
-
-         toRemove = this.priority.removeLast();
+         ObjectReference victim = this.policy.evict(incoming);
+         if (victim == null) {
+            throw new IllegalStateException(
+                  "replacement policy does not know any buffered element");
+         }
 
-         int blocksToMove = IOUtils.bytesToBlocks(toRemove.getBytes(),
-               this.blockSize);
+         MemoryEntry toRemove = this.memory.remove(victim);
+         if (toRemove == null) {
+            throw new IllegalStateException("Element isn`t contained");
+         }
 
-         this.setBufferSize(this.getBufferSize() - blocksToMove);
+         this.setBufferSize(this.getBufferSize() - toRemove.blocks);
 
-         boolean dirty = this.memory.remove(toRemove.getObjectReference()).dirty;
          // if the deleted storable wasn`t marked as dirty, it can be removed
          // without writing the changes on disc.
-
-         if (dirty) {
-            this.hd.store(toRemove);
+         if (toRemove.dirty) {
+            this.hd.store(toRemove.st);
          }
       }
    }
@@ -280,7 +266,7 @@ public class BufferedStorage implements IterableStorageManager {
    public void cleanUp() {
       this.hd.cleanUp();
       this.memory.clear();
-      this.priority.clear();
+      this.policy.clear();
       this.bufferSize = 0;
    }
 
@@ -0,0 +1,119 @@
+package de.mmenning.db.storage;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * CLOCK (second chance) replacement. Buffered elements are kept in a ring of
+ * slots, each with a reference bit that is set on a hit. The clock hand
+ * evicts the first element with a cleared bit and clears the bits it passes.
+ * <p>
+ * Admitted elements start with a cleared bit, so elements read once by a scan
+ * are evicted on the next revolution of the hand.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+   private ObjectReference[] slots;
+
+   private boolean[] referenced;
+
+   /**
+    * number of slots in use or freed so far
+    */
+   private int used;
+
+   private int hand;
+
+   private final HashMap<ObjectReference, Integer> index;
+
+   private final ArrayDeque<Integer> free;
+
+   /**
+    * @param initialCapacity initial number of slots
+    */
+   public ClockPolicy(int initialCapacity) {
+      if (initialCapacity < 1) {
+         throw new IllegalArgumentException("capacity must be positive");
+      }
+      this.slots = new ObjectReference[initialCapacity];
+      this.referenced = new boolean[initialCapacity];
+      this.index = new HashMap<>();
+      this.free = new ArrayDeque<>();
+      this.used = 0;
+      this.hand = 0;
+   }
+
+   @Override
+   public void hit(ObjectReference or) {
+      Integer slot = this.index.get(or);
+      if (slot != null) {
+         this.referenced[slot] = true;
+      }
+   }
+
+   @Override
+   public void admit(ObjectReference or) {
+      int slot;
+      if (!this.free.isEmpty()) {
+         slot = this.free.pop();
+      } else {
+         if (this.used == this.slots.length) {
+            this.slots = Arrays.copyOf(this.slots, this.slots.length * 2);
+            this.referenced = Arrays.copyOf(this.referenced,
+                  this.referenced.length * 2);
+         }
+         slot = this.used++;
+      }
+      if (this.index.put(or, slot) != null) {
+         throw new IllegalStateException("element already contained");
+      }
+      this.slots[slot] = or;
+      this.referenced[slot] = false;
+   }
+
+   @Override
+   public ObjectReference evict(ObjectReference incoming) {
+      if (this.index.isEmpty()) {
+         return null;
+      }
+      while (true) {
+         if (this.hand >= this.used) {
+            this.hand = 0;
+         }
+         int slot = this.hand++;
+         ObjectReference or = this.slots[slot];
+         if (or == null) {
+            continue;
+         }
+         if (this.referenced[slot]) {
+            this.referenced[slot] = false;
+         } else {
+            this.slots[slot] = null;
+            this.index.remove(or);
+            this.free.push(slot);
+            return or;
+         }
+      }
+   }
+
+   @Override
+   public void remove(ObjectReference or) {
+      Integer slot = this.index.remove(or);
+      if (slot != null) {
+         this.slots[slot] = null;
+         this.referenced[slot] = false;
+         this.free.push(slot);
+      }
+   }
+
+   @Override
+   public void clear() {
+      Arrays.fill(this.slots, null);
+      Arrays.fill(this.referenced, false);
+      this.index.clear();
+      this.free.clear();
+      this.used = 0;
+      this.hand = 0;
+   }
+}
@@ -0,0 +1,387 @@
+package de.mmenning.db.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A buffer, which may be used by several threads concurrently. The buffer is
+ * divided into stripes by the hash of the <code>ObjectReference</code>s.
+ * Every stripe has its own lock, its own share of the capacity and its own
+ * replacement policy, so threads accessing different stripes do not block
+ * each other.
+ * <p>
+ * A <code>Storable</code> may be pinned by {@link #pin(ObjectReference)}.
+ * Pinned frames are never evicted until they have been unpinned as often as
+ * they have been pinned. If a stripe only holds pinned frames, it exceeds its
+ * capacity.
+ * <p>
+ * The underlying storage is accessed while holding only the lock of the
+ * stripe, so misses in different stripes are read concurrently. It must
+ * therefore be thread safe, e.g. a {@link CountingStorage}. A storage, which
+ * is not thread safe, may be wrapped into a {@link SynchronizedStorage}, which
+ * serializes all accesses to it. All accesses to one reference are
+ * serialized by the lock of its stripe.
+ */
+public class ConcurrentBufferedStorage implements IterableStorageManager {
+
+   /**
+    * default number of stripes
+    */
+   public static final int DEFAULT_STRIPES = 16;
+
+   /**
+    * Buffer frame of a single <code>Storable</code>.
+    */
+   private static class Frame {
+
+      boolean dirty;
+      Storable st;
+      int blocks;
+      int pins;
+
+      Frame(Storable st, int blocks, boolean dirty) {
+         this.st = st;
+         this.blocks = blocks;
+         this.dirty = dirty;
+      }
+   }
+
+   /**
+    * Part of the buffer guarded by its own monitor.
+    */
+   private static class Stripe {
+
+      final HashMap<ObjectReference, Frame> memory = new HashMap<>();
+
+      final ReplacementPolicy policy;
+
+      final int capacity;
+
+      int bufferSize;
+
+      Stripe(ReplacementPolicy policy, int capacity) {
+         this.policy = policy;
+         this.capacity = capacity;
+      }
+   }
+
+   private final int blockSize;
+
+   private final int bufferCapacity;
+
+   private final StorageManager hd;
+
+   private final Stripe[] stripes;
+
+   private final LongAdder hits = new LongAdder();
+
+   private final LongAdder misses = new LongAdder();
+
+   /**
+    * Creates a buffer of {@link #DEFAULT_STRIPES} stripes with LRU
+    * replacement.
+    *
+    * @param bufferCapacity capacity of this Buffer in blocks
+    * @param blockSize      size of one block in bytes
+    */
+   public ConcurrentBufferedStorage(int bufferCapacity, int blockSize) {
+      this(bufferCapacity, blockSize, ReplacementPolicies.LRU,
+            new CountingStorage(blockSize), DEFAULT_STRIPES);
+   }
+
+   /**
+    * @param bufferCapacity capacity of this Buffer in blocks
+    * @param blockSize      size of one block in bytes
+    * @param policy         decides which elements of a stripe are evicted
+    * @param storage        thread safe storage, which the buffered elements
+    *                       are read from and written to
+    * @param stripes        number of stripes, rounded up to a power of two and
+    *                       limited by <code>bufferCapacity</code>
+    */
+   public ConcurrentBufferedStorage(int bufferCapacity, int blockSize,
+                                    ReplacementPolicies policy,
+                                    StorageManager storage, int stripes) {
+      if (bufferCapacity < 1) {
+         throw new IllegalArgumentException(
+               "Buffer at least must contain one block");
+      }
+      if (blockSize <= 0) {
+         throw new IllegalArgumentException("blockSize must be positive");
+      }
+      if (policy == null) {
+         throw new IllegalArgumentException("policy must not be null");
+      }
+      if (storage == null) {
+         throw new IllegalArgumentException("storage must not be null");
+      }
+      if (stripes < 1) {
+         throw new IllegalArgumentException("stripes must be positive");
+      }
+      this.blockSize = blockSize;
+      this.bufferCapacity = bufferCapacity;
+      this.hd = storage;
+
+      int n = 1;
+      while (n < stripes && n * 2 <= bufferCapacity) {
+         n *= 2;
+      }
+      this.stripes = new Stripe[n];
+      for (int i = 0; i < n; i++) {
+         // distribute the remainder of the capacity over the first stripes
+         int capacity = bufferCapacity / n + (i < bufferCapacity % n ? 1 : 0);
+         this.stripes[i] = new Stripe(policy.create(capacity), capacity);
+      }
+   }
+
+   public StorageManager getStorage() {
+      return this.hd;
+   }
+
+   public int getBufferCapacity() {
+      return this.bufferCapacity;
+   }
+
+   public int getStripeCount() {
+      return this.stripes.length;
+   }
+
+   /**
+    * @return number of loads answered from the buffer
+    */
+   public long getHits() {
+      return this.hits.sum();
+   }
+
+   /**
+    * @return number of loads, which had to read the underlying storage
+    */
+   public long getMisses() {
+      return this.misses.sum();
+   }
+
+   private Stripe stripe(ObjectReference or) {
+      int h = or.hashCode();
+      h ^= h >>> 16;
+      return this.stripes[h & (this.stripes.length - 1)];
+   }
+
+   @Override
+   public Storable load(ObjectReference or) {
+      Stripe s = this.stripe(or);
+      synchronized (s) {
+         return this.fetch(s, or).st;
+      }
+   }
+
+   /**
+    * Loads the <code>Storable</code> and protects it from eviction until
+    * {@link #unpin(ObjectReference)} is called.
+    *
+    * @param or reference of the <code>Storable</code> to load
+    * @return the loaded <code>Storable</code>
+    */
+   public Storable pin(ObjectReference or) {
+      Stripe s = this.stripe(or);
+      synchronized (s) {
+         Frame f = this.fetch(s, or);
+         f.pins++;
+         return f.st;
+      }
+   }
+
+   /**
+    * Releases one pin of a buffered <code>Storable</code>.
+    *
+    * @param or reference of a pinned <code>Storable</code>
+    * @throws IllegalStateException if the <code>Storable</code> is not pinned
+    */
+   public void unpin(ObjectReference or) {
+      Stripe s = this.stripe(or);
+      synchronized (s) {
+         Frame f = s.memory.get(or);
+         if (f == null || f.pins == 0) {
+            throw new IllegalStateException(or + " is not pinned");
+         }
+         f.pins--;
+      }
+   }
+
+   /**
+    * @return whether the <code>Storable</code> is buffered and pinned
+    */
+   public boolean isPinned(ObjectReference or) {
+      Stripe s = this.stripe(or);
+      synchronized (s) {
+         Frame f = s.memory.get(or);
+         return f != null && f.pins > 0;
+      }
+   }
+
+   private Frame fetch(Stripe s, ObjectReference or) {
+      Frame f = s.memory.get(or);
+
+      if (f == null) {
+         this.misses.increment();
+         Storable st = this.hd.load(or);
+         int blocksToMove = IOUtils.bytesToBlocks(st.getBytes(),
+               this.blockSize);
+
+         this.trimToSize(s, or, blocksToMove);
+
+         f = new Frame(st, blocksToMove, false);
+         s.memory.put(or, f);
+         s.policy.admit(or);
+         s.bufferSize += blocksToMove;
+      } else {
+         this.hits.increment();
+         s.policy.hit(or);
+      }
+      return f;
+   }
+
+   @Override
+   public void store(final Storable st) {
+      ObjectReference or = st.getObjectReference();
+      int blocksToMove = IOUtils.bytesToBlocks(st.getBytes(), this.blockSize);
+      Stripe s = this.stripe(or);
+
+      synchronized (s) {
+         Frame f = s.memory.get(or);
+
+         if (f != null) {
+            s.bufferSize += blocksToMove - f.blocks;
+            f.st = st;
+            f.blocks = blocksToMove;
+            f.dirty = true;
+            s.policy.hit(or);
+         } else {
+            this.trimToSize(s, or, blocksToMove);
+
+            s.memory.put(or, new Frame(st, blocksToMove, true));
+            s.policy.admit(or);
+            s.bufferSize += blocksToMove;
+         }
+      }
+   }
+
+   /**
+    * Deletes the <code>Storable</code> even if it is pinned.
+    */
+   @Override
+   public void delete(final ObjectReference or) {
+      Stripe s = this.stripe(or);
+      synchronized (s) {
+         Frame f = s.memory.remove(or);
+         if (f != null) {
+            s.policy.remove(or);
+            s.bufferSize -= f.blocks;
+         }
+         this.hd.delete(or);
+      }
+   }
+
+   private void trimToSize(Stripe s, ObjectReference incoming,
+                           int requestedBlocks) {
+      ArrayList<ObjectReference> pinned = null;
+
+      while (s.bufferSize > s.capacity - requestedBlocks
+            && !s.memory.isEmpty()) {
+
+         ObjectReference victim = s.policy.evict(incoming);
+         if (victim == null) {
+            // only pinned elements are left
+            break;
+         }
+
+         Frame toRemove = s.memory.get(victim);
+         if (toRemove == null) {
+            throw new IllegalStateException("Element isn`t contained");
+         }
+         if (toRemove.pins > 0) {
+            if (pinned == null) {
+               pinned = new ArrayList<>();
+            }
+            pinned.add(victim);
+            continue;
+         }
+
+         s.memory.remove(victim);
+         s.bufferSize -= toRemove.blocks;
+
+         // if the deleted storable wasn`t marked as dirty, it can be removed
+         // without writing the changes on disc.
+         if (toRemove.dirty) {
+            this.hd.store(toRemove.st);
+         }
+      }
+
+      if (pinned != null) {
+         for (ObjectReference or : pinned) {
+            s.policy.admit(or);
+         }
+      }
+   }
+
+   @Override
+   public void cleanUp() {
+      for (Stripe s : this.stripes) {
+         synchronized (s) {
+            s.memory.clear();
+            s.policy.clear();
+            s.bufferSize = 0;
+         }
+      }
+      this.hd.cleanUp();
+   }
+
+   /**
+    * @return number of buffered blocks
+    */
+   public int getBufferSize() {
+      int bufferSize = 0;
+      for (Stripe s : this.stripes) {
+         synchronized (s) {
+            bufferSize += s.bufferSize;
+         }
+      }
+      return bufferSize;
+   }
+
+   public int memorySize() {
+      int size = 0;
+      for (Stripe s : this.stripes) {
+         synchronized (s) {
+            size += s.memory.size();
+         }
+      }
+      return size;
+   }
+
+   /**
+    * Iterates over a snapshot of the buffered references.
+    */
+   @Override
+   public Iterator<ObjectReference> iterator() {
+      ArrayList<ObjectReference> buffered = new ArrayList<>();
+      for (Stripe s : this.stripes) {
+         synchronized (s) {
+            buffered.addAll(s.memory.keySet());
+         }
+      }
+      final Iterator<ObjectReference> iterator = buffered.iterator();
+      // new Iterator to exclude remove() operation
+      return new Iterator<ObjectReference>() {
+         @Override
+         public boolean hasNext() {
+            return iterator.hasNext();
+         }
+
+         @Override
+         public ObjectReference next() {
+            return iterator.next();
+         }
+      };
+   }
+}
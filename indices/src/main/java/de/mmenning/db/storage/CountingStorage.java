@@ -1,22 +1,26 @@
 package de.mmenning.db.storage;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Keeps the stored objects in memory and counts the blocks, which would have
+ * been read and written. Safe for concurrent use.
+ */
 public class CountingStorage implements IterableStorageManager {
 
-   private HashMap<ObjectReference, Storable> file;
+   private final ConcurrentHashMap<ObjectReference, Storable> file;
 
    private final int blockSize;
 
    public CountingStorage(int blockSize) {
-      this.file = new HashMap<>();
+      this.file = new ConcurrentHashMap<>();
       this.iocount = new IOCounter();
       this.blockSize = blockSize;
    }
 
-   private IOCounter iocount;
+   private final IOCounter iocount;
 
    public IOCounter getIOCounter() {
       return this.iocount;
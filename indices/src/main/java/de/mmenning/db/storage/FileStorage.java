@@ -36,7 +36,8 @@ public class FileStorage implements StorageManager {
       try (FileInputStream fw = new FileInputStream(f);
            ObjectInputStream o = new ObjectInputStream(fw)) {
 
-         Storable st = new SimpleStorable(or, o.readObject(), o.available());
+         int byteSize = o.readInt();
+         Storable st = new SimpleStorable(or, o.readObject(), byteSize);
 
          return st;
 
@@ -72,23 +73,11 @@ public class FileStorage implements StorageManager {
       try (FileOutputStream fw = new FileOutputStream(f);
            ObjectOutputStream o = new ObjectOutputStream(fw)) {
 
-         o.writeObject(st.getBytes());
+         o.writeInt(st.getBytes());
+         o.writeObject(st.getObject());
 
       } catch (IOException e) {
          throw new StorageIOException(e);
       }
    }
-
-   class StorageIOException extends IllegalStateException {
-
-      private static final long serialVersionUID = 3179691377654359305L;
-
-      public StorageIOException(Exception e) {
-         super(e);
-      }
-
-      public StorageIOException(String string) {
-         super(string);
-      }
-   }
 }
@@ -1,30 +1,36 @@
 package de.mmenning.db.storage;
 
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts read and written blocks. May be incremented by several threads
+ * concurrently.
+ */
 public class IOCounter {
 
-	private long reads;
-	private long writes;
+	private final LongAdder reads = new LongAdder();
+	private final LongAdder writes = new LongAdder();
 	
 	public long getReads(){
-		return this.reads;
+		return this.reads.sum();
 	}
 	
 	public long getWrites(){
-		return this.writes;
+		return this.writes.sum();
 	}
 	
 	public void incReads(int b){
 		if(b<=0){
 			throw new IllegalArgumentException();
 		}
-		this.reads+=b;
+		this.reads.add(b);
 	}
 	
 	public void incWrites(int b){
 		if(b<=0){
 			throw new IllegalArgumentException();
 		}
-		this.writes+=b;
+		this.writes.add(b);
 	}
 	
 }
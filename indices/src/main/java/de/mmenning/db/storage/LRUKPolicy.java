@@ -0,0 +1,135 @@
+package de.mmenning.db.storage;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * LRU-K replacement. The victim is the buffered element with the largest
+ * backward K-distance, i.e. whose K-th last access is the oldest one.
+ * Elements with less than K accesses have an infinite distance and are
+ * evicted first, in LRU order. The access history of evicted elements is
+ * retained for a limited number of elements, so that an element which is read
+ * again soon is not treated as new.
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+
+   private static class History {
+
+      final ObjectReference or;
+
+      /**
+       * logical times of the last K accesses, most recent first, 0 if unknown
+       */
+      final long[] times;
+
+      History(ObjectReference or, int k) {
+         this.or = or;
+         this.times = new long[k];
+      }
+   }
+
+   private final int k;
+
+   private final int retainedCapacity;
+
+   private long clock;
+
+   private final HashMap<ObjectReference, History> histories;
+
+   private final TreeSet<History> resident;
+
+   private final ReferenceList retained;
+
+   /**
+    * @param k                number of accesses remembered per element
+    * @param retainedCapacity maximum number of evicted elements, whose history
+    *                         is retained
+    */
+   public LRUKPolicy(int k, int retainedCapacity) {
+      if (k < 1) {
+         throw new IllegalArgumentException("k must be positive");
+      }
+      if (retainedCapacity < 0) {
+         throw new IllegalArgumentException(
+               "retained capacity must not be negative");
+      }
+      this.k = k;
+      this.retainedCapacity = retainedCapacity;
+      this.clock = 0;
+      this.histories = new HashMap<>();
+      this.retained = new ReferenceList();
+      this.resident = new TreeSet<>(new Comparator<History>() {
+         @Override
+         public int compare(History o1, History o2) {
+            int c = Long.compare(o1.times[o1.times.length - 1],
+                  o2.times[o2.times.length - 1]);
+            if (c != 0) {
+               return c;
+            }
+            // last access times are unique
+            return Long.compare(o1.times[0], o2.times[0]);
+         }
+      });
+   }
+
+   private void access(History h) {
+      System.arraycopy(h.times, 0, h.times, 1, h.times.length - 1);
+      h.times[0] = ++this.clock;
+   }
+
+   @Override
+   public void hit(ObjectReference or) {
+      History h = this.histories.get(or);
+      if (h != null && this.resident.remove(h)) {
+         access(h);
+         this.resident.add(h);
+      }
+   }
+
+   @Override
+   public void admit(ObjectReference or) {
+      History h = this.histories.get(or);
+      if (h == null) {
+         h = new History(or, this.k);
+         this.histories.put(or, h);
+      } else if (!this.retained.remove(or)) {
+         throw new IllegalStateException("element already contained");
+      }
+      access(h);
+      this.resident.add(h);
+   }
+
+   @Override
+   public ObjectReference evict(ObjectReference incoming) {
+      History h = this.resident.pollFirst();
+      if (h == null) {
+         return null;
+      }
+      if (this.retainedCapacity > 0) {
+         this.retained.addFirst(h.or);
+         if (this.retained.size() > this.retainedCapacity) {
+            this.histories.remove(this.retained.removeLast());
+         }
+      } else {
+         this.histories.remove(h.or);
+      }
+      return h.or;
+   }
+
+   @Override
+   public void remove(ObjectReference or) {
+      History h = this.histories.remove(or);
+      if (h != null && !this.resident.remove(h)) {
+         this.retained.remove(or);
+      }
+   }
+
+   @Override
+   public void clear() {
+      this.histories.clear();
+      this.resident.clear();
+      this.retained.clear();
+      this.clock = 0;
+   }
+}
@@ -0,0 +1,34 @@
+package de.mmenning.db.storage;
+
+/**
+ * Least recently used replacement.
+ */
+public class LRUPolicy implements ReplacementPolicy {
+
+   private final ReferenceList list = new ReferenceList();
+
+   @Override
+   public void hit(ObjectReference or) {
+      this.list.moveToFront(or);
+   }
+
+   @Override
+   public void admit(ObjectReference or) {
+      this.list.addFirst(or);
+   }
+
+   @Override
+   public ObjectReference evict(ObjectReference incoming) {
+      return this.list.removeLast();
+   }
+
+   @Override
+   public void remove(ObjectReference or) {
+      this.list.remove(or);
+   }
+
+   @Override
+   public void clear() {
+      this.list.clear();
+   }
+}
@@ -0,0 +1,292 @@
+package de.mmenning.db.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Stores <code>Storable</code>s in pages of a memory mapped file. The file is
+ * mapped in segments of a fixed number of pages, further segments are mapped
+ * when the file grows. Every object occupies a run of consecutive pages
+ * within one segment, so it is encoded into and decoded from the mapping
+ * without copying its bytes to the heap first.
+ * <p>
+ * Runs of deleted objects are kept in free lists by their length and reused
+ * for objects of the same length, which is the common case for index nodes.
+ * The pages use the same layout as {@link PageFileStorage}.
+ * <p>
+ * Iteration visits the stored objects in physical page order.
+ */
+public class MappedPageStorage implements IterableStorageManager, Closeable {
+
+   /**
+    * default size of a mapped segment in bytes
+    */
+   public static final int DEFAULT_SEGMENT_SIZE = 1 << 26;
+
+   private final int blockSize;
+
+   private final int segmentPages;
+
+   private final FileChannel channel;
+
+   private final StorableCodec codec;
+
+   private final ArrayList<MappedByteBuffer> segments;
+
+   /**
+    * first page and number of pages of every stored object
+    */
+   private final HashMap<ObjectReference, long[]> pageTable;
+
+   private final TreeMap<Long, ObjectReference> physicalOrder;
+
+   private final HashMap<Integer, ArrayDeque<Long>> freeRuns;
+
+   private long nextPage;
+
+   private final IOCounter iocount;
+
+   /**
+    * Creates a mapped page file with Java serialization as encoding.
+    *
+    * @param file      the page file, which is truncated if it exists
+    * @param blockSize size of one page in bytes
+    */
+   public MappedPageStorage(File file, int blockSize) {
+      this(file, blockSize, SerializingCodec.getInstance());
+   }
+
+   /**
+    * @param file      the page file, which is truncated if it exists
+    * @param blockSize size of one page in bytes
+    * @param codec     encoding of the stored objects
+    */
+   public MappedPageStorage(File file, int blockSize, StorableCodec codec) {
+      this(file, blockSize, codec, Math.max(1, DEFAULT_SEGMENT_SIZE
+            / blockSize));
+   }
+
+   /**
+    * @param file         the page file, which is truncated if it exists
+    * @param blockSize    size of one page in bytes
+    * @param codec        encoding of the stored objects
+    * @param segmentPages number of pages mapped at once, limits the size of a
+    *                     single object
+    */
+   public MappedPageStorage(File file, int blockSize, StorableCodec codec,
+                            int segmentPages) {
+      if (blockSize <= PageFileStorage.HEADER_SIZE) {
+         throw new IllegalArgumentException("blockSize must exceed "
+               + PageFileStorage.HEADER_SIZE + " bytes");
+      }
+      if (codec == null) {
+         throw new IllegalArgumentException("codec must not be null");
+      }
+      if (segmentPages < 1
+            || (long) segmentPages * blockSize > Integer.MAX_VALUE) {
+         throw new IllegalArgumentException("illegal segment size: "
+               + segmentPages + " pages");
+      }
+      this.blockSize = blockSize;
+      this.segmentPages = segmentPages;
+      this.codec = codec;
+      this.segments = new ArrayList<>();
+      this.pageTable = new HashMap<>();
+      this.physicalOrder = new TreeMap<>();
+      this.freeRuns = new HashMap<>();
+      this.nextPage = 0;
+      this.iocount = new IOCounter();
+
+      File parentDir = file.getAbsoluteFile().getParentFile();
+      if (parentDir != null) {
+         parentDir.mkdirs();
+      }
+      try {
+         this.channel = FileChannel.open(file.toPath(),
+               StandardOpenOption.CREATE, StandardOpenOption.READ,
+               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      } catch (IOException e) {
+         throw new StorageIOException(e);
+      }
+   }
+
+   public IOCounter getIOCounter() {
+      return this.iocount;
+   }
+
+   public int getBlockSize() {
+      return this.blockSize;
+   }
+
+   /**
+    * @return number of pages in the file, including free pages
+    */
+   public long getPageCount() {
+      return this.nextPage;
+   }
+
+   @Override
+   public Storable load(ObjectReference or) {
+      long[] run = this.pageTable.get(or);
+      if (run == null) {
+         throw new NoSuchElementException();
+      }
+      this.iocount.incReads((int) run[1]);
+
+      ByteBuffer buf = page(run[0]);
+      int length = buf.getInt();
+      int byteSize = buf.getInt();
+      buf.limit(buf.position() + length);
+
+      return new SimpleStorable(or, this.codec.decode(or, buf), byteSize);
+   }
+
+   @Override
+   public void store(Storable st) {
+      int length = this.codec.getEncodedSize(st.getObject());
+      int pageCount = IOUtils.bytesToBlocks(PageFileStorage.HEADER_SIZE
+            + length, this.blockSize);
+
+      if (pageCount > this.segmentPages) {
+         throw new IllegalArgumentException("object of " + length
+               + " bytes exceeds segment size");
+      }
+
+      ObjectReference or = st.getObjectReference();
+      long[] run = this.pageTable.get(or);
+      if (run == null || run[1] != pageCount) {
+         if (run != null) {
+            free(run);
+         }
+         run = new long[]{allocate(pageCount), pageCount};
+         this.pageTable.put(or, run);
+         this.physicalOrder.put(run[0], or);
+      }
+
+      ByteBuffer buf = page(run[0]);
+      buf.putInt(length);
+      buf.putInt(st.getBytes());
+      buf.limit(buf.position() + length);
+      // encode directly into the mapped pages
+      this.codec.encode(st.getObject(), buf);
+      this.iocount.incWrites(pageCount);
+   }
+
+   @Override
+   public void delete(ObjectReference or) {
+      long[] run = this.pageTable.remove(or);
+      if (run != null) {
+         free(run);
+      }
+   }
+
+   /**
+    * Writes changed pages of all segments to the file.
+    */
+   public void force() {
+      for (MappedByteBuffer segment : this.segments) {
+         segment.force();
+      }
+   }
+
+   @Override
+   public void cleanUp() {
+      this.pageTable.clear();
+      this.physicalOrder.clear();
+      this.freeRuns.clear();
+      // keep the mapped segments, they are reused from the first page on
+      this.nextPage = 0;
+   }
+
+   /**
+    * Closes the file. The mapped segments stay valid until they are garbage
+    * collected.
+    */
+   @Override
+   public void close() throws IOException {
+      this.segments.clear();
+      this.channel.close();
+   }
+
+   private void free(long[] run) {
+      this.physicalOrder.remove(run[0]);
+      pushFree((int) run[1], run[0]);
+   }
+
+   private void pushFree(int pages, long first) {
+      ArrayDeque<Long> runs = this.freeRuns.get(pages);
+      if (runs == null) {
+         runs = new ArrayDeque<>();
+         this.freeRuns.put(pages, runs);
+      }
+      runs.push(first);
+   }
+
+   private long allocate(int pageCount) {
+      ArrayDeque<Long> runs = this.freeRuns.get(pageCount);
+      if (runs != null && !runs.isEmpty()) {
+         return runs.pop();
+      }
+
+      long offset = this.nextPage % this.segmentPages;
+      if (offset + pageCount > this.segmentPages) {
+         // a run must not cross the end of a segment
+         int rest = (int) (this.segmentPages - offset);
+         pushFree(rest, this.nextPage);
+         this.nextPage += rest;
+      }
+      long first = this.nextPage;
+      this.nextPage += pageCount;
+      return first;
+   }
+
+   /**
+    * @return a view of the mapping positioned at the beginning of
+    * <code>page</code> and limited by the end of its segment
+    */
+   private ByteBuffer page(long page) {
+      int segment = (int) (page / this.segmentPages);
+      while (this.segments.size() <= segment) {
+         try {
+            this.segments.add(this.channel.map(FileChannel.MapMode.READ_WRITE,
+                  (long) this.segments.size() * this.segmentPages
+                        * this.blockSize, (long) this.segmentPages
+                        * this.blockSize));
+         } catch (IOException e) {
+            throw new StorageIOException(e);
+         }
+      }
+      ByteBuffer buf = this.segments.get(segment).duplicate();
+      buf.position((int) (page % this.segmentPages) * this.blockSize);
+      return buf;
+   }
+
+   @Override
+   public Iterator<ObjectReference> iterator() {
+      final Iterator<ObjectReference> iterator = this.physicalOrder.values()
+            .iterator();
+      // new Iterator to exclude remove() operation
+      return new Iterator<ObjectReference>() {
+         @Override
+         public boolean hasNext() {
+            return iterator.hasNext();
+         }
+
+         @Override
+         public ObjectReference next() {
+            return iterator.next();
+         }
+      };
+   }
+}
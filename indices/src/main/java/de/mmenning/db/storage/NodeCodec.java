@@ -0,0 +1,85 @@
+package de.mmenning.db.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base of the codecs, which encode index nodes in the compact layout the
+ * indices assume for their node sizes: keys are written as plain doubles and
+ * references as the long ids of their <code>ObjectReference</code>s.
+ * <p>
+ * The highest bit of a written id is free to mark the kind of the referenced
+ * object, e.g. whether a child is a node or an indexed object. A missing
+ * reference is written as {@link #NULL_ID}.
+ */
+public abstract class NodeCodec implements StorableCodec {
+
+   /**
+    * bytes of a written reference
+    */
+   public static final int REFERENCE_SIZE = 8;
+
+   protected static final long NULL_ID = -1L;
+
+   private static final long FLAG = Long.MIN_VALUE;
+
+   protected static void putReference(ObjectReference or, ByteBuffer dst) {
+      putReference(or, false, dst);
+   }
+
+   /**
+    * @param or   reference to write, may be <code>null</code>
+    * @param flag whether to set the highest bit of the written id
+    * @param dst  buffer to write to
+    */
+   protected static void putReference(ObjectReference or, boolean flag,
+                                      ByteBuffer dst) {
+      if (or == null) {
+         dst.putLong(NULL_ID);
+      } else if (flag) {
+         dst.putLong(or.getID() | FLAG);
+      } else {
+         dst.putLong(or.getID());
+      }
+   }
+
+   /**
+    * @param id a written id
+    * @return whether the highest bit of <code>id</code> is set
+    */
+   protected static boolean isFlagged(long id) {
+      return id != NULL_ID && (id & FLAG) != 0;
+   }
+
+   /**
+    * @param id   a written id
+    * @param meta class of the referenced object
+    * @return the reference with the written id or <code>null</code> for
+    * {@link #NULL_ID}
+    */
+   protected static ObjectReference toReference(long id, Class<?> meta) {
+      if (id == NULL_ID) {
+         return null;
+      }
+      return ObjectReference.getReference(id & ~FLAG, meta);
+   }
+
+   protected static double[] getDoubles(int n, ByteBuffer src) {
+      double[] values = new double[n];
+      for (int i = 0; i < n; i++) {
+         values[i] = src.getDouble();
+      }
+      return values;
+   }
+
+   /**
+    * @throws IllegalArgumentException if <code>o</code> is not an instance
+    *                                  of <code>type</code>
+    */
+   protected static <T> T cast(Object o, Class<T> type) {
+      if (!type.isInstance(o)) {
+         throw new IllegalArgumentException("cannot encode " + o + ", "
+               + type.getSimpleName() + " expected");
+      }
+      return type.cast(o);
+   }
+}
@@ -1,6 +1,7 @@
 package de.mmenning.db.storage;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class ObjectReference implements Serializable {
 
@@ -19,10 +20,27 @@ public final class ObjectReference implements Serializable {
 		return id;
 	}
 
-	private static long global_id = 0;
+	/**
+	 * next id, shared by all threads creating references
+	 */
+	private static final AtomicLong global_id = new AtomicLong();
 
 	public static ObjectReference getReference(Object o) {
-		return new ObjectReference(global_id++, o.getClass());
+		return new ObjectReference(global_id.getAndIncrement(), o.getClass());
+	}
+
+	/**
+	 * Recreates the reference with the given id, e.g. when a node is decoded
+	 * from its stored bytes. No new id is issued.
+	 * 
+	 * @param id
+	 *            id of an existing reference
+	 * @param meta
+	 *            class of the referenced object
+	 * @return a reference equal to the one with the given id
+	 */
+	public static ObjectReference getReference(long id, Class<?> meta) {
+		return new ObjectReference(id, meta);
 	}
 
 	@Override
@@ -0,0 +1,276 @@
+package de.mmenning.db.storage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Stores <code>Storable</code>s in pages of <code>blockSize</code> bytes in a
+ * single file, which is accessed by positional <code>FileChannel</code> reads
+ * and writes. An object, whose encoding does not fit into one page, occupies
+ * several pages. Pages of deleted objects are kept in a free list and reused
+ * before the file grows.
+ * <p>
+ * The first page of every object starts with a header of the encoded length
+ * and the byte size of the <code>Storable</code>, so that a loaded
+ * <code>Storable</code> has the same size as the stored one. The mapping of
+ * <code>ObjectReference</code>s to pages is held in memory.
+ * <p>
+ * The <code>IOCounter</code> counts the pages, which have actually been read
+ * and written.
+ */
+public class PageFileStorage implements IterableStorageManager, Closeable {
+
+   static final int HEADER_SIZE = 8;
+
+   private final int blockSize;
+
+   private final FileChannel channel;
+
+   private final StorableCodec codec;
+
+   private final HashMap<ObjectReference, long[]> pageTable;
+
+   private final ArrayDeque<Long> freePages;
+
+   private long nextPage;
+
+   private final IOCounter iocount;
+
+   private ByteBuffer buffer;
+
+   /**
+    * Creates a page file with Java serialization as encoding.
+    *
+    * @param file      the page file, which is truncated if it exists
+    * @param blockSize size of one page in bytes
+    */
+   public PageFileStorage(File file, int blockSize) {
+      this(file, blockSize, SerializingCodec.getInstance());
+   }
+
+   /**
+    * @param file      the page file, which is truncated if it exists
+    * @param blockSize size of one page in bytes
+    * @param codec     encoding of the stored objects
+    */
+   public PageFileStorage(File file, int blockSize, StorableCodec codec) {
+      if (blockSize <= HEADER_SIZE) {
+         throw new IllegalArgumentException("blockSize must exceed "
+               + HEADER_SIZE + " bytes");
+      }
+      if (codec == null) {
+         throw new IllegalArgumentException("codec must not be null");
+      }
+      this.blockSize = blockSize;
+      this.codec = codec;
+      this.pageTable = new HashMap<>();
+      this.freePages = new ArrayDeque<>();
+      this.nextPage = 0;
+      this.iocount = new IOCounter();
+
+      File parentDir = file.getAbsoluteFile().getParentFile();
+      if (parentDir != null) {
+         parentDir.mkdirs();
+      }
+      try {
+         this.channel = FileChannel.open(file.toPath(),
+               StandardOpenOption.CREATE, StandardOpenOption.READ,
+               StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      } catch (IOException e) {
+         throw new StorageIOException(e);
+      }
+   }
+
+   public IOCounter getIOCounter() {
+      return this.iocount;
+   }
+
+   public int getBlockSize() {
+      return this.blockSize;
+   }
+
+   /**
+    * @return number of pages in the file, including free pages
+    */
+   public long getPageCount() {
+      return this.nextPage;
+   }
+
+   /**
+    * @return number of pages, which are free for reuse
+    */
+   public int getFreePageCount() {
+      return this.freePages.size();
+   }
+
+   @Override
+   public Storable load(ObjectReference or) {
+      long[] pages = this.pageTable.get(or);
+      if (pages == null) {
+         throw new NoSuchElementException();
+      }
+
+      ByteBuffer buf = buffer(pages.length * this.blockSize);
+      for (int i = 0; i < pages.length; i++) {
+         buf.limit((i + 1) * this.blockSize);
+         readFully(buf, pages[i]);
+         buf.position(buf.limit());
+      }
+      this.iocount.incReads(pages.length);
+
+      buf.flip();
+      int length = buf.getInt();
+      int byteSize = buf.getInt();
+      buf.limit(HEADER_SIZE + length);
+
+      return new SimpleStorable(or, this.codec.decode(or, buf), byteSize);
+   }
+
+   @Override
+   public void store(Storable st) {
+      int length = this.codec.getEncodedSize(st.getObject());
+      int end = HEADER_SIZE + length;
+      int pageCount = IOUtils.bytesToBlocks(end, this.blockSize);
+
+      long[] pages = allocate(st.getObjectReference(), pageCount);
+
+      ByteBuffer buf = buffer(end);
+      buf.limit(end);
+      buf.putInt(length);
+      buf.putInt(st.getBytes());
+      this.codec.encode(st.getObject(), buf);
+      buf.flip();
+
+      for (int i = 0; i < pages.length; i++) {
+         buf.limit(Math.min(end, (i + 1) * this.blockSize));
+         writeFully(buf, pages[i]);
+      }
+      this.iocount.incWrites(pages.length);
+   }
+
+   /**
+    * @return the cleared buffer for page reads and writes, which is enlarged
+    * to at least <code>capacity</code> bytes
+    */
+   private ByteBuffer buffer(int capacity) {
+      if (this.buffer == null || this.buffer.capacity() < capacity) {
+         this.buffer = ByteBuffer.allocate(Math.max(capacity, this.blockSize));
+      }
+      this.buffer.clear();
+      return this.buffer;
+   }
+
+   /**
+    * Reuses the pages of an already stored object and takes missing pages
+    * from the free list or from the end of the file.
+    */
+   private long[] allocate(ObjectReference or, int pageCount) {
+      long[] old = this.pageTable.get(or);
+      long[] pages;
+      if (old == null) {
+         pages = new long[pageCount];
+         for (int i = 0; i < pageCount; i++) {
+            pages[i] = newPage();
+         }
+      } else {
+         pages = Arrays.copyOf(old, pageCount);
+         for (int i = old.length; i < pageCount; i++) {
+            pages[i] = newPage();
+         }
+         for (int i = pageCount; i < old.length; i++) {
+            this.freePages.push(old[i]);
+         }
+      }
+      this.pageTable.put(or, pages);
+      return pages;
+   }
+
+   private long newPage() {
+      if (this.freePages.isEmpty()) {
+         return this.nextPage++;
+      } else {
+         return this.freePages.pop();
+      }
+   }
+
+   @Override
+   public void delete(ObjectReference or) {
+      long[] pages = this.pageTable.remove(or);
+      if (pages != null) {
+         for (long page : pages) {
+            this.freePages.push(page);
+         }
+      }
+   }
+
+   @Override
+   public void cleanUp() {
+      this.pageTable.clear();
+      this.freePages.clear();
+      this.nextPage = 0;
+      try {
+         this.channel.truncate(0);
+      } catch (IOException e) {
+         throw new StorageIOException(e);
+      }
+   }
+
+   @Override
+   public void close() throws IOException {
+      this.channel.close();
+   }
+
+   private void readFully(ByteBuffer buf, long page) {
+      long position = page * this.blockSize;
+      try {
+         while (buf.hasRemaining()) {
+            int read = this.channel.read(buf, position);
+            if (read < 0) {
+               // last page of the file may be shorter than blockSize
+               break;
+            }
+            position += read;
+         }
+      } catch (IOException e) {
+         throw new StorageIOException(e);
+      }
+   }
+
+   private void writeFully(ByteBuffer buf, long page) {
+      long position = page * this.blockSize;
+      try {
+         while (buf.hasRemaining()) {
+            position += this.channel.write(buf, position);
+         }
+      } catch (IOException e) {
+         throw new StorageIOException(e);
+      }
+   }
+
+   @Override
+   public Iterator<ObjectReference> iterator() {
+      final Iterator<ObjectReference> iterator = this.pageTable.keySet()
+            .iterator();
+      // new Iterator to exclude remove() operation
+      return new Iterator<ObjectReference>() {
+         @Override
+         public boolean hasNext() {
+            return iterator.hasNext();
+         }
+
+         @Override
+         public ObjectReference next() {
+            return iterator.next();
+         }
+      };
+   }
+}
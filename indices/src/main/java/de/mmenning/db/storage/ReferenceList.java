@@ -0,0 +1,116 @@
+package de.mmenning.db.storage;
+
+import java.util.HashMap;
+
+/**
+ * Recency ordered list of <code>ObjectReference</code>s. All operations run in
+ * constant time, as the list nodes are found by a hash map and linked
+ * intrusively into a circular list with a sentinel head.
+ */
+class ReferenceList {
+
+   private static class ListNode {
+
+      final ObjectReference or;
+
+      ListNode prev;
+      ListNode next;
+
+      ListNode(ObjectReference or) {
+         this.or = or;
+         this.prev = this;
+         this.next = this;
+      }
+   }
+
+   private final HashMap<ObjectReference, ListNode> nodes;
+
+   private final ListNode head;
+
+   ReferenceList() {
+      this.nodes = new HashMap<>();
+      this.head = new ListNode(null);
+   }
+
+   boolean contains(ObjectReference or) {
+      return this.nodes.containsKey(or);
+   }
+
+   int size() {
+      return this.nodes.size();
+   }
+
+   boolean isEmpty() {
+      return this.nodes.isEmpty();
+   }
+
+   /**
+    * Inserts <code>or</code> as most recently used reference.
+    */
+   void addFirst(ObjectReference or) {
+      ListNode n = new ListNode(or);
+      if (this.nodes.put(or, n) != null) {
+         throw new IllegalStateException("element already contained");
+      }
+      linkFirst(n);
+   }
+
+   /**
+    * Makes <code>or</code> the most recently used reference.
+    *
+    * @return false, if <code>or</code> is not contained
+    */
+   boolean moveToFront(ObjectReference or) {
+      ListNode n = this.nodes.get(or);
+      if (n == null) {
+         return false;
+      }
+      unlink(n);
+      linkFirst(n);
+      return true;
+   }
+
+   boolean remove(ObjectReference or) {
+      ListNode n = this.nodes.remove(or);
+      if (n == null) {
+         return false;
+      }
+      unlink(n);
+      return true;
+   }
+
+   /**
+    * Removes the least recently used reference.
+    *
+    * @return the removed reference or null, if this list is empty
+    */
+   ObjectReference removeLast() {
+      if (this.head.prev == this.head) {
+         return null;
+      }
+      ListNode n = this.head.prev;
+      unlink(n);
+      this.nodes.remove(n.or);
+      return n.or;
+   }
+
+   void clear() {
+      this.nodes.clear();
+      this.head.prev = this.head;
+      this.head.next = this.head;
+   }
+
+   private void linkFirst(ListNode n) {
+      n.prev = this.head;
+      n.next = this.head.next;
+      this.head.next.prev = n;
+      this.head.next = n;
+   }
+
+   private static void unlink(ListNode n) {
+      n.prev.next = n.next;
+      n.next.prev = n.prev;
+      n.prev = null;
+      n.next = null;
+   }
+}
@@ -0,0 +1,61 @@
+package de.mmenning.db.storage;
+
+/**
+ * Available replacement policies of a <code>BufferedStorage</code>.
+ */
+public enum ReplacementPolicies {
+
+   /**
+    * Evicts the least recently used element.
+    */
+   LRU {
+      @Override
+      public ReplacementPolicy create(int bufferCapacity) {
+         return new LRUPolicy();
+      }
+   },
+   /**
+    * LRU-2 of O'Neil et al., evicts the element whose second last access is
+    * the oldest one. Elements referenced only once are evicted first.
+    */
+   LRU_K {
+      @Override
+      public ReplacementPolicy create(int bufferCapacity) {
+         return new LRUKPolicy(2, bufferCapacity);
+      }
+   },
+   /**
+    * Full 2Q of Johnson and Shasha.
+    */
+   TWO_Q {
+      @Override
+      public ReplacementPolicy create(int bufferCapacity) {
+         return new TwoQueuePolicy(bufferCapacity);
+      }
+   },
+   /**
+    * Second chance algorithm, an approximation of LRU.
+    */
+   CLOCK {
+      @Override
+      public ReplacementPolicy create(int bufferCapacity) {
+         return new ClockPolicy(bufferCapacity);
+      }
+   },
+   /**
+    * Adaptive Replacement Cache of Megiddo and Modha.
+    */
+   ARC {
+      @Override
+      public ReplacementPolicy create(int bufferCapacity) {
+         return new ARCPolicy(bufferCapacity);
+      }
+   };
+
+   /**
+    * @param bufferCapacity capacity of the buffer in blocks, which is used as
+    *                       an upper bound of the buffered elements
+    * @return a new instance of this policy
+    */
+   public abstract ReplacementPolicy create(int bufferCapacity);
+}
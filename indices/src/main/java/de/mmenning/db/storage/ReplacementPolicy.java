@@ -0,0 +1,44 @@
+package de.mmenning.db.storage;
+
+/**
+ * Decides which buffered element is written back, when a
+ * <code>BufferedStorage</code> runs out of capacity. A policy only tracks
+ * <code>ObjectReference</code>s; the buffer itself keeps the
+ * <code>Storable</code>s and their dirty state.
+ * <p>
+ * The buffer informs its policy about every hit, admission and deletion and
+ * asks it for victims until the requested blocks fit into the buffer.
+ *
+ * @see ReplacementPolicies
+ */
+public interface ReplacementPolicy {
+
+   /**
+    * Called on every access of an already buffered element.
+    */
+   public void hit(ObjectReference or);
+
+   /**
+    * Called after <code>or</code> has been taken into the buffer.
+    */
+   public void admit(ObjectReference or);
+
+   /**
+    * Chooses the next buffered element to be evicted and removes it from the
+    * resident elements of this policy.
+    *
+    * @param incoming reference of the element, which causes the eviction
+    * @return the victim or null, if no element is buffered
+    */
+   public ObjectReference evict(ObjectReference incoming);
+
+   /**
+    * Called when a buffered element is deleted.
+    */
+   public void remove(ObjectReference or);
+
+   /**
+    * Forgets all resident elements and all history.
+    */
+   public void clear();
+}
@@ -0,0 +1,109 @@
+package de.mmenning.db.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes objects by Java serialization. Works with every
+ * <code>Serializable</code> node, but the encoding is much larger than the
+ * node sizes the indices assume.
+ */
+public class SerializingCodec implements StorableCodec {
+
+   private static final SerializingCodec instance = new SerializingCodec();
+
+   public static SerializingCodec getInstance() {
+      return instance;
+   }
+
+   /**
+    * the last serialized object and its bytes, so that an object is only
+    * serialized once for {@link #getEncodedSize(Object)} and
+    * {@link #encode(Object, ByteBuffer)}
+    */
+   private volatile Serialized last;
+
+   @Override
+   public int getEncodedSize(Object o) {
+      return serialize(o).length;
+   }
+
+   @Override
+   public void encode(Object o, ByteBuffer dst) {
+      dst.put(serialize(o));
+      this.last = null;
+   }
+
+   private byte[] serialize(Object o) {
+      Serialized s = this.last;
+      if (s == null || s.object != o) {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+         } catch (IOException e) {
+            throw new StorageIOException(e);
+         }
+         s = new Serialized(o, bytes.toByteArray());
+         this.last = s;
+      }
+      return s.bytes;
+   }
+
+   @Override
+   public Object decode(ObjectReference or, ByteBuffer src) {
+      try (ObjectInputStream in = new ObjectInputStream(
+            new ByteBufferInputStream(src))) {
+         return in.readObject();
+      } catch (IOException | ClassNotFoundException e) {
+         throw new StorageIOException(e);
+      }
+   }
+
+   private static class ByteBufferInputStream extends InputStream {
+
+      private final ByteBuffer src;
+
+      ByteBufferInputStream(ByteBuffer src) {
+         this.src = src;
+      }
+
+      @Override
+      public int read() {
+         return this.src.hasRemaining() ? this.src.get() & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+         if (len == 0) {
+            return 0;
+         }
+         if (!this.src.hasRemaining()) {
+            return -1;
+         }
+         len = Math.min(len, this.src.remaining());
+         this.src.get(b, off, len);
+         return len;
+      }
+
+      @Override
+      public int available() {
+         return this.src.remaining();
+      }
+   }
+
+   private static class Serialized {
+
+      private final Object object;
+
+      private final byte[] bytes;
+
+      Serialized(Object object, byte[] bytes) {
+         this.object = object;
+         this.bytes = bytes;
+      }
+   }
+}
@@ -0,0 +1,35 @@
+package de.mmenning.db.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts the objects of <code>Storable</code>s to bytes and back, so that
+ * they can be written to pages of a file. The buffers are supplied by the
+ * caller, so that a storage may encode directly into its pages.
+ */
+public interface StorableCodec {
+
+   /**
+    * @param o object to encode
+    * @return number of bytes {@link #encode(Object, ByteBuffer)} will write
+    * for <code>o</code>
+    */
+   public int getEncodedSize(Object o);
+
+   /**
+    * Writes <code>o</code> to <code>dst</code> beginning at its position.
+    *
+    * @param o   object to encode
+    * @param dst buffer with at least {@link #getEncodedSize(Object)}
+    *            remaining bytes
+    */
+   public void encode(Object o, ByteBuffer dst);
+
+   /**
+    * @param or  reference of the stored object
+    * @param src buffer whose remaining bytes have been written by
+    *            {@link #encode(Object, ByteBuffer)}
+    * @return the decoded object
+    */
+   public Object decode(ObjectReference or, ByteBuffer src);
+}
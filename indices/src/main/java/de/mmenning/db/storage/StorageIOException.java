@@ -0,0 +1,18 @@
+package de.mmenning.db.storage;
+
+/**
+ * Thrown if a <code>StorageManager</code> fails to access its underlying
+ * file.
+ */
+public class StorageIOException extends IllegalStateException {
+
+   private static final long serialVersionUID = 3179691377654359305L;
+
+   public StorageIOException(Exception e) {
+      super(e);
+   }
+
+   public StorageIOException(String string) {
+      super(string);
+   }
+}
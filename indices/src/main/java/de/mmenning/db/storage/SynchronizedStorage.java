@@ -0,0 +1,42 @@
+package de.mmenning.db.storage;
+
+/**
+ * Makes a storage, which is not thread safe, e.g. a {@link PageFileStorage},
+ * usable by several threads by serializing all accesses to it on one
+ * monitor.
+ */
+public class SynchronizedStorage implements StorageManager {
+
+   private final StorageManager storage;
+
+   public SynchronizedStorage(StorageManager storage) {
+      if (storage == null) {
+         throw new IllegalArgumentException("storage must not be null");
+      }
+      this.storage = storage;
+   }
+
+   public StorageManager getStorage() {
+      return this.storage;
+   }
+
+   @Override
+   public synchronized Storable load(ObjectReference or) {
+      return this.storage.load(or);
+   }
+
+   @Override
+   public synchronized void delete(ObjectReference or) {
+      this.storage.delete(or);
+   }
+
+   @Override
+   public synchronized void store(Storable st) {
+      this.storage.store(st);
+   }
+
+   @Override
+   public synchronized void cleanUp() {
+      this.storage.cleanUp();
+   }
+}
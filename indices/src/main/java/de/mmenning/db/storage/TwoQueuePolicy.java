@@ -0,0 +1,85 @@
+package de.mmenning.db.storage;
+
+/**
+ * Full 2Q replacement. New elements are kept in a FIFO queue <i>A1in</i>.
+ * Elements evicted from <i>A1in</i> are remembered in the ghost queue
+ * <i>A1out</i>; only if they are requested again while remembered, they are
+ * admitted to the LRU queue <i>Am</i>. Hence a single scan over many nodes
+ * cannot flush the frequently used nodes out of <i>Am</i>.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+   private final int kin;
+   private final int kout;
+
+   private final ReferenceList a1in = new ReferenceList();
+   private final ReferenceList a1out = new ReferenceList();
+   private final ReferenceList am = new ReferenceList();
+
+   /**
+    * Uses the tuning recommended by Johnson and Shasha: <i>A1in</i> holds a
+    * quarter of the buffer and <i>A1out</i> remembers half as many elements as
+    * fit into the buffer.
+    *
+    * @param bufferCapacity capacity of the buffer
+    */
+   public TwoQueuePolicy(int bufferCapacity) {
+      this(Math.max(1, bufferCapacity / 4), Math.max(1, bufferCapacity / 2));
+   }
+
+   /**
+    * @param kin  maximum size of <i>A1in</i>
+    * @param kout maximum size of <i>A1out</i>
+    */
+   public TwoQueuePolicy(int kin, int kout) {
+      if (kin < 1 || kout < 1) {
+         throw new IllegalArgumentException("queue sizes must be positive");
+      }
+      this.kin = kin;
+      this.kout = kout;
+   }
+
+   @Override
+   public void hit(ObjectReference or) {
+      // hits in A1in are assumed to be correlated and do not change anything
+      this.am.moveToFront(or);
+   }
+
+   @Override
+   public void admit(ObjectReference or) {
+      if (this.a1out.remove(or)) {
+         this.am.addFirst(or);
+      } else {
+         this.a1in.addFirst(or);
+      }
+   }
+
+   @Override
+   public ObjectReference evict(ObjectReference incoming) {
+      if (this.a1in.size() > this.kin || this.am.isEmpty()) {
+         ObjectReference victim = this.a1in.removeLast();
+         if (victim != null) {
+            this.a1out.addFirst(victim);
+            if (this.a1out.size() > this.kout) {
+               this.a1out.removeLast();
+            }
+            return victim;
+         }
+      }
+      return this.am.removeLast();
+   }
+
+   @Override
+   public void remove(ObjectReference or) {
+      if (!this.a1in.remove(or)) {
+         this.am.remove(or);
+      }
+   }
+
+   @Override
+   public void clear() {
+      this.a1in.clear();
+      this.a1out.clear();
+      this.am.clear();
+   }
+}
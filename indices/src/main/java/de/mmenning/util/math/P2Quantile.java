@@ -0,0 +1,157 @@
+package de.mmenning.util.math;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a quantile of a stream of values with the P² algorithm of Jain
+ * and Chlamtac in constant space. Five markers track the minimum, the
+ * quantile, the maximum and the quantiles halfway in between. With every
+ * value the markers are moved towards their desired positions and their
+ * heights are adjusted by piecewise parabolic interpolation.
+ * <p>
+ * Values cannot be removed. Not thread safe.
+ */
+public class P2Quantile {
+
+	private static final int MARKERS = 5;
+
+	private final double p;
+
+	/**
+	 * heights of the markers
+	 */
+	private final double[] q = new double[MARKERS];
+
+	/**
+	 * actual positions of the markers, starting at 1
+	 */
+	private final int[] n = new int[MARKERS];
+
+	/**
+	 * desired positions of the markers
+	 */
+	private final double[] desired = new double[MARKERS];
+
+	/**
+	 * increments of the desired positions
+	 */
+	private final double[] increment;
+
+	private long count;
+
+	/**
+	 * Estimates the median.
+	 */
+	public P2Quantile() {
+		this(0.5);
+	}
+
+	/**
+	 * @param p
+	 *            the quantile to estimate, between 0 and 1
+	 */
+	public P2Quantile(final double p) {
+		if (!(p > 0.0 && p < 1.0)) {
+			throw new IllegalArgumentException("quantile (" + p
+					+ ") is not between 0 and 1");
+		}
+		this.p = p;
+		this.increment = new double[] { 0.0, p / 2, p, (1 + p) / 2, 1.0 };
+	}
+
+	public double getQuantile() {
+		return this.p;
+	}
+
+	/**
+	 * @return the number of added values
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+	public void add(final double x) {
+		if (this.count < MARKERS) {
+			this.q[(int) this.count++] = x;
+			if (this.count == MARKERS) {
+				Arrays.sort(this.q);
+				for (int i = 0; i < MARKERS; i++) {
+					this.n[i] = i + 1;
+					this.desired[i] = 1 + 4 * this.increment[i];
+				}
+			}
+			return;
+		}
+		this.count++;
+
+		/*
+		 * find the cell of x and adjust the extreme markers
+		 */
+		int k;
+		if (x < this.q[0]) {
+			this.q[0] = x;
+			k = 0;
+		} else if (x >= this.q[MARKERS - 1]) {
+			this.q[MARKERS - 1] = x;
+			k = MARKERS - 2;
+		} else {
+			k = 0;
+			while (x >= this.q[k + 1]) {
+				k++;
+			}
+		}
+
+		for (int i = k + 1; i < MARKERS; i++) {
+			this.n[i]++;
+		}
+		for (int i = 0; i < MARKERS; i++) {
+			this.desired[i] += this.increment[i];
+		}
+
+		/*
+		 * move the inner markers towards their desired positions
+		 */
+		for (int i = 1; i < MARKERS - 1; i++) {
+			final double d = this.desired[i] - this.n[i];
+			if ((d >= 1 && this.n[i + 1] - this.n[i] > 1)
+					|| (d <= -1 && this.n[i - 1] - this.n[i] < -1)) {
+				final int s = d > 0 ? 1 : -1;
+				final double parabolic = this.parabolic(i, s);
+				if (this.q[i - 1] < parabolic && parabolic < this.q[i + 1]) {
+					this.q[i] = parabolic;
+				} else {
+					this.q[i] += s * (this.q[i + s] - this.q[i])
+							/ (this.n[i + s] - this.n[i]);
+				}
+				this.n[i] += s;
+			}
+		}
+	}
+
+	private double parabolic(final int i, final int s) {
+		return this.q[i]
+				+ (double) s
+				/ (this.n[i + 1] - this.n[i - 1])
+				* ((this.n[i] - this.n[i - 1] + s)
+						* (this.q[i + 1] - this.q[i])
+						/ (this.n[i + 1] - this.n[i]) + (this.n[i + 1]
+						- this.n[i] - s)
+						* (this.q[i] - this.q[i - 1])
+						/ (this.n[i] - this.n[i - 1]));
+	}
+
+	/**
+	 * @return the estimated quantile, the exact one of less than five values
+	 */
+	public double getValue() {
+		if (this.count == 0) {
+			throw new IllegalStateException("no values");
+		}
+		if (this.count < MARKERS) {
+			final double[] values = Arrays.copyOf(this.q, (int) this.count);
+			Arrays.sort(values);
+			return values[(int) (this.p * (values.length - 1) + 0.5)];
+		}
+		return this.q[MARKERS / 2];
+	}
+}
@@ -0,0 +1,143 @@
+package de.mmenning.db.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
+import de.mmenning.db.index.rsttree.RSTTree;
+import de.mmenning.db.index.rtree.NDRStar;
+import de.mmenning.db.index.rtree.NDRTree;
+import de.mmenning.db.index.sequential.SequentialAccess;
+import de.mmenning.db.storage.CountingStorage;
+import de.mmenning.db.storage.ObjectReference;
+import de.mmenning.util.math.RandomInterval;
+import de.mmenning.util.math.Uniform;
+
+public class SpatialJoinTestCase {
+
+	private static final int dim = 3;
+
+	private final NowGen now = new NowGen(1.0);
+
+	private final NDRandomRectangleGenerator recGen;
+
+	public SpatialJoinTestCase() {
+		RandomInterval[] r = new RandomInterval[dim];
+		for (int i = 0; i < dim; i++) {
+			r[i] = new RandomInterval(new Uniform(0, 1, i), new Uniform(0,
+					0.1, i + dim));
+		}
+		this.recGen = new NDRandomRectangleGenerator(r);
+	}
+
+	private List<NDRectangleKey> nextKeys(int n) {
+		List<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < n; i++) {
+			keys.add(new NDRectangleKey(ObjectReference
+					.getReference(new Object()), this.recGen.getNextRectangle()));
+		}
+		return keys;
+	}
+
+	private static NDRectangleKeyIndex fill(NDRectangleKeyIndex index,
+			List<NDRectangleKey> keys) {
+		for (NDRectangleKey k : keys) {
+			assertTrue(index.insert(k));
+		}
+		return index;
+	}
+
+	private Set<List<ObjectReference>> expected(List<NDRectangleKey> left,
+			List<NDRectangleKey> right) {
+		Set<List<ObjectReference>> pairs = new HashSet<List<ObjectReference>>();
+		for (NDRectangleKey a : left) {
+			for (NDRectangleKey b : right) {
+				if (STFunctions.intersects(a.getNDKey(), b.getNDKey(), this.now)) {
+					pairs.add(Arrays.asList(a.getObject(), b.getObject()));
+				}
+			}
+		}
+		return pairs;
+	}
+
+	private Set<List<ObjectReference>> join(NDRectangleKeyIndex left,
+			NDRectangleKeyIndex right) {
+		final Set<List<ObjectReference>> pairs = new HashSet<List<ObjectReference>>();
+		SpatialJoin.join(left, right, this.now, new JoinQuery() {
+			@Override
+			public boolean query(NDRectangleKey a, NDRectangleKey b) {
+				assertTrue(pairs.add(Arrays.asList(a.getObject(),
+						b.getObject())));
+				return true;
+			}
+		});
+		return pairs;
+	}
+
+	@Test
+	public void testRTreeJoin() {
+		List<NDRectangleKey> left = this.nextKeys(1000);
+		List<NDRectangleKey> right = this.nextKeys(40);
+
+		NDRTree l = (NDRTree) fill(new NDRTree(8, 0.5, dim,
+				new CountingStorage(4096)), left);
+		NDRTree r = (NDRTree) fill(new NDRStar(4, 0.5, dim,
+				new CountingStorage(4096)), right);
+		assertTrue(l.getHeight() != r.getHeight());
+
+		Set<List<ObjectReference>> expected = this.expected(left, right);
+		assertTrue(expected.size() > 0);
+		assertEquals(expected, this.join(l, r));
+		assertEquals(this.expected(right, left), this.join(r, l));
+	}
+
+	@Test
+	public void testRSTTreeJoin() {
+		List<NDRectangleKey> left = this.nextKeys(500);
+		List<NDRectangleKey> right = this.nextKeys(500);
+
+		assertEquals(this.expected(left, right), this.join(fill(new RSTTree(8,
+				0.5, dim - 2), left), fill(new RSTTree(8, 0.5, dim - 2), right)));
+	}
+
+	@Test
+	public void testPlaneSweep() {
+		List<NDRectangleKey> left = this.nextKeys(500);
+		List<NDRectangleKey> right = this.nextKeys(300);
+
+		NDRectangleKeyIndex l = fill(new SequentialAccess(dim,
+				new CountingStorage(4096), this.now), left);
+		NDRectangleKeyIndex r = fill(new SequentialAccess(dim,
+				new CountingStorage(4096), this.now), right);
+
+		assertEquals(this.expected(left, right), this.join(l, r));
+	}
+
+	@Test
+	public void testStop() {
+		NDRectangleKeyIndex l = fill(new NDRTree(8, 0.5, dim,
+				new CountingStorage(4096)), this.nextKeys(500));
+		NDRectangleKeyIndex r = fill(new SequentialAccess(dim,
+				new CountingStorage(4096), this.now), this.nextKeys(500));
+
+		for (NDRectangleKeyIndex[] pair : new NDRectangleKeyIndex[][] {
+				{ l, l }, { l, r } }) {
+			final int[] calls = new int[1];
+			SpatialJoin.join(pair[0], pair[1], this.now, new JoinQuery() {
+				@Override
+				public boolean query(NDRectangleKey a, NDRectangleKey b) {
+					return ++calls[0] < 10;
+				}
+			});
+			assertEquals(10, calls[0]);
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package de.mmenning.db.index.bplustree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mmenning.db.storage.ConcurrentBufferedStorage;
+import de.mmenning.db.storage.ObjectReference;
+import de.mmenning.db.storage.SimpleStorable;
+import de.mmenning.db.storage.Storable;
+import de.mmenning.db.storage.StorageManager;
+
+public class BPlusTreeConcurrencyTestCase {
+
+	private static final int threads = 4;
+	private static final int keysPerThread = 2000;
+
+	private BPlusTree<Integer, Integer> tree;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		this.tree = createTree(new ConcurrentBufferedStorage(64, 8));
+		this.executor = Executors.newFixedThreadPool(threads + 1);
+	}
+
+	private static BPlusTree<Integer, Integer> createTree(StorageManager s) {
+		return new BPlusTree<Integer, Integer>(3, 3, s) {
+
+			@Override
+			protected Storable leafNodeToStorable(LeafNode<Integer, Integer> n) {
+				return new SimpleStorable(n.getObjectReference(), n, 8);
+			}
+
+			@Override
+			protected Storable dirNodeToStorable(DirNode<Integer, Integer> n) {
+				return new SimpleStorable(n.getObjectReference(), n, 8);
+			}
+
+			@Override
+			protected DirNode<Integer, Integer> getDirNodeFromStorable(
+					Storable st) {
+				return (DirNode<Integer, Integer>) st.getObject();
+			}
+
+			@Override
+			protected LeafNode<Integer, Integer> getLeafNodeFromStorable(
+					Storable st) {
+				return (LeafNode<Integer, Integer>) st.getObject();
+			}
+		};
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.executor.shutdownNow();
+		this.executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Every thread inserts and removes its own keys, interleaved with the keys
+	 * of the other threads, while another thread runs range queries.
+	 */
+	@Test
+	public void testConcurrentInsertRemove() throws Exception {
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < threads; t++) {
+			final int offset = t;
+			results.add(this.executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					for (int i = 0; i < keysPerThread; i++) {
+						int key = i * threads + offset;
+						assertTrue(tree.insert(key, key));
+						assertTrue(tree.insert(key, -key - 1));
+						assertTrue(tree.contains(key, key));
+					}
+					for (int i = 0; i < keysPerThread; i += 2) {
+						int key = i * threads + offset;
+						assertTrue(tree.remove(key, -key - 1));
+						assertTrue(tree.remove(key));
+						assertFalse(tree.contains(key));
+					}
+					return true;
+				}
+			}));
+		}
+
+		Future<Boolean> reader = this.executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				for (int r = 0; r < 50; r++) {
+					Integer last = null;
+					Iterator<KeyValuePair<Integer, LinkedList<Integer>>> it = tree
+							.rangeQuery(100, 4000);
+					while (it.hasNext()) {
+						Integer key = it.next().getKey();
+						assertTrue(key >= 100 && key <= 4000);
+						assertTrue(last == null || last < key);
+						last = key;
+					}
+					tree.rangeQuery(0, Integer.MAX_VALUE,
+							new Query<Integer, Integer>() {
+								@Override
+								public boolean query(Integer key,
+										LinkedList<Integer> values) {
+									assertFalse(values.isEmpty());
+									return true;
+								}
+							});
+				}
+				return true;
+			}
+		});
+
+		for (Future<Boolean> f : results) {
+			assertTrue(f.get());
+		}
+		assertTrue(reader.get());
+
+		assertEquals(threads * keysPerThread, this.tree.size());
+		int count = 0;
+		Integer last = null;
+		for (KeyValuePair<Integer, LinkedList<Integer>> kv : this.tree) {
+			int key = kv.getKey();
+			assertTrue(last == null || last < key);
+			assertEquals(1, (key / threads) % 2);
+			assertEquals(2, kv.getValue().size());
+			last = key;
+			count++;
+		}
+		assertEquals(threads * keysPerThread / 2, count);
+	}
+
+	/**
+	 * Range queries and iterators return the same entries with read-ahead,
+	 * while the leaves ahead of them are loaded by other threads.
+	 */
+	@Test
+	public void testReadAhead() throws Exception {
+		final Thread scanner = Thread.currentThread();
+		final AtomicInteger loadsAhead = new AtomicInteger();
+		final StorageManager buffer = new ConcurrentBufferedStorage(64, 8);
+		BPlusTree<Integer, Integer> readAhead = createTree(new StorageManager() {
+			@Override
+			public Storable load(ObjectReference or) {
+				if (Thread.currentThread() != scanner) {
+					loadsAhead.incrementAndGet();
+				}
+				return buffer.load(or);
+			}
+
+			@Override
+			public void delete(ObjectReference or) {
+				buffer.delete(or);
+			}
+
+			@Override
+			public void store(Storable st) {
+				buffer.store(st);
+			}
+
+			@Override
+			public void cleanUp() {
+				buffer.cleanUp();
+			}
+		});
+		final int keys = 10000;
+		for (int key = 0; key < keys; key++) {
+			assertTrue(readAhead.insert(key, key));
+		}
+		readAhead.setReadAhead(this.executor, 4);
+
+		final AtomicInteger next = new AtomicInteger(100);
+		assertTrue(readAhead.rangeQuery(100, 9000,
+				new Query<Integer, Integer>() {
+					@Override
+					public boolean query(Integer key, LinkedList<Integer> values) {
+						assertEquals(next.getAndIncrement(), key.intValue());
+						assertEquals(key, values.getFirst());
+						if (key % 500 == 0) {
+							Thread.yield();
+						}
+						return true;
+					}
+				}));
+		assertEquals(9001, next.get());
+		assertTrue(loadsAhead.get() > 0);
+
+		int expected = 100;
+		Iterator<KeyValuePair<Integer, LinkedList<Integer>>> it = readAhead
+				.rangeQuery(100, 9000);
+		while (it.hasNext()) {
+			assertEquals(expected++, it.next().getKey().intValue());
+		}
+		assertEquals(9001, expected);
+
+		next.set(0);
+		assertFalse(readAhead.rangeQuery(0, keys,
+				new Query<Integer, Integer>() {
+					@Override
+					public boolean query(Integer key, LinkedList<Integer> values) {
+						return next.incrementAndGet() < 10;
+					}
+				}));
+		assertEquals(10, next.get());
+
+		readAhead.setReadAhead(null, 0);
+		it = readAhead.iterator();
+		for (int key = 0; key < keys; key++) {
+			assertEquals(key, it.next().getKey().intValue());
+		}
+		assertFalse(it.hasNext());
+	}
+
+	/**
+	 * Range queries hold one latch at a time, so concurrent scans do not
+	 * deadlock with each other and the writers queued on the shared latches.
+	 */
+	@Test
+	public void testConcurrentScans() throws Exception {
+		final int keys = threads * keysPerThread;
+		for (int key = 0; key < keys; key += 2) {
+			assertTrue(this.tree.insert(key, key));
+		}
+
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < threads; t++) {
+			final int offset = t;
+			results.add(this.executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					for (int r = 0; r < 20; r++) {
+						final int begin = (offset * keys / threads + r * 97)
+								% keys;
+						final AtomicInteger last = new AtomicInteger(-1);
+						assertTrue(tree.rangeQuery(begin, keys,
+								new Query<Integer, Integer>() {
+									@Override
+									public boolean query(Integer key,
+											LinkedList<Integer> values) {
+										assertTrue(key >= begin);
+										assertTrue(last.get() < key);
+										last.set(key);
+										return true;
+									}
+								}));
+						/*
+						 * update the values of existing keys, so the leaves
+						 * are latched exclusively without splitting them
+						 */
+						for (int key = offset * 2; key < keys; key += threads * 2) {
+							assertTrue(tree.insert(key, -key - 1));
+							assertTrue(tree.remove(key, -key - 1));
+						}
+					}
+					return true;
+				}
+			}));
+		}
+
+		for (Future<Boolean> f : results) {
+			assertTrue(f.get(60, TimeUnit.SECONDS));
+		}
+		assertEquals(keys / 2, this.tree.size());
+	}
+}
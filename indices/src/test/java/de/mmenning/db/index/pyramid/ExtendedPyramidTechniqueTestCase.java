@@ -1,13 +1,32 @@
 package de.mmenning.db.index.pyramid;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
+import org.junit.Test;
 
+import de.mmenning.db.index.NDPoint;
 import de.mmenning.db.index.NDPointKey;
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.PointQuery;
 import de.mmenning.db.index.generate.NDPointGenerator;
+import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
+import de.mmenning.db.index.generate.RectangleDistributions;
+import de.mmenning.db.index.generate.StatsObject;
+import de.mmenning.db.storage.ConcurrentBufferedStorage;
+import de.mmenning.db.storage.CountingStorage;
+import de.mmenning.db.storage.DefaultStorage;
+import de.mmenning.db.storage.ObjectReference;
 import de.mmenning.util.math.Uniform;
 
 public class ExtendedPyramidTechniqueTestCase extends PyramidTechniqueTestCase {
@@ -33,4 +52,143 @@ public class ExtendedPyramidTechniqueTestCase extends PyramidTechniqueTestCase {
 		}
 	}
 
+	@Override
+	protected PyramidTechnique createEmpty(boolean primitiveKeys) {
+		ExtendedPyramidTechnique empty = new ExtendedPyramidTechnique(this.dim,
+				4096, DefaultStorage.getInstance(), primitiveKeys);
+		double[] median = new double[dim];
+		Arrays.fill(median, 0.25);
+		empty.setMedian(median);
+		return empty;
+	}
+
+	/**
+	 * @return a key, whose coordinates have the median 0.125
+	 */
+	private NDPointKey nextSkewedKey(Random random) {
+		double[] point = new double[this.dim];
+		for (int i = 0; i < this.dim; i++) {
+			double x = random.nextDouble();
+			point[i] = x * x * x;
+		}
+		return new NDPointKey(new StatsObject().getObjectReference(),
+				new NDPoint(point));
+	}
+
+	private void assertIndexed(ExtendedPyramidTechnique index,
+			final Set<NDPointKey> keys) {
+		assertEquals(keys.size(), index.size());
+		for (NDPointKey k : keys) {
+			assertTrue(index.contains(k));
+		}
+		final NDRandomRectangleGenerator queries = RectangleDistributions.UNIFORM_5D;
+		for (int i = 0; i < 100; i++) {
+			final NDRectangle testRegion = queries.getNextRectangle();
+			final Set<NDPointKey> s = new HashSet<>();
+			index.regionQuery(testRegion, new PointQuery() {
+				@Override
+				public boolean query(NDPointKey v) {
+					assertTrue(s.add(v));
+					return true;
+				}
+			});
+			int contained = 0;
+			for (NDPointKey k : keys) {
+				if (testRegion.contains(k.getNDKey())) {
+					contained++;
+				}
+			}
+			assertEquals(contained, s.size());
+		}
+	}
+
+	@Test
+	public void testEstimatedMedian() {
+		double[] estimated = ((ExtendedPyramidTechnique) this.tree)
+				.getEstimatedMedian();
+		for (int i = 0; i < this.dim; i++) {
+			assertEquals(0.5, estimated[i], 0.05);
+			assertEquals(0.25,
+					((ExtendedPyramidTechnique) this.tree).getMedian(i), 0.0);
+		}
+	}
+
+	@Test
+	public void testRebuild() {
+		Random random = new Random();
+		ExtendedPyramidTechnique index = new ExtendedPyramidTechnique(this.dim,
+				4096);
+		Set<NDPointKey> keys = new HashSet<>();
+		for (int i = 0; i < 5000; i++) {
+			NDPointKey k = this.nextSkewedKey(random);
+			assertTrue(keys.add(k));
+			assertTrue(index.insert(k));
+		}
+		index.rebuild();
+		for (int i = 0; i < this.dim; i++) {
+			assertEquals(0.125, index.getMedian(i), 0.05);
+		}
+		this.assertIndexed(index, keys);
+	}
+
+	private static int stored(CountingStorage storage) {
+		int stored = 0;
+		for (Iterator<ObjectReference> it = storage.iterator(); it.hasNext(); it
+				.next()) {
+			stored++;
+		}
+		return stored;
+	}
+
+	@Test
+	public void testRebuildDeletesReplacedTree() {
+		Random random = new Random();
+		for (boolean primitiveKeys : new boolean[] { false, true }) {
+			CountingStorage storage = new CountingStorage(4096);
+			ExtendedPyramidTechnique index = new ExtendedPyramidTechnique(
+					this.dim, 4096, storage, primitiveKeys);
+			for (int i = 0; i < 5000; i++) {
+				assertTrue(index.insert(this.nextSkewedKey(random)));
+			}
+			int inserted = stored(storage);
+
+			index.rebuild();
+			int rebuilt = stored(storage);
+			assertTrue(rebuilt <= inserted);
+
+			index.rebuild();
+			assertEquals(rebuilt, stored(storage));
+		}
+	}
+
+	@Test
+	public void testAdaptiveMedian() throws InterruptedException {
+		Random random = new Random();
+		ExtendedPyramidTechnique index = new ExtendedPyramidTechnique(this.dim,
+				4096, new ConcurrentBufferedStorage(64, 4096), true);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		index.setAdaptiveMedian(executor, 0.1);
+
+		/*
+		 * the rebuild runs concurrently to the inserts and deletes
+		 */
+		Set<NDPointKey> keys = new HashSet<>();
+		for (int i = 0; i < 20000; i++) {
+			NDPointKey k = this.nextSkewedKey(random);
+			assertTrue(keys.add(k));
+			assertTrue(index.insert(k));
+			if (i % 10 == 0) {
+				NDPointKey deleted = keys.iterator().next();
+				assertTrue(index.delete(deleted));
+				keys.remove(deleted);
+			}
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+		for (int i = 0; i < this.dim; i++) {
+			assertEquals(0.125, index.getMedian(i), 0.1);
+		}
+		this.assertIndexed(index, keys);
+	}
 }
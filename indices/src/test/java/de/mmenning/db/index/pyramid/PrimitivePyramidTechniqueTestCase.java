@@ -0,0 +1,32 @@
+package de.mmenning.db.index.pyramid;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+
+import de.mmenning.db.index.NDPointKey;
+import de.mmenning.db.index.generate.NDPointGenerator;
+import de.mmenning.db.storage.DefaultStorage;
+import de.mmenning.util.math.Uniform;
+
+public class PrimitivePyramidTechniqueTestCase extends PyramidTechniqueTestCase {
+
+	@Override
+	@Before
+	public void setUp() throws Exception {
+		this.dim = 5;
+		this.initialSize = 10000;
+		this.tree = new PyramidTechnique(this.dim, 4096,
+				DefaultStorage.getInstance(), true);
+		this.pointGen = new NDPointGenerator(this.dim, new Uniform(0, 1));
+
+		NDPointKey insert;
+
+		for (int i = 0; i < this.initialSize; i++) {
+			insert = this.nextNDPointKey();
+			assertTrue(this.added.add(insert));
+			assertTrue(this.tree.insert(insert));
+		}
+	}
+
+}
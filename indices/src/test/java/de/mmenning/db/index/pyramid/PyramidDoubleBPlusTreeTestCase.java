@@ -0,0 +1,323 @@
+package de.mmenning.db.index.pyramid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mmenning.db.index.bplustree.KeyValuePair;
+import de.mmenning.db.index.bplustree.Query;
+import de.mmenning.db.storage.DefaultStorage;
+import de.mmenning.db.storage.ObjectReference;
+import de.mmenning.db.storage.Storable;
+import de.mmenning.db.storage.StorageManager;
+
+public class PyramidDoubleBPlusTreeTestCase {
+
+	private final Random rand = new Random(7);
+
+	private PyramidDoubleBPlusTree<Integer> tree;
+
+	/**
+	 * expected content of the tree
+	 */
+	private final TreeMap<Double, List<Integer>> expected = new TreeMap<Double, List<Integer>>();
+
+	private PyramidValue nextKey() {
+		/*
+		 * few distinct keys, so that keys hold several values
+		 */
+		return new PyramidValue(this.rand.nextInt(4),
+				this.rand.nextInt(500) / 1000.0);
+	}
+
+	private void insert(PyramidValue key, int value) {
+		List<Integer> values = this.expected.get(key.doubleValue());
+		if (values == null) {
+			values = new ArrayList<Integer>();
+			this.expected.put(key.doubleValue(), values);
+		}
+		assertEquals(!values.contains(value), this.tree.insert(key, value));
+		if (!values.contains(value)) {
+			values.add(value);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		this.tree = new PyramidDoubleBPlusTree<Integer>(2, 2, 4096, 5,
+				DefaultStorage.getInstance(), 40);
+		for (int i = 0; i < 2000; i++) {
+			this.insert(this.nextKey(), this.rand.nextInt(3));
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		DefaultStorage.getInstance().cleanUp();
+	}
+
+	private int expectedSize() {
+		int size = 0;
+		for (List<Integer> values : this.expected.values()) {
+			size += values.size();
+		}
+		return size;
+	}
+
+	private void assertContent() {
+		assertEquals(this.expectedSize(), this.tree.size());
+
+		Iterator<Map.Entry<Double, List<Integer>>> e = this.expected
+				.entrySet().iterator();
+		for (KeyValuePair<PyramidValue, LinkedList<Integer>> kv : this.tree) {
+			Map.Entry<Double, List<Integer>> next = e.next();
+			assertEquals(next.getKey(), kv.getKey().doubleValue(), 0);
+			assertEquals(next.getValue(), kv.getValue());
+		}
+		assertFalse(e.hasNext());
+	}
+
+	@Test
+	public void testInsert() {
+		this.assertContent();
+		assertTrue(this.tree.getHeight() > 3);
+		for (Map.Entry<Double, List<Integer>> e : this.expected.entrySet()) {
+			PyramidValue key = this.tree.toKey(e.getKey());
+			assertTrue(this.tree.contains(key));
+			for (int value : e.getValue()) {
+				assertTrue(this.tree.contains(key, value));
+			}
+			assertFalse(this.tree.contains(key, 3));
+		}
+		assertFalse(this.tree.contains(new PyramidValue(4, 0)));
+	}
+
+	@Test
+	public void testRemove() {
+		assertFalse(this.tree.remove(new PyramidValue(4, 0), 0));
+
+		ArrayList<Double> keys = new ArrayList<Double>(this.expected.keySet());
+		while (!keys.isEmpty()) {
+			double key = keys.get(this.rand.nextInt(keys.size()));
+			List<Integer> values = this.expected.get(key);
+			int value = values.get(this.rand.nextInt(values.size()));
+
+			assertTrue(this.tree.remove(this.tree.toKey(key), value));
+			assertFalse(this.tree.remove(this.tree.toKey(key), value));
+			values.remove((Integer) value);
+			if (values.isEmpty()) {
+				this.expected.remove(key);
+				keys.remove(key);
+				assertFalse(this.tree.contains(this.tree.toKey(key)));
+			}
+			if (keys.size() % 100 == 0) {
+				this.assertContent();
+			}
+		}
+		assertEquals(0, this.tree.size());
+		assertEquals(1, this.tree.getHeight());
+		assertFalse(this.tree.iterator().hasNext());
+
+		this.insert(this.nextKey(), 0);
+		this.assertContent();
+	}
+
+	@Test
+	public void testRangeQuery() {
+		for (int i = 0; i < 200; i++) {
+			PyramidValue a = this.nextKey();
+			PyramidValue b = this.nextKey();
+			final PyramidValue begin = a.compareTo(b) < 0 ? a : b;
+			final PyramidValue end = a.compareTo(b) < 0 ? b : a;
+
+			final Iterator<Map.Entry<Double, List<Integer>>> e = this.expected
+					.subMap(begin.doubleValue(), true, end.doubleValue(), true)
+					.entrySet().iterator();
+			assertTrue(this.tree.rangeQuery(begin, end,
+					new Query<PyramidValue, Integer>() {
+						@Override
+						public boolean query(PyramidValue key,
+								LinkedList<Integer> values) {
+							Map.Entry<Double, List<Integer>> next = e.next();
+							assertEquals(next.getKey(), key.doubleValue(), 0);
+							assertEquals(next.getValue(), values);
+							return true;
+						}
+					}));
+			assertFalse(e.hasNext());
+
+			Iterator<KeyValuePair<PyramidValue, LinkedList<Integer>>> it = this.tree
+					.rangeQuery(begin, end);
+			for (Double key : this.expected.subMap(begin.doubleValue(), true,
+					end.doubleValue(), true).keySet()) {
+				assertEquals(key, it.next().getKey().doubleValue(), 0);
+			}
+			assertFalse(it.hasNext());
+		}
+
+		final int[] calls = new int[1];
+		assertFalse(this.tree.rangeQuery(new PyramidValue(0, 0),
+				new PyramidValue(3, 0.5), new Query<PyramidValue, Integer>() {
+					@Override
+					public boolean query(PyramidValue key,
+							LinkedList<Integer> values) {
+						return ++calls[0] < 10;
+					}
+				}));
+		assertEquals(10, calls[0]);
+	}
+
+	@Test
+	public void testIteratorWhileModified() {
+		Iterator<KeyValuePair<PyramidValue, LinkedList<Integer>>> it = this.tree
+				.iterator();
+		double last = -1;
+		int i = 0;
+		while (it.hasNext()) {
+			double key = it.next().getKey().doubleValue();
+			assertTrue(key > last);
+			last = key;
+			if (i++ % 3 == 0) {
+				this.insert(this.nextKey(), 3);
+			}
+		}
+	}
+
+	@Test
+	public void testBulkLoad() {
+		PyramidDoubleBPlusTree<Integer> copy = new PyramidDoubleBPlusTree<Integer>(
+				this.tree);
+		assertTrue(copy.getHeight() <= this.tree.getHeight());
+		this.tree = copy;
+		this.assertContent();
+
+		for (int i = 0; i < 500; i++) {
+			this.insert(this.nextKey(), this.rand.nextInt(4));
+		}
+		this.assertContent();
+	}
+
+
+	@Test
+	public void testDuplicates() {
+		final int[] loads = new int[1];
+		StorageManager s = new StorageManager() {
+
+			@Override
+			public Storable load(ObjectReference or) {
+				loads[0]++;
+				return DefaultStorage.getInstance().load(or);
+			}
+
+			@Override
+			public void delete(ObjectReference or) {
+				DefaultStorage.getInstance().delete(or);
+			}
+
+			@Override
+			public void store(Storable st) {
+				DefaultStorage.getInstance().store(st);
+			}
+
+			@Override
+			public void cleanUp() {
+			}
+		};
+		PyramidDoubleBPlusTree<Integer> t = new PyramidDoubleBPlusTree<Integer>(
+				4096, 5, s, 40);
+		int capacity = t.getChunkCapacity();
+		final PyramidValue key = new PyramidValue(1, 0.25);
+		int n = capacity * 12 + 5;
+
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++) {
+			values.add(i);
+			assertTrue(t.insert(key, i));
+			assertTrue(t.insert(new PyramidValue(2, 0.25), i));
+		}
+		assertFalse(t.insert(key, 7));
+		assertEquals(2 * n, t.size());
+
+		/*
+		 * only a few chunks are loaded to find a value
+		 */
+		loads[0] = 0;
+		for (int i = 0; i < n; i++) {
+			assertTrue(t.contains(key, i));
+		}
+		assertFalse(t.contains(key, n));
+		assertTrue(loads[0] < 6 * n);
+
+		final Set<Integer> found = new HashSet<Integer>();
+		final int[] calls = new int[1];
+		assertTrue(t.rangeQuery(key, key, new Query<PyramidValue, Integer>() {
+			@Override
+			public boolean query(PyramidValue k, LinkedList<Integer> v) {
+				assertEquals(key, k);
+				calls[0]++;
+				for (Integer i : v) {
+					assertTrue(found.add(i));
+				}
+				return true;
+			}
+		}));
+		assertEquals(new HashSet<Integer>(values), found);
+		assertEquals(13, calls[0]);
+		assertEquals(new HashSet<Integer>(values), new HashSet<Integer>(t
+				.rangeQuery(key, key).next().getValue()));
+
+		Collections.shuffle(values, this.rand);
+		while (!values.isEmpty()) {
+			int value = values.remove(values.size() - 1);
+			assertTrue(t.remove(key, value));
+			assertFalse(t.remove(key, value));
+			assertFalse(t.contains(key, value));
+			if (values.size() % 50 == 0) {
+				assertEquals(n + values.size(), t.size());
+				Iterator<KeyValuePair<PyramidValue, LinkedList<Integer>>> it = t
+						.iterator();
+				if (!values.isEmpty()) {
+					assertEquals(new HashSet<Integer>(values),
+							new HashSet<Integer>(it.next().getValue()));
+				}
+				assertEquals(n, it.next().getValue().size());
+				assertFalse(it.hasNext());
+			}
+		}
+		assertFalse(t.contains(key));
+		assertEquals(n, t.size());
+
+		PyramidDoubleBPlusTree<Integer> copy = new PyramidDoubleBPlusTree<Integer>(
+				t);
+		for (int i = 0; i < n; i++) {
+			assertTrue(copy.contains(new PyramidValue(2, 0.25), i));
+		}
+	}
+	@Test(expected = IllegalArgumentException.class)
+	public void testBulkLoadUnsorted() {
+		ArrayList<KeyValuePair<PyramidValue, LinkedList<Integer>>> entries = new ArrayList<KeyValuePair<PyramidValue, LinkedList<Integer>>>();
+		for (double height : new double[] { 0.2, 0.1 }) {
+			LinkedList<Integer> values = new LinkedList<Integer>();
+			values.add(0);
+			entries.add(new KeyValuePair<PyramidValue, LinkedList<Integer>>(
+					new PyramidValue(0, height), values));
+		}
+		new PyramidDoubleBPlusTree<Integer>(entries.iterator(), 2, 2, 4096,
+				5, DefaultStorage.getInstance(), 40);
+	}
+}
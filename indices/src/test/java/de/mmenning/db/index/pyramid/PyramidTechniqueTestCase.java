@@ -3,10 +3,14 @@ package de.mmenning.db.index.pyramid;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.mmenning.db.index.pyramid.PyramidTechnique;
 import de.mmenning.db.index.pyramid.PyramidValue;
@@ -22,6 +26,7 @@ import de.mmenning.db.index.generate.NDPointGenerator;
 import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
 import de.mmenning.db.index.generate.RectangleDistributions;
 import de.mmenning.db.index.generate.StatsObject;
+import de.mmenning.db.storage.ConcurrentBufferedStorage;
 import de.mmenning.db.storage.DefaultStorage;
 import de.mmenning.util.math.Uniform;
 
@@ -98,6 +103,14 @@ public class PyramidTechniqueTestCase {
 		return this.tree;
 	}
 
+	/**
+	 * @return an empty index of the tested kind
+	 */
+	protected PyramidTechnique createEmpty(boolean primitiveKeys) {
+		return new PyramidTechnique(this.dim, 4096,
+				DefaultStorage.getInstance(), primitiveKeys);
+	}
+
 	protected NDPointKey nextNDPointKey() {
 		return new NDPointKey(new StatsObject().getObjectReference(),
 				this.pointGen.getNext());
@@ -207,4 +220,113 @@ public class PyramidTechniqueTestCase {
 		}
 
 	}
+
+	@Test
+	public void testParallelRegions() {
+		PyramidTechnique parallel = new PyramidTechnique(this.dim, 4096,
+				new ConcurrentBufferedStorage(64, 4096));
+		for (NDPointKey k : this.added) {
+			assertTrue(parallel.insert(k));
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			parallel.setParallelQueries(pool);
+			final NDRandomRectangleGenerator queries = RectangleDistributions.UNIFORM_5D;
+
+			for (int i = 0; i < 100; i++) {
+				final Set<NDPointKey> expected = new HashSet<>();
+				final Set<NDPointKey> s = new HashSet<>();
+				NDRectangle testRegion = queries.getNextRectangle();
+
+				this.getTree().regionQuery(testRegion, new PointQuery() {
+					@Override
+					public boolean query(NDPointKey v) {
+						return expected.add(v);
+					}
+				});
+				parallel.regionQuery(testRegion, new PointQuery() {
+					@Override
+					public boolean query(NDPointKey v) {
+						assertTrue(s.add(v));
+						return true;
+					}
+				});
+				assertEquals(expected, s);
+			}
+
+			/*
+			 * the query must not be called again after it returned false
+			 */
+			final AtomicInteger calls = new AtomicInteger();
+			final int limit = 10;
+			parallel.regionQuery(new NDRectangle(new NDPoint(0.0, this.dim),
+					new NDPoint(1.0, this.dim)), new PointQuery() {
+				@Override
+				public boolean query(NDPointKey v) {
+					return calls.incrementAndGet() < limit;
+				}
+			});
+			assertEquals(limit, calls.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testBulkLoad() {
+		ArrayList<NDPointKey> keys = new ArrayList<>(this.added);
+		keys.add(keys.get(keys.size() / 2));
+
+		for (boolean primitiveKeys : new boolean[] { false, true }) {
+			/*
+			 * sorted in memory and in runs, which are merged
+			 */
+			for (int runSize : new int[] { PyramidTechnique.DEFAULT_RUN_SIZE,
+					1000 }) {
+				PyramidTechnique loaded = this.createEmpty(primitiveKeys);
+				loaded.bulkLoad(keys.iterator(), runSize);
+
+				assertEquals(this.added.size(), loaded.size());
+				for (NDPointKey k : this.added) {
+					assertTrue(loaded.contains(k));
+				}
+
+				final NDRandomRectangleGenerator queries = RectangleDistributions.UNIFORM_5D;
+				for (int i = 0; i < 100; i++) {
+					final Set<NDPointKey> expected = new HashSet<>();
+					final Set<NDPointKey> s = new HashSet<>();
+					NDRectangle testRegion = queries.getNextRectangle();
+
+					this.getTree().regionQuery(testRegion, new PointQuery() {
+						@Override
+						public boolean query(NDPointKey v) {
+							return expected.add(v);
+						}
+					});
+					loaded.regionQuery(testRegion, new PointQuery() {
+						@Override
+						public boolean query(NDPointKey v) {
+							assertTrue(s.add(v));
+							return true;
+						}
+					});
+					assertEquals(expected, s);
+				}
+
+				NDPointKey inserted = this.nextNDPointKey();
+				assertTrue(loaded.insert(inserted));
+				assertTrue(loaded.delete(keys.get(0)));
+				assertTrue(loaded.contains(inserted));
+				assertEquals(this.added.size(), loaded.size());
+
+				try {
+					loaded.bulkLoad(keys.iterator());
+					fail("bulk loaded a filled index");
+				} catch (IllegalStateException e) {
+					// expected
+				}
+			}
+		}
+	}
 }
@@ -1,14 +1,23 @@
 package de.mmenning.db.index.rsttree;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Random;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDRectangle;
 import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.generate.StatsObject;
 import de.mmenning.db.index.rtree.NDRTree;
 import de.mmenning.db.index.rtree.NDRTreeTestCase;
+import de.mmenning.db.storage.CountingStorage;
 import de.mmenning.db.storage.DefaultStorage;
 
 public class RSTTreeTestCase extends NDRTreeTestCase {
@@ -52,5 +61,96 @@ public class RSTTreeTestCase extends NDRTreeTestCase {
 	@Test
 	public void testFindLeaf() {}
 
+	@Test
+	public void testUpdate() {
+		ArrayList<NDRectangleKey> keys = new ArrayList<NDRectangleKey>(
+				this.added);
+		for (int i = 0; i < 200; i++) {
+			NDRectangleKey old = keys.get(i);
+			NDRectangleKey update;
+			if (i % 2 == 0) {
+				/*
+				 * shrinked keys fit into their leaf and are updated in place
+				 */
+				double[] begin = old.getNDKey().getBegin().toArray();
+				double[] end = old.getNDKey().getEnd().toArray();
+				for (int d = 0; d < end.length; d++) {
+					end[d] = (begin[d] + end[d]) / 2;
+				}
+				update = new NDRectangleKey(old.getObject(), new NDRectangle(
+						new NDPoint(begin), new NDPoint(end)));
+			} else {
+				update = new NDRectangleKey(old.getObject(), this
+						.nextNDRectangleKey().getNDKey());
+			}
+			assertTrue(this.tree.update(old, update));
+			assertFalse(this.tree.update(old, update));
+			assertFalse(this.tree.contains(old));
+			assertTrue(this.tree.contains(update));
+			this.added.remove(old);
+			this.added.add(update);
+		}
+		assertEquals(this.added.size(), this.tree.size());
+		for (NDRectangleKey k : this.added) {
+			assertTrue(this.tree.contains(k));
+		}
+		this.testBoundingBoxes();
+	}
+
+	/**
+	 * Closing a version replaces NOW/UC with its end time. The closed key fits
+	 * into the bounding box of its leaf, so it is updated in place: only the
+	 * nodes on the path to the root are written.
+	 */
+	@Test
+	public void testCloseVersions() {
+		CountingStorage storage = new CountingStorage(4096);
+		this.tree = new RSTTree(maxK, 0.5, dim - 2,
+				BasicConstants.getInstance(), storage);
+
+		Random rand = new Random(0);
+		ArrayList<NDRectangleKey> open = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < 300; i++) {
+			double[] begin = new double[dim];
+			double[] end = new double[dim];
+			for (int d = 0; d < dim; d++) {
+				begin[d] = rand.nextDouble();
+				end[d] = begin[d] + 0.1 * rand.nextDouble();
+			}
+			end[dim - 2] = STRectangle.UC;
+			end[dim - 1] = STRectangle.NOW;
+			NDRectangleKey key = new NDRectangleKey(
+					new StatsObject().getObjectReference(), new STRectangle(
+							new NDRectangle(new NDPoint(begin), new NDPoint(end)),
+							BasicConstants.getInstance()));
+			assertTrue(this.tree.insert(key));
+			open.add(key);
+		}
+		final int size = this.tree.size();
+		final int height = this.tree.getHeight();
+		final long writes = storage.getIOCounter().getWrites();
+
+		for (NDRectangleKey old : open) {
+			double[] end = old.getNDKey().getEnd().toArray();
+			end[dim - 2] = old.getNDKey().getBegin().getValue(dim - 2) + 1.0;
+			end[dim - 1] = old.getNDKey().getBegin().getValue(dim - 1) + 1.0;
+			NDRectangleKey closed = new NDRectangleKey(old.getObject(),
+					new STRectangle(new NDRectangle(old.getNDKey().getBegin(),
+							new NDPoint(end)), BasicConstants.getInstance()));
+			assertFalse(((STRectangle) closed.getNDKey()).isNow());
+			assertFalse(((STRectangle) closed.getNDKey()).isUC());
+
+			assertTrue(this.tree.update(old, closed));
+			assertFalse(this.tree.contains(old));
+			assertTrue(this.tree.contains(closed));
+		}
 
-}
\ No newline at end of file
+		assertEquals(size, this.tree.size());
+		assertEquals(height, this.tree.getHeight());
+		/*
+		 * a deletion and reinsertion would write the path twice
+		 */
+		assertEquals(open.size() * height, storage.getIOCounter().getWrites()
+				- writes);
+	}
+}
@@ -3,6 +3,8 @@ package de.mmenning.db.index.rtptree;
 import de.mmenning.db.index.*;
 import de.mmenning.db.index.generate.IndexFiller;
 import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
+import de.mmenning.db.index.pyramid.ExtendedPyramidTechnique;
+import de.mmenning.db.storage.CountingStorage;
 import de.mmenning.db.storage.DefaultStorage;
 import de.mmenning.db.storage.ObjectReference;
 import de.mmenning.util.math.RandomInterval;
@@ -148,6 +150,53 @@ public class RTPTreeTestCase {
 		}
 	}
 
+	@Test
+	public void testBatchIntersectedQuery() {
+		final List<NDRectangle> regions = new ArrayList<>();
+		final List<Set<NDRectangleKey>> results = new ArrayList<>();
+		final List<RectangleQuery> queries = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			double t = rand.nextDouble();
+			regions.add(new NDRectangle(new NDPoint(new double[] {
+					rand.nextDouble() * 0.5, rand.nextDouble() * 0.5,
+					rand.nextDouble() * 0.5, t, t }), new NDPoint(new double[] {
+					1.000, 1.000, 1.000, STFunctions.CURRENT,
+					STFunctions.CURRENT })));
+			final Set<NDRectangleKey> result = new HashSet<>();
+			results.add(result);
+			queries.add(new RectangleQuery() {
+				@Override
+				public boolean query(NDRectangleKey k) {
+					assertTrue(result.add(k));
+					return true;
+				}
+			});
+		}
+		final int stop = 3;
+		queries.set(stop, new RectangleQuery() {
+			@Override
+			public boolean query(NDRectangleKey k) {
+				return false;
+			}
+		});
+
+		this.getTree().getIntersected(regions, queries);
+
+		for (int i = 0; i < regions.size(); i++) {
+			if (i == stop) {
+				continue;
+			}
+			final Set<NDRectangleKey> expected = new HashSet<>();
+			this.getTree().getIntersected(regions.get(i), new RectangleQuery() {
+				@Override
+				public boolean query(NDRectangleKey k) {
+					return expected.add(k);
+				}
+			});
+			assertEquals(expected, results.get(i));
+		}
+	}
+
 	@Test
 	public void testIntersectedQuery() {
 		final NDRectangle testRegion = new NDRectangle(new NDPoint(
@@ -182,6 +231,80 @@ public class RTPTreeTestCase {
 		}
 	}
 
+	@Test
+	public void testAdaptMedian() {
+		double[] estimated = this.getTree().getEstimatedMedian();
+		assertEquals(dim * 2, estimated.length);
+		for (int i = 0; i < dim - 2; i++) {
+			assertEquals(0.5, estimated[i], 0.1);
+		}
+
+		this.getTree().adaptMedian();
+
+		assertEquals(this.added.size(), this.getTree().size());
+		this.testContains();
+		this.testMultipleContained();
+		this.testMultipleIntersected();
+	}
+
+	@Test
+	public void testAdaptMedianDeletesOldTree() {
+		CountingStorage storage = new CountingStorage(4096);
+		RTPTree tree = new RTPTree(dim, 4096, storage, now);
+		for (NDRectangleKey k : this.added) {
+			assertTrue(tree.insert(k));
+		}
+
+		tree.adaptMedian();
+		int adapted = 0;
+		for (Iterator<ObjectReference> it = storage.iterator(); it.hasNext(); it
+				.next()) {
+			adapted++;
+		}
+		tree.adaptMedian();
+		int again = 0;
+		for (Iterator<ObjectReference> it = storage.iterator(); it.hasNext(); it
+				.next()) {
+			again++;
+		}
+		assertEquals(adapted, again);
+		assertEquals(this.added.size(), tree.size());
+	}
+
+	@Test
+	public void testAdaptiveMedian() {
+		RTPTree adaptive = new RTPTree(dim, 4096,
+				DefaultStorage.getInstance(), now);
+		double[] median = new double[dim];
+		Arrays.fill(median, 0.75);
+		adaptive.setMedian(median, median);
+		adaptive.setAdaptiveMedian(0.1);
+
+		int inserted = 0;
+		for (NDRectangleKey k : this.added) {
+			assertTrue(adaptive.insert(k));
+			if (++inserted < ExtendedPyramidTechnique.MIN_OBSERVATIONS) {
+				/*
+				 * too few observations for the estimated median
+				 */
+				assertEquals(0.75, adaptive.getMedian(0), 0.0);
+			}
+		}
+		for (int i = 0; i < dim - 2; i++) {
+			assertEquals(0.5, adaptive.getMedian(i), 0.2);
+		}
+
+		assertEquals(this.added.size(), adaptive.size());
+		for (NDRectangleKey k : this.added) {
+			assertTrue(adaptive.contains(k));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeThreshold() {
+		this.getTree().setAdaptiveMedian(-0.1);
+	}
+
 	@After
 	public void tearDown() throws Exception {
 		DefaultStorage.getInstance().cleanUp();
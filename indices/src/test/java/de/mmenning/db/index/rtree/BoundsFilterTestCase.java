@@ -0,0 +1,77 @@
+package de.mmenning.db.index.rtree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDRectangle;
+
+public class BoundsFilterTestCase {
+
+	private final Random rand = new Random(42);
+
+	private NDRectangle nextRectangle(int dim, double maxLength) {
+		double[] begin = new double[dim];
+		double[] end = new double[dim];
+		for (int d = 0; d < dim; d++) {
+			begin[d] = this.rand.nextDouble();
+			end[d] = begin[d] + this.rand.nextDouble() * maxLength;
+		}
+		return new NDRectangle(new NDPoint(begin), new NDPoint(end));
+	}
+
+	private void testFilter(BoundsFilter filter, int dim) {
+		final int count = 64;
+		NDRectangle[] entries = new NDRectangle[count];
+		Node n = new Node(count);
+		for (int i = 0; i < count; i++) {
+			entries[i] = this.nextRectangle(dim, 0.5);
+			n.addEntry(new Entry(entries[i], new Node(4)));
+		}
+		double[] bounds = n.getBounds();
+		int[] result = new int[count];
+
+		for (int q = 0; q < 100; q++) {
+			NDRectangle region = this.nextRectangle(dim, 1.0);
+			for (boolean contained : new boolean[] { false, true }) {
+				int[] expected = new int[count];
+				int hits = 0;
+				for (int i = 0; i < count; i++) {
+					if (contained ? region.contains(entries[i]) : region
+							.intersects(entries[i])) {
+						expected[hits++] = i;
+					}
+				}
+				assertEquals(hits, filter.filter(region.getBegin().toArray(),
+						region.getEnd().toArray(), bounds, count, contained,
+						result));
+				assertArrayEquals(Arrays.copyOf(expected, hits),
+						Arrays.copyOf(result, hits));
+			}
+		}
+	}
+
+	@Test
+	public void testScalar() {
+		for (int dim : new int[] { 1, 2, 5, 13, 50 }) {
+			this.testFilter(BoundsFilter.create("scalar"), dim);
+		}
+	}
+
+	@Test
+	public void testBlocked() {
+		for (int dim : new int[] { 1, 2, 5, 13, 50 }) {
+			this.testFilter(BoundsFilter.create("blocked"), dim);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknown() {
+		BoundsFilter.create("vector");
+	}
+}
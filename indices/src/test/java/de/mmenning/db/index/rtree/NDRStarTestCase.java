@@ -1,10 +1,17 @@
 package de.mmenning.db.index.rtree;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Iterator;
+
 import org.junit.Before;
+import org.junit.Test;
 
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDRectangle;
 import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.RectangleQuery;
 
 public class NDRStarTestCase extends NDRTreeTestCase {
 
@@ -15,10 +22,17 @@ public class NDRStarTestCase extends NDRTreeTestCase {
 		return this.tree;
 	}
 
+	/**
+	 * @return a new, empty tree as tested by this class
+	 */
+	protected NDRStar createTree() {
+		return new NDRStar(maxK, 0.5, dim);
+	}
+
 	@Override
 	@Before
 	public void setUp() throws Exception {
-		this.tree = new NDRStar(maxK, 0.5, dim);
+		this.tree = this.createTree();
 
 		for (int i = 0; i < initialSize; i++) {
 
@@ -29,4 +43,52 @@ public class NDRStarTestCase extends NDRTreeTestCase {
 
 		}
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testAggregate() {
+		NDRStar t = this.createTree();
+		t.setAggregate(new Aggregate<Double>() {
+			@Override
+			public Double value(NDRectangleKey k) {
+				return k.getNDKey().getBegin().getValue(0);
+			}
+
+			@Override
+			public Double combine(Double a1, Double a2) {
+				return a1 + a2;
+			}
+		});
+		for (NDRectangleKey k : this.added) {
+			assertTrue(t.insert(k));
+		}
+		Iterator<NDRectangleKey> iter = this.added.iterator();
+		for (int i = 0; i < this.initialSize / 2; i++) {
+			assertTrue(t.delete(iter.next()));
+		}
+
+		NDRectangle region = new NDRectangle(new NDPoint(0.2, this.dim),
+				new NDPoint(0.9, this.dim));
+		final double[] sum = new double[2];
+		t.getIntersected(region, new RectangleQuery() {
+			@Override
+			public boolean query(NDRectangleKey k) {
+				sum[0] += k.getNDKey().getBegin().getValue(0);
+				return true;
+			}
+		});
+		t.getContained(region, new RectangleQuery() {
+			@Override
+			public boolean query(NDRectangleKey k) {
+				sum[1] += k.getNDKey().getBegin().getValue(0);
+				return true;
+			}
+		});
+		assertEquals(sum[0], (Double) t.aggregateIntersected(region), EPSILON);
+		assertEquals(sum[1], (Double) t.aggregateContained(region), EPSILON);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAggregateNotEmpty() {
+		this.tree.setAggregate(null);
+	}
+}
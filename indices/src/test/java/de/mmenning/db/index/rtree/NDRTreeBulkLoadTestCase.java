@@ -0,0 +1,69 @@
+package de.mmenning.db.index.rtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.rsttree.RSTTree;
+
+public class NDRTreeBulkLoadTestCase extends NDRTreeTestCase {
+
+	private NDRTree tree;
+
+	@Override
+	public NDRTree getTree() {
+		return this.tree;
+	}
+
+	@Override
+	@Before
+	public void setUp() throws Exception {
+		for (int i = 0; i < initialSize; i++) {
+			assertTrue(this.added.add(this.nextNDRectangleKey()));
+		}
+		this.tree = new NDRTree(maxK, 0.5, dim);
+		this.tree.bulkLoad(this.added.iterator(), 0.75);
+	}
+
+	@Test
+	public void testBulkLoadSizes() {
+		for (int n : new int[] { 1, 6, 7, 8, 9, 13, 100, 333 }) {
+			ArrayList<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+			for (int i = 0; i < n; i++) {
+				keys.add(this.nextNDRectangleKey());
+			}
+			for (double fillFactor : new double[] { 0.5, 0.75, 1.0 }) {
+				NDRTree t = new NDRStar(maxK, 0.5, dim);
+				t.bulkLoad(keys.iterator(), fillFactor);
+				assertEquals(n, t.size());
+				for (NDRectangleKey k : keys) {
+					assertTrue(t.contains(k));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRSTTree() {
+		RSTTree t = new RSTTree(maxK, 0.5, dim - 2);
+		t.bulkLoad(this.added.iterator(), 1.0);
+		assertEquals(this.added.size(), t.size());
+		for (NDRectangleKey k : this.added) {
+			assertTrue(t.contains(k));
+		}
+		NDRectangleKey k = this.nextNDRectangleKey();
+		assertTrue(t.insert(k));
+		assertTrue(t.contains(k));
+		assertTrue(t.delete(k));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNotEmpty() {
+		this.tree.bulkLoad(this.added.iterator(), 1.0);
+	}
+}
@@ -0,0 +1,256 @@
+package de.mmenning.db.index.rtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.mmenning.db.index.JoinQuery;
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.RectangleQuery;
+import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
+import de.mmenning.db.index.generate.RectangleDistributions;
+import de.mmenning.db.index.generate.StatsObject;
+import de.mmenning.db.storage.ConcurrentBufferedStorage;
+
+public class NDRTreeConcurrencyTestCase {
+
+	private static final int readers = 8;
+	private static final int initialSize = 1000;
+
+	private final NDRandomRectangleGenerator recGen = RectangleDistributions.UNIFORM_5D;
+
+	private NDRectangleKey nextNDRectangleKey() {
+		return new NDRectangleKey(new StatsObject().getObjectReference(),
+				this.recGen.getNextRectangle());
+	}
+
+	/**
+	 * Readers query the initial keys, while a single writer inserts and
+	 * deletes other keys. The readers must always find all initial keys.
+	 */
+	private void testReadersWithWriter(final NDRTree tree) throws Exception {
+		final List<NDRectangleKey> stable = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < initialSize; i++) {
+			NDRectangleKey key = this.nextNDRectangleKey();
+			stable.add(key);
+			assertTrue(tree.insert(key));
+		}
+		final List<NDRectangleKey> volatileKeys = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < 500; i++) {
+			volatileKeys.add(this.nextNDRectangleKey());
+		}
+		final NDRectangle region = this.recGen.getNextRectangle();
+		final Set<NDRectangleKey> expected = new HashSet<NDRectangleKey>();
+		for (NDRectangleKey k : stable) {
+			if (region.intersects(k.getNDKey())) {
+				expected.add(k);
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(readers + 1);
+		try {
+			Future<?> writer = pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (NDRectangleKey k : volatileKeys) {
+						assertTrue(tree.insert(k));
+					}
+					for (NDRectangleKey k : volatileKeys) {
+						assertTrue(tree.delete(k));
+					}
+					return null;
+				}
+			});
+
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int t = 0; t < readers; t++) {
+				final long seed = t;
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						Random rand = new Random(seed);
+						for (int i = 0; i < 200; i++) {
+							assertTrue(tree.contains(stable.get(rand
+									.nextInt(stable.size()))));
+
+							final Set<NDRectangleKey> found = new HashSet<NDRectangleKey>();
+							tree.getIntersected(region, new RectangleQuery() {
+								@Override
+								public boolean query(NDRectangleKey k) {
+									found.add(k);
+									return true;
+								}
+							});
+							assertTrue(found.containsAll(expected));
+						}
+						return null;
+					}
+				}));
+			}
+			writer.get();
+			for (Future<?> f : results) {
+				f.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(initialSize, tree.size());
+	}
+
+	@Test
+	public void testNDRTree() throws Exception {
+		this.testReadersWithWriter(new NDRTree(8, 0.5, 5,
+				new ConcurrentBufferedStorage(64, 4096)));
+	}
+
+	@Test
+	public void testNDRStar() throws Exception {
+		this.testReadersWithWriter(new NDRStar(8, 0.5, 5,
+				new ConcurrentBufferedStorage(64, 4096)));
+	}
+
+	private static Set<NDRectangleKey> intersected(NDRTree tree,
+			NDRectangle region, final boolean contained) {
+		final Set<NDRectangleKey> result = new HashSet<NDRectangleKey>();
+		RectangleQuery q = new RectangleQuery() {
+			@Override
+			public boolean query(NDRectangleKey k) {
+				assertTrue(result.add(k));
+				return true;
+			}
+		};
+		if (contained) {
+			tree.getContained(region, q);
+		} else {
+			tree.getIntersected(region, q);
+		}
+		return result;
+	}
+
+	@Test
+	public void testParallelQueries() throws Exception {
+		NDRTree tree = new NDRTree(8, 0.5, 5, new ConcurrentBufferedStorage(
+				64, 4096));
+		for (int i = 0; i < 3000; i++) {
+			assertTrue(tree.insert(this.nextNDRectangleKey()));
+		}
+		assertTrue(tree.getHeight() > 2);
+		Random rand = new Random(0);
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int i = 0; i < 20; i++) {
+				double[] lower = new double[5];
+				double[] upper = new double[5];
+				for (int d = 0; d < 5; d++) {
+					lower[d] = rand.nextDouble() * 0.5;
+					upper[d] = lower[d] + 0.5;
+				}
+				NDRectangle region = new NDRectangle(new NDPoint(lower),
+						new NDPoint(upper));
+				tree.setParallelQueries(null, 0);
+				Set<NDRectangleKey> intersected = intersected(tree, region, false);
+				Set<NDRectangleKey> contained = intersected(tree, region, true);
+
+				tree.setParallelQueries(pool, i % 2);
+				assertEquals(intersected, intersected(tree, region, false));
+				assertEquals(contained, intersected(tree, region, true));
+			}
+
+			/*
+			 * the query must not be called again after it returned false
+			 */
+			final AtomicInteger calls = new AtomicInteger();
+			final int limit = 10;
+			tree.setParallelQueries(pool, 0);
+			tree.getIntersected(new NDRectangle(new NDPoint(-1.0, 5),
+					new NDPoint(2.0, 5)), new RectangleQuery() {
+				@Override
+				public boolean query(NDRectangleKey k) {
+					return calls.incrementAndGet() < limit;
+				}
+			});
+			assertEquals(limit, calls.get());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Joins in both directions run concurrently with writers on both trees.
+	 * The read locks are taken in the same order by every join, else the
+	 * joins could deadlock with the writers queued on the locks.
+	 */
+	@Test
+	public void testOppositeJoins() throws Exception {
+		final NDRTree[] trees = new NDRTree[2];
+		for (int t = 0; t < trees.length; t++) {
+			trees[t] = new NDRTree(8, 0.5, 5, new ConcurrentBufferedStorage(
+					64, 4096));
+			for (int i = 0; i < 200; i++) {
+				assertTrue(trees[t].insert(this.nextNDRectangleKey()));
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> results = new ArrayList<Future<?>>();
+			for (int t = 0; t < trees.length; t++) {
+				final NDRTree left = trees[t];
+				final NDRTree right = trees[1 - t];
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = 0; i < 50; i++) {
+							left.join(right, new JoinQuery() {
+								@Override
+								public boolean query(NDRectangleKey a,
+										NDRectangleKey b) {
+									Thread.yield();
+									return true;
+								}
+							});
+						}
+						return null;
+					}
+				}));
+				final List<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+				for (int i = 0; i < 200; i++) {
+					keys.add(this.nextNDRectangleKey());
+				}
+				results.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (NDRectangleKey k : keys) {
+							assertTrue(left.insert(k));
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<?> f : results) {
+				f.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		assertEquals(400, trees[0].size());
+		assertEquals(400, trees[1].size());
+	}
+}
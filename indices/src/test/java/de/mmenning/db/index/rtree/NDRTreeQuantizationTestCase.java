@@ -0,0 +1,161 @@
+package de.mmenning.db.index.rtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.RectangleQuery;
+import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
+import de.mmenning.db.index.generate.RectangleDistributions;
+import de.mmenning.db.index.generate.StatsObject;
+import de.mmenning.db.index.rsttree.RSTTree;
+import de.mmenning.db.storage.DefaultStorage;
+
+public class NDRTreeQuantizationTestCase {
+
+	private static final int dim = 5;
+	private static final int maxK = 8;
+
+	private final NDRandomRectangleGenerator recGen = RectangleDistributions.UNIFORM_5D;
+
+	@After
+	public void tearDown() throws Exception {
+		DefaultStorage.getInstance().cleanUp();
+	}
+
+	private List<NDRectangleKey> nextKeys(int n) {
+		List<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < n; i++) {
+			keys.add(new NDRectangleKey(new StatsObject().getObjectReference(),
+					this.recGen.getNextRectangle()));
+		}
+		return keys;
+	}
+
+	private static Set<NDRectangleKey> query(NDRTree t, NDRectangle region,
+			boolean contained) {
+		final Set<NDRectangleKey> result = new HashSet<NDRectangleKey>();
+		RectangleQuery q = new RectangleQuery() {
+			@Override
+			public boolean query(NDRectangleKey k) {
+				assertTrue(result.add(k));
+				return true;
+			}
+		};
+		if (contained) {
+			t.getContained(region, q);
+		} else {
+			t.getIntersected(region, q);
+		}
+		return result;
+	}
+
+	/**
+	 * every directory entry covers its child node
+	 */
+	private void testCovering(NDRTree t, Node n) {
+		if (n.isLeaf()) {
+			return;
+		}
+		for (int i = 0; i < n.size(); i++) {
+			Node child = t.readNodeChild(n.get(i));
+			assertTrue(n.get(i).getMBBox().contains(
+					t.unionEntries(child, 0, child.size())));
+			this.testCovering(t, child);
+		}
+	}
+
+	private void testQuantization(NDRTree exact, NDRTree quantized, int bits) {
+		quantized.setQuantization(bits);
+		assertTrue(quantized.getDirectoryCapacity() > quantized
+				.getMaxCapacity());
+
+		List<NDRectangleKey> keys = this.nextKeys(2000);
+		for (NDRectangleKey k : keys) {
+			assertTrue(exact.insert(k));
+			assertTrue(quantized.insert(k));
+		}
+		for (int i = 0; i < keys.size(); i += 3) {
+			assertTrue(exact.delete(keys.get(i)));
+			assertTrue(quantized.delete(keys.get(i)));
+			assertFalse(quantized.contains(keys.get(i)));
+		}
+		assertEquals(exact.size(), quantized.size());
+		assertTrue(quantized.getHeight() <= exact.getHeight());
+		this.testCovering(quantized, quantized.getRoot());
+
+		Random rand = new Random(3);
+		for (int i = 0; i < 30; i++) {
+			double[] begin = new double[dim];
+			double[] end = new double[dim];
+			for (int d = 0; d < dim; d++) {
+				begin[d] = rand.nextDouble() * 0.5;
+				end[d] = begin[d] + 0.3 + rand.nextDouble() * 0.2;
+			}
+			NDRectangle region = new NDRectangle(new NDPoint(begin),
+					new NDPoint(end));
+			for (boolean contained : new boolean[] { false, true }) {
+				assertEquals(query(exact, region, contained), query(quantized,
+						region, contained));
+			}
+			assertEquals(exact.countContained(region),
+					quantized.countContained(region));
+			assertEquals(exact.countIntersected(region),
+					quantized.countIntersected(region));
+		}
+	}
+
+	@Test
+	public void testNDRTree() {
+		this.testQuantization(new NDRTree(maxK, 0.5, dim), new NDRTree(maxK,
+				0.5, dim), 8);
+	}
+
+	@Test
+	public void testNDRStar() {
+		this.testQuantization(new NDRStar(maxK, 0.4, dim), new NDRStar(maxK,
+				0.4, dim), 16);
+	}
+
+	@Test
+	public void testBulkLoad() {
+		List<NDRectangleKey> keys = this.nextKeys(1000);
+		NDRTree t = new NDRStar(maxK, 0.5, dim);
+		t.setQuantization(8);
+		t.bulkLoad(keys.iterator(), 1.0);
+		assertEquals(keys.size(), t.size());
+		for (NDRectangleKey k : keys) {
+			assertTrue(t.contains(k));
+		}
+		this.testCovering(t, t.getRoot());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNotEmpty() {
+		NDRTree t = new NDRTree(maxK, 0.5, dim);
+		t.insert(this.nextKeys(1).get(0));
+		t.setQuantization(8);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBits() {
+		new NDRTree(maxK, 0.5, dim).setQuantization(12);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testRSTTree() {
+		new RSTTree(maxK, 0.5, dim - 2).setQuantization(8);
+	}
+}
@@ -4,17 +4,22 @@ import de.mmenning.db.index.NDPoint;
 import de.mmenning.db.index.NDRectangle;
 import de.mmenning.db.index.NDRectangleKey;
 import de.mmenning.db.index.RectangleQuery;
+import de.mmenning.db.index.ReferenceQuery;
 import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
 import de.mmenning.db.index.generate.RectangleDistributions;
 import de.mmenning.db.index.generate.StatsObject;
 import de.mmenning.db.storage.DefaultStorage;
+import de.mmenning.db.storage.ObjectReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import static org.junit.Assert.*;
@@ -191,6 +196,34 @@ public class NDRTreeTestCase {
 					EPSILON);
 			assertArrayEquals(a.getEnd().toArray(), b.getEnd().toArray(),
 					EPSILON);
+
+			if (this.getTree().isAggregated()) {
+				int count = 0;
+				for (int i = 0; i < n.getNode().size(); i++) {
+					count += n.getNode().get(i).getCount();
+				}
+				assertEquals(count, n.getParentEntry().getCount());
+			}
+		}
+
+		final Node node = n.getNode();
+		final double[] bounds = node.getBounds();
+		if (bounds != null) {
+			final int dim = node.get(0).getMBBox().getDim();
+			if (node instanceof PackedNode) {
+				assertTrue(2 * dim * node.size() <= bounds.length);
+			} else {
+				assertEquals(2 * dim * node.size(), bounds.length);
+			}
+			for (int i = 0; i < node.size(); i++) {
+				final NDRectangle r = node.get(i).getMBBox();
+				for (int d = 0; d < dim; d++) {
+					assertEquals(r.getBegin().getValue(d), bounds[2 * dim * i + d],
+							0.0);
+					assertEquals(r.getEnd().getValue(d), bounds[2 * dim * i
+							+ dim + d], 0.0);
+				}
+			}
 		}
 	}
 
@@ -317,6 +350,153 @@ public class NDRTreeTestCase {
 		assertEquals(intersected, l.size());
 	}
 
+	@Test
+	public void testReferenceQuery() {
+		final NDRectangle region = new NDRectangle(new NDPoint(0.2, this.dim),
+				new NDPoint(0.7, this.dim));
+		for (final boolean contained : new boolean[] { false, true }) {
+			final Set<NDRectangleKey> expected = new HashSet<NDRectangleKey>();
+			RectangleQuery q = new RectangleQuery() {
+				@Override
+				public boolean query(NDRectangleKey k) {
+					return expected.add(k);
+				}
+			};
+			final Set<NDRectangleKey> result = new HashSet<NDRectangleKey>();
+			ReferenceQuery rq = new ReferenceQuery() {
+				@Override
+				public boolean query(ObjectReference object, NDRectangle key) {
+					assertTrue(result.add(new NDRectangleKey(object, key)));
+					return true;
+				}
+			};
+			if (contained) {
+				this.getTree().getContained(region, q);
+				this.getTree().getContained(region, rq);
+			} else {
+				this.getTree().getIntersected(region, q);
+				this.getTree().getIntersected(region, rq);
+			}
+			assertFalse(expected.isEmpty());
+			assertEquals(expected, result);
+		}
+
+		final int[] calls = new int[1];
+		this.getTree().getIntersected(region, new ReferenceQuery() {
+			@Override
+			public boolean query(ObjectReference object, NDRectangle key) {
+				return ++calls[0] < 3;
+			}
+		});
+		assertEquals(3, calls[0]);
+	}
+
+	@Test
+	public void testCount() {
+		Iterator<NDRectangleKey> iter = this.added.iterator();
+		for (int i = 0; i < this.initialSize / 3; i++) {
+			assertTrue(this.getTree().delete(iter.next()));
+			iter.remove();
+		}
+		this.testBoundingBoxes();
+
+		Random rand = new Random(7);
+		for (int i = 0; i < 50; i++) {
+			double[] begin = new double[this.dim];
+			double[] end = new double[this.dim];
+			for (int d = 0; d < this.dim; d++) {
+				begin[d] = rand.nextDouble() * 0.6;
+				end[d] = begin[d] + 0.2 + rand.nextDouble() * 0.4;
+			}
+			NDRectangle region = new NDRectangle(new NDPoint(begin),
+					new NDPoint(end));
+
+			final int[] count = new int[1];
+			RectangleQuery q = new RectangleQuery() {
+				@Override
+				public boolean query(NDRectangleKey k) {
+					count[0]++;
+					return true;
+				}
+			};
+			this.getTree().getIntersected(region, q);
+			assertEquals(count[0], this.getTree().countIntersected(region));
+			count[0] = 0;
+			this.getTree().getContained(region, q);
+			assertEquals(count[0], this.getTree().countContained(region));
+		}
+		NDRectangle all = new NDRectangle(new NDPoint(0.0, this.dim),
+				new NDPoint(1.0, this.dim));
+		assertEquals(this.added.size(), this.getTree().countIntersected(all));
+		assertNull(this.getTree().aggregateIntersected(all));
+	}
+
+	@Test
+	public void testBatchIntersected() {
+		final List<NDRectangle> regions = new ArrayList<NDRectangle>();
+		final List<Set<NDRectangleKey>> results = new ArrayList<Set<NDRectangleKey>>();
+		final List<RectangleQuery> queries = new ArrayList<RectangleQuery>();
+		Iterator<NDRectangleKey> iter = this.added.iterator();
+		for (int i = 0; i < 20; i++) {
+			regions.add(iter.next().getNDKey());
+			final Set<NDRectangleKey> result = new HashSet<NDRectangleKey>();
+			results.add(result);
+			queries.add(new RectangleQuery() {
+				@Override
+				public boolean query(NDRectangleKey k) {
+					assertTrue(result.add(k));
+					return result.size() < 5;
+				}
+			});
+		}
+
+		this.getTree().getIntersected(regions, queries);
+
+		for (int i = 0; i < regions.size(); i++) {
+			int intersected = 0;
+			for (NDRectangleKey k : this.added) {
+				if (regions.get(i).intersects(k.getNDKey())) {
+					intersected++;
+				}
+			}
+			assertEquals(Math.min(5, intersected), results.get(i).size());
+			for (NDRectangleKey k : results.get(i)) {
+				assertTrue(regions.get(i).intersects(k.getNDKey()));
+			}
+		}
+	}
+
+	@Test
+	public void testNearest() {
+		final NDPoint p = new NDPoint(0.5, this.dim);
+
+		ArrayList<Double> distances = new ArrayList<Double>();
+		Set<ObjectReference> browsed = new HashSet<ObjectReference>();
+		Iterator<NDRectangleKey> iter = this.getTree().nearest(p, null);
+		while (iter.hasNext()) {
+			NDRectangleKey k = iter.next();
+			assertTrue(browsed.add(k.getObject()));
+			distances.add(k.getNDKey().quadraticMinDistance(p));
+		}
+		assertEquals(this.added.size(), browsed.size());
+		for (int i = 1; i < distances.size(); i++) {
+			assertTrue(distances.get(i - 1) <= distances.get(i));
+		}
+
+		List<NDRectangleKey> nearest = this.getTree().nearest(p, 10, null);
+		assertEquals(10, nearest.size());
+		for (int i = 0; i < nearest.size(); i++) {
+			assertEquals(distances.get(i),
+					nearest.get(i).getNDKey().quadraticMinDistance(p), 0.0);
+		}
+
+		final NDRectangle filter = new NDRectangle(new NDPoint(0.0, this.dim),
+				new NDPoint(0.5, this.dim));
+		for (NDRectangleKey k : this.getTree().nearest(p, 10, filter)) {
+			assertTrue(filter.intersects(k.getNDKey()));
+		}
+	}
+
 	@Test
 	public void testLeafPathLength() {
 		ArrayList<NDRTree.NodeEntryPair> path = new ArrayList<NDRTree.NodeEntryPair>();
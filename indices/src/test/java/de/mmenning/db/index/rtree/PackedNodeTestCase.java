@@ -0,0 +1,82 @@
+package de.mmenning.db.index.rtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.rsttree.RSTTree;
+
+/**
+ * Runs the tests of NDRStar on packed nodes.
+ */
+public class PackedNodeTestCase extends NDRStarTestCase {
+
+	@Override
+	protected NDRStar createTree() {
+		final NDRStar t = super.createTree();
+		t.setPacked(true);
+		return t;
+	}
+
+	/**
+	 * collects the bounding boxes of all entries in depth first order
+	 */
+	private void collect(NDRTree t, Node n, List<NDRectangle> boxes) {
+		assertEquals(t.isPacked(), n instanceof PackedNode);
+		for (int i = 0; i < n.size(); i++) {
+			boxes.add(n.get(i).getMBBox());
+			if (!n.isLeaf()) {
+				this.collect(t, t.readNodeChild(n.get(i)), boxes);
+			}
+		}
+	}
+
+	@Test
+	public void testPackedNodes() {
+		assertTrue(this.getTree().isPacked());
+		this.collect(this.getTree(), this.getTree().getRoot(),
+				new ArrayList<NDRectangle>());
+	}
+
+	/**
+	 * a packed tree makes the same decisions as a plain one
+	 */
+	@Test
+	public void testSameAsPlain() {
+		final NDRStar packed = this.createTree();
+		final NDRStar plain = new NDRStar(maxK, 0.5, dim);
+		final List<NDRectangleKey> keys = new ArrayList<NDRectangleKey>(
+				this.added);
+		for (NDRectangleKey k : keys) {
+			assertTrue(packed.insert(k));
+			assertTrue(plain.insert(k));
+		}
+		for (int i = 0; i < keys.size(); i += 3) {
+			assertTrue(packed.delete(keys.get(i)));
+			assertTrue(plain.delete(keys.get(i)));
+		}
+
+		final List<NDRectangle> packedBoxes = new ArrayList<NDRectangle>();
+		final List<NDRectangle> plainBoxes = new ArrayList<NDRectangle>();
+		this.collect(packed, packed.getRoot(), packedBoxes);
+		this.collect(plain, plain.getRoot(), plainBoxes);
+		assertEquals(plain.getHeight(), packed.getHeight());
+		assertEquals(plainBoxes, packedBoxes);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testPackedNotEmpty() {
+		this.getTree().setPacked(false);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testRSTTree() {
+		new RSTTree(maxK, 0.5, dim - 2).setPacked(true);
+	}
+}
@@ -0,0 +1,55 @@
+package de.mmenning.db.storage;
+
+import java.util.Random;
+
+/**
+ * Measures the cost of a buffer hit for growing buffer capacities. With an
+ * access-ordered list that supports constant time reordering, the time per hit
+ * should stay flat from a few up to many thousand buffered blocks.
+ */
+public class BufferedStorageBenchmark {
+
+	private static final int blockSize = 4096;
+
+	private static final int[] capacities = { 10, 100, 1000, 10000, 100000 };
+
+	private static final int hits = 1000000;
+
+	public static void main(final String[] args) {
+
+		final Random rand = new Random(42);
+
+		for (final int capacity : capacities) {
+			final BufferedStorage buffer = new BufferedStorage(capacity,
+					blockSize);
+
+			final ObjectReference[] refs = new ObjectReference[capacity];
+
+			for (int i = 0; i < capacity; i++) {
+				final Object o = new Object();
+				refs[i] = ObjectReference.getReference(o);
+				buffer.store(new SimpleStorable(refs[i], o, blockSize));
+			}
+
+			// warm up
+			for (int i = 0; i < hits; i++) {
+				buffer.load(refs[rand.nextInt(capacity)]);
+			}
+
+			final long start = System.nanoTime();
+
+			for (int i = 0; i < hits; i++) {
+				buffer.load(refs[rand.nextInt(capacity)]);
+			}
+
+			final long time = System.nanoTime() - start;
+
+			if (buffer.memorySize() != capacity) {
+				throw new IllegalStateException("buffer evicted hits");
+			}
+
+			System.out.println("Capacity " + capacity + ": "
+					+ ((double) time / (double) hits) + " ns per hit");
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package de.mmenning.db.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
+import de.mmenning.db.index.generate.RectangleDistributions;
+import de.mmenning.db.index.generate.StatsObject;
+import de.mmenning.db.index.rsttree.BasicConstants;
+import de.mmenning.db.index.rsttree.RSTTree;
+
+public class ConcurrentBufferedStorageTestCase {
+
+	private static final int blockSize = 4096;
+
+	private static ObjectReference store(StorageManager s) {
+		Object o = new Object();
+		ObjectReference or = ObjectReference.getReference(o);
+		s.store(new SimpleStorable(or, o, blockSize));
+		return or;
+	}
+
+	@Test
+	public void testPinnedNotEvicted() {
+		ConcurrentBufferedStorage buffer = new ConcurrentBufferedStorage(4,
+				blockSize, ReplacementPolicies.LRU, new CountingStorage(
+						blockSize), 1);
+		ObjectReference pinned = store(buffer);
+		ArrayList<ObjectReference> refs = new ArrayList<ObjectReference>();
+		for (int i = 0; i < 20; i++) {
+			refs.add(store(buffer));
+		}
+
+		buffer.pin(pinned);
+		assertTrue(buffer.isPinned(pinned));
+		for (int i = 0; i < 100; i++) {
+			buffer.load(refs.get(i % refs.size()));
+			assertTrue(buffer.getBufferSize() <= 4);
+		}
+		long misses = buffer.getMisses();
+		buffer.load(pinned);
+		assertEquals(misses, buffer.getMisses());
+
+		buffer.unpin(pinned);
+		assertFalse(buffer.isPinned(pinned));
+		for (int i = 0; i < 100; i++) {
+			buffer.load(refs.get(i % refs.size()));
+		}
+		buffer.load(pinned);
+		assertEquals(misses + 101, buffer.getMisses());
+	}
+
+	@Test
+	public void testOnlyPinnedElements() {
+		ConcurrentBufferedStorage buffer = new ConcurrentBufferedStorage(2,
+				blockSize, ReplacementPolicies.CLOCK, new CountingStorage(
+						blockSize), 1);
+		ObjectReference[] refs = new ObjectReference[3];
+		for (int i = 0; i < refs.length; i++) {
+			refs[i] = store(buffer);
+		}
+		buffer.pin(refs[0]);
+		buffer.pin(refs[1]);
+		// the buffer exceeds its capacity instead of evicting pinned elements
+		buffer.pin(refs[2]);
+		assertEquals(3, buffer.memorySize());
+
+		for (ObjectReference or : refs) {
+			buffer.unpin(or);
+		}
+		store(buffer);
+		assertEquals(2, buffer.getBufferSize());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testUnpinNotPinned() {
+		ConcurrentBufferedStorage buffer = new ConcurrentBufferedStorage(4,
+				blockSize);
+		buffer.unpin(store(buffer));
+	}
+
+	@Test
+	public void testConcurrentQueries() throws Exception {
+		final int threads = 16;
+		final CountingStorage disk = new CountingStorage(blockSize);
+		final ConcurrentBufferedStorage buffer = new ConcurrentBufferedStorage(
+				64, blockSize, ReplacementPolicies.LRU, disk, threads);
+		final RSTTree tree = new RSTTree(16, 0.5, 3,
+				BasicConstants.getInstance(), buffer);
+
+		NDRandomRectangleGenerator recGen = RectangleDistributions.UNIFORM_5D;
+		final List<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < 2000; i++) {
+			NDRectangleKey key = new NDRectangleKey(
+					new StatsObject().getObjectReference(),
+					recGen.getNextRectangle());
+			keys.add(key);
+			assertTrue(tree.insert(key));
+		}
+
+		long hits = buffer.getHits();
+		long misses = buffer.getMisses();
+		long reads = disk.getIOCounter().getReads();
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < threads; t++) {
+				final long seed = t;
+				results.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						Random rand = new Random(seed);
+						int found = 0;
+						for (int i = 0; i < 500; i++) {
+							if (tree.contains(keys.get(rand.nextInt(keys.size())))) {
+								found++;
+							}
+						}
+						return found;
+					}
+				}));
+			}
+			for (Future<Integer> f : results) {
+				assertEquals(500, f.get().intValue());
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		assertTrue(buffer.getBufferSize() <= 64);
+		// every node fits into one block
+		assertEquals(buffer.getMisses() - misses, disk.getIOCounter()
+				.getReads() - reads);
+		assertTrue(buffer.getHits() > hits);
+	}
+
+	/**
+	 * Misses in different stripes read the underlying storage concurrently.
+	 */
+	@Test
+	public void testConcurrentMisses() throws Exception {
+		final CyclicBarrier bothLoading = new CyclicBarrier(2);
+		final CountingStorage disk = new CountingStorage(blockSize) {
+			@Override
+			public Storable load(ObjectReference or) {
+				try {
+					// returns only if the other load runs at the same time
+					bothLoading.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException | BrokenBarrierException
+						| TimeoutException e) {
+					throw new IllegalStateException(e);
+				}
+				return super.load(or);
+			}
+		};
+		final ConcurrentBufferedStorage buffer = new ConcurrentBufferedStorage(
+				64, blockSize, ReplacementPolicies.LRU, disk, 16);
+
+		final ObjectReference first = store(disk);
+		ObjectReference other = store(disk);
+		while (stripe(other, 16) == stripe(first, 16)) {
+			other = store(disk);
+		}
+		final ObjectReference second = other;
+
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			Future<Storable> f1 = pool.submit(new Callable<Storable>() {
+				@Override
+				public Storable call() {
+					return buffer.load(first);
+				}
+			});
+			Future<Storable> f2 = pool.submit(new Callable<Storable>() {
+				@Override
+				public Storable call() {
+					return buffer.load(second);
+				}
+			});
+			assertEquals(first, f1.get().getObjectReference());
+			assertEquals(second, f2.get().getObjectReference());
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(2, buffer.getMisses());
+	}
+
+	private static int stripe(ObjectReference or, int stripes) {
+		int h = or.hashCode();
+		h ^= h >>> 16;
+		return h & (stripes - 1);
+	}
+}
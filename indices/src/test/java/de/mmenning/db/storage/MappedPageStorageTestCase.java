@@ -0,0 +1,129 @@
+package de.mmenning.db.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.NowGen;
+import de.mmenning.db.index.RectangleQuery;
+import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
+import de.mmenning.db.index.generate.RectangleDistributions;
+import de.mmenning.db.index.sequential.SequentialAccess;
+
+public class MappedPageStorageTestCase {
+
+	private static final int blockSize = 128;
+	private static final int segmentPages = 16;
+
+	private File file;
+	private MappedPageStorage storage;
+
+	@Before
+	public void setUp() throws Exception {
+		this.file = File.createTempFile("mapped", ".db");
+		this.storage = new MappedPageStorage(this.file, blockSize,
+				SerializingCodec.getInstance(), segmentPages);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.storage.close();
+		this.file.delete();
+	}
+
+	@Test
+	public void testStoreLoadOverSegments() {
+		Random rand = new Random(0);
+		ArrayList<double[]> stored = new ArrayList<double[]>();
+		ArrayList<ObjectReference> refs = new ArrayList<ObjectReference>();
+
+		for (int i = 0; i < 200; i++) {
+			double[] values = new double[rand.nextInt(100)];
+			for (int j = 0; j < values.length; j++) {
+				values[j] = rand.nextDouble();
+			}
+			ObjectReference or = ObjectReference.getReference(values);
+			this.storage.store(new SimpleStorable(or, values, values.length));
+			stored.add(values);
+			refs.add(or);
+		}
+		assertTrue(this.storage.getPageCount() > segmentPages);
+
+		for (int i = 0; i < refs.size(); i++) {
+			Storable st = this.storage.load(refs.get(i));
+			assertEquals(stored.get(i).length, st.getBytes());
+			assertArrayEquals(stored.get(i), (double[]) st.getObject(), 0.0);
+		}
+	}
+
+	@Test
+	public void testPhysicalOrderAndReuse() {
+		ArrayList<ObjectReference> refs = new ArrayList<ObjectReference>();
+		for (int i = 0; i < 20; i++) {
+			double[] values = new double[] { i };
+			ObjectReference or = ObjectReference.getReference(values);
+			this.storage.store(new SimpleStorable(or, values, 8));
+			refs.add(or);
+		}
+		long pages = this.storage.getPageCount();
+
+		this.storage.delete(refs.get(3));
+		double[] values = new double[] { 3 };
+		ObjectReference or = ObjectReference.getReference(values);
+		this.storage.store(new SimpleStorable(or, values, 8));
+		refs.set(3, or);
+
+		assertEquals(pages, this.storage.getPageCount());
+
+		int i = 0;
+		for (ObjectReference stored : this.storage) {
+			assertEquals(refs.get(i++), stored);
+		}
+		assertEquals(refs.size(), i);
+	}
+
+	@Test
+	public void testSequentialAccess() {
+		NDRandomRectangleGenerator recGen = RectangleDistributions.UNIFORM_5D;
+		SequentialAccess scan = new SequentialAccess(5, this.storage,
+				new NowGen(1.0));
+
+		ArrayList<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < 300; i++) {
+			NDRectangleKey key = new NDRectangleKey(
+					ObjectReference.getReference(new Object()),
+					recGen.getNextRectangle());
+			assertTrue(scan.insert(key));
+			keys.add(key);
+		}
+		for (NDRectangleKey key : keys) {
+			assertTrue(scan.contains(key));
+		}
+
+		assertTrue(scan.delete(keys.get(0)));
+		assertFalse(scan.contains(keys.get(0)));
+
+		final Set<NDRectangleKey> result = new HashSet<NDRectangleKey>();
+		scan.getIntersected(recGen.getNextRectangle(), new RectangleQuery() {
+			@Override
+			public boolean query(NDRectangleKey k) {
+				assertTrue(result.add(k));
+				return true;
+			}
+		});
+		assertFalse(result.contains(keys.get(0)));
+	}
+}
@@ -0,0 +1,399 @@
+package de.mmenning.db.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mmenning.db.index.NDPoint;
+import de.mmenning.db.index.NDPointKey;
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.RectangleQuery;
+import de.mmenning.db.index.generate.NDPointGenerator;
+import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
+import de.mmenning.db.index.generate.RectangleDistributions;
+import de.mmenning.db.index.generate.StatsObject;
+import de.mmenning.db.index.pyramid.PyramidNodeCodec;
+import de.mmenning.db.index.pyramid.PyramidTechnique;
+import de.mmenning.db.index.rsttree.BasicConstants;
+import de.mmenning.db.index.rsttree.RSTTree;
+import de.mmenning.db.index.rsttree.RSTTreeNodeCodec;
+import de.mmenning.db.index.rsttree.STRectangle;
+import de.mmenning.db.index.rtree.Aggregate;
+import de.mmenning.db.index.rtree.AggregateCodec;
+import de.mmenning.db.index.rtree.Entry;
+import de.mmenning.db.index.rtree.NDRStar;
+import de.mmenning.db.index.rtree.NDRTree;
+import de.mmenning.db.index.rtree.Node;
+import de.mmenning.db.index.rtree.RTreeNodeCodec;
+import de.mmenning.util.math.Uniform;
+
+public class NodeCodecTestCase {
+
+	private static final int blockSize = 256;
+
+	private File file;
+	private PageFileStorage storage;
+
+	@Before
+	public void setUp() throws Exception {
+		this.file = File.createTempFile("nodecodec", ".db");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (this.storage != null) {
+			this.storage.close();
+		}
+		this.file.delete();
+	}
+
+	/**
+	 * every stored node must be encoded in exactly the byte size the index
+	 * assumes
+	 */
+	private void assertModelSizes(StorableCodec codec) {
+		int nodes = 0;
+		for (ObjectReference or : this.storage) {
+			Storable st = this.storage.load(or);
+			assertEquals(st.getBytes(), codec.getEncodedSize(st.getObject()));
+			nodes++;
+		}
+		assertTrue(nodes > 1);
+	}
+
+	private static Set<NDRectangleKey> intersected(NDRTree tree,
+			NDRectangle region) {
+		final Set<NDRectangleKey> result = new HashSet<NDRectangleKey>();
+		tree.getIntersected(region, new RectangleQuery() {
+			@Override
+			public boolean query(NDRectangleKey k) {
+				result.add(k);
+				return true;
+			}
+		});
+		return result;
+	}
+
+	@Test
+	public void testRTreeNodes() {
+		RTreeNodeCodec codec = new RTreeNodeCodec(8, 5);
+		this.storage = new PageFileStorage(this.file, blockSize, codec);
+
+		NDRandomRectangleGenerator recGen = RectangleDistributions.UNIFORM_5D;
+		NDRTree onDisk = new NDRStar(8, 0.5, 5, this.storage);
+		NDRTree inMemory = new NDRStar(8, 0.5, 5, new CountingStorage(
+				blockSize));
+
+		ArrayList<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < 500; i++) {
+			NDRectangleKey key = new NDRectangleKey(
+					new StatsObject().getObjectReference(),
+					recGen.getNextRectangle());
+			keys.add(key);
+			assertTrue(onDisk.insert(key));
+			assertTrue(inMemory.insert(key));
+		}
+		for (int i = 0; i < 100; i++) {
+			assertTrue(onDisk.delete(keys.get(i)));
+			assertTrue(inMemory.delete(keys.get(i)));
+		}
+
+		assertEquals(inMemory.size(), onDisk.size());
+		for (int i = 0; i < 50; i++) {
+			NDRectangle region = recGen.getNextRectangle();
+			assertEquals(intersected(inMemory, region),
+					intersected(onDisk, region));
+		}
+		assertModelSizes(codec);
+	}
+
+	private static final Aggregate<Double> SUM = new Aggregate<Double>() {
+		@Override
+		public Double value(NDRectangleKey k) {
+			return k.getNDKey().getBegin().getValue(0);
+		}
+
+		@Override
+		public Double combine(Double a1, Double a2) {
+			return a1 + a2;
+		}
+	};
+
+	private static final AggregateCodec<Double> SUM_CODEC = new AggregateCodec<Double>() {
+		@Override
+		public int getByteSize() {
+			return 8;
+		}
+
+		@Override
+		public void encode(Double value, ByteBuffer dst) {
+			dst.putDouble(value);
+		}
+
+		@Override
+		public Double decode(ByteBuffer src) {
+			return src.getDouble();
+		}
+	};
+
+	@Test
+	public void testCountsAndAggregates() {
+		Node leaf = new Node(4);
+		Node dir = new Node(4);
+		for (int i = 0; i < 3; i++) {
+			Entry e = new Entry(new NDRectangleKey(new StatsObject()
+					.getObjectReference(), RectangleDistributions.UNIFORM_5D
+					.getNextRectangle()));
+			e.setAggregate(0.5 * i);
+			leaf.addEntry(e);
+			Entry d = new Entry(e.getMBBox(), new Node(4));
+			d.setCount(10 + i);
+			d.setAggregate(1.5 * i);
+			dir.addEntry(d);
+		}
+
+		RTreeNodeCodec codec = new RTreeNodeCodec(4, 5, SUM_CODEC);
+		for (Node n : new Node[] { leaf, dir }) {
+			ByteBuffer buf = ByteBuffer.allocate(codec.getEncodedSize(n));
+			codec.encode(n, buf);
+			assertFalse(buf.hasRemaining());
+			buf.flip();
+			Node decoded = (Node) codec.decode(n.getObjectReference(), buf);
+
+			assertEquals(n.size(), decoded.size());
+			assertEquals(n.isLeaf(), decoded.isLeaf());
+			for (int i = 0; i < n.size(); i++) {
+				assertEquals(n.get(i).getChild(), decoded.get(i).getChild());
+				assertEquals(n.get(i).getCount(), decoded.get(i).getCount());
+				assertEquals(n.get(i).getAggregate(), decoded.get(i)
+						.getAggregate());
+			}
+		}
+	}
+
+	@Test
+	public void testCountsOfAggregateTreesOnly() {
+		Node dir = new Node(4);
+		Entry d = new Entry(RectangleDistributions.UNIFORM_5D
+				.getNextRectangle(), new Node(4));
+		d.setCount(7);
+		dir.addEntry(d);
+
+		RTreeNodeCodec plain = new RTreeNodeCodec(4, 5);
+		RTreeNodeCodec counts = new RTreeNodeCodec(4, 5, true, null, 0);
+		assertEquals(4 * (8 + 5 * 16), plain.getEncodedSize(dir));
+		assertEquals(4 * (8 + 5 * 16 + Entry.COUNT_BYTE_SIZE),
+				counts.getEncodedSize(dir));
+
+		ByteBuffer buf = ByteBuffer.allocate(counts.getEncodedSize(dir));
+		counts.encode(dir, buf);
+		buf.flip();
+		assertEquals(7, ((Node) counts.decode(dir.getObjectReference(), buf))
+				.get(0).getCount());
+
+		NDRTree tree = new NDRTree(4096, 5, new CountingStorage(4096));
+		assertEquals(4096 / (8 + 5 * 16), tree.getMaxCapacity());
+		assertFalse(tree.isAggregated());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAggregateWithoutCodec() {
+		Node n = new Node(4);
+		Entry e = new Entry(new NDRectangleKey(
+				new StatsObject().getObjectReference(),
+				RectangleDistributions.UNIFORM_5D.getNextRectangle()));
+		e.setAggregate(1.0);
+		n.addEntry(e);
+		RTreeNodeCodec codec = new RTreeNodeCodec(4, 5);
+		codec.encode(n, ByteBuffer.allocate(codec.getEncodedSize(n)));
+	}
+
+	@Test
+	public void testAggregatedTree() {
+		RTreeNodeCodec codec = new RTreeNodeCodec(8, 5, SUM_CODEC);
+		this.storage = new PageFileStorage(this.file, blockSize, codec);
+
+		NDRandomRectangleGenerator recGen = RectangleDistributions.UNIFORM_5D;
+		NDRTree onDisk = new NDRStar(8, 0.5, 5, this.storage);
+		onDisk.setAggregate(SUM, SUM_CODEC);
+		NDRTree inMemory = new NDRStar(8, 0.5, 5, new CountingStorage(
+				blockSize));
+		inMemory.setAggregate(SUM, SUM_CODEC);
+
+		for (int i = 0; i < 500; i++) {
+			NDRectangleKey key = new NDRectangleKey(
+					new StatsObject().getObjectReference(),
+					recGen.getNextRectangle());
+			assertTrue(onDisk.insert(key));
+			assertTrue(inMemory.insert(key));
+		}
+		assertTrue(onDisk.getHeight() > 2);
+
+		for (int i = 0; i < 50; i++) {
+			NDRectangle region = recGen.getNextRectangle();
+			assertEquals(inMemory.countIntersected(region),
+					onDisk.countIntersected(region));
+			assertEquals(inMemory.countContained(region),
+					onDisk.countContained(region));
+			Double expected = (Double) inMemory.aggregateIntersected(region);
+			Double actual = (Double) onDisk.aggregateIntersected(region);
+			if (expected == null) {
+				assertNull(actual);
+			} else {
+				assertEquals(expected, actual, 1e-9);
+			}
+		}
+		assertModelSizes(codec);
+	}
+
+	@Test
+	public void testQuantizedNodes() {
+		RTreeNodeCodec codec = new RTreeNodeCodec(8, 5, null, 8);
+		this.storage = new PageFileStorage(this.file, blockSize, codec);
+
+		NDRandomRectangleGenerator recGen = RectangleDistributions.UNIFORM_5D;
+		NDRTree onDisk = new NDRStar(8, 0.5, 5, this.storage);
+		onDisk.setQuantization(8);
+		NDRTree inMemory = new NDRStar(8, 0.5, 5, new CountingStorage(
+				blockSize));
+		inMemory.setQuantization(8);
+		assertTrue(onDisk.getDirectoryCapacity() > onDisk.getMaxCapacity());
+
+		ArrayList<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < 500; i++) {
+			NDRectangleKey key = new NDRectangleKey(
+					new StatsObject().getObjectReference(),
+					recGen.getNextRectangle());
+			keys.add(key);
+			assertTrue(onDisk.insert(key));
+			assertTrue(inMemory.insert(key));
+		}
+		for (int i = 0; i < 100; i++) {
+			assertTrue(onDisk.delete(keys.get(i)));
+			assertTrue(inMemory.delete(keys.get(i)));
+		}
+
+		assertEquals(inMemory.size(), onDisk.size());
+		for (int i = 0; i < 50; i++) {
+			NDRectangle region = recGen.getNextRectangle();
+			assertEquals(intersected(inMemory, region),
+					intersected(onDisk, region));
+			assertEquals(inMemory.countIntersected(region),
+					onDisk.countIntersected(region));
+		}
+
+		int directories = 0;
+		for (ObjectReference or : this.storage) {
+			Node n = (Node) this.storage.load(or).getObject();
+			if (!n.isLeaf()) {
+				assertEquals(onDisk.getDirectoryCapacity(), n.getMaxCapacity());
+				directories++;
+			}
+		}
+		assertTrue(directories > 1);
+		assertModelSizes(codec);
+	}
+
+	@Test
+	public void testRSTTreeNodes() {
+		RSTTreeNodeCodec codec = new RSTTreeNodeCodec(8, 3);
+		this.storage = new PageFileStorage(this.file, blockSize, codec);
+
+		NDRandomRectangleGenerator recGen = RectangleDistributions.UNIFORM_5D;
+		RSTTree tree = new RSTTree(8, 0.5, 3, BasicConstants.getInstance(),
+				this.storage);
+
+		ArrayList<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < 300; i++) {
+			NDRectangleKey key = new NDRectangleKey(
+					new StatsObject().getObjectReference(),
+					recGen.getNextRectangle());
+			keys.add(key);
+			assertTrue(tree.insert(key));
+		}
+		for (NDRectangleKey key : keys) {
+			assertTrue(tree.contains(key));
+		}
+		assertModelSizes(codec);
+	}
+
+	@Test
+	public void testNowRectangle() {
+		RSTTreeNodeCodec codec = new RSTTreeNodeCodec(4, 1);
+		this.storage = new PageFileStorage(this.file, blockSize, codec);
+
+		STRectangle now = new STRectangle(new NDRectangle(new NDPoint(0.1,
+				0.2, 0.3), new NDPoint(0.4, STRectangle.UC, STRectangle.NOW)),
+				0.25, BasicConstants.getInstance());
+		STRectangle fixed = new STRectangle(new NDRectangle(new NDPoint(0.1,
+				0.2, 0.3), new NDPoint(0.4, 0.5, 0.6)),
+				BasicConstants.getInstance());
+		Node n = new Node(4);
+		n.addEntry(new Entry(new NDRectangleKey(new StatsObject()
+				.getObjectReference(), now)));
+		n.addEntry(new Entry(new NDRectangleKey(new StatsObject()
+				.getObjectReference(), fixed)));
+
+		ByteBuffer buf = ByteBuffer.allocate(codec.getEncodedSize(n));
+		codec.encode(n, buf);
+		assertFalse(buf.hasRemaining());
+		buf.flip();
+		Node decoded = (Node) codec.decode(n.getObjectReference(), buf);
+
+		assertEquals(2, decoded.size());
+		assertTrue(decoded.isLeaf());
+		STRectangle first = (STRectangle) decoded.get(0).getMBBox();
+		assertTrue(first.isNow());
+		assertTrue(first.isUC());
+		assertEquals(0.25, first.getDelta(), 0.0);
+		assertNull(first.getConstants());
+		STRectangle second = (STRectangle) decoded.get(1).getMBBox();
+		assertFalse(second.isNow());
+		assertEquals(fixed.getEnd(), second.getEnd());
+		assertEquals(n.get(1).getChild(), decoded.get(1).getChild());
+	}
+
+	@Test
+	public void testPyramidNodes() {
+		final int dim = 5;
+		final int pageSize = 1024;
+		PyramidNodeCodec<NDPointKey> codec = PyramidNodeCodec.forPointKeys(
+				pageSize, dim);
+		this.storage = new PageFileStorage(this.file, pageSize, codec);
+
+		PyramidTechnique tree = new PyramidTechnique(dim, pageSize,
+				this.storage);
+		NDPointGenerator pointGen = new NDPointGenerator(dim, new Uniform(0,
+				1));
+
+		ArrayList<NDPointKey> keys = new ArrayList<NDPointKey>();
+		for (int i = 0; i < 2000; i++) {
+			NDPoint p = pointGen.getNext();
+			// some points are indexed several times with the same key
+			int copies = i % 50 == 0 ? 40 : 1;
+			for (int j = 0; j < copies; j++) {
+				NDPointKey key = new NDPointKey(
+						new StatsObject().getObjectReference(), p);
+				keys.add(key);
+				assertTrue(tree.insert(key));
+			}
+		}
+		for (NDPointKey key : keys) {
+			assertTrue(tree.contains(key));
+		}
+		assertEquals(keys.size(), tree.size());
+		assertModelSizes(codec);
+	}
+}
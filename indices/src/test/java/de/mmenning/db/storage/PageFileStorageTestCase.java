@@ -0,0 +1,170 @@
+package de.mmenning.db.storage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.mmenning.db.index.NDRectangle;
+import de.mmenning.db.index.NDRectangleKey;
+import de.mmenning.db.index.RectangleQuery;
+import de.mmenning.db.index.generate.NDRandomRectangleGenerator;
+import de.mmenning.db.index.generate.RectangleDistributions;
+import de.mmenning.db.index.generate.StatsObject;
+import de.mmenning.db.index.rsttree.BasicConstants;
+import de.mmenning.db.index.rsttree.RSTTree;
+import de.mmenning.db.index.rtree.NDRTree;
+
+public class PageFileStorageTestCase {
+
+	private static final int blockSize = 256;
+
+	private File file;
+	private PageFileStorage storage;
+
+	@Before
+	public void setUp() throws Exception {
+		this.file = File.createTempFile("pagefile", ".db");
+		this.storage = new PageFileStorage(this.file, blockSize);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.storage.close();
+		this.file.delete();
+	}
+
+	private static ObjectReference store(StorageManager s, double[] values) {
+		ObjectReference or = ObjectReference.getReference(values);
+		s.store(new SimpleStorable(or, values, values.length * 8));
+		return or;
+	}
+
+	@Test
+	public void testStoreLoad() {
+		Random rand = new Random(0);
+		ArrayList<double[]> stored = new ArrayList<double[]>();
+		ArrayList<ObjectReference> refs = new ArrayList<ObjectReference>();
+
+		for (int i = 0; i < 100; i++) {
+			double[] values = new double[rand.nextInt(200)];
+			for (int j = 0; j < values.length; j++) {
+				values[j] = rand.nextDouble();
+			}
+			stored.add(values);
+			refs.add(store(this.storage, values));
+		}
+
+		for (int i = 0; i < refs.size(); i++) {
+			Storable st = this.storage.load(refs.get(i));
+			assertEquals(refs.get(i), st.getObjectReference());
+			assertEquals(stored.get(i).length * 8, st.getBytes());
+			assertArrayEquals(stored.get(i), (double[]) st.getObject(), 0.0);
+		}
+	}
+
+	@Test
+	public void testStoreAgain() {
+		double[] values = new double[100];
+		ObjectReference or = store(this.storage, values);
+		long pages = this.storage.getPageCount();
+
+		double[] smaller = new double[] { 1.0 };
+		this.storage.store(new SimpleStorable(or, smaller, 8));
+		assertEquals(pages, this.storage.getPageCount());
+		assertTrue(this.storage.getFreePageCount() > 0);
+		assertArrayEquals(smaller,
+				(double[]) this.storage.load(or).getObject(), 0.0);
+	}
+
+	@Test
+	public void testDeleteReusesPages() {
+		ArrayList<ObjectReference> refs = new ArrayList<ObjectReference>();
+		for (int i = 0; i < 50; i++) {
+			refs.add(store(this.storage, new double[i]));
+		}
+		long pages = this.storage.getPageCount();
+
+		for (ObjectReference or : refs) {
+			this.storage.delete(or);
+		}
+		assertEquals(pages, this.storage.getFreePageCount());
+
+		for (int i = 0; i < 50; i++) {
+			store(this.storage, new double[i]);
+		}
+		assertEquals(pages, this.storage.getPageCount());
+		assertEquals(0, this.storage.getFreePageCount());
+	}
+
+	private static Set<NDRectangleKey> intersected(NDRTree tree,
+			NDRectangle region) {
+		final Set<NDRectangleKey> result = new HashSet<NDRectangleKey>();
+		tree.getIntersected(region, new RectangleQuery() {
+			@Override
+			public boolean query(NDRectangleKey k) {
+				result.add(k);
+				return true;
+			}
+		});
+		return result;
+	}
+
+	@Test
+	public void testNDRTree() {
+		NDRandomRectangleGenerator recGen = RectangleDistributions.UNIFORM_5D;
+		NDRTree onDisk = new NDRTree(8, 0.5, 5, this.storage);
+		NDRTree inMemory = new NDRTree(8, 0.5, 5, new CountingStorage(
+				blockSize));
+
+		ArrayList<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < 500; i++) {
+			NDRectangleKey key = new NDRectangleKey(
+					new StatsObject().getObjectReference(),
+					recGen.getNextRectangle());
+			keys.add(key);
+			assertTrue(onDisk.insert(key));
+			assertTrue(inMemory.insert(key));
+		}
+		for (int i = 0; i < 100; i++) {
+			assertTrue(onDisk.delete(keys.get(i)));
+			assertTrue(inMemory.delete(keys.get(i)));
+		}
+
+		assertEquals(inMemory.size(), onDisk.size());
+		for (int i = 0; i < 50; i++) {
+			NDRectangle region = recGen.getNextRectangle();
+			assertEquals(intersected(inMemory, region),
+					intersected(onDisk, region));
+		}
+	}
+
+	@Test
+	public void testRSTTree() {
+		NDRandomRectangleGenerator recGen = RectangleDistributions.UNIFORM_5D;
+		RSTTree tree = new RSTTree(8, 0.5, 3, BasicConstants.getInstance(),
+				this.storage);
+
+		ArrayList<NDRectangleKey> keys = new ArrayList<NDRectangleKey>();
+		for (int i = 0; i < 300; i++) {
+			NDRectangleKey key = new NDRectangleKey(
+					new StatsObject().getObjectReference(),
+					recGen.getNextRectangle());
+			keys.add(key);
+			assertTrue(tree.insert(key));
+		}
+		for (NDRectangleKey key : keys) {
+			assertTrue(tree.contains(key));
+		}
+		assertTrue(this.storage.getIOCounter().getReads() > 0);
+	}
+}
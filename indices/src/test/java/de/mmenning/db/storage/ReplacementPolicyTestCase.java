@@ -0,0 +1,118 @@
+package de.mmenning.db.storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ReplacementPolicyTestCase {
+
+	private static final int blockSize = 4096;
+	private static final int capacity = 64;
+
+	private static ObjectReference[] createReferences(int n) {
+		ObjectReference[] refs = new ObjectReference[n];
+		for (int i = 0; i < n; i++) {
+			refs[i] = ObjectReference.getReference(new Object());
+		}
+		return refs;
+	}
+
+	private static long reads(BufferedStorage buffer) {
+		return ((CountingStorage) buffer.getStorage()).getIOCounter()
+				.getReads();
+	}
+
+	@Test
+	public void testEvictsEveryAdmittedElement() {
+		for (ReplacementPolicies p : ReplacementPolicies.values()) {
+			ReplacementPolicy policy = p.create(capacity);
+			ObjectReference[] refs = createReferences(capacity);
+
+			for (ObjectReference or : refs) {
+				policy.admit(or);
+			}
+			policy.hit(refs[0]);
+			policy.remove(refs[1]);
+
+			Set<ObjectReference> evicted = new HashSet<ObjectReference>();
+			for (int i = 0; i < capacity - 1; i++) {
+				ObjectReference victim = policy.evict(null);
+				assertTrue(p + " evicted " + victim, evicted.add(victim));
+			}
+			assertNull(p.toString(), policy.evict(null));
+			assertTrue(!evicted.contains(refs[1]));
+		}
+	}
+
+	@Test
+	public void testBufferConsistency() {
+		Random rand = new Random(0);
+		for (ReplacementPolicies p : ReplacementPolicies.values()) {
+			BufferedStorage buffer = (BufferedStorage) BufferedStorage
+					.getStorageManager(capacity, blockSize, p);
+			ObjectReference[] refs = createReferences(4 * capacity);
+
+			for (ObjectReference or : refs) {
+				buffer.store(new SimpleStorable(or, or, blockSize));
+			}
+
+			for (int i = 0; i < 10000; i++) {
+				ObjectReference or = refs[rand.nextInt(refs.length)];
+				assertEquals(or, buffer.load(or).getObjectReference());
+				if (rand.nextInt(10) == 0) {
+					buffer.store(new SimpleStorable(or, or, blockSize));
+				}
+				assertTrue(buffer.getBufferSize() <= capacity);
+				assertEquals(buffer.getBufferSize(), buffer.memorySize());
+			}
+		}
+	}
+
+	/**
+	 * Accesses of a hot set, which fits into the buffer, are mixed with a scan
+	 * over elements, which are read only once. All other policies must keep
+	 * more of the hot set buffered than LRU.
+	 */
+	@Test
+	public void testScanResistance() {
+		ObjectReference[] hot = createReferences(capacity / 2);
+		ObjectReference[] cold = createReferences(5000);
+
+		long lruReads = 0;
+		for (ReplacementPolicies p : ReplacementPolicies.values()) {
+			Random rand = new Random(1);
+			BufferedStorage buffer = (BufferedStorage) BufferedStorage
+					.getStorageManager(capacity, blockSize, p);
+			for (ObjectReference or : hot) {
+				buffer.store(new SimpleStorable(or, or, blockSize));
+			}
+			for (ObjectReference or : cold) {
+				buffer.store(new SimpleStorable(or, or, blockSize));
+			}
+
+			long before = reads(buffer);
+			int scan = 0;
+			while (scan < cold.length) {
+				if (rand.nextBoolean()) {
+					buffer.load(hot[rand.nextInt(hot.length)]);
+				} else {
+					buffer.load(cold[scan++]);
+				}
+			}
+			long reads = reads(buffer) - before;
+
+			if (p == ReplacementPolicies.LRU) {
+				lruReads = reads;
+			} else {
+				assertTrue(p + " " + reads + " LRU " + lruReads,
+						reads < lruReads);
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package de.mmenning.util.math;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class P2QuantileTestCase {
+
+	private static final int SIZE = 100000;
+
+	private final Random random = new Random();
+
+	private void assertEstimates(final double p, final double[] values,
+			final double delta) {
+		final P2Quantile estimate = new P2Quantile(p);
+		for (double v : values) {
+			estimate.add(v);
+		}
+		assertEquals(values.length, estimate.getCount());
+
+		final double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		assertEquals(sorted[(int) (p * (sorted.length - 1))],
+				estimate.getValue(), delta);
+	}
+
+	@Test
+	public void testUniformMedian() {
+		final double[] values = new double[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			values[i] = this.random.nextDouble();
+		}
+		this.assertEstimates(0.5, values, 0.01);
+	}
+
+	@Test
+	public void testSkewedQuantiles() {
+		final double[] values = new double[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			final double x = this.random.nextDouble();
+			values[i] = x * x * x;
+		}
+		this.assertEstimates(0.5, values, 0.01);
+		this.assertEstimates(0.25, values, 0.01);
+		this.assertEstimates(0.9, values, 0.01);
+	}
+
+	@Test
+	public void testDrift() {
+		/*
+		 * the median follows the values, when their distribution changes
+		 */
+		final double[] values = new double[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			values[i] = i < SIZE / 4 ? this.random.nextDouble() * 0.5
+					: 0.5 + this.random.nextDouble() * 0.5;
+		}
+		this.assertEstimates(0.5, values, 0.05);
+	}
+
+	@Test
+	public void testFewValues() {
+		final P2Quantile estimate = new P2Quantile();
+		estimate.add(3.0);
+		assertEquals(3.0, estimate.getValue(), 0.0);
+		estimate.add(1.0);
+		estimate.add(2.0);
+		assertEquals(2.0, estimate.getValue(), 0.0);
+		estimate.add(5.0);
+		estimate.add(4.0);
+		assertEquals(3.0, estimate.getValue(), 0.0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testEmpty() {
+		new P2Quantile().getValue();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalQuantile() {
+		new P2Quantile(1.0);
+	}
+}